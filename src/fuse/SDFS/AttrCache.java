@@ -0,0 +1,138 @@
+package fuse.SDFS;
+
+import java.io.File;
+import java.util.Iterator;
+
+import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.filestore.MetaFileStore;
+import org.opendedup.sdfs.io.MetaDataDedupFile;
+import org.opendedup.sdfs.io.events.MFileDeleted;
+import org.opendedup.sdfs.io.events.MFileRenamed;
+import org.opendedup.sdfs.io.events.MFileWritten;
+
+import com.google.common.eventbus.Subscribe;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap.Builder;
+
+/**
+ * Caches the type of the entries of the mounted volume, and the attributes of
+ * directories and symlinks, by physical path so repeated lookups are served
+ * from memory.
+ *
+ * Entries are dropped when a file is written, renamed or deleted, together
+ * with the entry of its parent whose size and times change with it. The
+ * attributes of files are not kept here since they are read from the
+ * MetaDataDedupFile, which is already in memory and changes with every write.
+ * Entries also expire after {@link Main#fuseAttrCacheTimeout} in case the
+ * volume is changed underneath the mount.
+ */
+class AttrCache {
+
+	private final ConcurrentLinkedHashMap<String, Attrs> cache;
+
+	AttrCache(int size) {
+		cache = new Builder<String, Attrs>()
+				.concurrencyLevel(Main.writeThreads)
+				.maximumWeightedCapacity(size).build();
+		MetaDataDedupFile.registerListener(this);
+		MetaFileStore.registerListener(this);
+		SDFSFileSystem.registerListener(this);
+	}
+
+	/**
+	 * @return the cached entry of <tt>path</tt> or null if it is not cached
+	 *         or has expired
+	 */
+	Attrs get(String path) {
+		Attrs a = cache.get(path);
+		if (a == null)
+			return null;
+		if (a.expires < System.currentTimeMillis()) {
+			cache.remove(path, a);
+			return null;
+		}
+		return a;
+	}
+
+	void put(String path, Attrs a) {
+		a.expires = System.currentTimeMillis() + Main.fuseAttrCacheTimeout;
+		cache.put(path, a);
+	}
+
+	/**
+	 * Drops <tt>path</tt> and its parent.
+	 */
+	void invalidate(String path) {
+		cache.remove(path);
+		String parent = new File(path).getParent();
+		if (parent != null)
+			cache.remove(parent);
+	}
+
+	/**
+	 * Drops <tt>path</tt>, its parent and everything under it.
+	 */
+	void invalidateTree(String path) {
+		this.invalidate(path);
+		String prefix = path + File.separator;
+		Iterator<String> iter = cache.keySet().iterator();
+		while (iter.hasNext()) {
+			if (iter.next().startsWith(prefix))
+				iter.remove();
+		}
+	}
+
+	@Subscribe
+	public void fileWritten(MFileWritten evt) {
+		this.invalidate(evt.mf.getPath());
+	}
+
+	@Subscribe
+	public void fileDeleted(MFileDeleted evt) {
+		if (evt.dir)
+			this.invalidateTree(evt.mf.getPath());
+		else
+			this.invalidate(evt.mf.getPath());
+	}
+
+	@Subscribe
+	public void fileRenamed(MFileRenamed evt) {
+		this.invalidateTree(evt.from);
+		this.invalidateTree(evt.to);
+	}
+
+	static final class Attrs {
+		final int ftype;
+		long inode;
+		int mode;
+		int uid;
+		int gid;
+		long size;
+		long blocks;
+		int atime;
+		int mtime;
+		int ctime;
+		boolean hasAttrs = false;
+		long expires;
+
+		Attrs(int ftype) {
+			this.ftype = ftype;
+		}
+
+		Attrs set(long inode, int mode, int uid, int gid, long size,
+				long blocks, int atime, int mtime, int ctime) {
+			this.inode = inode;
+			this.mode = mode;
+			this.uid = uid;
+			this.gid = gid;
+			this.size = size;
+			this.blocks = blocks;
+			this.atime = atime;
+			this.mtime = mtime;
+			this.ctime = ctime;
+			this.hasAttrs = true;
+			return this;
+		}
+	}
+
+}
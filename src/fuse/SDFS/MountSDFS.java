@@ -165,7 +165,9 @@ public class MountSDFS {
 		} else {
 			fal.add("-o");
 			fal.add("allow_other,nonempty,big_writes,allow_other,fsname=sdfs:" + volumeConfigFile
-					+ ":" + Main.sdfsCliPort);
+					+ ":" + Main.sdfsCliPort + ",entry_timeout="
+					+ Main.fuseAttrTimeout + ",attr_timeout="
+					+ Main.fuseAttrTimeout);
 		}
 		try {
 			String[] sFal = new String[fal.size()];
@@ -5,6 +5,8 @@ import java.io.IOException;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
@@ -13,6 +15,7 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.UserDefinedFileAttributeView;
 import java.util.List;
+import java.util.Map;
 
 import org.opendedup.collections.DataArchivedException;
 import org.opendedup.logging.SDFSLogger;
@@ -48,6 +51,7 @@ public class SDFSFileSystem implements Filesystem3, XattrSupport {
 	static int mbc = 1024 * 1024;
 	static int kbc = 1024;
 	private SDFSCmds sdfsCmds;
+	private final AttrCache attrCache;
 	private static EventBus eventBus = new EventBus();
 	
 	public static void registerListener(Object obj) {
@@ -68,6 +72,10 @@ public class SDFSFileSystem implements Filesystem3, XattrSupport {
 		File f = new File(this.mountedVolume);
 		if (!f.exists())
 			f.mkdirs();
+		if (Main.fuseAttrCacheSize > 0)
+			attrCache = new AttrCache(Main.fuseAttrCacheSize);
+		else
+			attrCache = null;
 	}
 
 	@Override
@@ -83,6 +91,7 @@ public class SDFSFileSystem implements Filesystem3, XattrSupport {
 				try {
 					Files.setAttribute(p, "unix:mode", Integer.valueOf(mode),
 							LinkOption.NOFOLLOW_LINKS);
+					this.invalidate(f.getPath());
 				} catch (IOException e) {
 					SDFSLogger.getLog().warn("access denied for " + path, e);
 					throw new FuseException("access denied for " + path)
@@ -121,6 +130,7 @@ public class SDFSFileSystem implements Filesystem3, XattrSupport {
 							LinkOption.NOFOLLOW_LINKS);
 					Files.setAttribute(p, "unix:gid", Integer.valueOf(gid),
 							LinkOption.NOFOLLOW_LINKS);
+					this.invalidate(f.getPath());
 				} catch (IOException e) {
 					e.printStackTrace();
 					throw new FuseException("access denied for " + path)
@@ -197,87 +207,35 @@ public class SDFSFileSystem implements Filesystem3, XattrSupport {
 		try {
 			int ftype = this.getFtype(path);
 			// SDFSLogger.getLog().info("poop " + path + " " + ftype);
-			if (ftype == FuseFtypeConstants.TYPE_SYMLINK) {
-				// SDFSLogger.getLog().info("poop " + path);
-				Path p = null;
-				BasicFileAttributes attrs = null;
-				try {
-					p = Paths.get(this.mountedVolume + path);
-					int uid = 0;
-					int gid = 0;
-					int mode = 0000;
-					try {
-						uid = (Integer) Files.getAttribute(p, "unix:uid",
-								LinkOption.NOFOLLOW_LINKS);
-						gid = (Integer) Files.getAttribute(p, "unix:gid",
-								LinkOption.NOFOLLOW_LINKS);
-						mode = (Integer) Files.getAttribute(p, "unix:mode",
-								LinkOption.NOFOLLOW_LINKS);
-					} catch (Exception e) {
-						SDFSLogger.getLog().error(
-								"unable to parse sylink " + path, e);
-					}
-
-					int atime = 0;
-					int ctime = 0;
-					int mtime = 0;
-					long fileLength = 0;
-					attrs = Files.readAttributes(p, BasicFileAttributes.class,
-							LinkOption.NOFOLLOW_LINKS);
-					fileLength = attrs.size();
-					mtime = (int) (attrs.lastModifiedTime().toMillis() / 1000L);
-					atime = (int) (attrs.lastAccessTime().toMillis() / 1000L);
-					ctime = (int) (attrs.creationTime().toMillis() / 1000L);
-
-					getattrSetter.set(p.hashCode(), mode, 1, uid, gid, 0,
-							fileLength,
-							(fileLength * NAME_LENGTH + BLOCK_SIZE - 1)
-									/ BLOCK_SIZE, atime, mtime, ctime);
-				} catch (Exception e) {
-					SDFSLogger.getLog().error("unable to parse sylink " + path,
-							e);
-					throw new FuseException().initErrno(Errno.EACCES);
-				} finally {
-					attrs = null;
-					p = null;
-				}
+			if (this.cachedAttrs(path, getattrSetter))
+				return 0;
+			if (ftype == FuseFtypeConstants.TYPE_SYMLINK
+					|| ftype == FuseFtypeConstants.TYPE_DIR) {
+				AttrCache.Attrs a = this.statAttrs(path, ftype);
+				getattrSetter.set(a.inode, a.mode, 1, a.uid, a.gid, 0, a.size,
+						a.blocks, a.atime, a.mtime, a.ctime);
+				if (attrCache != null)
+					attrCache.put(new File(mountedVolume + path).getPath(), a);
 			} else {
-				File f = resolvePath(path);
-				Path p = null;
+				// getFtype has already found it
+				File f = new File(this.mountedVolume + path);
 				try {
-					p = Paths.get(f.getPath());
-					if (ftype == FuseFtypeConstants.TYPE_DIR) {
-						int uid = (Integer) Files.getAttribute(p, "unix:uid");
-						int gid = (Integer) Files.getAttribute(p, "unix:gid");
-						int mode = (Integer) Files.getAttribute(p, "unix:mode");
-						MetaDataDedupFile mf = MetaFileStore.getFolder(f);
-						int atime = (int) (mf.getLastAccessed() / 1000L);
-						int mtime = (int) (mf.lastModified() / 1000L);
-						int ctime = (int) (0 / 1000L);
-
-						long fileLength = f.length();
-						getattrSetter.set(mf.getGUID().hashCode(), mode, 1,
-								uid, gid, 0, fileLength * NAME_LENGTH,
-								(fileLength * NAME_LENGTH + BLOCK_SIZE - 1)
-										/ BLOCK_SIZE, atime, mtime, ctime);
-					} else {
-						MetaDataDedupFile mf = MetaFileStore.getMF(f);
-						int uid = mf.getOwner_id();
-						int gid = mf.getGroup_id();
-						int mode = mf.getMode();
-						int atime = (int) (mf.getLastAccessed() / 1000L);
-						int ctime = (int) (0 / 1000L);
-						int mtime = (int) (mf.lastModified() / 1000L);
-						long fileLength = mf.length();
-						long actualBytes = (mf.getIOMonitor()
-								.getActualBytesWritten() * 2) / 1024;
-						if (actualBytes == 0
-								&& mf.getIOMonitor().getActualBytesWritten() > 0)
-							actualBytes = (Main.CHUNK_LENGTH * 2) / 1024;
-						getattrSetter.set(mf.getGUID().hashCode(), mode, 1,
-								uid, gid, 0, fileLength, actualBytes, atime,
-								mtime, ctime);
-					}
+					MetaDataDedupFile mf = MetaFileStore.getMF(f);
+					int uid = mf.getOwner_id();
+					int gid = mf.getGroup_id();
+					int mode = mf.getMode();
+					int atime = (int) (mf.getLastAccessed() / 1000L);
+					int ctime = (int) (0 / 1000L);
+					int mtime = (int) (mf.lastModified() / 1000L);
+					long fileLength = mf.length();
+					long actualBytes = (mf.getIOMonitor()
+							.getActualBytesWritten() * 2) / 1024;
+					if (actualBytes == 0
+							&& mf.getIOMonitor().getActualBytesWritten() > 0)
+						actualBytes = (Main.CHUNK_LENGTH * 2) / 1024;
+					getattrSetter.set(mf.getGUID().hashCode(), mode, 1, uid,
+							gid, 0, fileLength, actualBytes, atime, mtime,
+							ctime);
 				} catch (Exception e) {
 					SDFSLogger.getLog().error(
 							"unable to parse attributes " + path
@@ -285,7 +243,6 @@ public class SDFSFileSystem implements Filesystem3, XattrSupport {
 					throw new FuseException().initErrno(Errno.EACCES);
 				} finally {
 					f = null;
-					p = null;
 				}
 			}
 		} finally {
@@ -294,35 +251,146 @@ public class SDFSFileSystem implements Filesystem3, XattrSupport {
 		return 0;
 	}
 
-	@Override
-	public int getdir(String path, FuseDirFiller dirFiller)
+	/**
+	 * Reads the attributes of the directory or symlink at <tt>path</tt>.
+	 */
+	private AttrCache.Attrs statAttrs(String path, int ftype)
 			throws FuseException {
-		// SDFSLogger.getLog().info("1");
-		try {
-			File f = null;
+		if (ftype == FuseFtypeConstants.TYPE_SYMLINK) {
+			// SDFSLogger.getLog().info("poop " + path);
+			Path p = null;
+			BasicFileAttributes attrs = null;
 			try {
-				f = resolvePath(path);
-				File[] mfs = f.listFiles();
-				dirFiller.add(".", ".".hashCode(), FuseFtypeConstants.TYPE_DIR);
-				dirFiller.add("..", "..".hashCode(),
-						FuseFtypeConstants.TYPE_DIR);
-				for (int i = 0; i < mfs.length; i++) {
-					File _mf = mfs[i];
-					dirFiller.add(_mf.getName(), _mf.hashCode(),
-							this.getFtype(_mf));
+				p = Paths.get(this.mountedVolume + path);
+				int uid = 0;
+				int gid = 0;
+				int mode = 0000;
+				try {
+					Map<String, Object> ua = Files.readAttributes(p,
+							"unix:uid,gid,mode", LinkOption.NOFOLLOW_LINKS);
+					uid = (Integer) ua.get("uid");
+					gid = (Integer) ua.get("gid");
+					mode = (Integer) ua.get("mode");
+				} catch (Exception e) {
+					SDFSLogger.getLog().error("unable to parse sylink " + path,
+							e);
 				}
+
+				int atime = 0;
+				int ctime = 0;
+				int mtime = 0;
+				long fileLength = 0;
+				attrs = Files.readAttributes(p, BasicFileAttributes.class,
+						LinkOption.NOFOLLOW_LINKS);
+				fileLength = attrs.size();
+				mtime = (int) (attrs.lastModifiedTime().toMillis() / 1000L);
+				atime = (int) (attrs.lastAccessTime().toMillis() / 1000L);
+				ctime = (int) (attrs.creationTime().toMillis() / 1000L);
+
+				return new AttrCache.Attrs(ftype).set(p.hashCode(), mode, uid,
+						gid, fileLength, (fileLength * NAME_LENGTH
+								+ BLOCK_SIZE - 1)
+								/ BLOCK_SIZE, atime, mtime, ctime);
 			} catch (Exception e) {
-				SDFSLogger.getLog().error("unable to read path " + path, e);
+				SDFSLogger.getLog().error("unable to parse sylink " + path, e);
+				throw new FuseException().initErrno(Errno.EACCES);
+			} finally {
+				attrs = null;
+				p = null;
+			}
+		} else {
+			File f = new File(this.mountedVolume + path);
+			try {
+				Map<String, Object> ua = Files.readAttributes(f.toPath(),
+						"unix:uid,gid,mode");
+				int uid = (Integer) ua.get("uid");
+				int gid = (Integer) ua.get("gid");
+				int mode = (Integer) ua.get("mode");
+				MetaDataDedupFile mf = MetaFileStore.getFolder(f);
+				int atime = (int) (mf.getLastAccessed() / 1000L);
+				int mtime = (int) (mf.lastModified() / 1000L);
+				int ctime = (int) (0 / 1000L);
+
+				long fileLength = f.length();
+				return new AttrCache.Attrs(ftype).set(mf.getGUID().hashCode(),
+						mode, uid, gid, fileLength * NAME_LENGTH, (fileLength
+								* NAME_LENGTH + BLOCK_SIZE - 1)
+								/ BLOCK_SIZE, atime, mtime, ctime);
+			} catch (Exception e) {
+				SDFSLogger.getLog().error(
+						"unable to parse attributes " + path
+								+ " at physical path " + f.getPath(), e);
 				throw new FuseException().initErrno(Errno.EACCES);
-
 			} finally {
 				f = null;
 			}
+		}
+	}
+
+	/**
+	 * Lists the directory at <tt>path</tt>. The native bridge only calls
+	 * getdir, which buffers the whole listing, so the entries are handed to
+	 * the filler as the directory stream reads them rather than collected
+	 * into an array first.
+	 */
+	@Override
+	public int getdir(String path, FuseDirFiller dirFiller)
+			throws FuseException {
+		// SDFSLogger.getLog().info("1");
+		File f = resolvePath(path);
+		DirectoryStream<Path> stream = null;
+		try {
+			stream = Files.newDirectoryStream(f.toPath());
+			dirFiller.add(".", ".".hashCode(), FuseFtypeConstants.TYPE_DIR);
+			dirFiller.add("..", "..".hashCode(), FuseFtypeConstants.TYPE_DIR);
+			String ppath = path.endsWith("/") ? path : path + "/";
+			for (Path p : stream) {
+				String name = p.getFileName().toString();
+				File _f = new File(f, name);
+				int ftype;
+				try {
+					ftype = this.getFtype(_f);
+				} catch (FuseException e) {
+					// removed while listing
+					continue;
+				}
+				dirFiller.add(name, _f.hashCode(), ftype);
+				if (Main.fuseReaddirPrefetch)
+					this.prefetch(ppath + name, _f.getPath(), ftype);
+			}
+		} catch (IOException e) {
+			SDFSLogger.getLog().error("unable to read path " + path, e);
+			throw new FuseException().initErrno(Errno.EACCES);
+		} catch (DirectoryIteratorException e) {
+			SDFSLogger.getLog().error("unable to read path " + path, e);
+			throw new FuseException().initErrno(Errno.EACCES);
 		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+				}
+			}
 		}
 		return 0;
 	}
 
+	/**
+	 * Reads the attributes of a directory or symlink being listed into the
+	 * attribute cache, ahead of the getattr that usually follows.
+	 */
+	private void prefetch(String path, String ppath, int ftype) {
+		if (attrCache == null || ftype == FuseFtypeConstants.TYPE_FILE)
+			return;
+		AttrCache.Attrs a = attrCache.get(ppath);
+		if (a != null && a.hasAttrs)
+			return;
+		try {
+			attrCache.put(ppath, this.statAttrs(path, ftype));
+		} catch (FuseException e) {
+		}
+	}
+
 	@Override
 	public int link(String from, String to) throws FuseException {
 		// SDFSLogger.getLog().info("2");
@@ -516,6 +584,12 @@ public class SDFSFileSystem implements Filesystem3, XattrSupport {
 							"renaming [" + from + "] to [" + to + "]");
 				f = resolvePath(from);
 				MetaFileStore.rename(f.getPath(), this.mountedVolume + to);
+				// symlinks are renamed without events
+				if (attrCache != null) {
+					attrCache.invalidateTree(f.getPath());
+					attrCache.invalidateTree(new File(this.mountedVolume + to)
+							.getPath());
+				}
 			} catch (Exception e) {
 				SDFSLogger.getLog().error(
 						"unable to rename " + from + " to " + to, e);
@@ -540,6 +614,7 @@ public class SDFSFileSystem implements Filesystem3, XattrSupport {
 					f = null;
 					throw new FuseException().initErrno(Errno.EACCES);
 				}
+				this.invalidate(f.getPath());
 				return 0;
 			} else {
 				File f = resolvePath(path);
@@ -673,7 +748,8 @@ public class SDFSFileSystem implements Filesystem3, XattrSupport {
 						eventBus.post(new MFileWritten(mf));
 						throw new FuseException().initErrno(Errno.EACCES);
 					}
-					
+					this.invalidate(p.toString());
+
 					return 0;
 				} catch (IOException e) {
 					SDFSLogger.getLog().warn("unable to delete symlink " + p);
@@ -769,39 +845,50 @@ public class SDFSFileSystem implements Filesystem3, XattrSupport {
 	}
 
 	private int getFtype(File _f) throws FuseException {
-
-		if (!_f.exists()) {
-			Path p = Paths.get(_f.getPath());
-			try {
-				if (Files.isSymbolicLink(p)) {
-					return FuseFtypeConstants.TYPE_SYMLINK;
-				}
-			} catch (Exception e) {
-				SDFSLogger.getLog().warn(e);
-			}
-			SDFSLogger.getLog().warn(_f.getPath() + " does not exist");
-			throw new FuseException().initErrno(Errno.ENOENT);
-
+		if (attrCache != null) {
+			AttrCache.Attrs a = attrCache.get(_f.getPath());
+			if (a != null)
+				return a.ftype;
+			int ftype = this.statFtype(_f);
+			attrCache.put(_f.getPath(), new AttrCache.Attrs(ftype));
+			return ftype;
 		}
-		Path p = Paths.get(_f.getPath());
+		return this.statFtype(_f);
+	}
+
+	private int statFtype(File _f) throws FuseException {
 		try {
-			boolean isSymbolicLink = Files.isSymbolicLink(p);
-			if (isSymbolicLink)
+			BasicFileAttributes attrs = Files.readAttributes(_f.toPath(),
+					BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			if (attrs.isSymbolicLink())
 				return FuseFtypeConstants.TYPE_SYMLINK;
-			else if (_f.isDirectory())
+			else if (attrs.isDirectory())
 				return FuseFtypeConstants.TYPE_DIR;
-			else if (_f.isFile())
+			else if (attrs.isRegularFile())
 				return FuseFtypeConstants.TYPE_FILE;
-		} catch (Exception e) {
-			SDFSLogger.getLog().warn(_f.getPath() + " does not exist", e);
-			_f = null;
-			p = null;
+		} catch (IOException e) {
+			if (SDFSLogger.isDebug())
+				SDFSLogger.getLog().debug(_f.getPath() + " does not exist", e);
 			throw new FuseException("No such node").initErrno(Errno.ENOENT);
 		}
+		SDFSLogger.getLog().warn("could not determine type for " + _f.getPath());
 		throw new FuseException().initErrno(Errno.ENOENT);
 	}
 
 	private int getFtype(String path) throws FuseException {
+		if (attrCache != null) {
+			String pt = new File(mountedVolume + path).getPath();
+			AttrCache.Attrs a = attrCache.get(pt);
+			if (a != null)
+				return a.ftype;
+			int ftype = this.statFtype(path);
+			attrCache.put(pt, new AttrCache.Attrs(ftype));
+			return ftype;
+		}
+		return this.statFtype(path);
+	}
+
+	private int statFtype(String path) throws FuseException {
 		String pt = mountedVolume + path;
 		File _f = new File(pt);
 
@@ -828,6 +915,29 @@ public class SDFSFileSystem implements Filesystem3, XattrSupport {
 		throw new FuseException().initErrno(Errno.ENOENT);
 	}
 
+	/**
+	 * Answers <tt>getattr</tt> from the attribute cache.
+	 * 
+	 * @return true if the attributes of <tt>path</tt> were cached
+	 */
+	private boolean cachedAttrs(String path, FuseGetattrSetter getattrSetter)
+			throws FuseException {
+		if (attrCache == null)
+			return false;
+		AttrCache.Attrs a = attrCache.get(new File(mountedVolume + path)
+				.getPath());
+		if (a == null || !a.hasAttrs)
+			return false;
+		getattrSetter.set(a.inode, a.mode, 1, a.uid, a.gid, 0, a.size,
+				a.blocks, a.atime, a.mtime, a.ctime);
+		return true;
+	}
+
+	private void invalidate(String path) {
+		if (attrCache != null)
+			attrCache.invalidate(path);
+	}
+
 	private DedupFileChannel getFileChannel(String path, int flags)
 			throws FuseException {
 		File f = this.resolvePath(path);
@@ -1,7 +1,7 @@
 package org.opendedup.collections;
 
 import java.io.IOException;
-
+import java.util.List;
 
 import org.opendedup.sdfs.filestore.ChunkData;
 import org.opendedup.sdfs.notification.SDFSEvent;
@@ -38,10 +38,45 @@ public interface AbstractHashesMap {
 	public abstract boolean put(ChunkData cm, boolean persist)
 			throws IOException, HashtableFullException;
 
+	/**
+	 * Looks up a batch of keys, visiting each shard once.
+	 * 
+	 * @return whether each key was found, in the order the keys were given
+	 */
+	public abstract boolean[] containsKeys(List<byte[]> keys)
+			throws IOException;
+
+	/**
+	 * Inserts a batch of chunks. The keys are resolved shard by shard and the
+	 * data of the chunks that are new is persisted with a single call to the
+	 * chunk store.
+	 * 
+	 * @return whether each chunk was added, in the order the chunks were given
+	 */
+	public abstract boolean[] put(List<ChunkData> cms) throws IOException,
+			HashtableFullException;
+
 	public abstract boolean update(ChunkData cm) throws IOException;
 
 	public abstract long get(byte[] key) throws IOException;
 
+	/**
+	 * The location of <tt>key</tt> without claiming it.
+	 * 
+	 * @return the location or -1 if the key is not found
+	 */
+	public abstract long lookup(byte[] key) throws IOException;
+
+	/**
+	 * Points <tt>key</tt> at <tt>newPos</tt> if it is still at
+	 * <tt>oldPos</tt>. Used by chunk stores that move chunk data around when
+	 * they compact.
+	 * 
+	 * @return true if the key was moved
+	 */
+	public abstract boolean relocate(byte[] key, long oldPos, long newPos)
+			throws IOException;
+
 	public abstract byte[] getData(byte[] key) throws IOException, DataArchivedException;
 
 	public abstract boolean remove(ChunkData cm) throws IOException;
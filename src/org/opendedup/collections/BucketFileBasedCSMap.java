@@ -0,0 +1,29 @@
+package org.opendedup.collections;
+
+import java.io.IOException;
+
+import org.opendedup.hashing.HashFunctionPool;
+
+/**
+ * A {@link FileBasedCSMap} whose shards use the bucketed
+ * {@link BucketFileByteArrayLongMap} layout. Select it by setting the
+ * hashdb-class to org.opendedup.collections.BucketFileBasedCSMap. Hash
+ * databases created with one layout cannot be opened with the other.
+ */
+public class BucketFileBasedCSMap extends FileBasedCSMap {
+
+	@Override
+	protected AbstractShard createShard(String path, int size)
+			throws IOException {
+		return new GrowableShard(path, size,
+				(short) HashFunctionPool.hashLength) {
+			@Override
+			protected ShardTable newTable(String path, int size)
+					throws IOException {
+				return new BucketFileByteArrayLongMap(path, size,
+						(short) HashFunctionPool.hashLength);
+			}
+		};
+	}
+
+}
@@ -0,0 +1,782 @@
+package org.opendedup.collections;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.SyncFailedException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.opendedup.hashing.HashFunctionPool;
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.filestore.ChunkData;
+import org.opendedup.util.AtomicBitSet;
+import org.opendedup.util.LargeBloomFilter;
+
+/**
+ * A memory mapped hash shard that keeps keys and values together in
+ * {@link #BUCKET_SIZE} byte buckets stored in a single .bkt file.
+ *
+ * Each bucket starts with an 8 byte header holding a one byte tag per slot,
+ * followed by the slots themselves, each a key and its 8 byte value. A tag of
+ * 0 marks a free slot, 1 a removed slot and anything else is derived from the
+ * key. A lookup reads the header of the home bucket, compares the full key
+ * only for slots whose tag matches and moves on to the next bucket (linear
+ * probing) until the key or a free slot is found. Keys are compared as longs
+ * straight from the mapping so a probe allocates nothing. Buckets span two
+ * cache lines which the hardware prefetcher fetches together, so a lookup at
+ * a high load factor usually touches a single page.
+ *
+ * Locking follows {@link FileByteArrayLongMap}: lookups are lock free and
+ * validated against a sequence lock per group of buckets, and writers of the
+ * same key are serialized by a lock striped on the key hash. So does
+ * recovery: the occupied slots are loaded from the .mck checkpoint and after a
+ * crash only the ranges of slots changed after it are read back.
+ */
+public class BucketFileByteArrayLongMap implements ShardTable {
+	public static final int BUCKET_SIZE = 128;
+	private static final int HEADER = 8;
+	private static final int KL = HashFunctionPool.hashLength;
+	private static final int WORDS = KL / 8;
+	private static final int EL = KL + 8;
+	/** slots per bucket, at most one per header byte */
+	static final int SLOTS = Math.min(HEADER, (BUCKET_SIZE - HEADER) / EL);
+	private static final int T_FREE = 0;
+	private static final int T_REMOVED = 1;
+	private static final int LOCK_STRIPES = 256;
+	private static final int SEQ_SHIFT = 4;
+	MappedByteBuffer buckets = null;
+	private int nbuckets = 0;
+	private int size = 0;
+	private String path = null;
+	private FileChannel bFC = null;
+	private final ReentrantLock[] hashlocks = new ReentrantLock[LOCK_STRIPES];
+	private AtomicLongArray seq = null;
+	private int iterPos = 0;
+	private volatile boolean closed = false;
+	private AtomicBitSet claims = null;
+	private AtomicBitSet mapped = null;
+	private AtomicInteger sz = new AtomicInteger(0);
+	private final AtomicLong bgst = new AtomicLong(0);
+	private ShardEpochs epochs = null;
+	private final Object cklock = new Object();
+
+	public BucketFileByteArrayLongMap(String path, int size, short arraySize)
+			throws IOException {
+		this.path = path;
+		long nb = ((long) size + SLOTS - 1) / SLOTS;
+		this.nbuckets = (int) Math.max(2,
+				Math.min(nb, Integer.MAX_VALUE / BUCKET_SIZE));
+		this.size = this.nbuckets * SLOTS;
+		for (int i = 0; i < hashlocks.length; i++)
+			hashlocks[i] = new ReentrantLock();
+		this.seq = new AtomicLongArray((nbuckets >>> SEQ_SHIFT) + 1);
+	}
+
+	private static long[] toWords(byte[] key) {
+		long[] w = new long[WORDS];
+		for (int i = 0; i < WORDS; i++) {
+			int off = i * 8;
+			w[i] = ((long) key[off] << 56) | ((long) (key[off + 1] & 0xff) << 48)
+					| ((long) (key[off + 2] & 0xff) << 40)
+					| ((long) (key[off + 3] & 0xff) << 32)
+					| ((long) (key[off + 4] & 0xff) << 24)
+					| ((key[off + 5] & 0xff) << 16)
+					| ((key[off + 6] & 0xff) << 8) | (key[off + 7] & 0xff);
+		}
+		return w;
+	}
+
+	private static int hash(byte[] key) {
+		return (((key[8] & 0xff) << 24) | ((key[9] & 0xff) << 16)
+				| ((key[10] & 0xff) << 8) | (key[11] & 0xff)) & 0x7fffffff;
+	}
+
+	private static int tag(byte[] key) {
+		return 2 + ((key[12] & 0xff) % 254);
+	}
+
+	private ReentrantLock lockFor(int hash) {
+		return this.hashlocks[hash & (LOCK_STRIPES - 1)];
+	}
+
+	private static int keyOffset(int bucket, int i) {
+		return (bucket * BUCKET_SIZE) + HEADER + (i * EL);
+	}
+
+	private int tagAt(int bucket, int i) {
+		return buckets.get((bucket * BUCKET_SIZE) + i) & 0xff;
+	}
+
+	private boolean keyEquals(int off, long[] kw) {
+		for (int i = 0; i < WORDS; i++) {
+			if (buckets.getLong(off + (i * 8)) != kw[i])
+				return false;
+		}
+		return true;
+	}
+
+	private void lockRange(int bucket) {
+		int r = bucket >>> SEQ_SHIFT;
+		for (;;) {
+			long s = seq.get(r);
+			if ((s & 1) == 0 && seq.compareAndSet(r, s, s + 1))
+				return;
+			Thread.yield();
+		}
+	}
+
+	private void unlockRange(int bucket) {
+		seq.incrementAndGet(bucket >>> SEQ_SHIFT);
+	}
+
+	private long stableSeq(int bucket) {
+		int r = bucket >>> SEQ_SHIFT;
+		for (;;) {
+			long s = seq.get(r);
+			if ((s & 1) == 0)
+				return s;
+			Thread.yield();
+		}
+	}
+
+	private boolean validSeq(int bucket, long s) {
+		return seq.get(bucket >>> SEQ_SHIFT) == s;
+	}
+
+	private void updateBigest(long value) {
+		for (;;) {
+			long b = bgst.get();
+			if (value <= b || bgst.compareAndSet(b, value))
+				return;
+		}
+	}
+
+	/**
+	 * Finds the slot of a key by probing buckets from its home bucket.
+	 *
+	 * @return the global slot of the key or -1 if it is not stored
+	 */
+	private int index(long[] kw, int hash, int tag) {
+		int b = hash % nbuckets;
+		for (int n = 0; n < nbuckets; n++) {
+			long s = this.stableSeq(b);
+			int found = -2;
+			for (int i = 0; i < SLOTS; i++) {
+				int t = this.tagAt(b, i);
+				if (t == T_FREE) {
+					found = -1;
+					break;
+				}
+				if (t == tag && this.keyEquals(keyOffset(b, i), kw)) {
+					found = (b * SLOTS) + i;
+					break;
+				}
+			}
+			if (!this.validSeq(b, s))
+				continue;
+			if (found != -2)
+				return found;
+			b++;
+			if (b == nbuckets)
+				b = 0;
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds where a new key goes. Must be called while holding the lock
+	 * stripe of <tt>hash</tt>.
+	 *
+	 * @return the global slot to insert into or <tt>-slot - 1</tt> if the key
+	 *         is already stored
+	 */
+	private int insertionIndex(long[] kw, int hash, int tag)
+			throws HashtableFullException {
+		int b = hash % nbuckets;
+		int firstRemoved = -1;
+		for (int n = 0; n < nbuckets; n++) {
+			long s = this.stableSeq(b);
+			int found = -1;
+			int removed = -1;
+			boolean exists = false;
+			for (int i = 0; i < SLOTS; i++) {
+				int t = this.tagAt(b, i);
+				if (t == T_FREE) {
+					found = (b * SLOTS) + i;
+					break;
+				}
+				if (t == T_REMOVED && removed == -1)
+					removed = (b * SLOTS) + i;
+				if (t == tag && this.keyEquals(keyOffset(b, i), kw)) {
+					found = (b * SLOTS) + i;
+					exists = true;
+					break;
+				}
+			}
+			if (!this.validSeq(b, s))
+				continue;
+			if (firstRemoved == -1)
+				firstRemoved = removed;
+			if (exists)
+				return -found - 1;
+			if (found != -1)
+				return firstRemoved != -1 ? firstRemoved : found;
+			b++;
+			if (b == nbuckets)
+				b = 0;
+		}
+		if (firstRemoved != -1)
+			return firstRemoved;
+		throw new HashtableFullException(
+				"No free or removed slots available in " + this.path);
+	}
+
+	/**
+	 * Inserts a key and value, retrying if another writer took the chosen
+	 * slot first.
+	 */
+	private int insert(long[] kw, int hash, int tag, long value)
+			throws HashtableFullException {
+		for (;;) {
+			int pos = this.insertionIndex(kw, hash, tag);
+			if (pos < 0)
+				return pos;
+			int b = pos / SLOTS;
+			int i = pos % SLOTS;
+			this.lockRange(b);
+			try {
+				int t = this.tagAt(b, i);
+				if (t == T_FREE || t == T_REMOVED) {
+					int off = keyOffset(b, i);
+					for (int w = 0; w < WORDS; w++)
+						buckets.putLong(off + (w * 8), kw[w]);
+					buckets.putLong(off + KL, value);
+					buckets.put((b * BUCKET_SIZE) + i, (byte) tag);
+					return pos;
+				}
+			} finally {
+				this.unlockRange(b);
+			}
+		}
+	}
+
+	private long readValue(int pos) {
+		int b = pos / SLOTS;
+		int off = keyOffset(b, pos % SLOTS) + KL;
+		for (;;) {
+			long s = this.stableSeq(b);
+			long val = buckets.getLong(off);
+			if (this.validSeq(b, s))
+				return val;
+		}
+	}
+
+	/**
+	 * Marks a slot removed and stores <tt>value</tt> in it.
+	 */
+	private void clearSlot(int pos, long value) {
+		int b = pos / SLOTS;
+		int i = pos % SLOTS;
+		this.lockRange(b);
+		try {
+			buckets.put((b * BUCKET_SIZE) + i, (byte) T_REMOVED);
+			buckets.putLong(keyOffset(b, i) + KL, value);
+		} finally {
+			this.unlockRange(b);
+		}
+	}
+
+	private boolean readKey(int pos, byte[] key) {
+		int b = pos / SLOTS;
+		int i = pos % SLOTS;
+		int off = keyOffset(b, i);
+		for (;;) {
+			long s = this.stableSeq(b);
+			int t = this.tagAt(b, i);
+			for (int k = 0; k < KL; k++)
+				key[k] = buckets.get(off + k);
+			if (this.validSeq(b, s))
+				return t != T_FREE && t != T_REMOVED;
+		}
+	}
+
+	@Override
+	public void iterInit() {
+		this.iterPos = 0;
+	}
+
+	@Override
+	public byte[] nextKey() throws IOException {
+		byte[] key = new byte[KL];
+		while (iterPos < size) {
+			int slot = iterPos;
+			iterPos++;
+			if (this.readKey(slot, key)) {
+				this.mapped.set(slot);
+				return key;
+			} else {
+				this.mapped.clear(slot);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public long getBigestKey() throws IOException {
+		long _bgst = 0;
+		for (int b = 0; b < nbuckets; b++) {
+			for (int i = 0; i < SLOTS; i++) {
+				long val = buckets.getLong(keyOffset(b, i) + KL);
+				if (val > _bgst)
+					_bgst = val;
+			}
+		}
+		return _bgst;
+	}
+
+	/**
+	 * Rebuilds the mapped bits of the ranges changed after the checkpoint of
+	 * epoch <tt>covered</tt> from the bucket tags.
+	 *
+	 * @return the biggest value stored in those ranges
+	 */
+	private long rescan(long covered) {
+		long _bgst = 0;
+		int n = 0;
+		for (int r = 0; r < epochs.ranges(); r++) {
+			if (!epochs.changedAfter(r, covered))
+				continue;
+			n++;
+			int end = Math.min(size, (r + 1) * ShardEpochs.RANGE);
+			for (int slot = r * ShardEpochs.RANGE; slot < end; slot++) {
+				int b = slot / SLOTS;
+				int i = slot % SLOTS;
+				int t = this.tagAt(b, i);
+				if (t != T_FREE && t != T_REMOVED)
+					this.mapped.set(slot);
+				else
+					this.mapped.clear(slot);
+				long val = buckets.getLong(keyOffset(b, i) + KL);
+				if (val > _bgst)
+					_bgst = val;
+			}
+		}
+		SDFSLogger.getLog().warn(
+				"Recovered Hashmap " + this.path + " rescanned " + n + " of "
+						+ epochs.ranges() + " ranges entries = "
+						+ mapped.cardinality());
+		return _bgst;
+	}
+
+	private void recreateMap() {
+		mapped = new AtomicBitSet(size);
+		for (int b = 0; b < nbuckets; b++) {
+			for (int i = 0; i < SLOTS; i++) {
+				int t = this.tagAt(b, i);
+				if (t != T_FREE && t != T_REMOVED)
+					mapped.set((b * SLOTS) + i);
+			}
+		}
+		SDFSLogger.getLog().warn(
+				"Recovered Hashmap " + this.path + " entries = "
+						+ mapped.cardinality());
+	}
+
+	@Override
+	public long setUp() throws IOException {
+		File bFile = new File(path + ".bkt");
+		boolean newInstance = !bFile.exists();
+		this.bFC = FileChannel.open(Paths.get(path + ".bkt"),
+				StandardOpenOption.CREATE, StandardOpenOption.SPARSE,
+				StandardOpenOption.WRITE, StandardOpenOption.READ);
+		RandomAccessFile _bpos = new RandomAccessFile(path + ".bpos", "rw");
+		_bpos.setLength(8);
+		long _bgst = _bpos.readLong();
+		buckets = bFC.map(MapMode.READ_WRITE, 0, (long) nbuckets
+				* BUCKET_SIZE);
+		this.epochs = new ShardEpochs(path, size);
+		ShardCheckpoint ck = null;
+		if (newInstance) {
+			mapped = new AtomicBitSet(size);
+		} else {
+			AtomicBitSet m = new AtomicBitSet(size);
+			ck = ShardCheckpoint.read(path, m);
+			if (ck != null)
+				mapped = m;
+		}
+		if (_bgst < 0 && ck != null && ck.epoch >= 0 && this.epochs.existed()) {
+			// the checkpoint misses slots and values written after it, which
+			// are read back from the ranges marked after its epoch
+			SDFSLogger.getLog().info(
+					"Hashtable " + path + " did not close correctly. "
+							+ "rescanning ranges changed after the last "
+							+ "checkpoint");
+			_bgst = Math.max(this.rescan(ck.epoch), ck.bgst);
+		} else if (_bgst < 0) {
+			SDFSLogger.getLog().info(
+					"Hashtable " + path + " did not close correctly. scanning ");
+			this.recreateMap();
+			_bgst = Math.max(this.getBigestKey(), ck == null ? -1 : ck.bgst);
+		} else if (!newInstance && ck == null) {
+			this.recreateMap();
+		}
+		if (ck != null)
+			this.epochs.resume(ck.epoch);
+		this.bgst.set(_bgst);
+		this.sz.set(this.mapped.cardinality());
+		_bpos.seek(0);
+		_bpos.writeLong(-1);
+		_bpos.close();
+		claims = new AtomicBitSet(size);
+		return _bgst;
+	}
+
+	@Override
+	public boolean containsKey(byte[] key) {
+		int pos = this.index(toWords(key), hash(key), tag(key));
+		if (pos >= 0) {
+			this.claims.set(pos);
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean isClaimed(byte[] key) throws KeyNotFoundException,
+			IOException {
+		int pos = this.index(toWords(key), hash(key), tag(key));
+		if (pos >= 0)
+			return this.claims.get(pos);
+		else
+			throw new KeyNotFoundException(key);
+	}
+
+	@Override
+	public boolean update(byte[] key, long value) throws IOException {
+		long[] kw = toWords(key);
+		int hash = hash(key);
+		ReentrantLock l = this.lockFor(hash);
+		l.lock();
+		try {
+			int pos = this.index(kw, hash, tag(key));
+			if (pos == -1)
+				return false;
+			this.updateBigest(value);
+			int b = pos / SLOTS;
+			this.lockRange(b);
+			try {
+				buckets.putLong(keyOffset(b, pos % SLOTS) + KL, value);
+			} finally {
+				this.unlockRange(b);
+			}
+			this.claims.set(pos);
+			this.mapped.set(pos);
+			this.epochs.touched(pos);
+			return true;
+		} finally {
+			l.unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(byte[] key) throws IOException {
+		long[] kw = toWords(key);
+		int hash = hash(key);
+		ReentrantLock l = this.lockFor(hash);
+		l.lock();
+		try {
+			int pos = this.index(kw, hash, tag(key));
+			if (pos == -1 || this.claims.get(pos))
+				return false;
+			long fp = this.readValue(pos);
+			ChunkData ck = new ChunkData(fp, key);
+			if (ck.setmDelete(true)) {
+				this.clearSlot(pos, fp * -1);
+				this.claims.clear(pos);
+				this.mapped.clear(pos);
+				this.epochs.touched(pos);
+				this.sz.decrementAndGet();
+				return true;
+			} else
+				return false;
+		} catch (Exception e) {
+			SDFSLogger.getLog().fatal("error getting record", e);
+			return false;
+		} finally {
+			l.unlock();
+		}
+	}
+
+	@Override
+	public boolean put(ChunkData cm) throws HashtableFullException,
+			IOException {
+		if (this.sz.get() >= size)
+			throw new HashtableFullException(
+					"entries is greater than or equal to the maximum number of entries. You need to expand"
+							+ "the volume or DSE allocation size");
+		byte[] key = cm.getHash();
+		long[] kw = toWords(key);
+		int hash = hash(key);
+		int tag = tag(key);
+		ReentrantLock l = this.lockFor(hash);
+		l.lock();
+		try {
+			int pos = this.index(kw, hash, tag);
+			if (pos >= 0) {
+				this.claims.set(pos);
+				return false;
+			}
+			// the data is persisted by the caller before the key is
+			// published, never under the shard lock
+			if (!cm.recoverd && cm.getcPos() < 0)
+				throw new IOException(
+						"chunk data has not been persisted before insert");
+			pos = this.insert(kw, hash, tag, cm.getcPos());
+			if (pos < 0) {
+				this.claims.set(-pos - 1);
+				return false;
+			}
+			this.updateBigest(cm.getcPos());
+			this.claims.set(pos);
+			this.mapped.set(pos);
+			this.epochs.touched(pos);
+			this.sz.incrementAndGet();
+			return true;
+		} finally {
+			l.unlock();
+		}
+	}
+
+	@Override
+	public boolean put(byte[] key, long val) throws HashtableFullException,
+			IOException {
+		if (this.sz.get() >= size)
+			throw new HashtableFullException(
+					"entries is greater than or equal to the maximum number of entries. You need to expand"
+							+ "the volume or DSE allocation size");
+		long[] kw = toWords(key);
+		int hash = hash(key);
+		ReentrantLock l = this.lockFor(hash);
+		l.lock();
+		try {
+			int pos = this.insert(kw, hash, tag(key), val);
+			if (pos < 0) {
+				this.claims.set(-pos - 1);
+				return false;
+			}
+			this.updateBigest(val);
+			this.claims.set(pos);
+			this.mapped.set(pos);
+			this.epochs.touched(pos);
+			this.sz.incrementAndGet();
+			return true;
+		} finally {
+			l.unlock();
+		}
+	}
+
+	@Override
+	public int getEntries() {
+		return this.sz.get();
+	}
+
+	@Override
+	public long get(byte[] key) {
+		return this.get(key, true);
+	}
+
+	@Override
+	public long get(byte[] key, boolean claim) {
+		if (key == null)
+			return -1;
+		long[] kw = toWords(key);
+		int hash = hash(key);
+		int tag = tag(key);
+		for (;;) {
+			int pos = this.index(kw, hash, tag);
+			if (pos == -1)
+				return -1;
+			int b = pos / SLOTS;
+			int i = pos % SLOTS;
+			long s = this.stableSeq(b);
+			long val = buckets.getLong(keyOffset(b, i) + KL);
+			boolean same = this.tagAt(b, i) == tag
+					&& this.keyEquals(keyOffset(b, i), kw);
+			if (!this.validSeq(b, s) || !same)
+				continue;
+			if (claim)
+				this.claims.set(pos);
+			return val;
+		}
+	}
+
+	@Override
+	public int size() {
+		return this.sz.get();
+	}
+
+	/**
+	 * Writes the mapped bit set and the biggest value to the checkpoint file
+	 * the same way {@link FileByteArrayLongMap} does: a new epoch is started
+	 * before the bit set is copied and the buckets are forced before the
+	 * checkpoint is written.
+	 */
+	private void writeCheckpoint() throws IOException {
+		synchronized (this.cklock) {
+			long covered = this.epochs.advance();
+			long[] words = this.mapped.toLongArray();
+			long _bgst = this.bgst.get();
+			buckets.force();
+			this.epochs.force();
+			ShardCheckpoint.write(path, words, _bgst, covered);
+		}
+	}
+
+	@Override
+	public void close() {
+		for (int i = 0; i < hashlocks.length; i++)
+			hashlocks[i].lock();
+		try {
+			this.closed = true;
+			boolean ckd = false;
+			try {
+				this.writeCheckpoint();
+				ckd = true;
+			} catch (Exception e) {
+				SDFSLogger.getLog().warn(
+						"unable to write checkpoint for " + this.path, e);
+			}
+			this.epochs.close();
+			try {
+				this.bFC.force(true);
+				this.bFC.close();
+			} catch (Exception e) {
+
+			}
+			// without a checkpoint the table is left marked as not closed
+			// cleanly so the next open reads back the changed ranges
+			if (ckd) {
+				try {
+					RandomAccessFile _bpos = new RandomAccessFile(path
+							+ ".bpos", "rw");
+					_bpos.seek(0);
+					_bpos.writeLong(bgst.get());
+					_bpos.close();
+				} catch (Exception e) {
+
+				}
+			}
+		} finally {
+			for (int i = hashlocks.length - 1; i >= 0; i--)
+				hashlocks[i].unlock();
+		}
+		SDFSLogger.getLog().debug("closed " + this.path);
+	}
+
+	@Override
+	public synchronized long claimRecords() throws IOException {
+		if (this.closed)
+			throw new IOException("Hashtable " + this.path + " is close");
+		long k = 0;
+		for (int i = 0; i < size; i++) {
+			if (claims.getAndClear(i)) {
+				this.mapped.set(i);
+				k++;
+			}
+		}
+		return k;
+	}
+
+	@Override
+	public long claimRecords(LargeBloomFilter nbf) throws IOException {
+		long rsz = 0;
+		byte[] key = new byte[KL];
+		for (int slot = 0; slot < size; slot++) {
+			if (!this.readKey(slot, key))
+				continue;
+			if (!nbf.mightContain(key) && !this.claims.get(slot)) {
+				ReentrantLock l = this.lockFor(hash(key));
+				l.lock();
+				try {
+					if (this.index(toWords(key), hash(key), tag(key)) == slot
+							&& !this.claims.get(slot)) {
+						long val = this.readValue(slot);
+						ChunkData ck = new ChunkData(val, key);
+						ck.setmDelete(true);
+						this.clearSlot(slot, 0);
+						this.mapped.clear(slot);
+						this.epochs.touched(slot);
+						this.sz.decrementAndGet();
+						rsz++;
+					}
+				} finally {
+					l.unlock();
+				}
+			} else {
+				this.mapped.set(slot);
+			}
+			this.claims.clear(slot);
+		}
+		return rsz;
+	}
+
+	@Override
+	public void sync() throws SyncFailedException, IOException {
+		if (this.closed)
+			return;
+		this.writeCheckpoint();
+	}
+
+	@Override
+	public int capacity() {
+		return this.size;
+	}
+
+	@Override
+	public int maxCapacity() {
+		return (Integer.MAX_VALUE / BUCKET_SIZE) * SLOTS;
+	}
+
+	@Override
+	public boolean keyAt(int slot, byte[] key) {
+		return this.readKey(slot, key);
+	}
+
+	@Override
+	public boolean drop(byte[] key) {
+		long[] kw = toWords(key);
+		int hash = hash(key);
+		ReentrantLock l = this.lockFor(hash);
+		l.lock();
+		try {
+			int pos = this.index(kw, hash, tag(key));
+			if (pos == -1)
+				return false;
+			this.clearSlot(pos, 0);
+			this.claims.clear(pos);
+			this.mapped.clear(pos);
+			this.epochs.touched(pos);
+			this.sz.decrementAndGet();
+			return true;
+		} finally {
+			l.unlock();
+		}
+	}
+
+	@Override
+	public void vanish() {
+		this.close();
+		new File(path + ".bkt").delete();
+		new File(path + ".bpos").delete();
+		ShardCheckpoint.delete(path);
+	}
+
+}
@@ -0,0 +1,650 @@
+package org.opendedup.collections;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+
+/**
+ * A file map whose records live in segments of the shared
+ * {@link MapSegmentStore}, so snapshots and clones share them instead of
+ * copying the map.
+ *
+ * The map file itself only holds a header and the page numbers of the index
+ * segments, each covering {@link MapSegmentStore#fanOut} leaves of
+ * {@link MapSegmentStore#LEAF_RECORDS} records. A copy writes a new map file
+ * that refers to the same index segments. Either map copies a shared
+ * segment, and the index above it, the first time it writes to it.
+ *
+ * Segments replaced or dropped are only released once the new map is synced,
+ * so a crash can leak segments but never leave a map pointing at a segment
+ * that was freed or is written by another map. For the same reason the page
+ * numbers of new segments, in the map file and in index segments, are kept
+ * in memory and only written by {@link #sync()} once the segments they point
+ * to are durable.
+ */
+public class CowLongByteArrayMap implements DataMapInterface {
+	private static final short magicnumber = 6443;
+	private static final int HDR = 64;
+	private final String filePath;
+	private final ReentrantReadWriteLock snaplock = new ReentrantReadWriteLock();
+	private final ReentrantLock pathlock = new ReentrantLock();
+	private final ReentrantLock iterlock = new ReentrantLock();
+	private final ConcurrentHashMap<Long, Long> leaves = new ConcurrentHashMap<Long, Long>();
+	private final Set<Long> owned = Collections
+			.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+	private final ArrayList<Long> released = new ArrayList<Long>();
+	// index entries not written yet, by index * fanOut + slot
+	private final HashMap<Long, Long> entries = new HashMap<Long, Long>();
+	private boolean rootDirty = false;
+	private MapSegmentStore store;
+	private FileChannel mapc;
+	private long[] root = new long[0];
+	private volatile long records = 0;
+	private byte version = Main.MAPVERSION;
+	private int arrayLength;
+	private byte[] FREE;
+	private boolean closed = true;
+	private long iterPos = 0;
+
+	public CowLongByteArrayMap(String filePath) throws IOException {
+		this.filePath = filePath;
+		this.openFile();
+	}
+
+	/**
+	 * @return true if <tt>f</tt> is a copy on write file map
+	 */
+	public static boolean isCow(File f) {
+		if (!f.exists() || f.length() < 3)
+			return false;
+		try {
+			RandomAccessFile rf = new RandomAccessFile(f, "r");
+			try {
+				return rf.readShort() == magicnumber;
+			} finally {
+				rf.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void openFile() throws IOException {
+		File f = new File(filePath);
+		store = MapSegmentStore.get();
+		if (f.exists()) {
+			ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+			if (b.getShort() != magicnumber)
+				throw new IOException(filePath
+						+ " is not a copy on write file map");
+			this.version = b.get();
+			b.position(8);
+			this.records = b.getLong();
+			b.position(HDR);
+			root = new long[b.remaining() / 8];
+			for (int i = 0; i < root.length; i++)
+				root[i] = b.getLong();
+		} else {
+			f.getParentFile().mkdirs();
+		}
+		this.arrayLength = LongByteArrayMap.recordLength(this.version);
+		this.FREE = new byte[this.arrayLength];
+		mapc = new RandomAccessFile(f, "rw").getChannel();
+		if (root.length == 0)
+			this.writeHeader(mapc);
+		this.records = Math.max(this.records, this.lastRecord());
+		this.closed = false;
+	}
+
+	/**
+	 * @return the end of the last record in use, in case the record count in
+	 *         the header was not synced
+	 */
+	private long lastRecord() throws IOException {
+		for (int i = root.length - 1; i >= 0; i--) {
+			if (root[i] == 0)
+				continue;
+			for (long j = store.fanOut - 1; j >= 0; j--) {
+				if (this.getEntry(root[i], j) == 0)
+					continue;
+				long leafNo = (long) i * store.fanOut + j;
+				long start = leafNo * MapSegmentStore.LEAF_RECORDS;
+				for (long r = start + MapSegmentStore.LEAF_RECORDS - 1; r >= start; r--) {
+					if (this.read(r) != null)
+						return r + 1;
+				}
+			}
+		}
+		return 0;
+	}
+
+	private void writeHeader(FileChannel ch) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(HDR);
+		b.putShort(magicnumber);
+		b.put(this.version);
+		b.position(8);
+		b.putLong(this.records);
+		b.position(0);
+		while (b.hasRemaining())
+			ch.write(b, b.position());
+	}
+
+	private long leafFor(long leafNo) throws IOException {
+		Long id = leaves.get(leafNo);
+		if (id != null)
+			return id;
+		pathlock.lock();
+		try {
+			int i = (int) (leafNo / store.fanOut);
+			long leaf = 0;
+			if (i < root.length && root[i] != 0)
+				leaf = this.getEntry(root[i], leafNo % store.fanOut);
+			leaves.put(leafNo, leaf);
+			return leaf;
+		} finally {
+			pathlock.unlock();
+		}
+	}
+
+	/**
+	 * @return the leaf <tt>leafNo</tt>, created or copied first so this map
+	 *         is the only one that refers to it and its index
+	 */
+	private long writableLeaf(long leafNo) throws IOException {
+		Long cached = leaves.get(leafNo);
+		if (cached != null && owned.contains(cached))
+			return cached;
+		pathlock.lock();
+		try {
+			int i = (int) (leafNo / store.fanOut);
+			long j = leafNo % store.fanOut;
+			long index = i < root.length ? root[i] : 0;
+			if (index == 0) {
+				index = store.create(MapSegmentStore.INDEX);
+				this.setRoot(i, index);
+				owned.add(index);
+			} else if (!owned.contains(index)) {
+				long n = store.own(index);
+				if (n != index) {
+					this.setRoot(i, n);
+					released.add(index);
+				}
+				owned.add(n);
+				index = n;
+			}
+			long leaf = this.getEntry(index, j);
+			if (leaf == 0) {
+				leaf = store.create(MapSegmentStore.LEAF);
+				this.setEntry(index, j, leaf);
+				owned.add(leaf);
+			} else if (!owned.contains(leaf)) {
+				long n = store.own(leaf);
+				if (n != leaf) {
+					this.setEntry(index, j, n);
+					released.add(leaf);
+				}
+				owned.add(n);
+				leaf = n;
+			}
+			leaves.put(leafNo, leaf);
+			return leaf;
+		} finally {
+			pathlock.unlock();
+		}
+	}
+
+	private void setRoot(int i, long id) {
+		if (i >= root.length)
+			root = Arrays.copyOf(root, i + 1);
+		root[i] = id;
+		rootDirty = true;
+	}
+
+	private void writeRoot(FileChannel ch) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(root.length * 8);
+		for (long id : root)
+			b.putLong(id);
+		b.flip();
+		while (b.hasRemaining())
+			ch.write(b, HDR + b.position());
+	}
+
+	/**
+	 * The entry at <tt>slot</tt> of an index, including the ones not written
+	 * yet. Called with the path lock held.
+	 */
+	private long getEntry(long index, long slot) throws IOException {
+		Long id = entries.get(index * store.fanOut + slot);
+		if (id != null)
+			return id;
+		return store.getEntry(index, slot);
+	}
+
+	private void setEntry(long index, long slot, long id) {
+		entries.put(index * store.fanOut + slot, id);
+	}
+
+	private int slot(long rec) {
+		return (int) (rec % MapSegmentStore.LEAF_RECORDS);
+	}
+
+	private byte[] read(long rec) throws IOException {
+		long leaf = this.leafFor(rec / MapSegmentStore.LEAF_RECORDS);
+		if (leaf == 0)
+			return null;
+		ByteBuffer b = ByteBuffer.allocate(arrayLength);
+		store.readRecord(leaf, this.slot(rec), arrayLength, b);
+		byte[] val = b.array();
+		if (Arrays.equals(val, FREE))
+			return null;
+		return val;
+	}
+
+	private void write(long rec, byte[] data) throws IOException {
+		long leaf = this.writableLeaf(rec / MapSegmentStore.LEAF_RECORDS);
+		store.writeRecord(leaf, this.slot(rec), arrayLength,
+				ByteBuffer.wrap(data));
+		if (rec >= records) {
+			pathlock.lock();
+			try {
+				if (rec >= records)
+					records = rec + 1;
+			} finally {
+				pathlock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Frees the records from <tt>from</tt> up to <tt>to</tt>, dropping whole
+	 * leaves instead of clearing their records.
+	 */
+	private void clear(long from, long to) throws IOException {
+		long rec = from;
+		while (rec < to) {
+			long leafNo = rec / MapSegmentStore.LEAF_RECORDS;
+			long start = leafNo * MapSegmentStore.LEAF_RECORDS;
+			long end = Math.min(to, start + MapSegmentStore.LEAF_RECORDS);
+			if (this.leafFor(leafNo) != 0) {
+				if (rec == start
+						&& end == start + MapSegmentStore.LEAF_RECORDS)
+					this.dropLeaf(leafNo);
+				else {
+					for (long r = rec; r < end; r++)
+						this.write(r, FREE);
+				}
+			}
+			rec = end;
+		}
+	}
+
+	private void dropLeaf(long leafNo) throws IOException {
+		pathlock.lock();
+		try {
+			long leaf = this.leafFor(leafNo);
+			if (leaf == 0)
+				return;
+			int i = (int) (leafNo / store.fanOut);
+			long index = root[i];
+			if (!owned.contains(index)) {
+				long n = store.own(index);
+				if (n != index) {
+					this.setRoot(i, n);
+					released.add(index);
+				}
+				owned.add(n);
+				index = n;
+			}
+			this.setEntry(index, leafNo % store.fanOut, 0);
+			owned.remove(leaf);
+			released.add(leaf);
+			leaves.put(leafNo, 0L);
+		} finally {
+			pathlock.unlock();
+		}
+	}
+
+	@Override
+	public void iterInit() throws IOException {
+		iterlock.lock();
+		try {
+			this.iterPos = 0;
+		} finally {
+			iterlock.unlock();
+		}
+	}
+
+	@Override
+	public long getIterPos() {
+		return this.iterPos * arrayLength;
+	}
+
+	@Override
+	public long nextKey() throws IOException {
+		iterlock.lock();
+		try {
+			if (this.next() == null)
+				return -1;
+			return (iterPos - 1) * Main.CHUNK_LENGTH;
+		} finally {
+			iterlock.unlock();
+		}
+	}
+
+	@Override
+	public byte[] nextValue() throws IOException {
+		iterlock.lock();
+		try {
+			return this.next();
+		} finally {
+			iterlock.unlock();
+		}
+	}
+
+	public LongKeyValue nextKeyValue() throws IOException {
+		iterlock.lock();
+		try {
+			byte[] val = this.next();
+			if (val == null)
+				return null;
+			return new LongKeyValue((iterPos - 1) * Main.CHUNK_LENGTH, val);
+		} finally {
+			iterlock.unlock();
+		}
+	}
+
+	private byte[] next() throws IOException {
+		snaplock.readLock().lock();
+		try {
+			while (iterPos < records) {
+				long leafNo = iterPos / MapSegmentStore.LEAF_RECORDS;
+				if (this.leafFor(leafNo) == 0) {
+					iterPos = (leafNo + 1) * MapSegmentStore.LEAF_RECORDS;
+					continue;
+				}
+				byte[] val = this.read(iterPos);
+				iterPos++;
+				if (val != null)
+					return val;
+			}
+			return null;
+		} finally {
+			snaplock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean isClosed() {
+		return this.closed;
+	}
+
+	@Override
+	public void put(long pos, byte[] data) throws IOException {
+		if (this.isClosed())
+			throw new IOException("hashtable [" + this.filePath + "] is close");
+		snaplock.readLock().lock();
+		try {
+			this.write(pos / Main.CHUNK_LENGTH, data);
+		} finally {
+			snaplock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void put(long pos, byte[] data, int length) throws IOException {
+		this.put(pos, Arrays.copyOf(data, length));
+	}
+
+	@Override
+	public void putIfNull(long pos, byte[] data) throws IOException {
+		byte[] b = this.get(pos);
+		if (b == null)
+			this.put(pos, data);
+	}
+
+	@Override
+	public void trim(long pos, int len) throws IOException {
+		long from = (pos + Main.CHUNK_LENGTH - 1) / Main.CHUNK_LENGTH;
+		long to = (pos + len) / Main.CHUNK_LENGTH;
+		if (to <= from)
+			return;
+		snaplock.readLock().lock();
+		try {
+			this.clear(from, Math.min(to, records));
+		} finally {
+			snaplock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void truncate(long length) throws IOException {
+		snaplock.writeLock().lock();
+		try {
+			long to = length / Main.CHUNK_LENGTH;
+			long leafNos = (to + MapSegmentStore.LEAF_RECORDS - 1)
+					/ MapSegmentStore.LEAF_RECORDS;
+			// up to the end of the last leaf so leaves past the new end are
+			// dropped whole
+			long end = (records + MapSegmentStore.LEAF_RECORDS - 1)
+					/ MapSegmentStore.LEAF_RECORDS
+					* MapSegmentStore.LEAF_RECORDS;
+			this.clear(to, end);
+			pathlock.lock();
+			try {
+				for (int i = (int) ((leafNos + store.fanOut - 1) / store.fanOut); i < root.length; i++) {
+					if (root[i] != 0) {
+						owned.remove(root[i]);
+						released.add(root[i]);
+						this.setRoot(i, 0);
+					}
+				}
+			} finally {
+				pathlock.unlock();
+			}
+			leaves.clear();
+			this.records = to;
+		} finally {
+			snaplock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public byte getVersion() {
+		return this.version;
+	}
+
+	@Override
+	public byte[] getFree() {
+		return this.FREE;
+	}
+
+	@Override
+	public void remove(long pos) throws IOException {
+		if (this.isClosed())
+			throw new IOException("hashtable [" + this.filePath + "] is close");
+		snaplock.readLock().lock();
+		try {
+			long rec = pos / Main.CHUNK_LENGTH;
+			if (this.leafFor(rec / MapSegmentStore.LEAF_RECORDS) != 0)
+				this.write(rec, FREE);
+		} finally {
+			snaplock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public byte[] get(long pos) throws IOException {
+		if (this.isClosed())
+			throw new IOException("hashtable [" + this.filePath + "] is close");
+		snaplock.readLock().lock();
+		try {
+			byte[] val = this.read(pos / Main.CHUNK_LENGTH);
+			if (val == null || version != 2)
+				return val;
+			int len = ByteBuffer.wrap(val).getInt(1);
+			if (len == 0)
+				return null;
+			return Arrays.copyOf(val, len);
+		} finally {
+			snaplock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Makes the segments durable, then the index entries that point to them,
+	 * then the map, and releases the segments the map no longer refers to.
+	 */
+	@Override
+	public void sync() throws IOException {
+		ArrayList<Long> rel;
+		pathlock.lock();
+		try {
+			store.sync();
+			if (entries.size() > 0) {
+				for (Map.Entry<Long, Long> e : entries.entrySet())
+					store.setEntry(e.getKey() / store.fanOut, e.getKey()
+							% store.fanOut, e.getValue());
+				entries.clear();
+				store.sync();
+			}
+			if (rootDirty) {
+				this.writeRoot(mapc);
+				rootDirty = false;
+			}
+			this.writeHeader(mapc);
+			mapc.force(false);
+			rel = new ArrayList<Long>(released);
+			released.clear();
+		} finally {
+			pathlock.unlock();
+		}
+		for (Long id : rel)
+			store.release(id);
+	}
+
+	@Override
+	public void vanish() throws IOException {
+		snaplock.writeLock().lock();
+		try {
+			if (!this.isClosed())
+				this.close();
+			for (long id : root) {
+				if (id != 0)
+					store.release(id);
+			}
+			root = new long[0];
+			new File(this.filePath).delete();
+		} finally {
+			snaplock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes a map to <tt>destFilePath</tt> that shares all segments with
+	 * this one. It takes the same time however large the map is.
+	 */
+	@Override
+	public void copy(String destFilePath) throws IOException {
+		snaplock.writeLock().lock();
+		try {
+			this.sync();
+			for (long id : root) {
+				if (id != 0)
+					store.retain(id);
+			}
+			// the new references have to be durable before the copy is
+			store.sync();
+			File dest = new File(destFilePath);
+			dest.getParentFile().mkdirs();
+			File tmp = new File(destFilePath + ".tmp");
+			FileChannel ch = new RandomAccessFile(tmp, "rw").getChannel();
+			try {
+				ch.truncate(0);
+				this.writeHeader(ch);
+				this.writeRoot(ch);
+				ch.force(true);
+			} finally {
+				ch.close();
+			}
+			Files.move(tmp.toPath(), dest.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			owned.clear();
+			if (SDFSLogger.isDebug())
+				SDFSLogger.getLog().debug(
+						"snapped map to [" + dest.getPath() + "]");
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			snaplock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes the records to a self contained map at <tt>destFilePath</tt>,
+	 * for copies that leave the volume.
+	 */
+	public void export(String destFilePath) throws IOException {
+		File dest = new File(destFilePath);
+		if (dest.exists())
+			dest.delete();
+		LongByteArrayMap m = new LongByteArrayMap(destFilePath);
+		snaplock.writeLock().lock();
+		try {
+			for (long rec = 0; rec < records; rec++) {
+				long leafNo = rec / MapSegmentStore.LEAF_RECORDS;
+				if (this.leafFor(leafNo) == 0) {
+					rec = (leafNo + 1) * MapSegmentStore.LEAF_RECORDS - 1;
+					continue;
+				}
+				byte[] val = this.read(rec);
+				if (val != null)
+					m.put(rec * Main.CHUNK_LENGTH, val);
+			}
+			m.sync();
+		} finally {
+			snaplock.writeLock().unlock();
+			m.close();
+		}
+	}
+
+	@Override
+	public long size() {
+		return this.records;
+	}
+
+	@Override
+	public void close() {
+		snaplock.writeLock().lock();
+		try {
+			if (this.closed)
+				return;
+			this.sync();
+			mapc.close();
+		} catch (IOException e) {
+			SDFSLogger.getLog().warn("unable to close " + this.filePath, e);
+		} finally {
+			this.closed = true;
+			snaplock.writeLock().unlock();
+		}
+	}
+
+}
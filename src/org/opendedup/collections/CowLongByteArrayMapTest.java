@@ -0,0 +1,199 @@
+package org.opendedup.collections;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.opendedup.sdfs.Main;
+
+/**
+ * Checks that copy on write file maps keep snapshots apart: divergent writes
+ * after a snapshot, shared leaves outliving the map that released them,
+ * truncate and trim across shared segments and reopening after a sync. Run
+ * it with a scratch folder as the only argument.
+ */
+public class CowLongByteArrayMapTest {
+	// three leaves, the last one partly used
+	private static final long RECORDS = MapSegmentStore.LEAF_RECORDS * 2 + 88;
+	private static File base;
+	private static int arrayLength;
+
+	public static void main(String[] args) throws IOException {
+		base = new File(args.length > 0 ? args[0] : System
+				.getProperty("java.io.tmpdir") + File.separator + "cowtest");
+		arrayLength = LongByteArrayMap.recordLength(Main.MAPVERSION);
+		divergentWrites();
+		sharedLeaves();
+		truncateAndTrim();
+		System.out.println("all copy on write map checks passed");
+	}
+
+	/**
+	 * A snapshot and its source are written to in the same leaves and read
+	 * back, before and after both are reopened.
+	 */
+	private static void divergentWrites() throws IOException {
+		File dir = open("divergent");
+		String a = new File(dir, "a.map").getPath();
+		String b = new File(dir, "b.map").getPath();
+		CowLongByteArrayMap m = fill(a);
+		m.copy(b);
+		CowLongByteArrayMap s = new CowLongByteArrayMap(b);
+		m.put(pos(10), value(10, 1));
+		s.put(pos(10), value(10, 2));
+		s.put(pos(300), value(300, 2));
+		m.put(pos(RECORDS + 5), value(RECORDS + 5, 1));
+		for (int t = 0; t < 2; t++) {
+			check(m, 10, 1);
+			check(s, 10, 2);
+			check(m, 300, 0);
+			check(s, 300, 2);
+			check(m, 500, 0);
+			check(s, 500, 0);
+			check(m, RECORDS + 5, 1);
+			absent(s, RECORDS + 5);
+			m.sync();
+			s.sync();
+			m.close();
+			s.close();
+			MapSegmentStore.close();
+			m = new CowLongByteArrayMap(a);
+			s = new CowLongByteArrayMap(b);
+		}
+		m.close();
+		s.close();
+		MapSegmentStore.close();
+		System.out.println("divergent writes passed");
+	}
+
+	/**
+	 * Leaves shared with a snapshot stay readable once the source map is
+	 * gone, and are freed for reuse once the snapshot is gone as well.
+	 */
+	private static void sharedLeaves() throws IOException {
+		File dir = open("shared");
+		File segs = new File(Main.dedupDBStore + File.separator + "segments"
+				+ File.separator + "segments.db");
+		String a = new File(dir, "a.map").getPath();
+		String b = new File(dir, "b.map").getPath();
+		CowLongByteArrayMap m = fill(a);
+		m.copy(b);
+		CowLongByteArrayMap s = new CowLongByteArrayMap(b);
+		m.vanish();
+		if (new File(a).exists())
+			throw new IllegalStateException(a + " was not removed");
+		for (long r = 0; r < RECORDS; r++)
+			check(s, r, 0);
+		s.close();
+		MapSegmentStore.close();
+		s = new CowLongByteArrayMap(b);
+		for (long r = 0; r < RECORDS; r++)
+			check(s, r, 0);
+		long len = segs.length();
+		s.vanish();
+		m = fill(new File(dir, "c.map").getPath());
+		m.sync();
+		if (segs.length() > len)
+			throw new IllegalStateException("segments were not freed, "
+					+ segs.getPath() + " grew from " + len + " to "
+					+ segs.length());
+		m.close();
+		MapSegmentStore.close();
+		System.out.println("shared leaves passed");
+	}
+
+	/**
+	 * Truncating one map and trimming whole and partial leaves of its
+	 * snapshot leaves the records of the other untouched.
+	 */
+	private static void truncateAndTrim() throws IOException {
+		File dir = open("truncate");
+		String a = new File(dir, "a.map").getPath();
+		String b = new File(dir, "b.map").getPath();
+		CowLongByteArrayMap m = fill(a);
+		m.copy(b);
+		CowLongByteArrayMap s = new CowLongByteArrayMap(b);
+		m.truncate(pos(300));
+		// a partial first leaf, a whole second one and a partial third
+		s.trim(pos(200), (int) (pos(RECORDS) - pos(200)));
+		for (int t = 0; t < 2; t++) {
+			if (m.size() != 300)
+				throw new IllegalStateException("truncated map has "
+						+ m.size() + " records");
+			for (long r = 0; r < RECORDS; r++) {
+				if (r < 300)
+					check(m, r, 0);
+				else
+					absent(m, r);
+				if (r < 200)
+					check(s, r, 0);
+				else
+					absent(s, r);
+			}
+			m.sync();
+			s.sync();
+			m.close();
+			s.close();
+			MapSegmentStore.close();
+			m = new CowLongByteArrayMap(a);
+			s = new CowLongByteArrayMap(b);
+		}
+		m.close();
+		s.close();
+		MapSegmentStore.close();
+		System.out.println("truncate and trim passed");
+	}
+
+	private static File open(String name) throws IOException {
+		File dir = new File(base, name);
+		delete(dir);
+		dir.mkdirs();
+		Main.dedupDBStore = new File(dir, "db").getPath();
+		return dir;
+	}
+
+	private static CowLongByteArrayMap fill(String path) throws IOException {
+		CowLongByteArrayMap m = new CowLongByteArrayMap(path);
+		for (long r = 0; r < RECORDS; r++)
+			m.put(pos(r), value(r, 0));
+		m.sync();
+		return m;
+	}
+
+	private static long pos(long rec) {
+		return rec * Main.CHUNK_LENGTH;
+	}
+
+	private static byte[] value(long rec, int gen) {
+		byte[] b = new byte[arrayLength];
+		Arrays.fill(b, (byte) 1);
+		ByteBuffer.wrap(b).putLong(rec + 1).putInt(gen);
+		return b;
+	}
+
+	private static void check(CowLongByteArrayMap m, long rec, int gen)
+			throws IOException {
+		byte[] v = m.get(pos(rec));
+		if (v == null || !Arrays.equals(v, value(rec, gen)))
+			throw new IllegalStateException("record " + rec
+					+ " does not hold generation " + gen);
+	}
+
+	private static void absent(CowLongByteArrayMap m, long rec)
+			throws IOException {
+		if (m.get(pos(rec)) != null)
+			throw new IllegalStateException("record " + rec
+					+ " should be free");
+	}
+
+	private static void delete(File f) throws IOException {
+		if (f.isDirectory()) {
+			for (File c : f.listFiles())
+				delete(c);
+		}
+		Files.deleteIfExists(f.toPath());
+	}
+
+}
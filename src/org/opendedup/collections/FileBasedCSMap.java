@@ -5,11 +5,25 @@ import java.io.File;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.io.FileUtils;
+import org.opendedup.collections.threads.GroupCommit;
 import org.opendedup.hashing.HashFunctionPool;
 import org.opendedup.hashing.Tiger16HashEngine;
 import org.opendedup.logging.SDFSLogger;
@@ -42,6 +56,18 @@ public class FileBasedCSMap implements AbstractMap, AbstractHashesMap {
 	private SDFSEvent loadEvent = SDFSEvent.loadHashDBEvent(
 			"Loading Hash Database", Main.mountEvent);
 	private long endPos = 0;
+	private GroupCommit.Syncable db = null;
+	private final ConcurrentHashMap<ByteBuffer, PendingPut> pending = new ConcurrentHashMap<ByteBuffer, PendingPut>();
+
+	/**
+	 * A key that is being inserted. The chunk data is written to the chunk
+	 * store before the key is published in its shard, without holding any
+	 * shard lock. Writers of the same key that arrive in the meantime wait on
+	 * the pending entry instead of writing the data a second time.
+	 */
+	private static final class PendingPut {
+		private final CountDownLatch done = new CountDownLatch(1);
+	}
 
 	@Override
 	public void init(long maxSize, String fileName) throws IOException,
@@ -56,20 +82,83 @@ public class FileBasedCSMap implements AbstractMap, AbstractHashesMap {
 			throw new IOException(e);
 		}
 		this.closed = false;
-		// st = new SyncThread(this);
+		this.db = new GroupCommit.Syncable() {
+			@Override
+			public void sync() throws IOException {
+				FileBasedCSMap.this.sync();
+			}
+		};
+		GroupCommit.open(new File(fileName + ".intents"), this.FREE.length,
+				new GroupCommit.Replayer() {
+					@Override
+					public void replay(byte[] hash, long pos)
+							throws IOException {
+						FileBasedCSMap.this.replay(hash, pos);
+					}
+				}, this.db);
+	}
+
+	/**
+	 * Applies an update found in the intent journal after a crash.
+	 */
+	private void replay(byte[] hash, long pos) throws IOException {
+		AbstractShard m = this.getMap(hash);
+		if (pos == -1) {
+			if (m.remove(hash))
+				this.kSz.decrementAndGet();
+		} else {
+			try {
+				if (m.put(hash, pos))
+					this.kSz.incrementAndGet();
+				else
+					m.update(hash, pos);
+			} catch (HashtableFullException e) {
+				throw new IOException(e);
+			}
+		}
 	}
 
 	public AbstractShard getMap(byte[] hash) throws IOException {
+		AbstractShard m = maps[route(hash)];
 
+		return m;
+	}
+
+	private static int route(byte[] hash) {
 		int hashb = hash[2];
 		if (hashb < 0) {
 			hashb = ((hashb * -1) - 1);
 		}
-		int hashRoute = hashb;
-
-		AbstractShard m = maps[hashRoute];
+		return hashb;
+	}
 
-		return m;
+	/**
+	 * Orders the indexes of <tt>keys</tt> by the shard each key routes to and
+	 * then by key, so a batch visits every shard once and repeats of a key
+	 * within the batch are next to each other.
+	 */
+	private static Integer[] shardOrder(final List<byte[]> keys) {
+		Integer[] order = new Integer[keys.size()];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				byte[] ka = keys.get(a);
+				byte[] kb = keys.get(b);
+				int c = route(ka) - route(kb);
+				if (c != 0)
+					return c;
+				int l = Math.min(ka.length, kb.length);
+				for (int i = 0; i < l; i++) {
+					c = (ka[i] & 0xff) - (kb[i] & 0xff);
+					if (c != 0)
+						return c;
+				}
+				return ka.length - kb.length;
+			}
+		});
+		return order;
 	}
 
 	@Override
@@ -175,26 +264,47 @@ public class FileBasedCSMap implements AbstractMap, AbstractHashesMap {
 		CommandLineProgressBar bar = new CommandLineProgressBar(
 				"Loading Hashes", this.maps.length, System.out);
 		this.loadEvent.maxCt = this.maps.length;
-		for (int i = 0; i < this.maps.length; i++) {
-			this.loadEvent.curCt = this.loadEvent.curCt + 1;
-			int sz = NextPrime.getNextPrimeI((int) (size / maps.length));
-			// SDFSLogger.getLog().debug("will create byte array of size "
-			// + sz + " propsize was " + propsize);
-			ram = ram + (sz * (HashFunctionPool.hashLength + 8));
-			String fp = this.fileName + "-" + i;
-			AbstractShard m = null;
-			/*
-			 * if (OSValidator.isWindows()) m = new FCByteArrayLongMap(fp, sz,
-			 * (short) HashFunctionPool.hashLength); else
-			 */
-			m = new FileByteArrayLongMap(fp, sz,
-					(short) HashFunctionPool.hashLength);
-			long mep = m.setUp();
-			if (mep > endPos)
-				endPos = mep;
-			maps[i] = m;
-			rsz = rsz + m.size();
-			bar.update(i);
+		int sz = NextPrime.getNextPrimeI(Math.min(size / maps.length,
+				Main.hashDBShardInitialSize));
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(
+				Main.hashDBLoadThreads, Main.hashDBLoadThreads, 10,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		ArrayList<Future<ShardLoader>> loads = new ArrayList<Future<ShardLoader>>();
+		try {
+			for (int i = 0; i < this.maps.length; i++) {
+				// SDFSLogger.getLog().debug("will create byte array of size "
+				// + sz + " propsize was " + propsize);
+				ram = ram + (sz * (HashFunctionPool.hashLength + 8));
+				String fp = this.fileName + "-" + i;
+				AbstractShard m = null;
+				/*
+				 * if (OSValidator.isWindows()) m = new FCByteArrayLongMap(fp,
+				 * sz, (short) HashFunctionPool.hashLength); else
+				 */
+				m = this.createShard(fp, sz);
+				maps[i] = m;
+				ShardLoader l = new ShardLoader(i, m,
+						SDFSEvent.loadHashDBEvent("Loading hash table " + i,
+								this.loadEvent));
+				loads.add(executor.submit(l));
+			}
+			for (int i = 0; i < loads.size(); i++) {
+				ShardLoader l = null;
+				try {
+					l = loads.get(i).get();
+				} catch (ExecutionException e) {
+					this.loadEvent.endEvent("unable to load hash table " + i,
+							SDFSEvent.ERROR, e.getCause());
+					throw new IOException(e.getCause());
+				}
+				if (l.endPos > endPos)
+					endPos = l.endPos;
+				rsz = rsz + l.map.size();
+				this.loadEvent.curCt = this.loadEvent.curCt + 1;
+				bar.update(i);
+			}
+		} finally {
+			executor.shutdown();
 		}
 		bar.finish();
 		this.loadEvent.endEvent("Loaded entries " + rsz);
@@ -205,6 +315,55 @@ public class FileBasedCSMap implements AbstractMap, AbstractHashesMap {
 		return size;
 	}
 
+	/**
+	 * Creates one of the shards of this map.
+	 * 
+	 * @param path
+	 *            the file name prefix of the shard
+	 * @param size
+	 *            the number of slots the shard starts with
+	 */
+	protected AbstractShard createShard(String path, int size)
+			throws IOException {
+		return new GrowableShard(path, size,
+				(short) HashFunctionPool.hashLength);
+	}
+
+	/**
+	 * Loads a single shard and reports how long it took through its own
+	 * child of the hash database load event.
+	 */
+	private static class ShardLoader implements Callable<ShardLoader> {
+		int id;
+		AbstractShard map;
+		SDFSEvent evt;
+		long endPos;
+
+		ShardLoader(int id, AbstractShard map, SDFSEvent evt) {
+			this.id = id;
+			this.map = map;
+			this.evt = evt;
+		}
+
+		@Override
+		public ShardLoader call() throws Exception {
+			long start = System.currentTimeMillis();
+			try {
+				this.endPos = map.setUp();
+			} catch (Exception e) {
+				evt.endEvent("unable to load hash table " + id,
+						SDFSEvent.ERROR, e);
+				throw e;
+			}
+			long tm = System.currentTimeMillis() - start;
+			evt.endEvent("Loaded " + map.size() + " entries in " + tm + " ms");
+			SDFSLogger.getLog().debug(
+					"loaded hash table " + id + " with " + map.size()
+							+ " entries in " + tm + " ms");
+			return this;
+		}
+	}
+
 	@Override
 	public long endStartingPosition() {
 		return this.endPos;
@@ -260,10 +419,9 @@ public class FileBasedCSMap implements AbstractMap, AbstractHashesMap {
 		boolean added = false;
 		// if (persist)
 		// this.flushFullBuffer();
-		if (persist) {
-			if (!cm.recoverd) {
-				cm.persistData(true);
-			}
+		if (persist && !cm.recoverd) {
+			added = this.putPending(cm);
+		} else if (persist) {
 			added = this.getMap(cm.getHash()).put(cm);
 			if (added) {
 				this.kSz.incrementAndGet();
@@ -276,6 +434,142 @@ public class FileBasedCSMap implements AbstractMap, AbstractHashesMap {
 		return added;
 	}
 
+	/**
+	 * Inserts a new chunk in two phases. The key is reserved as pending, the
+	 * data is persisted and only then is the key added to its shard, so the
+	 * shard lock is only held for the index update. If the key is already
+	 * pending the call waits for that insert and looks again.
+	 */
+	private boolean putPending(ChunkData cm) throws IOException,
+			HashtableFullException {
+		byte[] hash = cm.getHash();
+		AbstractShard m = this.getMap(hash);
+		ByteBuffer key = ByteBuffer.wrap(hash);
+		for (;;) {
+			if (m.containsKey(hash))
+				return false;
+			PendingPut p = new PendingPut();
+			PendingPut op = pending.putIfAbsent(key, p);
+			if (op != null) {
+				this.await(op);
+				continue;
+			}
+			try {
+				// it may have been published after the first look
+				if (m.containsKey(hash))
+					return false;
+				cm.persistData(true);
+				boolean added = m.put(cm);
+				if (added) {
+					this.kSz.incrementAndGet();
+					GroupCommit.intent(hash, cm.getcPos());
+				} else {
+					cm.setmDeleteDuplicate(true);
+				}
+				return added;
+			} finally {
+				this.release(key, p);
+			}
+		}
+	}
+
+	private void await(PendingPut p) throws IOException {
+		try {
+			p.done.await();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private void release(ByteBuffer key, PendingPut p) {
+		pending.remove(key, p);
+		p.done.countDown();
+	}
+
+	@Override
+	public boolean[] containsKeys(List<byte[]> keys) throws IOException {
+		if (this.isClosed()) {
+			throw new IOException("hashtable [" + this.fileName + "] is close");
+		}
+		boolean[] found = new boolean[keys.size()];
+		for (int i : shardOrder(keys)) {
+			byte[] key = keys.get(i);
+			found[i] = maps[route(key)].containsKey(key);
+		}
+		return found;
+	}
+
+	/**
+	 * Inserts a batch of chunks in three passes. The keys that are not in
+	 * their shard yet are found first, shard by shard, and reserved as
+	 * pending. Then the data of those chunks is written to the chunk store
+	 * together and finally they are added to their shards. Keys that another
+	 * writer already has pending are inserted one at a time after the rest
+	 * of the batch is published, which waits for that writer.
+	 */
+	@Override
+	public boolean[] put(List<ChunkData> cms) throws IOException,
+			HashtableFullException {
+		if (this.isClosed())
+			throw new HashtableFullException("Hashtable " + this.fileName
+					+ " is close");
+		if (this.kSz.get() + cms.size() > this.maxSz)
+			throw new HashtableFullException(
+					"entries is greater than or equal to the maximum number of entries. You need to expand"
+							+ "the volume or DSE allocation size");
+		ArrayList<byte[]> keys = new ArrayList<byte[]>(cms.size());
+		for (ChunkData cm : cms) {
+			if (cm.getHash().length != this.FREE.length)
+				throw new IOException("key length mismatch");
+			keys.add(cm.getHash());
+		}
+		boolean[] added = new boolean[cms.size()];
+		ArrayList<Integer> nw = new ArrayList<Integer>();
+		ArrayList<ChunkData> ncms = new ArrayList<ChunkData>();
+		ArrayList<PendingPut> pps = new ArrayList<PendingPut>();
+		ArrayList<Integer> deferred = new ArrayList<Integer>();
+		byte[] last = null;
+		try {
+			for (int i : shardOrder(keys)) {
+				byte[] key = keys.get(i);
+				if (last != null && Arrays.equals(last, key))
+					continue;
+				last = key;
+				AbstractShard m = maps[route(key)];
+				if (m.containsKey(key))
+					continue;
+				PendingPut p = new PendingPut();
+				if (pending.putIfAbsent(ByteBuffer.wrap(key), p) != null) {
+					deferred.add(i);
+				} else if (m.containsKey(key)) {
+					this.release(ByteBuffer.wrap(key), p);
+				} else {
+					nw.add(i);
+					ncms.add(cms.get(i));
+					pps.add(p);
+				}
+			}
+			ChunkData.persistData(ncms);
+			for (int z = 0; z < ncms.size(); z++) {
+				ChunkData cm = ncms.get(z);
+				if (maps[route(cm.getHash())].put(cm)) {
+					this.kSz.incrementAndGet();
+					GroupCommit.intent(cm.getHash(), cm.getcPos());
+					added[nw.get(z)] = true;
+				} else {
+					cm.setmDeleteDuplicate(true);
+				}
+			}
+		} finally {
+			for (int z = 0; z < pps.size(); z++)
+				this.release(ByteBuffer.wrap(ncms.get(z).getHash()),
+						pps.get(z));
+		}
+		for (int i : deferred)
+			added[i] = this.putPending(cms.get(i));
+		return added;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -291,6 +585,8 @@ public class FileBasedCSMap implements AbstractMap, AbstractHashesMap {
 				cm.persistData(true);
 				added = this.getMap(cm.getHash()).update(cm.getHash(),
 						cm.getcPos());
+				if (added)
+					GroupCommit.intent(cm.getHash(), cm.getcPos());
 			}
 			if (added) {
 				this.compactKsz++;
@@ -317,6 +613,36 @@ public class FileBasedCSMap implements AbstractMap, AbstractHashesMap {
 		return this.getMap(key).get(key);
 	}
 
+	@Override
+	public long lookup(byte[] key) throws IOException {
+		if (this.isClosed()) {
+			throw new IOException("hashtable [" + this.fileName + "] is close");
+		}
+		return this.getMap(key).get(key, false);
+	}
+
+	/**
+	 * Moves a key if it is still at <tt>oldPos</tt>. The check and the update
+	 * are not atomic. A key removed and added again in between ends up at
+	 * <tt>newPos</tt>, which holds the same data since keys are content
+	 * hashes, and the copy it was added with is found to be dead the next
+	 * time its container is compacted.
+	 */
+	@Override
+	public boolean relocate(byte[] key, long oldPos, long newPos)
+			throws IOException {
+		if (this.isClosed()) {
+			throw new IOException("hashtable [" + this.fileName + "] is close");
+		}
+		AbstractShard m = this.getMap(key);
+		if (m.get(key, false) != oldPos)
+			return false;
+		if (!m.update(key, newPos))
+			return false;
+		GroupCommit.intent(key, newPos);
+		return true;
+	}
+
 	@Override
 	public byte[] getData(byte[] key) throws IOException, DataArchivedException {
 		if (this.isClosed())
@@ -345,6 +671,7 @@ public class FileBasedCSMap implements AbstractMap, AbstractHashesMap {
 			if (!this.getMap(cm.getHash()).remove(cm.getHash())) {
 				return false;
 			} else {
+				GroupCommit.intent(cm.getHash(), -1);
 				cm.setmDelete(true);
 				if (this.isClosed()) {
 					throw new IOException("hashtable [" + this.fileName
@@ -374,13 +701,24 @@ public class FileBasedCSMap implements AbstractMap, AbstractHashesMap {
 				throw new IOException("hashtable [" + this.fileName
 						+ "] is close");
 			}
+			// every shard is synced even if one fails, but the table is only
+			// durable, and the intent journal only truncated, if all of them
+			// were
+			IOException err = null;
 			for (int i = 0; i < this.maps.length; i++) {
 				try {
 					this.maps[i].sync();
 				} catch (IOException e) {
 					SDFSLogger.getLog().warn("Unable to sync table " + i, e);
+					if (err == null)
+						err = new IOException("unable to sync hashtable ["
+								+ this.fileName + "]", e);
+					else
+						err.addSuppressed(e);
 				}
 			}
+			if (err != null)
+				throw err;
 			// this.flushBuffer(true);
 			// this.kRaf.getFD().sync();
 		} finally {
@@ -390,6 +728,10 @@ public class FileBasedCSMap implements AbstractMap, AbstractHashesMap {
 
 	@Override
 	public void close() {
+		// the last round syncs the table, so it has to run before the lock
+		// is taken
+		GroupCommit.close();
+		GroupCommit.unregister(this.db);
 		this.syncLock.lock();
 		try {
 			this.closed = true;
@@ -3,13 +3,10 @@ package org.opendedup.collections;
 import java.io.File;
 
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
 import java.io.SyncFailedException;
-import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
@@ -18,15 +15,34 @@ import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.opendedup.hashing.HashFunctionPool;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.filestore.ChunkData;
+import org.opendedup.util.AtomicBitSet;
 import org.opendedup.util.LargeBloomFilter;
 
-
-public class FileByteArrayLongMap implements AbstractShard {
+/**
+ * A memory mapped open addressing hash shard. Keys are stored in the .keys
+ * file and values in the .pos file at the same slot index.
+ *
+ * Lookups never take a lock. All reads and writes use absolute offsets into
+ * the mapped buffers so no buffer position is shared between threads.
+ * Writers of the same key are serialized by a lock striped on the key hash.
+ * Slots are grouped into ranges of {@link #SEQ_RANGE} slots, each protected
+ * by a sequence lock. A writer makes the sequence odd while it changes a slot
+ * and readers retry if the sequence moved while they were reading.
+ *
+ * The set of occupied slots is checkpointed to a .mck file on every sync and
+ * on close and loaded instead of scanning the keys. Every change marks its
+ * range of slots in the .mce file with the current checkpoint epoch, so after
+ * a crash only the ranges changed after the last checkpoint are read back
+ * from the keys and values.
+ */
+public class FileByteArrayLongMap implements ShardTable {
 	MappedByteBuffer keys = null;
 	MappedByteBuffer values = null;
 	String fn = null;
@@ -34,15 +50,28 @@ public class FileByteArrayLongMap implements AbstractShard {
 	private String path = null;
 	private FileChannel kFC = null;
 	private FileChannel vRaf = null;
-	private ReentrantLock hashlock = new ReentrantLock();
+	private static final int LOCK_STRIPES = 256;
+	private static final int SEQ_SHIFT = 6;
+	static final int SEQ_RANGE = 1 << SEQ_SHIFT;
+	private final ReentrantLock[] hashlocks = new ReentrantLock[LOCK_STRIPES];
+	private AtomicLongArray seq = null;
 	public static byte[] FREE = new byte[HashFunctionPool.hashLength];
 	public static byte[] REMOVED = new byte[HashFunctionPool.hashLength];
+	private static final int KL = HashFunctionPool.hashLength;
+	private static final int WORDS = KL / 8;
+	private static final long REMOVED_WORD = 0x0101010101010101L;
+	private static final int S_FREE = 0;
+	private static final int S_REMOVED = 1;
+	private static final int S_MATCH = 2;
+	private static final int S_OTHER = 3;
 	private int iterPos = 0;
-	private boolean closed = false;
-	private BitSet claims = null;
-	private BitSet mapped = null;
+	private volatile boolean closed = false;
+	private AtomicBitSet claims = null;
+	private AtomicBitSet mapped = null;
 	private AtomicInteger sz = new AtomicInteger(0);
-	long bgst = 0;
+	private final AtomicLong bgst = new AtomicLong(0);
+	private ShardEpochs epochs = null;
+	private final Object cklock = new Object();
 
 	static {
 		FREE = new byte[HashFunctionPool.hashLength];
@@ -55,13 +84,16 @@ public class FileByteArrayLongMap implements AbstractShard {
 			throws IOException {
 		this.size = size;
 		this.path = path;
+		for (int i = 0; i < hashlocks.length; i++)
+			hashlocks[i] = new ReentrantLock();
+		this.seq = new AtomicLongArray((size >>> SEQ_SHIFT) + 1);
 	}
 
 	private ReentrantLock iterlock = new ReentrantLock();
 
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
 	 * @see org.opendedup.collections.AbstractShard#iterInit()
 	 */
 	@Override
@@ -73,36 +105,27 @@ public class FileByteArrayLongMap implements AbstractShard {
 
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
 	 * @see org.opendedup.collections.AbstractShard#nextKey()
 	 */
 	@Override
 	public byte[] nextKey() {
+		byte[] key = new byte[KL];
 		while (iterPos < size) {
-			this.hashlock.lock();
-			try {
-				byte[] key = new byte[FREE.length];
-				keys.position(iterPos * FREE.length);
-				keys.get(key);
-				iterPos++;
-				if (!Arrays.equals(key, FREE) && !Arrays.equals(key, REMOVED)) {
-					this.mapped.set(iterPos - 1);
-					return key;
-				} else {
-					this.mapped.clear(iterPos - 1);
-				}
-			} finally {
-				this.hashlock.unlock();
+			int slot = iterPos;
+			iterPos++;
+			if (this.readKey(slot, key)) {
+				this.mapped.set(slot);
+				return key;
+			} else {
+				this.mapped.clear(slot);
 			}
-
 		}
 		return null;
 	}
-	
 
 	private void recreateMap() {
-		mapped = new BitSet(size);
-		mapped.clear();
+		mapped = new AtomicBitSet(size);
 		this.iterInit();
 		byte[] key = this.nextKey();
 		while (key != null)
@@ -114,32 +137,110 @@ public class FileByteArrayLongMap implements AbstractShard {
 
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
 	 * @see org.opendedup.collections.AbstractShard#getBigestKey()
 	 */
 	@Override
 	public long getBigestKey() throws IOException {
 		this.iterInit();
 		long _bgst = 0;
-		try {
-			this.hashlock.lock();
-			while (iterPos < size) {
-				long val = -1;
-				values.position(iterPos * 8);
-				val = values.getLong();
-				iterPos++;
+		while (iterPos < size) {
+			long val = values.getLong(iterPos * 8);
+			iterPos++;
+			if (val > _bgst)
+				_bgst = val;
+		}
+		return _bgst;
+	}
+
+	/**
+	 * Rebuilds the mapped bits of the ranges changed after the checkpoint of
+	 * epoch <tt>covered</tt> from the keys.
+	 *
+	 * @return the biggest value stored in those ranges
+	 */
+	private long rescan(long covered) {
+		long _bgst = 0;
+		int n = 0;
+		byte[] key = new byte[KL];
+		for (int r = 0; r < epochs.ranges(); r++) {
+			if (!epochs.changedAfter(r, covered))
+				continue;
+			n++;
+			int end = Math.min(size, (r + 1) * ShardEpochs.RANGE);
+			for (int slot = r * ShardEpochs.RANGE; slot < end; slot++) {
+				if (this.readKey(slot, key))
+					this.mapped.set(slot);
+				else
+					this.mapped.clear(slot);
+				long val = values.getLong(slot * 8);
 				if (val > _bgst)
 					_bgst = val;
 			}
-		} finally {
-			this.hashlock.unlock();
 		}
+		SDFSLogger.getLog().warn(
+				"Recovered Hashmap " + this.path + " rescanned " + n + " of "
+						+ epochs.ranges() + " ranges entries = "
+						+ mapped.cardinality());
 		return _bgst;
 	}
 
+	/**
+	 * Writes the mapped bit set and the biggest value to the checkpoint file.
+	 * A new epoch is started before the bit set is copied, so changes the
+	 * copy can miss are marked with a later epoch than the one recorded. The
+	 * key and value files are forced to disk before the checkpoint is written
+	 * so every bit in it refers to a key that is on disk.
+	 */
+	private void writeCheckpoint() throws IOException {
+		synchronized (this.cklock) {
+			long covered = this.epochs.advance();
+			long[] words = this.mapped.toLongArray();
+			long _bgst = this.bgst.get();
+			keys.force();
+			values.force();
+			this.epochs.force();
+			ShardCheckpoint.write(path, words, _bgst, covered);
+		}
+	}
+
+	/**
+	 * Loads the mapped bit set from the checkpoint file.
+	 *
+	 * @return the checkpoint or null if there is no usable checkpoint
+	 */
+	private ShardCheckpoint readCheckpoint() {
+		AtomicBitSet m = new AtomicBitSet(size);
+		ShardCheckpoint ck = ShardCheckpoint.read(path, m);
+		if (ck != null)
+			this.mapped = m;
+		return ck;
+	}
+
+	/**
+	 * Loads the mapped bit set written by versions that serialized it on
+	 * close. The file is removed once it has been read.
+	 */
+	private boolean readLegacyMapped() {
+		File f = new File(path + ".vmp");
+		if (!f.exists())
+			return false;
+		try {
+			FileInputStream fin = new FileInputStream(f);
+			ObjectInputStream oon = new ObjectInputStream(fin);
+			mapped = AtomicBitSet.valueOf((BitSet) oon.readObject(), size);
+			oon.close();
+			return true;
+		} catch (Exception e) {
+			return false;
+		} finally {
+			f.delete();
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
 	 * @see org.opendedup.collections.AbstractShard#setUp()
 	 */
 	@Override
@@ -155,63 +256,195 @@ public class FileByteArrayLongMap implements AbstractShard {
 				StandardOpenOption.WRITE, StandardOpenOption.READ);
 		RandomAccessFile _bpos = new RandomAccessFile(path + ".bpos", "rw");
 		_bpos.setLength(8);
-		bgst = _bpos.readLong();
-		boolean closedCorrectly = true;
+		long _bgst = _bpos.readLong();
+		boolean haveMapped = true;
+		ShardCheckpoint ck = null;
 		if (newInstance) {
-			mapped = new BitSet(size);
+			mapped = new AtomicBitSet(size);
 		} else {
-			File f = new File(path + ".vmp");
-			if (!f.exists())
-				closedCorrectly = false;
-			else {
-				try {
-					FileInputStream fin = new FileInputStream(f);
-					ObjectInputStream oon = new ObjectInputStream(fin);
-
-					mapped = (BitSet) oon.readObject();
-					oon.close();
-				} catch (Exception e) {
-					closedCorrectly = false;
-				}
-				f.delete();
-			}
+			ck = this.readCheckpoint();
+			if (ck == null)
+				haveMapped = this.readLegacyMapped();
 		}
+		this.epochs = new ShardEpochs(path, size);
 		keys = kFC.map(MapMode.READ_WRITE, 0, size * FREE.length);
-		keys.load();
 		this.values = vRaf.map(MapMode.READ_WRITE, 0, size * 8);
-		values.load();
-		if (bgst < 0) {
-			SDFSLogger.getLog()
-					.info("Hashtable " + path
-							+ " did not close correctly. scanning ");
-			bgst = this.getBigestKey();
-
+		if (_bgst < 0) {
+			// keys and values written after the last checkpoint are on disk
+			// but not in it, so they are read back from the ranges marked
+			// after it or from the whole table if the checkpoint has no epoch
+			if (ck != null && ck.epoch >= 0 && this.epochs.existed()) {
+				SDFSLogger.getLog().info(
+						"Hashtable " + path
+								+ " did not close correctly. rescanning "
+								+ "ranges changed after the last checkpoint");
+				_bgst = Math.max(this.rescan(ck.epoch), ck.bgst);
+			} else {
+				SDFSLogger.getLog().info(
+						"Hashtable " + path
+								+ " did not close correctly. scanning ");
+				_bgst = Math.max(this.getBigestKey(), ck == null ? -1
+						: ck.bgst);
+				haveMapped = false;
+			}
 		}
-		if (!closedCorrectly)
+		if (ck != null)
+			this.epochs.resume(ck.epoch);
+		this.bgst.set(_bgst);
+		if (!haveMapped)
 			this.recreateMap();
 		this.sz.set(this.mapped.cardinality());
 		_bpos.seek(0);
 		_bpos.writeLong(-1);
 		_bpos.close();
 
-		claims = new BitSet(size);
-		claims.clear();
+		claims = new AtomicBitSet(size);
+
+		return _bgst;
+	}
+
+	private static long[] toWords(byte[] key) {
+		long[] w = new long[WORDS];
+		for (int i = 0; i < WORDS; i++) {
+			int off = i * 8;
+			w[i] = ((long) key[off] << 56) | ((long) (key[off + 1] & 0xff) << 48)
+					| ((long) (key[off + 2] & 0xff) << 40)
+					| ((long) (key[off + 3] & 0xff) << 32)
+					| ((long) (key[off + 4] & 0xff) << 24)
+					| ((key[off + 5] & 0xff) << 16)
+					| ((key[off + 6] & 0xff) << 8) | (key[off + 7] & 0xff);
+		}
+		return w;
+	}
+
+	private static int hash(byte[] key) {
+		return (((key[8] & 0xff) << 24) | ((key[9] & 0xff) << 16)
+				| ((key[10] & 0xff) << 8) | (key[11] & 0xff)) & 0x7fffffff;
+	}
+
+	private ReentrantLock lockFor(int hash) {
+		return this.hashlocks[hash & (LOCK_STRIPES - 1)];
+	}
+
+	/**
+	 * Classifies the contents of a slot without locking. Must be called
+	 * between a stable read of the slot's sequence and its validation.
+	 */
+	private int slotState(int slot, long[] kw) {
+		int off = slot * KL;
+		boolean free = true;
+		boolean removed = true;
+		boolean match = kw != null;
+		for (int i = 0; i < WORDS; i++) {
+			long w = keys.getLong(off + (i * 8));
+			if (w != 0)
+				free = false;
+			if (w != REMOVED_WORD)
+				removed = false;
+			if (match && w != kw[i])
+				match = false;
+		}
+		if (match)
+			return S_MATCH;
+		if (free)
+			return S_FREE;
+		if (removed)
+			return S_REMOVED;
+		return S_OTHER;
+	}
+
+	/**
+	 * Reads the state of a slot consistently with respect to concurrent
+	 * writers.
+	 */
+	private int readSlot(int slot, long[] kw) {
+		int r = slot >>> SEQ_SHIFT;
+		for (;;) {
+			long s = seq.get(r);
+			if ((s & 1) != 0) {
+				Thread.yield();
+				continue;
+			}
+			int st = this.slotState(slot, kw);
+			if (seq.get(r) == s)
+				return st;
+		}
+	}
+
+	/**
+	 * Copies a live key out of a slot.
+	 *
+	 * @return false if the slot is free or removed
+	 */
+	private boolean readKey(int slot, byte[] key) {
+		int r = slot >>> SEQ_SHIFT;
+		int off = slot * KL;
+		for (;;) {
+			long s = seq.get(r);
+			if ((s & 1) != 0) {
+				Thread.yield();
+				continue;
+			}
+			int st = this.slotState(slot, null);
+			for (int i = 0; i < KL; i++)
+				key[i] = keys.get(off + i);
+			if (seq.get(r) == s)
+				return st == S_OTHER;
+		}
+	}
+
+	private long readValue(int slot) {
+		int r = slot >>> SEQ_SHIFT;
+		for (;;) {
+			long s = seq.get(r);
+			if ((s & 1) != 0) {
+				Thread.yield();
+				continue;
+			}
+			long val = values.getLong(slot * 8);
+			if (seq.get(r) == s)
+				return val;
+		}
+	}
+
+	private void lockRange(int slot) {
+		int r = slot >>> SEQ_SHIFT;
+		for (;;) {
+			long s = seq.get(r);
+			if ((s & 1) == 0 && seq.compareAndSet(r, s, s + 1))
+				return;
+			Thread.yield();
+		}
+	}
+
+	private void unlockRange(int slot) {
+		seq.incrementAndGet(slot >>> SEQ_SHIFT);
+	}
+
+	private void writeKey(int slot, long[] kw) {
+		int off = slot * KL;
+		for (int i = 0; i < WORDS; i++)
+			keys.putLong(off + (i * 8), kw == null ? REMOVED_WORD : kw[i]);
+	}
 
-		return bgst;
+	private void updateBigest(long value) {
+		for (;;) {
+			long b = bgst.get();
+			if (value <= b || bgst.compareAndSet(b, value))
+				return;
+		}
 	}
 
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
 	 * @see org.opendedup.collections.AbstractShard#containsKey(byte[])
 	 */
 	@Override
 	public boolean containsKey(byte[] key) {
 		try {
-			this.hashlock.lock();
-			int index = index(key);
-			if (index >= 0) {
-				int pos = (index / FREE.length);
+			int pos = this.index(key);
+			if (pos >= 0) {
 				this.claims.set(pos);
 				return true;
 			}
@@ -219,80 +452,73 @@ public class FileByteArrayLongMap implements AbstractShard {
 		} catch (Exception e) {
 			SDFSLogger.getLog().fatal("error getting record", e);
 			return false;
-		} finally {
-			this.hashlock.unlock();
 		}
 	}
 
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
 	 * @see org.opendedup.collections.AbstractShard#isClaimed(byte[])
 	 */
 	@Override
 	public boolean isClaimed(byte[] key) throws KeyNotFoundException {
-		try {
-			this.hashlock.lock();
-			int index = index(key);
-			if (index >= 0) {
-				int pos = (index / FREE.length);
-				boolean cl = this.claims.get(pos);
-				if (cl)
-					return true;
-			} else {
-				throw new KeyNotFoundException(key);
-			}
-			return false;
-		} finally {
-			this.hashlock.unlock();
+		int pos = this.index(key);
+		if (pos >= 0) {
+			return this.claims.get(pos);
+		} else {
+			throw new KeyNotFoundException(key);
 		}
 	}
 
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
 	 * @see org.opendedup.collections.AbstractShard#update(byte[], long)
 	 */
 	@Override
 	public boolean update(byte[] key, long value) throws IOException {
+		long[] kw = toWords(key);
+		int hash = hash(key);
+		ReentrantLock l = this.lockFor(hash);
+		l.lock();
 		try {
-			this.hashlock.lock();
-			int pos = this.index(key);
+			int pos = this.index(kw, hash);
 			if (pos == -1) {
 				return false;
 			} else {
-				// keys.position(pos);
-				if (value > bgst)
-					bgst = value;
-				pos = (pos / FREE.length) * 8;
-				this.values.position(pos);
-				this.values.putLong(value);
-				pos = (pos / 8);
+				this.updateBigest(value);
+				this.lockRange(pos);
+				try {
+					this.values.putLong(pos * 8, value);
+				} finally {
+					this.unlockRange(pos);
+				}
 				this.claims.set(pos);
 				this.mapped.set(pos);
-				// this.store.position(pos);
-				// this.store.put(storeID);
+				this.epochs.touched(pos);
 				return true;
 			}
 		} catch (Exception e) {
 			SDFSLogger.getLog().fatal("error getting record", e);
 			return false;
 		} finally {
-			this.hashlock.unlock();
+			l.unlock();
 		}
 	}
 
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
 	 * @see org.opendedup.collections.AbstractShard#remove(byte[])
 	 */
 	@Override
 	public boolean remove(byte[] key) throws IOException {
+		long[] kw = toWords(key);
+		int hash = hash(key);
+		ReentrantLock l = this.lockFor(hash);
+		l.lock();
 		try {
-			this.hashlock.lock();
-			int pos = this.index(key);
-
+			int pos = this.index(kw, hash);
 			if (pos == -1) {
 				return false;
 			}
@@ -300,23 +526,20 @@ public class FileByteArrayLongMap implements AbstractShard {
 			if (claimed) {
 				return false;
 			} else {
-				keys.position(pos);
-				keys.put(REMOVED);
-
-				pos = (pos / FREE.length) * 8;
-				this.values.position(pos);
-				long fp = values.getLong();
+				long fp = this.readValue(pos);
 				ChunkData ck = new ChunkData(fp, key);
 				if (ck.setmDelete(true)) {
-					fp = fp * -1;
-					this.values.position(pos);
-					this.values.putLong(fp);
-					pos = (pos / 8);
+					this.lockRange(pos);
+					try {
+						this.writeKey(pos, null);
+						this.values.putLong(pos * 8, fp * -1);
+					} finally {
+						this.unlockRange(pos);
+					}
 					this.claims.clear(pos);
 					this.mapped.clear(pos);
+					this.epochs.touched(pos);
 					this.sz.decrementAndGet();
-					// this.store.position(pos);
-					// this.store.put((byte)0);
 					return true;
 				} else
 					return false;
@@ -325,7 +548,7 @@ public class FileByteArrayLongMap implements AbstractShard {
 			SDFSLogger.getLog().fatal("error getting record", e);
 			return false;
 		} finally {
-			this.hashlock.unlock();
+			l.unlock();
 		}
 	}
 
@@ -335,7 +558,7 @@ public class FileByteArrayLongMap implements AbstractShard {
 
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
 	 * @see org.opendedup.collections.AbstractShard#hashFunc3(int)
 	 */
 	public int hashFunc3(int hash) {
@@ -344,234 +567,267 @@ public class FileByteArrayLongMap implements AbstractShard {
 	}
 
 	/**
-	 * Locates the index of <tt>obj</tt>.
-	 * 
-	 * @param obj
-	 *            an <code>Object</code> value
-	 * @return the index of <tt>obj</tt> or -1 if it isn't in the set.
+	 * Locates the slot of <tt>key</tt>.
+	 *
+	 * @param key
+	 *            the key to look for
+	 * @return the slot of <tt>key</tt> or -1 if it isn't in the set.
 	 */
 	protected int index(byte[] key) {
-
-		// From here on we know obj to be non-null
-		ByteBuffer buf = ByteBuffer.wrap(key);
-		buf.position(8);
-		int hash = buf.getInt() & 0x7fffffff;
-		int index = this.hashFunc1(hash) * FREE.length;
-		byte[] cur = new byte[FREE.length];
-		keys.position(index);
-		keys.get(cur);
-		if (Arrays.equals(cur, key)) {
-			return index;
-		}
-
-		if (Arrays.equals(cur, FREE)) {
-			return -1;
-		}
-
-		return indexRehashed(key, index, hash, cur);
+		return this.index(toWords(key), hash(key));
 	}
 
 	/**
-	 * Locates the index of non-null <tt>obj</tt>.
-	 * 
-	 * @param obj
-	 *            target key, know to be non-null
-	 * @param index
-	 *            we start from
-	 * @param hash
-	 * @param cur
-	 * @return
-	 */
-	private int indexRehashed(byte[] key, int index, int hash, byte[] cur) {
-
-		// NOTE: here it has to be REMOVED or FULL (some user-given value)
-		// see Knuth, p. 529
-		int length = size * FREE.length;
-		int probe = (1 + (hash % (size - 2))) * FREE.length;
-
+	 * Walks the double hashing probe sequence of <tt>hash</tt> until the key,
+	 * a free slot or the starting slot is found. The sequence is the same one
+	 * used by earlier versions of this map so existing .keys files remain
+	 * readable.
+	 */
+	private int index(long[] kw, int hash) {
+		int index = this.hashFunc1(hash);
+		int st = this.readSlot(index, kw);
+		if (st == S_MATCH)
+			return index;
+		if (st == S_FREE)
+			return -1;
+		final int probe = 1 + (hash % (size - 2));
 		final int loopIndex = index;
-
 		do {
 			index -= probe;
 			if (index < 0) {
-				index += length;
+				index += size;
 			}
-			keys.position(index);
-			keys.get(cur);
-			//
-			if (Arrays.equals(cur, FREE)) {
+			st = this.readSlot(index, kw);
+			if (st == S_FREE)
 				return -1;
-			}
-			//
-			if (Arrays.equals(cur, key))
+			if (st == S_MATCH)
 				return index;
 		} while (index != loopIndex);
 
 		return -1;
 	}
 
-	protected int insertionIndex(byte[] key) {
-		ByteBuffer buf = ByteBuffer.wrap(key);
-		buf.position(8);
-		int hash = buf.getInt() & 0x7fffffff;
-		int index = this.hashFunc1(hash) * FREE.length;
-		byte[] cur = new byte[FREE.length];
-		keys.position(index);
-		keys.get(cur);
-
-		if (Arrays.equals(cur, FREE)) {
-			return index; // empty, all done
-		} else if (Arrays.equals(cur, key)) {
-			return -index - 1; // already stored
-		}
-		return insertKeyRehash(key, index, hash, cur);
-	}
-
 	/**
-	 * Looks for a slot using double hashing for a non-null key values and
-	 * inserts the value in the slot
-	 * 
-	 * @param key
-	 *            non-null key value
-	 * @param index
-	 *            natural index
-	 * @param hash
-	 * @param cur
-	 *            value of first matched slot
-	 * @return
-	 */
-	private int insertKeyRehash(byte[] key, int index, int hash, byte[] cur) {
-		final int length = size * FREE.length;
-		final int probe = (1 + (hash % (size - 2))) * FREE.length;
-
+	 * Finds the slot a new key should go into. Must be called while holding
+	 * the lock stripe of <tt>hash</tt>.
+	 *
+	 * @return the slot to insert into or <tt>-slot - 1</tt> if the key is
+	 *         already stored.
+	 * @throws HashtableFullException
+	 *             if no free or removed slot is reachable
+	 */
+	private int insertionIndex(long[] kw, int hash)
+			throws HashtableFullException {
+		int index = this.hashFunc1(hash);
+		int st = this.readSlot(index, kw);
+		if (st == S_FREE)
+			return index;
+		if (st == S_MATCH)
+			return -index - 1;
+		final int probe = 1 + (hash % (size - 2));
 		final int loopIndex = index;
 		int firstRemoved = -1;
-
-		/**
-		 * Look until FREE slot or we start to loop
-		 */
 		do {
-			// Identify first removed slot
-			if (Arrays.equals(cur, REMOVED) && firstRemoved == -1)
+			if (st == S_REMOVED && firstRemoved == -1)
 				firstRemoved = index;
-
 			index -= probe;
 			if (index < 0) {
-				index += length;
+				index += size;
 			}
-			keys.position(index);
-			keys.get(cur);
-
-			// A FREE slot stops the search
-			if (Arrays.equals(cur, FREE)) {
-				if (firstRemoved != -1) {
+			st = this.readSlot(index, kw);
+			if (st == S_FREE) {
+				if (firstRemoved != -1)
 					return firstRemoved;
-				} else {
+				else
 					return index;
-				}
 			}
-
-			if (Arrays.equals(cur, key)) {
+			if (st == S_MATCH)
 				return -index - 1;
-			}
-
-			// Detect loop
 		} while (index != loopIndex);
-
-		// We inspected all reachable slots and did not find a FREE one
-		// If we found a REMOVED slot we return the first one found
 		if (firstRemoved != -1) {
 			return firstRemoved;
 		}
+		throw new HashtableFullException(
+				"No free or removed slots available in " + this.path);
+	}
 
-		// Can a resizing strategy be found that resizes the set?
-		throw new IllegalStateException(
-				"No free or removed slots available. Key set full?!!");
+	/**
+	 * Inserts a key and value. Writers of other keys may race for the same
+	 * free slot, so the slot is rechecked under its sequence lock and the
+	 * search is repeated if it was taken.
+	 *
+	 * @return the slot written to or <tt>-slot - 1</tt> if the key is already
+	 *         stored.
+	 */
+	private int insert(long[] kw, int hash, long value)
+			throws HashtableFullException {
+		for (;;) {
+			int pos = this.insertionIndex(kw, hash);
+			if (pos < 0)
+				return pos;
+			this.lockRange(pos);
+			try {
+				int st = this.slotState(pos, kw);
+				if (st == S_FREE || st == S_REMOVED) {
+					this.values.putLong(pos * 8, value);
+					this.writeKey(pos, kw);
+					return pos;
+				}
+			} finally {
+				this.unlockRange(pos);
+			}
+		}
 	}
 
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
 	 * @see org.opendedup.collections.AbstractShard#put(byte[], long)
 	 */
-	
+
 	public boolean put(byte[] key, long value) throws HashtableFullException {
+		if (this.sz.get() >= size)
+			throw new HashtableFullException(
+					"entries is greater than or equal to the maximum number of entries. You need to expand"
+							+ "the volume or DSE allocation size");
+		long[] kw = toWords(key);
+		int hash = hash(key);
+		ReentrantLock l = this.lockFor(hash);
+		l.lock();
 		try {
-			this.hashlock.lock();
-			if (this.sz.get() >= size)
-				throw new HashtableFullException(
-						"entries is greater than or equal to the maximum number of entries. You need to expand"
-								+ "the volume or DSE allocation size");
-			int pos = this.insertionIndex(key);
+			int pos = this.insert(kw, hash, value);
 			if (pos < 0) {
-				int npos = -pos -1;
-				npos = (npos / FREE.length);
-				this.claims.set(npos);
+				this.claims.set(-pos - 1);
 				return false;
 			}
-			this.keys.position(pos);
-			this.keys.put(key);
-
-			if (value > bgst)
-				bgst = value;
-			pos = (pos / FREE.length) * 8;
-			this.values.position(pos);
-			this.values.putLong(value);
-			pos = (pos / 8);
+			this.updateBigest(value);
 			this.claims.set(pos);
 			this.mapped.set(pos);
+			this.epochs.touched(pos);
 			this.sz.incrementAndGet();
-			// this.store.position(pos);
-			// this.store.put(storeID);
-			return pos > -1 ? true : false;
+			return true;
 		} finally {
-			this.hashlock.unlock();
+			l.unlock();
 		}
 	}
-	
+
 	public boolean put(ChunkData cm) throws HashtableFullException, IOException {
+		if (this.sz.get() >= size)
+			throw new HashtableFullException(
+					"entries is greater than or equal to the maximum number of entries. You need to expand"
+							+ "the volume or DSE allocation size");
+		byte[] key = cm.getHash();
+		long[] kw = toWords(key);
+		int hash = hash(key);
+		ReentrantLock l = this.lockFor(hash);
+		l.lock();
 		try {
-			byte [] key = cm.getHash();
-			this.hashlock.lock();
-			if (this.sz.get() >= size)
-				throw new HashtableFullException(
-						"entries is greater than or equal to the maximum number of entries. You need to expand"
-								+ "the volume or DSE allocation size");
-			int pos = this.insertionIndex(key);
-			if (pos < 0) {
-				int npos = -pos -1;
-				npos = (npos / FREE.length);
-				this.claims.set(npos);
+			int pos = this.index(kw, hash);
+			if (pos >= 0) {
+				this.claims.set(pos);
 				return false;
 			}
-			this.keys.position(pos);
-			this.keys.put(key);
-			if (!cm.recoverd) {
-				
-				cm.persistData(true);
+			// the data is persisted by the caller before the key is
+			// published, never under the shard lock
+			if (!cm.recoverd && cm.getcPos() < 0)
+				throw new IOException(
+						"chunk data has not been persisted before insert");
+			pos = this.insert(kw, hash, cm.getcPos());
+			if (pos < 0) {
+				this.claims.set(-pos - 1);
+				return false;
 			}
-			if (cm.getcPos() > bgst)
-				bgst = cm.getcPos();
-			pos = (pos / FREE.length) * 8;
-			this.values.position(pos);
-			this.values.putLong(cm.getcPos());
-			pos = (pos / 8);
+			this.updateBigest(cm.getcPos());
 			this.claims.set(pos);
 			this.mapped.set(pos);
+			this.epochs.touched(pos);
 			this.sz.incrementAndGet();
-			// this.store.position(pos);
-			// this.store.put(storeID);
-			return pos > -1 ? true : false;
+			return true;
+		} finally {
+			l.unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.opendedup.collections.ShardTable#capacity()
+	 */
+	@Override
+	public int capacity() {
+		return this.size;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.opendedup.collections.ShardTable#maxCapacity()
+	 */
+	@Override
+	public int maxCapacity() {
+		return Integer.MAX_VALUE / KL;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.opendedup.collections.ShardTable#keyAt(int, byte[])
+	 */
+	@Override
+	public boolean keyAt(int slot, byte[] key) {
+		return this.readKey(slot, key);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.opendedup.collections.ShardTable#drop(byte[])
+	 */
+	@Override
+	public boolean drop(byte[] key) {
+		long[] kw = toWords(key);
+		int hash = hash(key);
+		ReentrantLock l = this.lockFor(hash);
+		l.lock();
+		try {
+			int pos = this.index(kw, hash);
+			if (pos == -1)
+				return false;
+			this.lockRange(pos);
+			try {
+				this.writeKey(pos, null);
+				this.values.putLong(pos * 8, 0);
+			} finally {
+				this.unlockRange(pos);
+			}
+			this.claims.clear(pos);
+			this.mapped.clear(pos);
+			this.epochs.touched(pos);
+			this.sz.decrementAndGet();
+			return true;
 		} finally {
-			this.hashlock.unlock();
+			l.unlock();
 		}
 	}
-	
-	
 
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
+	 * @see org.opendedup.collections.ShardTable#vanish()
+	 */
+	@Override
+	public void vanish() {
+		this.close();
+		new File(path + ".keys").delete();
+		new File(path + ".pos").delete();
+		new File(path + ".bpos").delete();
+		new File(path + ".vmp").delete();
+		ShardCheckpoint.delete(path);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
 	 * @see org.opendedup.collections.AbstractShard#getEntries()
 	 */
 	@Override
@@ -581,7 +837,7 @@ public class FileByteArrayLongMap implements AbstractShard {
 
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
 	 * @see org.opendedup.collections.AbstractShard#get(byte[])
 	 */
 	@Override
@@ -591,42 +847,43 @@ public class FileByteArrayLongMap implements AbstractShard {
 
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
 	 * @see org.opendedup.collections.AbstractShard#get(byte[], boolean)
 	 */
 	@Override
 	public long get(byte[] key, boolean claim) {
 		try {
-			this.hashlock.lock();
 			if (key == null)
 				return -1;
-			int pos = this.index(key);
-			if (pos == -1) {
-				return -1;
-			} else {
-				
-				pos = (pos / FREE.length) * 8;
-				this.values.position(pos);
-				long val = this.values.getLong();
+			long[] kw = toWords(key);
+			for (;;) {
+				int pos = this.index(kw, hash(key));
+				if (pos == -1) {
+					return -1;
+				}
+				int r = pos >>> SEQ_SHIFT;
+				long s = seq.get(r);
+				if ((s & 1) != 0)
+					continue;
+				long val = this.values.getLong(pos * 8);
+				boolean same = this.slotState(pos, kw) == S_MATCH;
+				if (seq.get(r) != s || !same)
+					continue;
 				if (claim) {
-					pos = (pos / 8);
 					this.claims.set(pos);
 				}
 				return val;
-
 			}
 		} catch (Exception e) {
 			SDFSLogger.getLog().fatal("error getting record", e);
 			return -1;
-		} finally {
-			this.hashlock.unlock();
 		}
 
 	}
 
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
 	 * @see org.opendedup.collections.AbstractShard#size()
 	 */
 	@Override
@@ -634,15 +891,34 @@ public class FileByteArrayLongMap implements AbstractShard {
 		return this.sz.get();
 	}
 
+	private void lockAll() {
+		for (int i = 0; i < hashlocks.length; i++)
+			hashlocks[i].lock();
+	}
+
+	private void unlockAll() {
+		for (int i = hashlocks.length - 1; i >= 0; i--)
+			hashlocks[i].unlock();
+	}
+
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
 	 * @see org.opendedup.collections.AbstractShard#close()
 	 */
 	@Override
 	public void close() {
-		this.hashlock.lock();
+		this.lockAll();
 		this.closed = true;
+		boolean ckd = false;
+		try {
+			this.writeCheckpoint();
+			ckd = true;
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn(
+					"unable to write checkpoint for " + this.path, e);
+		}
+		this.epochs.close();
 		try {
 			this.vRaf.force(true);
 			this.vRaf.close();
@@ -655,36 +931,27 @@ public class FileByteArrayLongMap implements AbstractShard {
 		} catch (Exception e) {
 
 		}
-		try {
-			File f = new File(path + ".vmp");
-			FileOutputStream fout = new FileOutputStream(f);
-			ObjectOutputStream oon = new ObjectOutputStream(fout);
-			oon.writeObject(mapped);
-			oon.flush();
-			oon.close();
-			fout.flush();
-			fout.close();
-		} catch (Exception e) {
-
-		}
-		try {
-			RandomAccessFile _bpos = new RandomAccessFile(path + ".bpos", "rw");
-			_bpos.seek(0);
-			_bpos.writeLong(bgst);
-			_bpos.close();
-		} catch (Exception e) {
+		// without a checkpoint the table is left marked as not closed
+		// cleanly so the next open reads back the changed ranges
+		if (ckd) {
+			try {
+				RandomAccessFile _bpos = new RandomAccessFile(path + ".bpos",
+						"rw");
+				_bpos.seek(0);
+				_bpos.writeLong(bgst.get());
+				_bpos.close();
+			} catch (Exception e) {
 
+			}
 		}
 
-		this.hashlock.unlock();
+		this.unlockAll();
 		SDFSLogger.getLog().debug("closed " + this.path);
 	}
 
-	
-
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
 	 * @see org.opendedup.collections.AbstractShard#claimRecords()
 	 */
 	@Override
@@ -692,24 +959,13 @@ public class FileByteArrayLongMap implements AbstractShard {
 		if (this.closed)
 			throw new IOException("Hashtable " + this.path + " is close");
 		long k = 0;
-		try {
-			this.iterInit();
-			while (iterPos < size) {
-				this.hashlock.lock();
-				try {
-					boolean claimed = claims.get(iterPos);
-					claims.clear(iterPos);
-					if (claimed) {
-						this.mapped.set(iterPos);
-						k++;
-					}
-				} finally {
-					iterPos++;
-					this.hashlock.unlock();
-				}
+		this.iterInit();
+		while (iterPos < size) {
+			if (claims.getAndClear(iterPos)) {
+				this.mapped.set(iterPos);
+				k++;
 			}
-		} catch (NullPointerException e) {
-
+			iterPos++;
 		}
 		return k;
 	}
@@ -718,57 +974,54 @@ public class FileByteArrayLongMap implements AbstractShard {
 	public long claimRecords(LargeBloomFilter nbf) throws IOException {
 		this.iterInit();
 		long sz = 0;
+		byte[] key = new byte[KL];
 		while (iterPos < size) {
-			this.hashlock.lock();
-			try {
-				byte[] key = new byte[FREE.length];
-				keys.position(iterPos * FREE.length);
-				keys.get(key);
-				if (!Arrays.equals(key, FREE) && !Arrays.equals(key, REMOVED)) {
-					if (!nbf.mightContain(key)
-							&& !this.claims.get(iterPos)) {
-						keys.position(iterPos * FREE.length);
-						keys.put(REMOVED);
-						this.values.position(iterPos * 8);
-						long val = this.values.getLong();
+			int slot = iterPos;
+			iterPos++;
+			if (!this.readKey(slot, key))
+				continue;
+			if (!nbf.mightContain(key) && !this.claims.get(slot)) {
+				long[] kw = toWords(key);
+				ReentrantLock l = this.lockFor(hash(key));
+				l.lock();
+				try {
+					if (this.readSlot(slot, kw) == S_MATCH
+							&& !this.claims.get(slot)) {
+						long val = this.readValue(slot);
 						ChunkData ck = new ChunkData(val, key);
 						ck.setmDelete(true);
-						this.values.position(iterPos * 8);
-						this.values.putLong(0);
-						this.mapped.clear(iterPos);
+						this.lockRange(slot);
+						try {
+							this.writeKey(slot, null);
+							this.values.putLong(slot * 8, 0);
+						} finally {
+							this.unlockRange(slot);
+						}
+						this.mapped.clear(slot);
+						this.epochs.touched(slot);
 						this.sz.decrementAndGet();
-						
 						sz++;
-					} else {
-						this.mapped.set(iterPos);
 					}
-					this.claims.clear(iterPos);
+				} finally {
+					l.unlock();
 				}
-
-			} finally {
-				iterPos++;
-				this.hashlock.unlock();
+			} else {
+				this.mapped.set(slot);
 			}
+			this.claims.clear(slot);
 		}
 		return sz;
 	}
 
 	/*
 	 * (non-Javadoc)
-	 * 
+	 *
 	 * @see org.opendedup.collections.AbstractShard#sync()
 	 */
 	@Override
 	public void sync() throws SyncFailedException, IOException {
-		keys.force();
-		vRaf.force(true);
-		File f = new File(path + ".vmp");
-		FileOutputStream fout = new FileOutputStream(f);
-		ObjectOutputStream oon = new ObjectOutputStream(fout);
-		oon.writeObject(mapped);
-		oon.flush();
-		oon.close();
-		fout.flush();
-		fout.close();
+		if (this.closed)
+			return;
+		this.writeCheckpoint();
 	}
 }
@@ -0,0 +1,549 @@
+package org.opendedup.collections;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.SyncFailedException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.opendedup.hashing.HashFunctionPool;
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.filestore.ChunkData;
+import org.opendedup.util.LargeBloomFilter;
+import org.opendedup.util.NextPrime;
+
+/**
+ * A hash shard that grows online. Entries live in a {@link ShardTable}, a
+ * {@link FileByteArrayLongMap} unless {@link #newTable(String, int)} is
+ * overridden. When the table passes {@link #LOAD_FACTOR} a table twice the
+ * size is created and all new inserts go to it. The old table is frozen and its
+ * entries are moved to the new table lazily, when they are looked up, and by
+ * a background migration thread. Once the old table is empty it is deleted.
+ *
+ * While an old table is being migrated every change is made holding the
+ * read side of a table lock. Swapping in a new table and deleting the old
+ * one take the write side, so no change can land in a table that is being
+ * retired. When nothing is migrating changes go straight to the current
+ * table without the lock. If the table was swapped while such a change was
+ * made it is made again under the lock, after the key has been migrated.
+ *
+ * The current generation, its size and the generation being migrated from
+ * are kept in a small .gen file next to the tables so an unfinished migration
+ * resumes on the next mount. Generation 0 uses the same file names as a plain
+ * FileByteArrayLongMap so existing hash databases open without conversion.
+ */
+public class GrowableShard implements AbstractShard, Runnable {
+	public static final double LOAD_FACTOR = .75;
+	private static final int LOCK_STRIPES = 64;
+	private String path = null;
+	private int initialSize = 0;
+	private volatile ShardTable current = null;
+	private volatile ShardTable old = null;
+	private long gen = 0;
+	private long oldGen = -1;
+	private final ReentrantLock growLock = new ReentrantLock();
+	private final ReentrantReadWriteLock tableLock = new ReentrantReadWriteLock();
+	private int maxSize = 0;
+	private final ReentrantLock[] migrateLocks = new ReentrantLock[LOCK_STRIPES];
+	private volatile Thread migrator = null;
+	private volatile boolean closed = false;
+	private boolean iterOld = false;
+
+	public GrowableShard(String path, int size, short arraySize)
+			throws IOException {
+		this.path = path;
+		this.initialSize = size;
+		for (int i = 0; i < migrateLocks.length; i++)
+			migrateLocks[i] = new ReentrantLock();
+	}
+
+	/**
+	 * Creates the table for one generation of this shard.
+	 */
+	protected ShardTable newTable(String path, int size) throws IOException {
+		return new FileByteArrayLongMap(path, size,
+				(short) HashFunctionPool.hashLength);
+	}
+
+	private String tablePath(long g) {
+		if (g == 0)
+			return path;
+		else
+			return path + ".g" + g;
+	}
+
+	private void writeGen() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(path + ".gen", "rw");
+		try {
+			raf.seek(0);
+			raf.writeLong(gen);
+			raf.writeInt(current.capacity());
+			raf.writeLong(oldGen);
+			raf.writeInt(old == null ? 0 : old.capacity());
+			raf.getFD().sync();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Size of an existing generation 0 table created before tables could
+	 * grow.
+	 */
+	protected int legacySize() {
+		File kf = new File(path + ".keys");
+		if (kf.exists() && kf.length() > 0)
+			return (int) (kf.length() / HashFunctionPool.hashLength);
+		return initialSize;
+	}
+
+	@Override
+	public long setUp() throws IOException {
+		File gf = new File(path + ".gen");
+		int csz = 0;
+		int osz = 0;
+		if (gf.exists()) {
+			RandomAccessFile raf = new RandomAccessFile(gf, "r");
+			try {
+				gen = raf.readLong();
+				csz = raf.readInt();
+				oldGen = raf.readLong();
+				osz = raf.readInt();
+			} finally {
+				raf.close();
+			}
+		} else {
+			gen = 0;
+			csz = this.legacySize();
+			oldGen = -1;
+		}
+		current = this.newTable(this.tablePath(gen), csz);
+		long bgst = current.setUp();
+		if (oldGen != -1) {
+			old = this.newTable(this.tablePath(oldGen), osz);
+			long obgst = old.setUp();
+			if (obgst > bgst)
+				bgst = obgst;
+			SDFSLogger.getLog().info(
+					"resuming migration of " + old.size() + " entries in "
+							+ this.tablePath(oldGen));
+			this.startMigration();
+		}
+		this.writeGen();
+		return bgst;
+	}
+
+	private boolean needsGrowth(ShardTable m) throws IOException {
+		return m.size() >= (long) (m.capacity() * LOAD_FACTOR)
+				&& m.capacity() < this.maxSize(m);
+	}
+
+	/**
+	 * @return the largest prime a table can hold, so probing still covers
+	 *         every slot of a table clamped to it
+	 */
+	private int maxSize(ShardTable m) throws IOException {
+		if (maxSize == 0) {
+			try {
+				maxSize = NextPrime.getPrevPrimeI(m.maxCapacity());
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+		}
+		return maxSize;
+	}
+
+	/**
+	 * Creates a table twice the size of the current one and starts moving
+	 * entries into it. Waits for a previous migration to finish first, since
+	 * the current table can fill up while it runs.
+	 */
+	private void grow() throws IOException {
+		for (;;) {
+			this.awaitMigration();
+			growLock.lock();
+			try {
+				if (closed || !this.needsGrowth(current))
+					return;
+				if (old != null) {
+					if (migrator != null && migrator.isAlive())
+						continue;
+					throw new IOException("migration of "
+							+ this.tablePath(oldGen)
+							+ " failed, unable to grow " + path);
+				}
+				int nsz = 0;
+				try {
+					nsz = Math.min(NextPrime.getNextPrimeI(
+							(long) current.capacity() * 2),
+							this.maxSize(current));
+				} catch (IOException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new IOException(e);
+				}
+				long ngen = gen + 1;
+				ShardTable nm = this.newTable(this.tablePath(ngen), nsz);
+				nm.setUp();
+				SDFSLogger.getLog().info(
+						"growing hashtable " + path + " from "
+								+ current.capacity() + " to " + nsz
+								+ " entries");
+				tableLock.writeLock().lock();
+				try {
+					oldGen = gen;
+					gen = ngen;
+					old = current;
+					current = nm;
+					this.writeGen();
+				} finally {
+					tableLock.writeLock().unlock();
+				}
+				this.startMigration();
+				return;
+			} finally {
+				growLock.unlock();
+			}
+		}
+	}
+
+	private void startMigration() {
+		migrator = new Thread(this, "hashtable-migrate-" + path);
+		migrator.setDaemon(true);
+		migrator.start();
+	}
+
+	/**
+	 * Moves all remaining entries from the old table and deletes it.
+	 */
+	@Override
+	public void run() {
+		ShardTable om = old;
+		if (om == null)
+			return;
+		byte[] key = new byte[HashFunctionPool.hashLength];
+		int cap = om.capacity();
+		try {
+			for (int i = 0; i < cap; i++) {
+				if (closed)
+					return;
+				if (om.keyAt(i, key))
+					this.migrate(key);
+			}
+			this.finishMigration(om);
+		} catch (Exception e) {
+			SDFSLogger.getLog().error(
+					"unable to migrate hashtable " + this.tablePath(oldGen), e);
+		}
+	}
+
+	private void finishMigration(ShardTable om) throws IOException {
+		growLock.lock();
+		try {
+			if (old != om || closed)
+				return;
+			tableLock.writeLock().lock();
+			try {
+				old = null;
+				oldGen = -1;
+				this.writeGen();
+				om.vanish();
+			} finally {
+				tableLock.writeLock().unlock();
+			}
+			SDFSLogger.getLog().info(
+					"finished growing hashtable " + path + " to "
+							+ current.capacity() + " entries");
+		} finally {
+			growLock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for a running migration to complete.
+	 */
+	private void awaitMigration() throws IOException {
+		Thread th = migrator;
+		if (th != null && old != null) {
+			try {
+				th.join();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Moves <tt>key</tt> from the old table to the current one if it is still
+	 * in the old table. The new entry is written before the old one is
+	 * dropped so concurrent readers always find the key in one of the two.
+	 * The moved entry is claimed, which only keeps it for one more GC run.
+	 */
+	private void migrate(byte[] key) throws IOException {
+		tableLock.readLock().lock();
+		try {
+			ShardTable om = old;
+			if (om == null)
+				return;
+			ReentrantLock l = migrateLocks[(key[8] & 0xff) % LOCK_STRIPES];
+			l.lock();
+			try {
+				long val = om.get(key, false);
+				if (val == -1)
+					return;
+				try {
+					current.put(key, val);
+				} catch (HashtableFullException e) {
+					throw new IOException(e);
+				}
+				om.drop(key);
+			} finally {
+				l.unlock();
+			}
+		} finally {
+			tableLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void iterInit() {
+		this.iterOld = false;
+		current.iterInit();
+		ShardTable om = old;
+		if (om != null)
+			om.iterInit();
+	}
+
+	@Override
+	public byte[] nextKey() throws IOException {
+		if (!iterOld) {
+			byte[] k = current.nextKey();
+			if (k != null)
+				return k;
+			iterOld = true;
+		}
+		ShardTable om = old;
+		if (om != null)
+			return om.nextKey();
+		return null;
+	}
+
+	@Override
+	public long getBigestKey() throws IOException {
+		long b = current.getBigestKey();
+		ShardTable om = old;
+		if (om != null)
+			b = Math.max(b, om.getBigestKey());
+		return b;
+	}
+
+	@Override
+	public boolean containsKey(byte[] key) {
+		ShardTable om = old;
+		ShardTable cm = current;
+		if (cm.containsKey(key))
+			return true;
+		ShardTable o = old;
+		if (o == null) {
+			if (om == null && cm == current)
+				return false;
+			// a migration finished after the lookup and may have moved the
+			// key into the current table
+			return current.containsKey(key);
+		}
+		om = o;
+		if (om.get(key, false) != -1) {
+			try {
+				this.migrate(key);
+			} catch (IOException e) {
+				SDFSLogger.getLog().error("unable to migrate key", e);
+			}
+		}
+		return current.containsKey(key);
+	}
+
+	@Override
+	public boolean isClaimed(byte[] key) throws KeyNotFoundException,
+			IOException {
+		try {
+			return current.isClaimed(key);
+		} catch (KeyNotFoundException e) {
+			ShardTable om = old;
+			if (om == null)
+				throw e;
+			try {
+				return om.isClaimed(key);
+			} catch (KeyNotFoundException e1) {
+				return current.isClaimed(key);
+			}
+		}
+	}
+
+	@Override
+	public boolean update(byte[] key, long value) throws IOException {
+		boolean done = false;
+		ShardTable cm = current;
+		if (old == null) {
+			done = cm.update(key, value);
+			if (cm == current)
+				return done;
+		}
+		tableLock.readLock().lock();
+		try {
+			this.migrate(key);
+			return current.update(key, value) || done;
+		} finally {
+			tableLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(byte[] key) throws IOException {
+		boolean done = false;
+		ShardTable cm = current;
+		if (old == null) {
+			done = cm.remove(key);
+			if (cm == current)
+				return done;
+		}
+		tableLock.readLock().lock();
+		try {
+			this.migrate(key);
+			return current.remove(key) || done;
+		} finally {
+			tableLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean put(ChunkData cd) throws HashtableFullException,
+			IOException {
+		ShardTable cm = current;
+		if (this.needsGrowth(cm)) {
+			this.grow();
+			cm = current;
+		}
+		boolean done = false;
+		if (old == null) {
+			done = cm.put(cd);
+			if (cm == current)
+				return done;
+		}
+		tableLock.readLock().lock();
+		try {
+			this.migrate(cd.getHash());
+			return current.put(cd) || done;
+		} finally {
+			tableLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean put(byte[] key, long val) throws HashtableFullException,
+			IOException {
+		ShardTable cm = current;
+		if (this.needsGrowth(cm)) {
+			this.grow();
+			cm = current;
+		}
+		boolean done = false;
+		if (old == null) {
+			done = cm.put(key, val);
+			if (cm == current)
+				return done;
+		}
+		tableLock.readLock().lock();
+		try {
+			this.migrate(key);
+			return current.put(key, val) || done;
+		} finally {
+			tableLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int getEntries() {
+		return this.size();
+	}
+
+	@Override
+	public long get(byte[] key) {
+		return this.get(key, true);
+	}
+
+	@Override
+	public long get(byte[] key, boolean claim) {
+		ShardTable om = old;
+		ShardTable cm = current;
+		long val = cm.get(key, claim);
+		if (val != -1)
+			return val;
+		ShardTable o = old;
+		if (o == null) {
+			if (om == null && cm == current)
+				return -1;
+			// a migration finished after the lookup and may have moved the
+			// key into the current table
+			return current.get(key, claim);
+		}
+		om = o;
+		if (om.get(key, false) != -1) {
+			try {
+				this.migrate(key);
+			} catch (IOException e) {
+				SDFSLogger.getLog().error("unable to migrate key", e);
+			}
+		}
+		return current.get(key, claim);
+	}
+
+	@Override
+	public int size() {
+		ShardTable om = old;
+		return current.size() + (om == null ? 0 : om.size());
+	}
+
+	/**
+	 * The number of slots currently allocated to this shard.
+	 */
+	public long capacity() {
+		ShardTable om = old;
+		return current.capacity() + (om == null ? 0 : om.capacity());
+	}
+
+	@Override
+	public void close() {
+		growLock.lock();
+		try {
+			this.closed = true;
+			current.close();
+			ShardTable om = old;
+			if (om != null)
+				om.close();
+		} finally {
+			growLock.unlock();
+		}
+	}
+
+	@Override
+	public long claimRecords() throws IOException {
+		this.awaitMigration();
+		return current.claimRecords();
+	}
+
+	@Override
+	public long claimRecords(LargeBloomFilter bf) throws IOException {
+		this.awaitMigration();
+		return current.claimRecords(bf);
+	}
+
+	@Override
+	public void sync() throws SyncFailedException, IOException {
+		current.sync();
+		ShardTable om = old;
+		if (om != null)
+			om.sync();
+	}
+
+}
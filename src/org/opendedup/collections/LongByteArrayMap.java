@@ -67,6 +67,28 @@ public class LongByteArrayMap implements DataMapInterface {
 
 	}
 
+	/**
+	 * @return the length of a record in a map of <tt>version</tt>
+	 */
+	static int recordLength(byte version) {
+		if (version == 0)
+			return _arrayLength;
+		if (version == 1)
+			return _v1arrayLength;
+		return _v2arrayLength;
+	}
+
+	/**
+	 * Opens the map at <tt>filePath</tt> in the format it was written in. New
+	 * maps are copy on write if {@link Main#cowFileMaps} is set.
+	 */
+	public static DataMapInterface open(String filePath) throws IOException {
+		File f = new File(filePath);
+		if (CowLongByteArrayMap.isCow(f) || (!f.exists() && Main.cowFileMaps))
+			return new CowLongByteArrayMap(filePath);
+		return new LongByteArrayMap(filePath);
+	}
+
 	public byte getVersion() {
 		return this.version;
 	}
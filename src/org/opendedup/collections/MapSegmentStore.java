@@ -0,0 +1,239 @@
+package org.opendedup.collections;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.filestore.PageAllocator;
+
+/**
+ * The segments copy on write file maps are built from, shared by all maps of
+ * the volume and kept as fixed size pages of a single file.
+ *
+ * A segment is either a leaf of {@link #LEAF_RECORDS} map records or an
+ * index of page numbers of leaves. Every segment starts with the number of
+ * maps and indexes that refer to it. A segment referred to more than once is
+ * never written, a map that needs to change it writes a copy instead, see
+ * {@link #own(long)}. Page 0 holds the header of the file so 0 can stand for
+ * no segment.
+ */
+public class MapSegmentStore {
+	static final byte LEAF = 1;
+	static final byte INDEX = 2;
+	static final int LEAF_RECORDS = 256;
+	private static final int HDR = 16;
+	private static final short magicnumber = 6444;
+	private static MapSegmentStore store = null;
+
+	private final FileChannel ch;
+	private final PageAllocator alloc;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final byte[] zeros;
+	final int segmentSize;
+	final int fanOut;
+
+	private MapSegmentStore(File f) throws IOException {
+		boolean exists = f.exists();
+		if (!exists)
+			f.getParentFile().mkdirs();
+		ch = new RandomAccessFile(f, "rw").getChannel();
+		ByteBuffer hdr = ByteBuffer.allocate(6);
+		if (exists) {
+			ch.read(hdr, 0);
+			hdr.flip();
+			if (hdr.getShort() != magicnumber)
+				throw new IOException(f.getPath()
+						+ " is not a map segment file");
+			segmentSize = hdr.getInt();
+		} else {
+			int max = 0;
+			for (byte v = 0; v <= 2; v++)
+				max = Math.max(max, LongByteArrayMap.recordLength(v));
+			segmentSize = (HDR + LEAF_RECORDS * max + 4095) & ~4095;
+			hdr.putShort(magicnumber);
+			hdr.putInt(segmentSize);
+			hdr.flip();
+			ch.write(hdr, 0);
+			ch.force(true);
+		}
+		fanOut = (segmentSize - HDR) / 8;
+		zeros = new byte[segmentSize];
+		long end = Math.max(1, (ch.size() + segmentSize - 1) / segmentSize);
+		alloc = new PageAllocator(new File(f.getPath() + ".free"), null, end);
+	}
+
+	/**
+	 * @return the segment store of the volume, opened on first use
+	 */
+	static synchronized MapSegmentStore get() throws IOException {
+		if (store == null) {
+			store = new MapSegmentStore(new File(Main.dedupDBStore
+					+ File.separator + "segments" + File.separator
+					+ "segments.db"));
+			SDFSLogger.getLog().info(
+					"opened map segments with " + store.alloc.freePages()
+							+ " free of " + store.alloc.end());
+		}
+		return store;
+	}
+
+	public static synchronized void close() {
+		if (store == null)
+			return;
+		try {
+			store.alloc.close();
+			store.ch.force(true);
+			store.ch.close();
+		} catch (IOException e) {
+			SDFSLogger.getLog().warn("unable to close map segments", e);
+		}
+		store = null;
+	}
+
+	/**
+	 * @return a new empty segment referred to once
+	 */
+	long create(byte type) throws IOException {
+		long id = alloc.allocateRun(1);
+		// freed pages are reused as they are
+		this.write(id, 0, ByteBuffer.wrap(zeros));
+		ByteBuffer b = ByteBuffer.allocate(5);
+		b.putInt(1);
+		b.put(type);
+		b.flip();
+		this.write(id, 0, b);
+		return id;
+	}
+
+	/**
+	 * @return <tt>id</tt> if nothing else refers to it, otherwise a copy
+	 *         referred to once. The caller points to the copy in place of
+	 *         <tt>id</tt> and then releases <tt>id</tt>.
+	 */
+	long own(long id) throws IOException {
+		lock.lock();
+		try {
+			if (this.refs(id) <= 1)
+				return id;
+			ByteBuffer b = ByteBuffer.allocate(segmentSize);
+			this.read(id, 0, b);
+			long nid = alloc.allocateRun(1);
+			b.putInt(0, 1);
+			if (b.get(4) == INDEX) {
+				for (int i = 0; i < fanOut; i++) {
+					long child = b.getLong(HDR + i * 8);
+					if (child != 0)
+						this.setRefs(child, this.refs(child) + 1);
+				}
+			}
+			b.clear();
+			this.write(nid, 0, b);
+			return nid;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void retain(long id) throws IOException {
+		lock.lock();
+		try {
+			this.setRefs(id, this.refs(id) + 1);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drops a reference to <tt>id</tt> and frees it, and the leaves it
+	 * indexes, once nothing refers to it.
+	 */
+	void release(long id) throws IOException {
+		lock.lock();
+		try {
+			int refs = this.refs(id) - 1;
+			if (refs > 0) {
+				this.setRefs(id, refs);
+				return;
+			}
+			if (refs < 0)
+				SDFSLogger.getLog().warn(
+						"map segment " + id + " released more than retained");
+			ByteBuffer b = ByteBuffer.allocate(segmentSize);
+			this.read(id, 0, b);
+			if (b.get(4) == INDEX) {
+				for (int i = 0; i < fanOut; i++) {
+					long child = b.getLong(HDR + i * 8);
+					if (child != 0)
+						this.release(child);
+				}
+			}
+			this.setRefs(id, 0);
+			alloc.free(id);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long getEntry(long index, long slot) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(8);
+		this.read(index, HDR + (int) slot * 8, b);
+		return b.getLong(0);
+	}
+
+	void setEntry(long index, long slot, long id) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(8);
+		b.putLong(0, id);
+		this.write(index, HDR + (int) slot * 8, b);
+	}
+
+	void readRecord(long leaf, int slot, int len, ByteBuffer b)
+			throws IOException {
+		this.read(leaf, HDR + slot * len, b);
+	}
+
+	void writeRecord(long leaf, int slot, int len, ByteBuffer b)
+			throws IOException {
+		this.write(leaf, HDR + slot * len, b);
+	}
+
+	void sync() throws IOException {
+		alloc.sync();
+		ch.force(false);
+	}
+
+	private int refs(long id) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(4);
+		this.read(id, 0, b);
+		return b.getInt(0);
+	}
+
+	private void setRefs(long id, int refs) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(4);
+		b.putInt(0, refs);
+		this.write(id, 0, b);
+	}
+
+	private void read(long id, int off, ByteBuffer b) throws IOException {
+		long pos = id * segmentSize + off;
+		while (b.hasRemaining()) {
+			if (ch.read(b, pos + b.position()) < 0)
+				break;
+		}
+		// past the end of the file
+		while (b.hasRemaining())
+			b.put((byte) 0);
+		b.flip();
+	}
+
+	private void write(long id, int off, ByteBuffer b) throws IOException {
+		long pos = id * segmentSize + off;
+		while (b.hasRemaining())
+			ch.write(b, pos + b.position());
+	}
+
+}
@@ -0,0 +1,109 @@
+package org.opendedup.collections;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.util.AtomicBitSet;
+
+/**
+ * Reads and writes the .mck occupancy checkpoint of a hash shard. The file
+ * holds a magic number, the biggest value in the shard, the epoch of the
+ * {@link ShardEpochs} marks the checkpoint covers, the number of words in the
+ * bit set and the words themselves. Checkpoints written before epochs were
+ * tracked have no epoch and are read with an epoch of -1.
+ */
+class ShardCheckpoint {
+	private static final long CK_MAGIC_V1 = 0x5344465348434b31L;
+	private static final long CK_MAGIC = 0x5344465348434b32L;
+	private static final int CK_HEADER_V1 = 20;
+	private static final int CK_HEADER = 28;
+	final long bgst;
+	final long epoch;
+
+	private ShardCheckpoint(long bgst, long epoch) {
+		this.bgst = bgst;
+		this.epoch = epoch;
+	}
+
+	/**
+	 * Writes the checkpoint to a temporary file and renames it into place.
+	 * Callers must have forced the shard data covered by <tt>words</tt> to
+	 * disk first.
+	 */
+	static void write(String path, long[] words, long bgst, long epoch)
+			throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(CK_HEADER + (words.length * 8));
+		buf.putLong(CK_MAGIC);
+		buf.putLong(bgst);
+		buf.putLong(epoch);
+		buf.putInt(words.length);
+		for (long w : words)
+			buf.putLong(w);
+		buf.flip();
+		Path tmp = Paths.get(path + ".mck.tmp");
+		FileChannel fc = FileChannel.open(tmp, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		try {
+			while (buf.hasRemaining())
+				fc.write(buf);
+			fc.force(true);
+		} finally {
+			fc.close();
+		}
+		Files.move(tmp, Paths.get(path + ".mck"),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Loads the checkpointed bit set into <tt>mapped</tt>.
+	 *
+	 * @return the checkpoint or null if there is no usable checkpoint
+	 */
+	static ShardCheckpoint read(String path, AtomicBitSet mapped) {
+		File f = new File(path + ".mck");
+		if (!f.exists())
+			return null;
+		try {
+			byte[] b = Files.readAllBytes(f.toPath());
+			ByteBuffer buf = ByteBuffer.wrap(b);
+			if (b.length < CK_HEADER_V1)
+				return null;
+			long magic = buf.getLong();
+			long epoch = -1;
+			if (magic == CK_MAGIC) {
+				if (b.length < CK_HEADER)
+					return null;
+			} else if (magic != CK_MAGIC_V1)
+				return null;
+			long bgst = buf.getLong();
+			if (magic == CK_MAGIC)
+				epoch = buf.getLong();
+			int nw = buf.getInt();
+			if (nw != mapped.getNumWords() || buf.remaining() != nw * 8)
+				return null;
+			for (int i = 0; i < nw; i++)
+				mapped.setWord(i, buf.getLong());
+			return new ShardCheckpoint(bgst, epoch);
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn("unable to read checkpoint for " + path,
+					e);
+			return null;
+		}
+	}
+
+	static void delete(String path) {
+		new File(path + ".mck").delete();
+		new File(path + ".mck.tmp").delete();
+		ShardEpochs.delete(path);
+	}
+
+}
@@ -0,0 +1,129 @@
+package org.opendedup.collections;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Tracks which ranges of slots of a hash shard changed since its last
+ * checkpoint. The .mce file is memory mapped and holds, for every range of
+ * {@link #RANGE} slots, the checkpoint epoch in which the range was last
+ * changed. A checkpoint covers every change made in an epoch up to and
+ * including the one it records, so after a crash only the ranges marked with
+ * a later epoch have to be read back from the key files.
+ */
+class ShardEpochs {
+	private static final int SHIFT = 12;
+	static final int RANGE = 1 << SHIFT;
+	private final int ranges;
+	private final boolean existed;
+	private FileChannel fc = null;
+	private MappedByteBuffer buf = null;
+	private AtomicIntegerArray marks = null;
+	private volatile int epoch = 1;
+
+	ShardEpochs(String path, int slots) throws IOException {
+		this.ranges = (int) (((long) slots + RANGE - 1) >>> SHIFT);
+		File f = new File(path + ".mce");
+		this.existed = f.exists() && f.length() == (long) ranges * 4;
+		fc = FileChannel.open(Paths.get(path + ".mce"),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.READ);
+		if (!existed)
+			fc.truncate(0);
+		buf = fc.map(MapMode.READ_WRITE, 0, (long) ranges * 4);
+		marks = new AtomicIntegerArray(ranges);
+		int max = 0;
+		for (int i = 0; i < ranges; i++) {
+			int m = buf.getInt(i * 4);
+			marks.set(i, m);
+			if (m > max)
+				max = m;
+		}
+		this.epoch = max + 1;
+	}
+
+	/**
+	 * @return false if the marks file was missing or had the wrong size, in
+	 *         which case the marks cannot be used to limit a rescan
+	 */
+	boolean existed() {
+		return this.existed;
+	}
+
+	int ranges() {
+		return this.ranges;
+	}
+
+	/**
+	 * @return true if range <tt>r</tt> was changed after the checkpoint of
+	 *         epoch <tt>covered</tt> was taken
+	 */
+	boolean changedAfter(int r, long covered) {
+		return marks.get(r) > covered;
+	}
+
+	/**
+	 * Makes sure the next epoch is later than the one recorded in the last
+	 * checkpoint.
+	 */
+	void resume(long covered) {
+		if (covered >= this.epoch)
+			this.epoch = (int) covered + 1;
+	}
+
+	/**
+	 * Marks the range holding <tt>slot</tt> as changed in the current epoch.
+	 * Must be called after the slot and its bit in the occupancy set were
+	 * updated so a checkpoint that misses the change also misses the mark.
+	 */
+	void touched(int slot) {
+		int r = slot >>> SHIFT;
+		int e = this.epoch;
+		if (marks.get(r) >= e)
+			return;
+		synchronized (this) {
+			if (marks.get(r) < e) {
+				marks.set(r, e);
+				buf.putInt(r * 4, e);
+			}
+		}
+	}
+
+	/**
+	 * Starts a new epoch. Changes made from now on are marked with the new
+	 * epoch, so a checkpoint snapshot taken after this call covers every
+	 * range marked with the returned one.
+	 *
+	 * @return the epoch the following checkpoint covers
+	 */
+	int advance() {
+		int covered = this.epoch;
+		this.epoch = covered + 1;
+		return covered;
+	}
+
+	synchronized void force() {
+		buf.force();
+	}
+
+	synchronized void close() {
+		try {
+			buf.force();
+			fc.force(true);
+			fc.close();
+		} catch (Exception e) {
+
+		}
+	}
+
+	static void delete(String path) {
+		new File(path + ".mce").delete();
+	}
+
+}
@@ -0,0 +1,39 @@
+package org.opendedup.collections;
+
+/**
+ * A fixed size hash table that can be used as a generation of a
+ * {@link GrowableShard}.
+ */
+public interface ShardTable extends AbstractShard {
+
+	/**
+	 * The number of slots in this table.
+	 */
+	public abstract int capacity();
+
+	/**
+	 * The largest number of slots a table of this type can hold.
+	 */
+	public abstract int maxCapacity();
+
+	/**
+	 * Copies the key stored in <tt>slot</tt> into <tt>key</tt>.
+	 * 
+	 * @return false if the slot holds no live key
+	 */
+	public abstract boolean keyAt(int slot, byte[] key);
+
+	/**
+	 * Removes a key from this table without deleting the chunk it points to.
+	 * Used when an entry has been moved to another table.
+	 * 
+	 * @return true if the key was found and removed
+	 */
+	public abstract boolean drop(byte[] key);
+
+	/**
+	 * Closes this table and deletes its files.
+	 */
+	public abstract void vanish();
+
+}
@@ -0,0 +1,489 @@
+package org.opendedup.collections.threads;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+
+/**
+ * Makes chunk data, the hash table and file maps durable together in rounds
+ * instead of every component syncing on its own.
+ *
+ * Every chunk added to, moved in or removed from the hash table is recorded
+ * as an intent of its hash and location. A round syncs the chunk stores
+ * first, then appends the intents recorded before the round started to the
+ * intent journal, then syncs the hash table and finally the file maps that
+ * were marked dirty for the round. A hash is therefore never durable before
+ * its chunk and a file map never before the hashes it refers to.
+ *
+ * The hash table is only synced every {@link Main#hashDBCheckpointInterval}
+ * ms, which empties the journal. Entries added in between are recovered
+ * from the journal when the hash table is opened after a crash.
+ *
+ * Rounds run every {@link Main#commitInterval} ms, or
+ * {@link Main#commitDelay} ms after a caller asks for one with
+ * {@link #commit()}, so all callers that sync at about the same time share
+ * the fsyncs of a single round.
+ *
+ * A failure to sync the chunk stores, the journal or the hash table fails
+ * the round for everyone waiting on it. A file map that fails to sync only
+ * fails the callers that marked it dirty with {@link #commit(Syncable)} and
+ * is kept dirty for the next round.
+ */
+public class GroupCommit implements Runnable {
+	public static final int CHUNKS = 0;
+	public static final int HASHES = 1;
+
+	/**
+	 * Something a round makes durable.
+	 */
+	public interface Syncable {
+		public void sync() throws IOException;
+	}
+
+	/**
+	 * Applies the intents found in the journal to the hash table. A location
+	 * of -1 is a removal.
+	 */
+	public interface Replayer {
+		public void replay(byte[] hash, long pos) throws IOException;
+	}
+
+	private static final CopyOnWriteArrayList<Syncable> chunks = new CopyOnWriteArrayList<Syncable>();
+	private static final CopyOnWriteArrayList<Syncable> hashes = new CopyOnWriteArrayList<Syncable>();
+	private static final ConcurrentLinkedQueue<Intent> intents = new ConcurrentLinkedQueue<Intent>();
+	private static final ReentrantLock lock = new ReentrantLock();
+	private static final Condition wake = lock.newCondition();
+	private static LinkedHashSet<Syncable> dirty = new LinkedHashSet<Syncable>();
+	private static Round next = new Round();
+	private static long requested = -1;
+	private static GroupCommit committer = null;
+
+	private final FileChannel journal;
+	private final int hashLength;
+	private final Thread th;
+	private volatile boolean closed = false;
+	private long lastCheckpoint = System.currentTimeMillis();
+
+	private GroupCommit(FileChannel journal, int hashLength) {
+		this.journal = journal;
+		this.hashLength = hashLength;
+		this.th = new Thread(this, "group-commit");
+		this.th.setDaemon(true);
+	}
+
+	/**
+	 * Replays the journal into the hash table <tt>db</tt>, syncs it and
+	 * starts committing.
+	 */
+	public static void open(File journalFile, int hashLength, Replayer r,
+			Syncable db) throws IOException {
+		lock.lock();
+		try {
+			if (committer != null)
+				throw new IOException("group commit is already running");
+			if (journalFile.exists() && journalFile.length() > 0) {
+				ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(journalFile
+						.toPath()));
+				long n = 0;
+				while (b.remaining() >= hashLength + 8) {
+					byte[] hash = new byte[hashLength];
+					b.get(hash);
+					r.replay(hash, b.getLong());
+					n++;
+				}
+				SDFSLogger.getLog().info(
+						"replayed " + n + " hash table updates from "
+								+ journalFile.getPath());
+			}
+			db.sync();
+			@SuppressWarnings("resource")
+			FileChannel ch = new RandomAccessFile(journalFile, "rw")
+					.getChannel();
+			ch.truncate(0);
+			ch.force(true);
+			hashes.add(db);
+			committer = new GroupCommit(ch, hashLength);
+			committer.th.start();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Runs a last round, checkpointing the hash table, and stops committing.
+	 */
+	public static void close() {
+		GroupCommit c;
+		lock.lock();
+		try {
+			c = committer;
+			committer = null;
+			if (c == null)
+				return;
+			c.closed = true;
+			wake.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			c.th.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			c.journal.close();
+		} catch (IOException e) {
+		}
+	}
+
+	public static boolean isRunning() {
+		return committer != null;
+	}
+
+	public static void register(int tier, Syncable s) {
+		(tier == CHUNKS ? chunks : hashes).add(s);
+	}
+
+	/**
+	 * Removes <tt>s</tt> from the tiers and from the next round.
+	 */
+	public static void unregister(Syncable s) {
+		chunks.remove(s);
+		hashes.remove(s);
+		lock.lock();
+		try {
+			dirty.remove(s);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Records that <tt>hash</tt> was stored at <tt>pos</tt>, or removed if
+	 * <tt>pos</tt> is -1. The chunk data has to be written already.
+	 */
+	public static void intent(byte[] hash, long pos) {
+		if (committer != null)
+			intents.add(new Intent(hash, pos));
+	}
+
+	/**
+	 * Adds <tt>s</tt> to the next round, after the chunks and hashes it
+	 * refers to.
+	 */
+	public static void dirty(Syncable s) {
+		lock.lock();
+		try {
+			dirty.add(s);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Asks for a round to start soon.
+	 *
+	 * @return the round, which completes once everything written and marked
+	 *         dirty before the call is durable
+	 */
+	public static Future<Long> commit() {
+		lock.lock();
+		try {
+			if (committer == null) {
+				Round r = new Round();
+				r.complete(null);
+				return r;
+			}
+			return request();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds <tt>s</tt> to the next round and asks for it to start soon.
+	 *
+	 * @return the round, which fails if the round fails as a whole or if
+	 *         <tt>s</tt> could not be synced, but not if another file failed
+	 */
+	public static Future<Long> commit(Syncable s) {
+		lock.lock();
+		try {
+			if (committer == null) {
+				Round r = new Round();
+				try {
+					s.sync();
+					r.complete(null);
+				} catch (IOException e) {
+					r.complete(e);
+				}
+				return r;
+			}
+			dirty.add(s);
+			return new Waiter(request(), s);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static Round request() {
+		if (requested < 0) {
+			requested = System.currentTimeMillis();
+			wake.signalAll();
+		}
+		return next;
+	}
+
+	@Override
+	public void run() {
+		long last = System.currentTimeMillis();
+		long rounds = 0;
+		boolean stop = false;
+		while (!stop) {
+			Round r;
+			LinkedHashSet<Syncable> files;
+			lock.lock();
+			try {
+				for (;;) {
+					if (this.closed) {
+						stop = true;
+						break;
+					}
+					long due = last + Main.commitInterval;
+					if (requested >= 0)
+						due = Math.min(due, requested + Main.commitDelay);
+					long wait = due - System.currentTimeMillis();
+					if (wait <= 0)
+						break;
+					try {
+						wake.await(wait, TimeUnit.MILLISECONDS);
+					} catch (InterruptedException e) {
+						stop = true;
+						break;
+					}
+				}
+				r = next;
+				r.id = ++rounds;
+				next = new Round();
+				requested = -1;
+				files = dirty;
+				dirty = new LinkedHashSet<Syncable>();
+			} finally {
+				lock.unlock();
+			}
+			last = System.currentTimeMillis();
+			Exception err = null;
+			try {
+				r.failed = this.round(files, stop);
+			} catch (Exception e) {
+				SDFSLogger.getLog().error("group commit failed", e);
+				err = e;
+				r.failed = new HashMap<Syncable, IOException>();
+				this.redirty(files);
+			}
+			r.complete(err);
+		}
+	}
+
+	/**
+	 * Runs a round.
+	 *
+	 * @return the file maps that could not be synced and why
+	 */
+	private HashMap<Syncable, IOException> round(
+			LinkedHashSet<Syncable> files, boolean checkpoint)
+			throws IOException {
+		ArrayList<Intent> batch = new ArrayList<Intent>();
+		Intent in;
+		while ((in = intents.poll()) != null)
+			batch.add(in);
+		try {
+			for (Syncable s : chunks)
+				s.sync();
+			if (batch.size() > 0) {
+				ByteBuffer b = ByteBuffer.allocate(batch.size()
+						* (hashLength + 8));
+				for (Intent i : batch) {
+					b.put(i.hash);
+					b.putLong(i.pos);
+				}
+				b.flip();
+				while (b.hasRemaining())
+					journal.write(b);
+				journal.force(false);
+			}
+		} catch (IOException e) {
+			// the chunks are not known to be durable, keep them for the next
+			// round
+			intents.addAll(batch);
+			throw e;
+		}
+		long now = System.currentTimeMillis();
+		if (checkpoint
+				|| now - lastCheckpoint >= Main.hashDBCheckpointInterval) {
+			for (Syncable s : hashes)
+				s.sync();
+			journal.truncate(0);
+			journal.position(0);
+			lastCheckpoint = now;
+		}
+		HashMap<Syncable, IOException> failed = new HashMap<Syncable, IOException>();
+		for (Syncable s : files) {
+			try {
+				s.sync();
+			} catch (IOException e) {
+				SDFSLogger.getLog().warn("unable to sync file map", e);
+				failed.put(s, e);
+			}
+		}
+		this.redirty(failed.keySet());
+		return failed;
+	}
+
+	/**
+	 * Keeps <tt>files</tt> dirty for the next round, unless they were
+	 * unregistered in the meantime.
+	 */
+	private void redirty(Collection<Syncable> files) {
+		if (files.isEmpty())
+			return;
+		lock.lock();
+		try {
+			LinkedHashSet<Syncable> d = new LinkedHashSet<Syncable>(files);
+			d.addAll(dirty);
+			dirty = d;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static final class Intent {
+		final byte[] hash;
+		final long pos;
+
+		Intent(byte[] hash, long pos) {
+			this.hash = hash;
+			this.pos = pos;
+		}
+	}
+
+	/**
+	 * The completion of a round, shared by every caller waiting for it.
+	 */
+	private static final class Round implements Future<Long> {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile Exception error;
+		private volatile long id = 0;
+		// set before the round completes
+		private volatile HashMap<Syncable, IOException> failed;
+
+		void complete(Exception e) {
+			this.error = e;
+			done.countDown();
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		@Override
+		public Long get() throws InterruptedException, ExecutionException {
+			done.await();
+			return this.result();
+		}
+
+		@Override
+		public Long get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException,
+				TimeoutException {
+			if (!done.await(timeout, unit))
+				throw new TimeoutException();
+			return this.result();
+		}
+
+		private Long result() throws ExecutionException {
+			if (error != null)
+				throw new ExecutionException(error);
+			return id;
+		}
+	}
+
+	/**
+	 * A round as seen by the caller that marked <tt>s</tt> dirty.
+	 */
+	private static final class Waiter implements Future<Long> {
+		private final Round r;
+		private final Syncable s;
+
+		Waiter(Round r, Syncable s) {
+			this.r = r;
+			this.s = s;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return r.isDone();
+		}
+
+		@Override
+		public Long get() throws InterruptedException, ExecutionException {
+			return this.result(r.get());
+		}
+
+		@Override
+		public Long get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException,
+				TimeoutException {
+			return this.result(r.get(timeout, unit));
+		}
+
+		private Long result(Long id) throws ExecutionException {
+			HashMap<Syncable, IOException> failed = r.failed;
+			IOException e = failed == null ? null : failed.get(s);
+			if (e != null)
+				throw new ExecutionException(e);
+			return id;
+		}
+	}
+
+}
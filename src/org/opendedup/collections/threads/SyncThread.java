@@ -5,9 +5,15 @@ import org.opendedup.collections.AbstractMap;
 public class SyncThread implements Runnable {
 	AbstractMap map;
 	Thread th = null;
+	int interval = 2000;
 
 	public SyncThread(AbstractMap m) {
+		this(m, 2000);
+	}
+
+	public SyncThread(AbstractMap m, int interval) {
 		map = m;
+		this.interval = interval;
 		th = new Thread(this);
 		th.start();
 	}
@@ -16,7 +22,7 @@ public class SyncThread implements Runnable {
 	public void run() {
 		while (!map.isClosed()) {
 			try {
-				Thread.sleep(2000);
+				Thread.sleep(interval);
 			} catch (InterruptedException e) {
 				break;
 			}
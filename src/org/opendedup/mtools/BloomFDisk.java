@@ -13,9 +13,11 @@ import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.opendedup.collections.BloomFileByteArrayLongMap.KeyBlob;
+import org.opendedup.collections.DataMapInterface;
 import org.opendedup.collections.LongByteArrayMap;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.filestore.IOThrottle;
 import org.opendedup.sdfs.io.HashLocPair;
 import org.opendedup.sdfs.io.SparseDataChunk;
 import org.opendedup.sdfs.io.WritableCacheBuffer.BlockPolicy;
@@ -130,9 +132,9 @@ public class BloomFDisk {
 
 	ReentrantLock l = new ReentrantLock();
 	private void checkDedupFile(File mapFile) {
-		LongByteArrayMap mp = null;
+		DataMapInterface mp = null;
 		try {
-			mp = new LongByteArrayMap(mapFile.getPath());
+			mp = LongByteArrayMap.open(mapFile.getPath());
 			long prevpos = 0;
 			byte[] val = new byte[0];
 			mp.iterInit();
@@ -146,7 +148,8 @@ public class BloomFDisk {
 					SparseDataChunk ck = new SparseDataChunk(val,mp.getVersion());
 						List<HashLocPair> al = ck.getFingers();
 						for (HashLocPair p : al) {
-							bf.put(p.hash);
+							if (!p.isHole())
+								bf.put(p.hash);
 						}
 				}
 			}
@@ -187,7 +190,8 @@ public class BloomFDisk {
 		}
 		@Override
 		public void run() {
-				fd.checkDedupFile(f);
+			IOThrottle.setBackground(true);
+			fd.checkDedupFile(f);
 		}
 	}
 	
@@ -125,7 +125,10 @@ public class ClusterRedundancyCheck {
 			DataMapInterface mp) throws IOException, HashtableFullException {
 		ArrayList<HashLocPair> al = new ArrayList<HashLocPair>();
 		for(SparseDataChunk ck : chunks) {
-			al.addAll(ck.getFingers());
+			for (HashLocPair p : ck.getFingers()) {
+				if (!p.isHole())
+					al.add(p);
+			}
 		}
 		List<HashLocPair> pchunks = HCServiceProxy.batchHashExists(al);
 		int corruptBlocks = 0;
@@ -184,7 +187,7 @@ public class ClusterRedundancyCheck {
 	private void checkDedupFile(File mapFile) throws IOException {
 		if (SDFSLogger.isDebug())
 			SDFSLogger.getLog().debug("Cluster check " + mapFile.getPath());
-		LongByteArrayMap mp = new LongByteArrayMap(mapFile.getPath());
+		DataMapInterface mp = LongByteArrayMap.open(mapFile.getPath());
 		long prevpos = 0;
 		try {
 			ArrayList<SparseDataChunk> chunks = new ArrayList<SparseDataChunk>(
@@ -201,6 +204,8 @@ public class ClusterRedundancyCheck {
 					ck.setFpos((prevpos / mp.getFree().length)
 							* Main.CHUNK_LENGTH);
 					HashLocPair p = ck.getFingers().get(0);
+					if (p.isHole())
+						continue;
 						if (Main.chunkStoreLocal) {
 							byte[] exists = HCServiceProxy.hashExists(
 									p.hash, true);
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.opendedup.collections.DataMapInterface;
 import org.opendedup.collections.LongByteArrayMap;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
@@ -52,7 +53,7 @@ public class MetaFileImport {
 			File mapFile = new File(Main.dedupDBStore + File.separator
 					+ dfGuid.substring(0, 2) + File.separator + dfGuid
 					+ File.separator + dfGuid + ".map");
-			LongByteArrayMap mp = new LongByteArrayMap(mapFile.getPath());
+			DataMapInterface mp = LongByteArrayMap.open(mapFile.getPath());
 			try {
 				byte[] val = new byte[0];
 				mp.iterInit();
@@ -64,6 +65,8 @@ public class MetaFileImport {
 						SparseDataChunk ck = new SparseDataChunk(val,
 								mp.getVersion());
 						for (HashLocPair p : ck.getFingers()) {
+							if (p.isHole())
+								continue;
 							byte[] exists = HCServiceProxy.hashExists(p.hash,
 									false);
 							if (exists[0] == -1) {
@@ -63,7 +63,7 @@ public class RestoreArchive implements Runnable {
 	private void initiateArchive(File mapFile) throws IOException {
 		DataMapInterface mp = null;
 		try {
-			mp = new LongByteArrayMap(mapFile.getPath());
+			mp = LongByteArrayMap.open(mapFile.getPath());
 			byte[] val = new byte[0];
 			mp.iterInit();
 			while (val != null) {
@@ -73,7 +73,8 @@ public class RestoreArchive implements Runnable {
 							mp.getVersion());
 					List<HashLocPair> al = ck.getFingers();
 					for (HashLocPair p : al) {
-						
+						if (p.isHole())
+							continue;
 						String req = HCServiceProxy.restoreBlock(p.hash);
 						if (req != null && !this.restoreRequests.contains(req)) {
 							this.restoreRequests.add(req);
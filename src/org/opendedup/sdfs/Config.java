@@ -15,9 +15,11 @@ import javax.xml.transform.stream.StreamResult;
 import org.opendedup.hashing.HashFunctionPool;
 import org.opendedup.hashing.VariableHashEngine;
 import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.filestore.ChunkCompressor;
 import org.opendedup.sdfs.io.Volume;
 import org.opendedup.sdfs.servers.HCServiceProxy;
 import org.opendedup.util.StorageUnit;
+import org.opendedup.util.StringUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
@@ -69,9 +71,56 @@ public class Config {
 			}
 			if (cbe.hasAttribute("hashdb-class"))
 				Main.hashesDBClass = cbe.getAttribute("hashdb-class");
+			if (cbe.hasAttribute("hashdb-initial-shard-size"))
+				Main.hashDBShardInitialSize = Integer.parseInt(cbe
+						.getAttribute("hashdb-initial-shard-size"));
+			if (cbe.hasAttribute("hashdb-load-threads"))
+				Main.hashDBLoadThreads = Integer.parseInt(cbe
+						.getAttribute("hashdb-load-threads"));
+			if (cbe.hasAttribute("hashdb-checkpoint-interval"))
+				Main.hashDBCheckpointInterval = Integer.parseInt(cbe
+						.getAttribute("hashdb-checkpoint-interval")) * 1000;
+			if (cbe.hasAttribute("commit-interval"))
+				Main.commitInterval = Integer.parseInt(cbe
+						.getAttribute("commit-interval"));
+			if (cbe.hasAttribute("commit-delay"))
+				Main.commitDelay = Integer.parseInt(cbe
+						.getAttribute("commit-delay"));
+			if (cbe.hasAttribute("read-cache-size"))
+				Main.chunkReadCacheSize = StringUtils.parseSize(cbe
+						.getAttribute("read-cache-size"));
+			if (cbe.hasAttribute("container-size"))
+				Main.containerSize = StringUtils.parseSize(cbe
+						.getAttribute("container-size"));
+			if (cbe.hasAttribute("container-compaction-threshold"))
+				Main.containerCompactionThreshold = Double.parseDouble(cbe
+						.getAttribute("container-compaction-threshold"));
+			if (cbe.hasAttribute("container-compaction-rate"))
+				Main.containerCompactionRate = StringUtils.parseSize(cbe
+						.getAttribute("container-compaction-rate"));
+			if (cbe.hasAttribute("archive-size"))
+				Main.archiveSize = StringUtils.parseSize(cbe
+						.getAttribute("archive-size"));
+			if (cbe.hasAttribute("archive-flush-interval"))
+				Main.archiveFlushInterval = Integer.parseInt(cbe
+						.getAttribute("archive-flush-interval"));
+			if (cbe.hasAttribute("archive-backend"))
+				Main.archiveBackend = cbe.getAttribute("archive-backend");
+			if (cbe.hasAttribute("archive-path"))
+				Main.archivePath = cbe.getAttribute("archive-path");
+			if (cbe.hasAttribute("background-io-share"))
+				Main.backgroundIOShare = Double.parseDouble(cbe
+						.getAttribute("background-io-share"));
+			if (cbe.hasAttribute("direct-io"))
+				Main.chunkStoreDirectIO = Boolean.parseBoolean(cbe
+						.getAttribute("direct-io"));
+			if (cbe.hasAttribute("sync-interval"))
+				Main.chunkStoreSyncInterval = Integer.parseInt(cbe
+						.getAttribute("sync-interval")) * 1000;
 			if (cbe.getElementsByTagName("extended-config").getLength() > 0) {
 				Main.chunkStoreConfig = (Element) cbe.getElementsByTagName(
 						"extended-config").item(0);
+				readSpeedLimits(Main.chunkStoreConfig);
 			}
 			Main.chunkStoreAllocationSize = Long.parseLong(cbe
 					.getAttribute("allocation-size"));
@@ -106,10 +155,26 @@ public class Config {
 			}
 			if(cbe.hasAttribute("encryption-iv"))
 				Main.chunkStoreEncryptionIV = cbe.getAttribute("encryption-iv");
+			if (cbe.hasAttribute("encryption-mode"))
+				Main.chunkStoreEncryptionMode = cbe
+						.getAttribute("encryption-mode");
 			if (cbe.hasAttribute("compress")) {
 				Main.compress = Boolean.parseBoolean(cbe
 						.getAttribute("compress"));
 			}
+			if (cbe.hasAttribute("compression-codec")) {
+				Main.compressionCodec = cbe
+						.getAttribute("compression-codec");
+				ChunkCompressor.codec(Main.compressionCodec);
+			}
+			if (cbe.hasAttribute("cold-compression-codec")) {
+				Main.coldCompressionCodec = cbe
+						.getAttribute("cold-compression-codec");
+				ChunkCompressor.codec(Main.coldCompressionCodec);
+			}
+			if (cbe.hasAttribute("compression-entropy-threshold"))
+				Main.compressionEntropyThreshold = Double.parseDouble(cbe
+						.getAttribute("compression-entropy-threshold"));
 			if (cbe.hasAttribute("max-repl-batch-sz"))
 				Main.MAX_REPL_BATCH_SZ = Integer.parseInt(cbe
 						.getAttribute("max-repl-batch-sz"));
@@ -264,6 +329,33 @@ public class Config {
 		Main.safeSync = Boolean.parseBoolean(cache.getAttribute("safe-sync"));
 		Main.writeThreads = Integer.parseInt(cache
 				.getAttribute("write-threads"));
+		if (cache.hasAttribute("read-ahead-max-chunks"))
+			Main.readAheadMaxChunks = Integer.parseInt(cache
+					.getAttribute("read-ahead-max-chunks"));
+		if (cache.hasAttribute("read-ahead-threads"))
+			Main.readAheadThreads = Integer.parseInt(cache
+					.getAttribute("read-ahead-threads"));
+		if (cache.hasAttribute("cow-file-maps"))
+			Main.cowFileMaps = Boolean.parseBoolean(cache
+					.getAttribute("cow-file-maps"));
+		if (cache.hasAttribute("metadata-store"))
+			Main.metaDataStore = Boolean.parseBoolean(cache
+					.getAttribute("metadata-store"));
+		if (cache.hasAttribute("attr-cache-size"))
+			Main.fuseAttrCacheSize = Integer.parseInt(cache
+					.getAttribute("attr-cache-size"));
+		if (cache.hasAttribute("attr-cache-timeout"))
+			Main.fuseAttrCacheTimeout = Long.parseLong(cache
+					.getAttribute("attr-cache-timeout"));
+		if (cache.hasAttribute("fuse-attr-timeout"))
+			Main.fuseAttrTimeout = Integer.parseInt(cache
+					.getAttribute("fuse-attr-timeout"));
+		if (cache.hasAttribute("readdir-prefetch"))
+			Main.fuseReaddirPrefetch = Boolean.parseBoolean(cache
+					.getAttribute("readdir-prefetch"));
+		if (cache.hasAttribute("buffer-pool-size"))
+			Main.chunkBufferPoolSize = StringUtils.parseSize(cache
+					.getAttribute("buffer-pool-size"));
 		if (cache.hasAttribute("hash-size")) {
 			short hsz = Short.parseShort(cache.getAttribute("hash-size"));
 			if (hsz == 16)
@@ -353,10 +445,57 @@ public class Config {
 			if (localChunkStore.hasAttribute("hashdb-class"))
 				Main.hashesDBClass = localChunkStore
 						.getAttribute("hashdb-class");
+			if (localChunkStore.hasAttribute("hashdb-initial-shard-size"))
+				Main.hashDBShardInitialSize = Integer.parseInt(localChunkStore
+						.getAttribute("hashdb-initial-shard-size"));
+			if (localChunkStore.hasAttribute("hashdb-load-threads"))
+				Main.hashDBLoadThreads = Integer.parseInt(localChunkStore
+						.getAttribute("hashdb-load-threads"));
+			if (localChunkStore.hasAttribute("hashdb-checkpoint-interval"))
+				Main.hashDBCheckpointInterval = Integer.parseInt(localChunkStore
+						.getAttribute("hashdb-checkpoint-interval")) * 1000;
+			if (localChunkStore.hasAttribute("commit-interval"))
+				Main.commitInterval = Integer.parseInt(localChunkStore
+						.getAttribute("commit-interval"));
+			if (localChunkStore.hasAttribute("commit-delay"))
+				Main.commitDelay = Integer.parseInt(localChunkStore
+						.getAttribute("commit-delay"));
+			if (localChunkStore.hasAttribute("read-cache-size"))
+				Main.chunkReadCacheSize = StringUtils.parseSize(localChunkStore
+						.getAttribute("read-cache-size"));
+			if (localChunkStore.hasAttribute("container-size"))
+				Main.containerSize = StringUtils.parseSize(localChunkStore
+						.getAttribute("container-size"));
+			if (localChunkStore.hasAttribute("container-compaction-threshold"))
+				Main.containerCompactionThreshold = Double.parseDouble(localChunkStore
+						.getAttribute("container-compaction-threshold"));
+			if (localChunkStore.hasAttribute("container-compaction-rate"))
+				Main.containerCompactionRate = StringUtils.parseSize(localChunkStore
+						.getAttribute("container-compaction-rate"));
+			if (localChunkStore.hasAttribute("archive-size"))
+				Main.archiveSize = StringUtils.parseSize(localChunkStore
+						.getAttribute("archive-size"));
+			if (localChunkStore.hasAttribute("archive-flush-interval"))
+				Main.archiveFlushInterval = Integer.parseInt(localChunkStore
+						.getAttribute("archive-flush-interval"));
+			if (localChunkStore.hasAttribute("archive-backend"))
+				Main.archiveBackend = localChunkStore.getAttribute("archive-backend");
+			if (localChunkStore.hasAttribute("archive-path"))
+				Main.archivePath = localChunkStore.getAttribute("archive-path");
+			if (localChunkStore.hasAttribute("background-io-share"))
+				Main.backgroundIOShare = Double.parseDouble(localChunkStore
+						.getAttribute("background-io-share"));
+			if (localChunkStore.hasAttribute("direct-io"))
+				Main.chunkStoreDirectIO = Boolean.parseBoolean(localChunkStore
+						.getAttribute("direct-io"));
+			if (localChunkStore.hasAttribute("sync-interval"))
+				Main.chunkStoreSyncInterval = Integer.parseInt(localChunkStore
+						.getAttribute("sync-interval")) * 1000;
 			if (localChunkStore.getElementsByTagName("extended-config")
 					.getLength() > 0) {
 				Main.chunkStoreConfig = (Element) localChunkStore
 						.getElementsByTagName("extended-config").item(0);
+				readSpeedLimits(Main.chunkStoreConfig);
 			}
 			if (localChunkStore.hasAttribute("max-repl-batch-sz"))
 				Main.MAX_REPL_BATCH_SZ = Integer.parseInt(localChunkStore
@@ -370,6 +509,9 @@ public class Config {
 			}
 			if(localChunkStore.hasAttribute("encryption-iv"))
 				Main.chunkStoreEncryptionIV = localChunkStore.getAttribute("encryption-iv");
+			if (localChunkStore.hasAttribute("encryption-mode"))
+				Main.chunkStoreEncryptionMode = localChunkStore
+						.getAttribute("encryption-mode");
 			Main.hashDBStore = localChunkStore.getAttribute("hash-db-store");
 			Element networkcs = (Element) doc.getElementsByTagName("network")
 					.item(0);
@@ -377,6 +519,19 @@ public class Config {
 				Main.compress = Boolean.parseBoolean(localChunkStore
 						.getAttribute("compress"));
 			}
+			if (localChunkStore.hasAttribute("compression-codec")) {
+				Main.compressionCodec = localChunkStore
+						.getAttribute("compression-codec");
+				ChunkCompressor.codec(Main.compressionCodec);
+			}
+			if (localChunkStore.hasAttribute("cold-compression-codec")) {
+				Main.coldCompressionCodec = localChunkStore
+						.getAttribute("cold-compression-codec");
+				ChunkCompressor.codec(Main.coldCompressionCodec);
+			}
+			if (localChunkStore.hasAttribute("compression-entropy-threshold"))
+				Main.compressionEntropyThreshold = Double.parseDouble(localChunkStore
+						.getAttribute("compression-entropy-threshold"));
 			if (networkcs != null) {
 				Main.enableNetworkChunkStore = Boolean.parseBoolean(networkcs
 						.getAttribute("enable"));
@@ -460,14 +615,17 @@ public class Config {
 		Element localChunkStore = (Element) doc.getElementsByTagName(
 				"local-chunkstore").item(0);
 		if (Main.chunkStoreLocal) {
+			localChunkStore.setAttribute("read-cache-size",
+					Long.toString(Main.chunkReadCacheSize));
 			if (localChunkStore.getElementsByTagName("extended-config")
 					.getLength() > 0) {
 				Element chunkStoreConfig = (Element) localChunkStore
 						.getElementsByTagName("extended-config").item(0);
-				chunkStoreConfig.setAttribute("local-cache-size", StorageUnit.of(HCServiceProxy.getMaxCacheSize())
-						.format(HCServiceProxy.getMaxCacheSize()));
-				chunkStoreConfig.setAttribute("read-speed", Integer.toString(HCServiceProxy.getReadSpeed()));
-				chunkStoreConfig.setAttribute("write-speed", Integer.toString(HCServiceProxy.getWriteSpeed()));
+				long csz = HCServiceProxy.getChunkStore().getMaxCacheSize();
+				chunkStoreConfig.setAttribute("local-cache-size", StorageUnit.of(csz)
+						.format(csz));
+				chunkStoreConfig.setAttribute("read-speed", Integer.toString(Main.chunkStoreReadSpeed));
+				chunkStoreConfig.setAttribute("write-speed", Integer.toString(Main.chunkStoreWriteSpeed));
 			}
 		}
 		
@@ -488,4 +646,17 @@ public class Config {
 		SDFSLogger.getLog().debug("Wrote volume config = " + fileName);
 	}
 
+	/**
+	 * Reads the chunk store speed limits, in KB/s, kept in the extended-config
+	 * of the chunk store.
+	 */
+	private static void readSpeedLimits(Element config) {
+		if (config.hasAttribute("read-speed"))
+			Main.chunkStoreReadSpeed = Integer.parseInt(config
+					.getAttribute("read-speed"));
+		if (config.hasAttribute("write-speed"))
+			Main.chunkStoreWriteSpeed = Integer.parseInt(config
+					.getAttribute("write-speed"));
+	}
+
 }
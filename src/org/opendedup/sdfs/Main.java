@@ -116,6 +116,97 @@ public class Main {
 	// public static String hashesDBClass =
 	// "com.opendedup.collections.FileBasedCSMap";
 	public static String hashesDBClass = "org.opendedup.collections.FileBasedCSMap";
+	/**
+	 * The number of slots each hash database shard is created with. Shards
+	 * double in size online as they fill up so this only needs to cover the
+	 * first few GB of unique data.
+	 */
+	public static int hashDBShardInitialSize = 65536;
+	/**
+	 * The number of threads used to load hash database shards at mount.
+	 */
+	public static int hashDBLoadThreads = Runtime.getRuntime()
+			.availableProcessors();
+	/**
+	 * How often, in milliseconds, the hash database is synced and its
+	 * occupancy checkpoint written. After a crash only the slots changed
+	 * since the last checkpoint are read back, so a longer interval means a
+	 * longer rescan at mount.
+	 */
+	public static int hashDBCheckpointInterval = 60 * 1000;
+	/**
+	 * How often, in milliseconds, chunk data and the hash database updates
+	 * made since the last time are committed to disk together.
+	 */
+	public static int commitInterval = 2000;
+	/**
+	 * How long, in milliseconds, a commit asked for by a file sync waits for
+	 * other syncs to share it.
+	 */
+	public static int commitDelay = 5;
+	/**
+	 * Bytes of chunk data kept in the off heap read cache when the DSE is
+	 * local. 0 disables the cache.
+	 */
+	public static long chunkReadCacheSize = 104857600;
+	/**
+	 * Size in bytes at which the active container of a ContainerChunkStore is
+	 * sealed and a new one is started.
+	 */
+	public static long containerSize = 32 * 1024 * 1024;
+	/**
+	 * Sealed containers with a smaller fraction of live bytes than this are
+	 * rewritten by the container compactor.
+	 */
+	public static double containerCompactionThreshold = .5;
+	/**
+	 * Bytes per second the container compactor may copy. 0 for no limit.
+	 */
+	public static long containerCompactionRate = 20 * 1024 * 1024;
+	/**
+	 * The size an archive of the archive chunk store grows to before it is
+	 * uploaded as one object.
+	 */
+	public static long archiveSize = 8 * 1024 * 1024;
+	/**
+	 * Seconds a partly filled archive is kept locally before it is uploaded
+	 * anyway.
+	 */
+	public static int archiveFlushInterval = 30;
+	/**
+	 * Where the archive chunk store keeps its archives. One of file, aws, s3,
+	 * azure or google.
+	 */
+	public static String archiveBackend = "file";
+	/**
+	 * The folder used by the file archive backend. Defaults to the
+	 * archive-objects folder of the chunk store.
+	 */
+	public static String archivePath = null;
+	/**
+	 * Chunk store read limit in KB/s. 0 means no limit.
+	 */
+	public static int chunkStoreReadSpeed = 0;
+	/**
+	 * Chunk store write limit in KB/s. 0 means no limit.
+	 */
+	public static int chunkStoreWriteSpeed = 0;
+	/**
+	 * The share of a read or write limit left to garbage collection,
+	 * replication and fdisk while volumes are doing I/O.
+	 */
+	public static double backgroundIOShare = .25;
+	/**
+	 * Whether the file chunk stores write and read chunk data with direct
+	 * I/O so it does not fill the page cache. Chunk reads are then only
+	 * cached by the read cache, see chunkReadCacheSize.
+	 */
+	public static boolean chunkStoreDirectIO = false;
+	/**
+	 * How often, in ms, the file chunk stores sync the chunks written since
+	 * the last sync to disk.
+	 */
+	public static int chunkStoreSyncInterval = 2000;
 	/**
 	 * Future implementation of pluggable garbageCollector
 	 */
@@ -130,6 +221,11 @@ public class Main {
 	 * whether encryption should be enabled for the DSE
 	 */
 	public static boolean chunkStoreEncryptionEnabled = false;
+	/**
+	 * How new chunks are encrypted. gcm encrypts every chunk with its own IV
+	 * and authenticates it, ecb is the deterministic format used before.
+	 */
+	public static String chunkStoreEncryptionMode = "gcm";
 
 	/**
 	 * The location where database of deduped hashes will be stores and written
@@ -206,6 +302,21 @@ public class Main {
 
 	public static int writeThreads = (short) (Runtime.getRuntime()
 			.availableProcessors() * 3);
+	/**
+	 * The most chunks prefetched ahead of a sequential reader on a file
+	 * channel. 0 disables read ahead. This is used on the client.
+	 */
+	public static int readAheadMaxChunks = 64;
+	/**
+	 * Threads shared by all files to prefetch chunks for sequential readers.
+	 */
+	public static int readAheadThreads = Runtime.getRuntime()
+			.availableProcessors() * 2;
+	/**
+	 * The most bytes of idle write buffers kept for reuse by
+	 * org.opendedup.util.ChunkBufferPool.
+	 */
+	public static long chunkBufferPoolSize = 64 * 1024 * 1024;
 	/**
 	 * The representation of a blank hash of the default chunk size. This is
 	 * used on the client.
@@ -305,6 +416,39 @@ public class Main {
 	 * false unless needed. This is used on the client.
 	 */
 	public static boolean safeSync = true;
+	/**
+	 * Whether new file maps are copy on write so snapshots and clones share
+	 * them instead of copying them. Existing maps keep their format. This is
+	 * used on the client.
+	 */
+	public static boolean cowFileMaps = false;
+	/**
+	 * Whether file metadata is kept in the metadata store of the volume
+	 * instead of in the stub of every file. Stubs written before it was
+	 * enabled are still read, but once enabled it has to stay enabled. This
+	 * is used on the client.
+	 */
+	public static boolean metaDataStore = false;
+	/**
+	 * The number of entries the FUSE mount caches the type, and for
+	 * directories and symlinks the attributes, of. 0 turns the cache off.
+	 */
+	public static int fuseAttrCacheSize = 65536;
+	/**
+	 * How long in ms an entry of the FUSE attribute cache is used without
+	 * being read again. Entries are dropped sooner when the file changes.
+	 */
+	public static long fuseAttrCacheTimeout = 30000;
+	/**
+	 * The entry and attribute timeouts in seconds the kernel is told to cache
+	 * lookups and attributes of the FUSE mount for.
+	 */
+	public static int fuseAttrTimeout = 1;
+	/**
+	 * Whether listing a directory also reads the attributes of the
+	 * directories and symlinks in it into the FUSE attribute cache.
+	 */
+	public static boolean fuseReaddirPrefetch = false;
 	/**
 	 * The maximum about of time that a file is inactive before it is close.
 	 * Inactivity is determined by the time the file was last accessed. @see
@@ -339,6 +483,21 @@ public class Main {
 	 * Compress AWS data using zlib
 	 */
 	public static boolean compress = false;
+	/**
+	 * The codec chunks written by the volumes are compressed with. One of
+	 * lz4, lz4-high or deflate.
+	 */
+	public static String compressionCodec = "lz4";
+	/**
+	 * The codec chunks written by garbage collection, replication and
+	 * compaction are compressed with.
+	 */
+	public static String coldCompressionCodec = "deflate";
+	/**
+	 * Chunks whose sampled entropy, in bits per byte, is above this are stored
+	 * uncompressed. 8 or more turns sampling off.
+	 */
+	public static double compressionEntropyThreshold = 7.5;
 
 	/**
 	 * PreAllocates the size of the Dedup Storage Engine
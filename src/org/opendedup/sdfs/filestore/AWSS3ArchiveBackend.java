@@ -0,0 +1,133 @@
+package org.opendedup.sdfs.filestore;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Keeps archives in an S3 bucket through the AWS SDK client pool.
+ */
+public class AWSS3ArchiveBackend implements ArchiveBackend {
+	private final String bucket;
+	private final AWSS3ServicePool pool;
+
+	public AWSS3ArchiveBackend(String bucket) throws IOException {
+		this.bucket = bucket.toLowerCase();
+		pool = new AWSS3ServicePool(new BasicAWSCredentials(
+				Main.cloudAccessKey, Main.cloudSecretKey), Main.writeThreads);
+		AmazonS3Client s3Service = this.borrow();
+		try {
+			if (!s3Service.doesBucketExist(this.bucket)) {
+				s3Service.createBucket(this.bucket);
+				SDFSLogger.getLog().info("created new store " + this.bucket);
+			}
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			pool.returnObject(s3Service);
+		}
+	}
+
+	private AmazonS3Client borrow() throws IOException {
+		try {
+			return pool.borrowObject();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void put(String key, byte[] data) throws IOException {
+		AmazonS3Client s3Service = this.borrow();
+		try {
+			ObjectMetadata md = new ObjectMetadata();
+			md.setContentLength(data.length);
+			md.setContentType("binary/octet-stream");
+			s3Service.putObject(bucket, key, new ByteArrayInputStream(data),
+					md);
+		} catch (Exception e) {
+			throw new IOException("unable to upload " + key, e);
+		} finally {
+			pool.returnObject(s3Service);
+		}
+	}
+
+	@Override
+	public byte[] getRange(String key, long off, int len) throws IOException {
+		AmazonS3Client s3Service = this.borrow();
+		try {
+			GetObjectRequest req = new GetObjectRequest(bucket, key);
+			req.setRange(off, off + len - 1);
+			S3Object obj = s3Service.getObject(req);
+			try {
+				byte[] b = new byte[len];
+				new DataInputStream(obj.getObjectContent()).readFully(b);
+				return b;
+			} finally {
+				obj.close();
+			}
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("unable to read " + key, e);
+		} finally {
+			pool.returnObject(s3Service);
+		}
+	}
+
+	@Override
+	public void delete(String key) throws IOException {
+		AmazonS3Client s3Service = this.borrow();
+		try {
+			s3Service.deleteObject(bucket, key);
+		} catch (Exception e) {
+			throw new IOException("unable to delete " + key, e);
+		} finally {
+			pool.returnObject(s3Service);
+		}
+	}
+
+	@Override
+	public Map<String, Long> list(String prefix) throws IOException {
+		HashMap<String, Long> m = new HashMap<String, Long>();
+		AmazonS3Client s3Service = this.borrow();
+		try {
+			ObjectListing ol = s3Service.listObjects(bucket, prefix);
+			for (;;) {
+				for (S3ObjectSummary obj : ol.getObjectSummaries())
+					m.put(obj.getKey(), obj.getSize());
+				if (!ol.isTruncated())
+					break;
+				ol = s3Service.listNextBatchOfObjects(ol);
+			}
+			return m;
+		} catch (Exception e) {
+			throw new IOException("unable to list " + prefix, e);
+		} finally {
+			pool.returnObject(s3Service);
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			pool.close();
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn("unable to close s3 pool", e);
+		}
+	}
+
+}
@@ -41,6 +41,7 @@ public class AWSS3ChunkStore implements AbstractChunkStore {
 	private static BasicAWSCredentials awsCredentials = null;
 	private String name;
 	private AWSS3ServicePool pool = null;
+	private DiskChunkCache cache = null;
 	private AtomicLong currentLength = new AtomicLong(0);
 	private AtomicLong compressedLength = new AtomicLong(0);
 	private int cacheSize = 10485760 / Main.CHUNK_LENGTH;
@@ -166,6 +167,7 @@ public class AWSS3ChunkStore implements AbstractChunkStore {
 
 	@Override
 	public void close() {
+		cache.close();
 		AmazonS3Client s3Service = null;
 		try {
 
@@ -208,11 +210,18 @@ public class AWSS3ChunkStore implements AbstractChunkStore {
 
 	@Override
 	public byte[] getChunk(byte[] hash, long start, int len) throws IOException {
+		byte[] cb = cache.get(hash);
+		if (cb != null) {
+			IOThrottle.reads.acquire(cb.length);
+			return cb;
+		}
 		try {
 			String hashString = this.getHashName(hash,
 					Main.chunkStoreEncryptionEnabled);
 			byte[] _bz = this.chunks.get(hashString);
 			byte[] bz = Arrays.clone(_bz);
+			cache.put(hash, bz);
+			IOThrottle.reads.acquire(bz.length);
 			return bz;
 		} catch (ExecutionException e) {
 			SDFSLogger.getLog().error("Unable to get block at " + start, e);
@@ -242,6 +251,14 @@ public class AWSS3ChunkStore implements AbstractChunkStore {
 	@Override
 	public long writeChunk(byte[] hash, byte[] chunk, int len)
 			throws IOException {
+		IOThrottle.writes.acquire(chunk.length);
+		if (cache.stage(hash, chunk))
+			return 0;
+		return this.uploadChunk(hash, chunk, len);
+	}
+
+	private long uploadChunk(byte[] hash, byte[] chunk, int len)
+			throws IOException {
 		try {
 			String hashString = this.getHashName(hash,
 					Main.chunkStoreEncryptionEnabled);
@@ -254,7 +271,7 @@ public class AWSS3ChunkStore implements AbstractChunkStore {
 			ObjectMetadata md = new ObjectMetadata();
 			md.addUserMetadata("size", Integer.toString(chunk.length));
 			this.currentLength.addAndGet(chunk.length);
-			if (Main.compress) {
+			if (Main.compress && ChunkCompressor.compressible(chunk)) {
 				chunk = CompressionUtils.compressLz4(chunk);
 				md.addUserMetadata("lz4compress", "true");
 			} else {
@@ -299,6 +316,7 @@ public class AWSS3ChunkStore implements AbstractChunkStore {
 	@Override
 	public void deleteChunk(byte[] hash, long start, int len)
 			throws IOException {
+		cache.remove(hash);
 		String hashString = this.getHashName(hash,
 				Main.chunkStoreEncryptionEnabled);
 		AmazonS3Client s3Service = null;
@@ -378,7 +396,12 @@ public class AWSS3ChunkStore implements AbstractChunkStore {
 		} catch (Exception e) {
 			throw new IOException(e);
 		}
-
+		cache = DiskChunkCache.open(config, new DiskChunkCache.ChunkWriter() {
+			@Override
+			public void upload(byte[] hash, byte[] chunk) throws IOException {
+				uploadChunk(hash, chunk, chunk.length);
+			}
+		});
 	}
 
 	@Override
@@ -450,51 +473,44 @@ public class AWSS3ChunkStore implements AbstractChunkStore {
 	}
 
 	@Override
-	public void sync() {
-		// TODO Auto-generated method stub
-		
+	public void sync() throws IOException {
+		// staged chunks are only durable in the cache until they are uploaded
+		cache.sync();
 	}
 
 	@Override
-	public void setReadSpeed(int bps) {
-		// TODO Auto-generated method stub
-		
+	public void setReadSpeed(int kbps) {
+		IOThrottle.reads.setLimit(kbps);
 	}
 
 	@Override
-	public void setWriteSpeed(int bps) {
-		// TODO Auto-generated method stub
-		
+	public void setWriteSpeed(int kbps) {
+		IOThrottle.writes.setLimit(kbps);
 	}
 
 	@Override
-	public void setCacheSize(long bps) {
-		// TODO Auto-generated method stub
-		
+	public void setCacheSize(long sz) throws IOException {
+		cache.setMaxSize(sz);
 	}
 
 	@Override
 	public int getReadSpeed() {
-		// TODO Auto-generated method stub
-		return 0;
+		return IOThrottle.reads.getSpeed();
 	}
 
 	@Override
 	public int getWriteSpeed() {
-		// TODO Auto-generated method stub
-		return 0;
+		return IOThrottle.writes.getSpeed();
 	}
 
 	@Override
 	public long getCacheSize() {
-		// TODO Auto-generated method stub
-		return 0;
+		return cache.getSize();
 	}
 
 	@Override
 	public long getMaxCacheSize() {
-		// TODO Auto-generated method stub
-		return 0;
+		return cache.getMaxSize();
 	}
 
 	@Override
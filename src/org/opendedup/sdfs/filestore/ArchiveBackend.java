@@ -0,0 +1,30 @@
+package org.opendedup.sdfs.filestore;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * The object store an {@link ArchiveChunkStore} keeps its archives in. Each
+ * archive is written once as a whole object and read back with ranged gets.
+ * Implementations wrap the client pools of the cloud chunk stores and must
+ * be safe for concurrent use.
+ */
+public interface ArchiveBackend {
+
+	public void put(String key, byte[] data) throws IOException;
+
+	/**
+	 * Reads <tt>len</tt> bytes of an object starting at <tt>off</tt>.
+	 */
+	public byte[] getRange(String key, long off, int len) throws IOException;
+
+	public void delete(String key) throws IOException;
+
+	/**
+	 * The keys that start with <tt>prefix</tt> and the length of each object.
+	 */
+	public Map<String, Long> list(String prefix) throws IOException;
+
+	public void close();
+
+}
@@ -0,0 +1,424 @@
+package org.opendedup.sdfs.filestore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.w3c.dom.Element;
+
+/**
+ * A chunk store that packs chunks into archives of up to Main.archiveSize
+ * bytes and keeps each archive as one object in a bucket, so writing many
+ * small chunks costs one request instead of one per chunk. Archives are the
+ * containers of a {@link LogChunkStore}, which appends, indexes and compacts
+ * them. The bucket is reached through the {@link ArchiveBackend} named by
+ * Main.archiveBackend.
+ *
+ * The archive being filled is staged in the archives folder of the chunk
+ * store. When it is full, or has been open for Main.archiveFlushInterval
+ * seconds, it is sealed: its index is appended to it, followed by a footer
+ * [entries (4 bytes)|data length (4 bytes)|magic (4 bytes)], and it is
+ * uploaded in the background. The staged copy is removed once the upload
+ * succeeds and chunks are then read with ranged gets of exactly their
+ * record. A copy of each index stays in the archives folder for reads,
+ * deletes and compaction. The index embedded in the objects is used to
+ * rebuild the folder when it is lost.
+ *
+ * Archives that fall below Main.containerCompactionThreshold are fetched
+ * with one get for compaction and the old object is deleted once the hash
+ * table has been synced.
+ */
+public class ArchiveChunkStore extends
+		LogChunkStore<ArchiveChunkStore.Archive> {
+	private static final int FOOTER = 12;
+	private static final int MAGIC = 0x53444641;
+	private static final String PREFIX = "archives/";
+	private static final int MAX_OPEN = 64;
+	private static final long RETRY_INTERVAL = 30 * 1000;
+	private ArchiveBackend backend = null;
+	private DiskChunkCache cache = null;
+	private ThreadPoolExecutor uploader = null;
+	// sealed archives that have not been uploaded yet
+	private final AtomicInteger pendingUploads = new AtomicInteger();
+
+	static final class Archive extends LogChunkStore.Container {
+		final String key;
+		volatile boolean uploaded = false;
+		// when a failed upload may be tried again
+		volatile long retryAt = 0;
+		final AtomicBoolean uploading = new AtomicBoolean();
+
+		Archive(int id, File dir) {
+			super(id, new File(dir, id + ".arc"), new File(dir, id + ".idx"));
+			this.key = PREFIX + id;
+		}
+	}
+
+	public ArchiveChunkStore() {
+		super("archive", MAX_OPEN);
+	}
+
+	private static ArchiveBackend openBackend() throws IOException {
+		String b = Main.archiveBackend;
+		if (b.equalsIgnoreCase("aws"))
+			return new AWSS3ArchiveBackend(Main.cloudBucket);
+		else if (b.equalsIgnoreCase("s3"))
+			return new S3ArchiveBackend(Main.cloudBucket);
+		else if (b.equalsIgnoreCase("azure"))
+			return new MAzureArchiveBackend(Main.cloudBucket);
+		else if (b.equalsIgnoreCase("google"))
+			return new GoogleArchiveBackend(Main.cloudBucket);
+		else if (b.equalsIgnoreCase("file")) {
+			String path = Main.archivePath;
+			if (path == null)
+				path = Main.chunkStore + File.separator + "archive-objects";
+			return new FileArchiveBackend(new File(path));
+		}
+		throw new IOException("unknown archive backend " + b);
+	}
+
+	@Override
+	protected Archive newContainer(int id) {
+		return new Archive(id, dir);
+	}
+
+	@Override
+	protected long maxLength() {
+		return Main.archiveSize;
+	}
+
+	@Override
+	protected void load(Element config) throws IOException {
+		backend = openBackend();
+		// archives are staged locally, so the cache only keeps reads
+		cache = DiskChunkCache.open(config, null);
+		uploader = new ThreadPoolExecutor(Main.dseIOThreads,
+				Main.dseIOThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>());
+		File[] fs = dir.listFiles();
+		for (File f : fs) {
+			String fn = f.getName();
+			if (fn.endsWith(".arc") || fn.endsWith(".idx")) {
+				int id = Integer.parseInt(fn.substring(0, fn.length() - 4));
+				if (!containers.containsKey(id))
+					containers.put(id, new Archive(id, dir));
+			}
+		}
+		if (containers.isEmpty() && !statsFile.exists())
+			this.discover();
+	}
+
+	/**
+	 * Rebuilds the local indexes from the index embedded in each archive
+	 * when the archives folder was lost.
+	 */
+	private void discover() throws IOException {
+		Map<String, Long> objs = backend.list(PREFIX);
+		for (Map.Entry<String, Long> e : objs.entrySet()) {
+			int id;
+			try {
+				id = Integer.parseInt(e.getKey().substring(PREFIX.length()));
+			} catch (NumberFormatException x) {
+				continue;
+			}
+			long sz = e.getValue();
+			if (sz < FOOTER)
+				continue;
+			ByteBuffer ft = ByteBuffer.wrap(backend.getRange(e.getKey(), sz
+					- FOOTER, FOOTER));
+			int n = ft.getInt();
+			int dlen = ft.getInt();
+			if (ft.getInt() != MAGIC
+					|| (long) dlen + (long) n * IDX + FOOTER != sz) {
+				SDFSLogger.getLog().warn(
+						"skipping " + e.getKey()
+								+ " because it has no valid index");
+				continue;
+			}
+			Archive a = new Archive(id, dir);
+			byte[] ib = n == 0 ? new byte[0] : backend.getRange(e.getKey(),
+					dlen, n * IDX);
+			this.writeIndex(a, ib);
+			a.length = dlen;
+			containers.put(id, a);
+		}
+		if (containers.size() > 0)
+			SDFSLogger.getLog().info(
+					"recovered the indexes of " + containers.size()
+							+ " archives from the bucket");
+	}
+
+	/**
+	 * Staged archives are sealed again and queued for upload, the others are
+	 * read from the bucket.
+	 */
+	@Override
+	protected boolean recover(Archive a) throws IOException {
+		if (a.f.exists()) {
+			long il = this.indexedLength(a);
+			if (il < 0)
+				this.rebuildIndex(a);
+			else
+				a.length = il;
+			if (a.length == 0) {
+				a.f.delete();
+				a.idx.delete();
+				return false;
+			}
+			this.finish(a, Files.readAllBytes(a.idx.toPath()));
+			pendingUploads.incrementAndGet();
+		} else {
+			a.uploaded = true;
+			if (a.length == 0)
+				a.length = Math.max(0, this.indexedLength(a));
+		}
+		return true;
+	}
+
+	@Override
+	protected void opened() {
+		for (Archive a : containers.values()) {
+			if (a.sealed && !a.uploaded)
+				this.upload(a);
+		}
+		if (pendingUploads.get() > 0)
+			SDFSLogger.getLog().info(
+					pendingUploads.get() + " archives are waiting for upload");
+	}
+
+	/**
+	 * Appends the index and footer to a staged archive. Anything past the
+	 * records is dropped first so this can be repeated after a crash.
+	 */
+	private void finish(Archive a, byte[] idx) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(a.f, "rw");
+		try {
+			FileChannel ch = raf.getChannel();
+			ch.truncate(a.length);
+			ByteBuffer ft = ByteBuffer.allocate(FOOTER);
+			ft.putInt(idx.length / IDX);
+			ft.putInt((int) a.length);
+			ft.putInt(MAGIC);
+			ft.flip();
+			ByteBuffer[] bufs = new ByteBuffer[] { ByteBuffer.wrap(idx), ft };
+			ch.position(a.length);
+			while (ft.hasRemaining())
+				ch.write(bufs);
+			ch.force(true);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Appends the index to a sealed archive and queues it for upload.
+	 */
+	@Override
+	protected void sealed(Archive a, byte[] idx) throws IOException {
+		this.finish(a, idx);
+		pendingUploads.incrementAndGet();
+		this.upload(a);
+	}
+
+	private void upload(final Archive a) {
+		if (!a.uploading.compareAndSet(false, true))
+			return;
+		try {
+			uploader.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (a.uploaded)
+							return;
+						backend.put(a.key, Files.readAllBytes(a.f.toPath()));
+						a.uploaded = true;
+						closeChannel(a);
+						a.f.delete();
+						synchronized (pendingUploads) {
+							pendingUploads.decrementAndGet();
+							pendingUploads.notifyAll();
+						}
+					} catch (Exception e) {
+						a.retryAt = System.currentTimeMillis() + RETRY_INTERVAL;
+						SDFSLogger.getLog().warn(
+								"unable to upload archive " + a.id
+										+ ", it will be retried", e);
+					} finally {
+						a.uploading.set(false);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// closing, the staged archive is uploaded on the next start
+			a.uploading.set(false);
+		}
+	}
+
+	/**
+	 * Holds writers back while more sealed archives wait for upload than the
+	 * uploader can work on, so the staged data stays bounded when the bucket
+	 * is slow or unreachable.
+	 */
+	@Override
+	protected void admit() throws IOException {
+		int max = uploader.getMaximumPoolSize() * 2;
+		synchronized (pendingUploads) {
+			while (pendingUploads.get() > max && !this.closed) {
+				try {
+					pendingUploads.wait(1000);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+		}
+	}
+
+	@Override
+	protected void maintain() throws IOException {
+		this.flushAged();
+		this.retryUploads();
+	}
+
+	private void retryUploads() {
+		long now = System.currentTimeMillis();
+		for (Archive a : containers.values()) {
+			if (a.sealed && !a.uploaded && !a.uploading.get()
+					&& a.retryAt <= now)
+				this.upload(a);
+		}
+	}
+
+	/**
+	 * Seals the active archive if it holds data and has been open for longer
+	 * than Main.archiveFlushInterval, so chunks do not stay only on local disk
+	 * when writes are slow.
+	 */
+	private void flushAged() throws IOException {
+		if (Main.archiveFlushInterval <= 0)
+			return;
+		wlock.lock();
+		try {
+			if (!this.closed
+					&& active.length > 0
+					&& System.currentTimeMillis() - activeOpened >= Main.archiveFlushInterval * 1000L)
+				this.rotate();
+		} finally {
+			wlock.unlock();
+		}
+	}
+
+	/**
+	 * Reads <tt>len</tt> bytes of an archive from its staged copy while it has
+	 * one and with a ranged get once it has been uploaded.
+	 */
+	@Override
+	protected ByteBuffer read(Archive a, long off, int len) throws IOException {
+		if (!a.uploaded) {
+			try {
+				return super.read(a, off, len);
+			} catch (IOException e) {
+				// the staged copy was removed after the upload
+				if (!a.uploaded)
+					throw e;
+			}
+		}
+		byte[] b = backend.getRange(a.key, off, len);
+		bytesRead.addAndGet(b.length);
+		IOThrottle.reads.acquire(b.length);
+		return ByteBuffer.wrap(b);
+	}
+
+	@Override
+	protected boolean remote(Archive a) {
+		return a.uploaded;
+	}
+
+	@Override
+	protected boolean compactable(Archive a) {
+		return a.uploaded && super.compactable(a);
+	}
+
+	@Override
+	protected void discard(Archive a) throws IOException {
+		backend.delete(a.key);
+	}
+
+	@Override
+	public byte[] getChunk(byte[] hash, long start, int len)
+			throws IOException {
+		if (this.closed)
+			throw new IOException("ChunkStore is closed");
+		Archive a = this.container(start);
+		if (!a.uploaded)
+			return super.getChunk(hash, start, len);
+		byte[] data = cache.get(hash);
+		if (data == null) {
+			data = super.getChunk(hash, start, len);
+			cache.put(hash, data);
+		}
+		return data;
+	}
+
+	@Override
+	public void deleteChunk(byte[] hash, long start, int len)
+			throws IOException {
+		if (this.closed)
+			throw new IOException("ChunkStore is closed");
+		cache.remove(hash);
+		super.deleteChunk(hash, start, len);
+	}
+
+	/**
+	 * Gives the uploads of the archives sealed on close a chance to finish.
+	 */
+	@Override
+	protected void drain() {
+		uploader.shutdown();
+		try {
+			if (!uploader.awaitTermination(5, TimeUnit.MINUTES))
+				SDFSLogger.getLog().warn(
+						"archive uploads did not finish, "
+								+ pendingUploads.get()
+								+ " archives will be uploaded on the next start");
+		} catch (InterruptedException e) {
+		}
+	}
+
+	@Override
+	public void close() {
+		boolean open = !this.closed;
+		super.close();
+		if (open) {
+			cache.close();
+			backend.close();
+		}
+	}
+
+	@Override
+	public void setCacheSize(long sz) throws IOException {
+		cache.setMaxSize(sz);
+	}
+
+	@Override
+	public long getCacheSize() {
+		return cache.getSize();
+	}
+
+	@Override
+	public long getMaxCacheSize() {
+		return cache.getMaxSize();
+	}
+
+}
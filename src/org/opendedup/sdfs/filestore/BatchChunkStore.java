@@ -0,0 +1,20 @@
+package org.opendedup.sdfs.filestore;
+
+import java.io.IOException;
+
+/**
+ * Implemented by chunk stores that can write several chunks with a single
+ * I/O. The hash table uses it to persist the new chunks of a batch of inserts
+ * together, see {@link ChunkData#persistData(java.util.List)}.
+ */
+public interface BatchChunkStore {
+
+	/**
+	 * Writes each chunk as {@link AbstractChunkStore#writeChunk} would.
+	 * 
+	 * @return the position of every chunk, in the order they were given
+	 */
+	public abstract long[] writeChunks(byte[][] hashes, byte[][] chunks)
+			throws IOException;
+
+}
@@ -0,0 +1,470 @@
+package org.opendedup.sdfs.filestore;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.opendedup.logging.SDFSLogger;
+
+/**
+ * A size bounded, off heap cache of chunk data keyed by hash.
+ *
+ * Chunk data is copied into fixed size pages carved out of large direct
+ * buffers, so the cache adds almost nothing to the Java heap and chunks of any
+ * size can be stored. Eviction follows W-TinyLFU: new chunks enter a small LRU
+ * window, and when they leave it they are only admitted into the main SLRU
+ * (probation and protected segments) if a frequency sketch says they have
+ * been used more often than the chunk they would replace. One pass over a
+ * large file therefore cannot flush the popular chunks out of the cache.
+ *
+ * Lookups only take the policy lock if it is free; when it is contended the
+ * access is still counted in the sketch but the recency update is skipped.
+ */
+public class ChunkCache {
+	public static final int DEFAULT_PAGE_SIZE = 4096;
+	private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+	private final int pageSize;
+	private final int pagesPerSegment;
+	private final ConcurrentHashMap<Key, Entry> map = new ConcurrentHashMap<Key, Entry>();
+	private final ReentrantLock lock = new ReentrantLock();
+	// replaced, never changed in place, so lookups can read it without the
+	// lock while setMaxSize drops segments
+	private volatile ByteBuffer[] segments = new ByteBuffer[0];
+	private int[] freePages = new int[0];
+	private int freeCt = 0;
+	private long allocatedPages = 0;
+	private long maxPages = 0;
+	private long usedPages = 0;
+	private final Entry[] heads = new Entry[3];
+	private final long[] queuePages = new long[3];
+	private volatile FrequencySketch sketch = null;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong rejections = new AtomicLong();
+
+	/**
+	 * @param maxSize
+	 *            the maximum number of bytes of chunk data to hold
+	 * @param pageSize
+	 *            the allocation unit. Chunks use as many pages as they need.
+	 */
+	public ChunkCache(long maxSize, int pageSize) {
+		this.pageSize = pageSize;
+		this.pagesPerSegment = Math.max(1, SEGMENT_SIZE / pageSize);
+		for (int i = 0; i < heads.length; i++) {
+			Entry h = new Entry(null, null, 0);
+			h.prev = h;
+			h.next = h;
+			heads[i] = h;
+		}
+		this.setMaxSize(maxSize);
+	}
+
+	/**
+	 * Returns a copy of the cached data for a hash or null if it is not
+	 * cached.
+	 */
+	public byte[] get(byte[] hash) {
+		Key k = new Key(hash);
+		sketch.increment(k.hashCode());
+		Entry e = map.get(k);
+		if (e == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		byte[] data = new byte[e.len];
+		// the pages may have been handed to another chunk or dropped with
+		// their segment while copying
+		if (!this.copyOut(e, data) || e.evicted) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		if (lock.tryLock()) {
+			try {
+				if (!e.evicted)
+					this.onHit(e);
+			} finally {
+				lock.unlock();
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Adds chunk data to the cache. The data is copied.
+	 */
+	public void put(byte[] hash, byte[] data) {
+		int np = (data.length + pageSize - 1) / pageSize;
+		Key k = new Key(Arrays.copyOf(hash, hash.length));
+		lock.lock();
+		try {
+			if (np == 0 || np > maxPages / 2 || map.containsKey(k))
+				return;
+			int[] pages = this.allocate(np);
+			if (pages == null)
+				return;
+			Entry e = new Entry(k, pages, data.length);
+			this.copyIn(e, data);
+			map.put(k, e);
+			usedPages += np;
+			this.link(e, WINDOW);
+			this.evictFromWindow();
+			while (usedPages > maxPages)
+				this.evict(this.victim());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Changes the maximum number of bytes held. Shrinking evicts entries
+	 * until the cache fits and releases the segments past the new size.
+	 */
+	public void setMaxSize(long maxSize) {
+		lock.lock();
+		try {
+			this.maxPages = Math.max(0, maxSize / pageSize);
+			this.sketch = new FrequencySketch((int) Math.min(
+					Math.max(maxPages, 16), 1 << 24));
+			while (usedPages > maxPages)
+				this.evict(this.victim());
+			this.trim();
+			SDFSLogger.getLog().info(
+					"chunk cache size set to " + (maxPages * pageSize));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getMaxSize() {
+		return this.maxPages * this.pageSize;
+	}
+
+	public long getSize() {
+		return this.usedPages * this.pageSize;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getRejections() {
+		return rejections.get();
+	}
+
+	public double getHitRatio() {
+		long h = hits.get();
+		long t = h + misses.get();
+		if (t == 0)
+			return 0;
+		return (double) h / (double) t;
+	}
+
+	private long windowMax() {
+		return Math.max(1, maxPages / 100);
+	}
+
+	private long protectedMax() {
+		return (long) ((maxPages - this.windowMax()) * .8);
+	}
+
+	private void onHit(Entry e) {
+		if (e.queue == PROBATION) {
+			this.unlink(e);
+			this.link(e, PROTECTED);
+			while (queuePages[PROTECTED] > this.protectedMax()) {
+				Entry d = heads[PROTECTED].prev;
+				this.unlink(d);
+				this.link(d, PROBATION);
+			}
+		} else {
+			this.unlink(e);
+			this.link(e, e.queue);
+		}
+	}
+
+	/**
+	 * Moves chunks that overflow the window into probation if the sketch
+	 * thinks they are used more than the probation chunk they would replace.
+	 */
+	private void evictFromWindow() {
+		while (queuePages[WINDOW] > this.windowMax()) {
+			Entry c = heads[WINDOW].prev;
+			this.unlink(c);
+			if (usedPages <= maxPages) {
+				this.link(c, PROBATION);
+				continue;
+			}
+			Entry v = heads[PROBATION].prev;
+			if (v == heads[PROBATION])
+				v = heads[PROTECTED].prev;
+			if (v == heads[PROTECTED]
+					|| sketch.frequency(c.key.hashCode()) > sketch
+							.frequency(v.key.hashCode())) {
+				this.link(c, PROBATION);
+				if (v != heads[PROTECTED])
+					this.evict(v);
+			} else {
+				rejections.incrementAndGet();
+				c.queue = WINDOW;
+				this.evict(c);
+			}
+		}
+	}
+
+	private Entry victim() {
+		for (int q : new int[] { PROBATION, WINDOW, PROTECTED }) {
+			Entry v = heads[q].prev;
+			if (v != heads[q])
+				return v;
+		}
+		return null;
+	}
+
+	private void evict(Entry e) {
+		if (e == null)
+			return;
+		if (e.next != null)
+			this.unlink(e);
+		map.remove(e.key);
+		e.evicted = true;
+		usedPages -= e.pages.length;
+		for (int p : e.pages)
+			freePages[freeCt++] = p;
+		evictions.incrementAndGet();
+	}
+
+	private void link(Entry e, int q) {
+		Entry h = heads[q];
+		e.queue = q;
+		e.next = h.next;
+		e.prev = h;
+		h.next.prev = e;
+		h.next = e;
+		queuePages[q] += e.pages.length;
+	}
+
+	private void unlink(Entry e) {
+		e.prev.next = e.next;
+		e.next.prev = e.prev;
+		e.next = null;
+		e.prev = null;
+		queuePages[e.queue] -= e.pages.length;
+	}
+
+	/**
+	 * Takes pages from the free list, adding a segment or evicting entries
+	 * when it runs out.
+	 */
+	private int[] allocate(int np) {
+		while (freeCt < np) {
+			if (allocatedPages + pagesPerSegment <= maxPages
+					|| (allocatedPages < maxPages && segments.length == 0)) {
+				this.addSegment();
+			} else {
+				Entry v = this.victim();
+				if (v == null)
+					return null;
+				this.evict(v);
+			}
+		}
+		int[] pages = new int[np];
+		for (int i = 0; i < np; i++)
+			pages[i] = freePages[--freeCt];
+		return pages;
+	}
+
+	private void addSegment() {
+		int pages = (int) Math.min(pagesPerSegment, maxPages - allocatedPages);
+		ByteBuffer seg = ByteBuffer.allocateDirect(pages * pageSize);
+		ByteBuffer[] segs = Arrays.copyOf(segments, segments.length + 1);
+		int base = segments.length * pagesPerSegment;
+		segs[segs.length - 1] = seg;
+		segments = segs;
+		allocatedPages += pages;
+		if (freePages.length < allocatedPages)
+			freePages = Arrays.copyOf(freePages, (int) allocatedPages);
+		for (int i = 0; i < pages; i++)
+			freePages[freeCt++] = base + i;
+	}
+
+	/**
+	 * Drops the segments that start past the maximum size, evicting the
+	 * entries that still use their pages. Their direct memory is released
+	 * once lookups that already read the segments are done with them.
+	 */
+	private void trim() {
+		ByteBuffer[] segs = segments;
+		int keep = segs.length;
+		while (keep > 0 && (long) (keep - 1) * pagesPerSegment >= maxPages)
+			keep--;
+		if (keep == segs.length)
+			return;
+		int limit = keep * pagesPerSegment;
+		for (Entry e : map.values()) {
+			for (int p : e.pages) {
+				if (p >= limit) {
+					this.evict(e);
+					break;
+				}
+			}
+		}
+		int n = 0;
+		for (int i = 0; i < freeCt; i++) {
+			if (freePages[i] < limit)
+				freePages[n++] = freePages[i];
+		}
+		freeCt = n;
+		allocatedPages = 0;
+		for (int i = 0; i < keep; i++)
+			allocatedPages += segs[i].capacity() / pageSize;
+		freePages = Arrays.copyOf(freePages, (int) allocatedPages);
+		segments = Arrays.copyOf(segs, keep);
+	}
+
+	private static ByteBuffer page(ByteBuffer[] segs, int p, int pageSize,
+			int pagesPerSegment) {
+		int s = p / pagesPerSegment;
+		if (s >= segs.length)
+			return null;
+		ByteBuffer seg = segs[s].duplicate();
+		int off = (p % pagesPerSegment) * pageSize;
+		seg.limit(off + pageSize);
+		seg.position(off);
+		return seg;
+	}
+
+	private void copyIn(Entry e, byte[] data) {
+		ByteBuffer[] segs = segments;
+		int off = 0;
+		for (int p : e.pages) {
+			int l = Math.min(pageSize, data.length - off);
+			page(segs, p, pageSize, pagesPerSegment).put(data, off, l);
+			off += l;
+		}
+	}
+
+	/**
+	 * @return false if a page of the entry is no longer in the cache
+	 */
+	private boolean copyOut(Entry e, byte[] data) {
+		ByteBuffer[] segs = segments;
+		int off = 0;
+		for (int p : e.pages) {
+			ByteBuffer b = page(segs, p, pageSize, pagesPerSegment);
+			if (b == null)
+				return false;
+			int l = Math.min(pageSize, data.length - off);
+			b.get(data, off, l);
+			off += l;
+		}
+		return true;
+	}
+
+	private static final class Key {
+		private final byte[] hash;
+		private final int hc;
+
+		Key(byte[] hash) {
+			this.hash = hash;
+			this.hc = Arrays.hashCode(hash);
+		}
+
+		@Override
+		public int hashCode() {
+			return hc;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && Arrays.equals(hash, ((Key) o).hash);
+		}
+	}
+
+	private static final class Entry {
+		final Key key;
+		final int[] pages;
+		final int len;
+		int queue;
+		Entry prev;
+		Entry next;
+		volatile boolean evicted = false;
+
+		Entry(Key key, int[] pages, int len) {
+			this.key = key;
+			this.pages = pages == null ? new int[0] : pages;
+			this.len = len;
+		}
+	}
+
+	/**
+	 * A count-min sketch of 4 bit counters used to estimate how often a key
+	 * has been requested. All counters are halved once the number of
+	 * increments reaches ten times the width so old popularity fades.
+	 */
+	static final class FrequencySketch {
+		private static final int[] SEEDS = { 0x97cb3127, 0xb4b82e9b,
+				0x5b4b8d1f, 0x1e9c41f7 };
+		private final byte[][] table = new byte[4][];
+		private final int mask;
+		private final int sampleSize;
+		private int additions = 0;
+
+		FrequencySketch(int width) {
+			int w = Integer.highestOneBit(Math.max(16, width - 1)) << 1;
+			for (int i = 0; i < table.length; i++)
+				table[i] = new byte[w];
+			this.mask = w - 1;
+			this.sampleSize = w * 10;
+		}
+
+		private int index(int hash, int i) {
+			int h = (hash ^ SEEDS[i]) * 0x9e3779b9;
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		int frequency(int hash) {
+			int f = 15;
+			for (int i = 0; i < table.length; i++)
+				f = Math.min(f, table[i][this.index(hash, i)]);
+			return f;
+		}
+
+		void increment(int hash) {
+			boolean added = false;
+			for (int i = 0; i < table.length; i++) {
+				int idx = this.index(hash, i);
+				if (table[i][idx] < 15) {
+					table[i][idx]++;
+					added = true;
+				}
+			}
+			if (added && ++additions >= sampleSize)
+				this.reset();
+		}
+
+		private void reset() {
+			additions = 0;
+			for (byte[] row : table) {
+				for (int i = 0; i < row.length; i++)
+					row[i] = (byte) (row[i] >>> 1);
+			}
+		}
+	}
+
+}
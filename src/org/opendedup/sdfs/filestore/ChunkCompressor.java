@@ -0,0 +1,223 @@
+package org.opendedup.sdfs.filestore;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendedup.sdfs.Main;
+import org.opendedup.util.CompressionUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Decides how the chunk stores compress a chunk. A sample of every chunk is
+ * checked first and chunks whose bytes look random, such as media, archives
+ * or encrypted data, are stored as they are without a compression pass.
+ *
+ * Chunks written by the volumes use {@link Main#compressionCodec}. Chunks
+ * written by background work, see {@link IOThrottle#setBackground(boolean)},
+ * are cold and use {@link Main#coldCompressionCodec}. The codec is stored
+ * with every chunk so the settings can be changed at any time.
+ */
+public final class ChunkCompressor {
+	public static final int LZ4 = 0;
+	public static final int LZ4_HIGH = 1;
+	public static final int DEFLATE = 2;
+	private static final String[] NAMES = { "lz4", "lz4-high", "deflate" };
+
+	/*
+	 * The sample is taken as runs spread over the chunk so local structure
+	 * like headers is caught as well as the bulk of the data.
+	 */
+	private static final int SAMPLE = 1024;
+	private static final int RUN = 64;
+	private static final double[] CLOG = new double[SAMPLE + 1];
+	static {
+		for (int i = 1; i <= SAMPLE; i++)
+			CLOG[i] = i * Math.log(i) / Math.log(2);
+	}
+
+	private static final Stats[] stats = new Stats[NAMES.length];
+	static {
+		for (int i = 0; i < stats.length; i++)
+			stats[i] = new Stats();
+	}
+	private static final AtomicLong skipped = new AtomicLong();
+	private static final AtomicLong skippedBytes = new AtomicLong();
+
+	private ChunkCompressor() {
+	}
+
+	/**
+	 * @return the id of the codec called <tt>name</tt>
+	 * @throws IllegalArgumentException
+	 *             if there is no such codec
+	 */
+	public static int codec(String name) {
+		for (int i = 0; i < NAMES.length; i++) {
+			if (NAMES[i].equalsIgnoreCase(name))
+				return i;
+		}
+		throw new IllegalArgumentException("unknown compression codec "
+				+ name);
+	}
+
+	public static String name(int codec) {
+		return NAMES[codec];
+	}
+
+	/**
+	 * @return the codec to compress <tt>chunk</tt> with or -1 if it should be
+	 *         stored as it is
+	 */
+	public static int select(byte[] chunk) {
+		if (!Main.compress || !compressible(chunk))
+			return -1;
+		if (IOThrottle.isBackground())
+			return codec(Main.coldCompressionCodec);
+		return codec(Main.compressionCodec);
+	}
+
+	/**
+	 * @return false if a sample of <tt>chunk</tt> looks too random to be
+	 *         worth compressing
+	 */
+	public static boolean compressible(byte[] chunk) {
+		if (Main.compressionEntropyThreshold < 8
+				&& entropy(chunk) > Main.compressionEntropyThreshold) {
+			skipped.incrementAndGet();
+			skippedBytes.addAndGet(chunk.length);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The Shannon entropy, in bits per byte, of a sample of <tt>b</tt>.
+	 */
+	static double entropy(byte[] b) {
+		int[] counts = new int[256];
+		int n = 0;
+		if (b.length <= SAMPLE) {
+			for (int i = 0; i < b.length; i++)
+				counts[b[i] & 0xff]++;
+			n = b.length;
+		} else {
+			int runs = SAMPLE / RUN;
+			int step = (b.length - RUN) / (runs - 1);
+			for (int r = 0; r < runs; r++) {
+				int off = r * step;
+				for (int i = off; i < off + RUN; i++)
+					counts[b[i] & 0xff]++;
+			}
+			n = runs * RUN;
+		}
+		if (n == 0)
+			return 0;
+		double sum = 0;
+		for (int c : counts)
+			sum += CLOG[c];
+		return CLOG[n] / n - sum / n;
+	}
+
+	/**
+	 * @return the output size {@link #compress(int, byte[], byte[], int)}
+	 *         needs for a chunk of <tt>len</tt> bytes
+	 */
+	public static int maxCompressedLength(int len) {
+		return CompressionUtils.maxCompressedLengthLz4(len);
+	}
+
+	/**
+	 * Compresses <tt>chunk</tt> into <tt>out</tt>.
+	 *
+	 * @return the compressed length or -1 if it is not less than
+	 *         <tt>limit</tt> and the chunk should be stored as it is
+	 */
+	public static int compress(int codec, byte[] chunk, byte[] out, int limit)
+			throws IOException {
+		long tm = System.nanoTime();
+		int clen;
+		switch (codec) {
+		case LZ4:
+			clen = CompressionUtils.compressLz4(chunk, out);
+			break;
+		case LZ4_HIGH:
+			clen = CompressionUtils.compressLz4High(chunk, out);
+			break;
+		case DEFLATE:
+			clen = CompressionUtils.compressZLIB(chunk, out, limit);
+			break;
+		default:
+			throw new IOException("unknown compression codec " + codec);
+		}
+		Stats s = stats[codec];
+		s.compressTime.addAndGet(System.nanoTime() - tm);
+		s.bytesIn.addAndGet(chunk.length);
+		if (clen < 0 || clen >= limit) {
+			s.rejected.incrementAndGet();
+			s.bytesOut.addAndGet(chunk.length);
+			return -1;
+		}
+		s.chunks.incrementAndGet();
+		s.bytesOut.addAndGet(clen);
+		return clen;
+	}
+
+	/**
+	 * Turns the first <tt>len</tt> bytes of <tt>data</tt> back into the
+	 * <tt>ulen</tt> bytes of the chunk.
+	 */
+	public static byte[] decompress(int codec, byte[] data, int len, int ulen)
+			throws IOException {
+		long tm = System.nanoTime();
+		byte[] chunk;
+		switch (codec) {
+		case LZ4:
+		case LZ4_HIGH:
+			chunk = CompressionUtils.decompressLz4(data, ulen);
+			break;
+		case DEFLATE:
+			chunk = CompressionUtils.decompressZLIB(data, len, ulen);
+			break;
+		default:
+			throw new IOException("unknown compression codec " + codec);
+		}
+		stats[codec].decompressTime.addAndGet(System.nanoTime() - tm);
+		return chunk;
+	}
+
+	public static Element toXML(Document doc) {
+		Element root = doc.createElement("compression");
+		root.setAttribute("codec", Main.compressionCodec);
+		root.setAttribute("cold-codec", Main.coldCompressionCodec);
+		root.setAttribute("entropy-threshold",
+				Double.toString(Main.compressionEntropyThreshold));
+		root.setAttribute("skipped-chunks", Long.toString(skipped.get()));
+		root.setAttribute("skipped-bytes", Long.toString(skippedBytes.get()));
+		for (int i = 0; i < NAMES.length; i++) {
+			Stats s = stats[i];
+			Element el = doc.createElement("codec");
+			el.setAttribute("name", NAMES[i]);
+			el.setAttribute("chunks", Long.toString(s.chunks.get()));
+			el.setAttribute("rejected-chunks", Long.toString(s.rejected.get()));
+			el.setAttribute("bytes-in", Long.toString(s.bytesIn.get()));
+			el.setAttribute("bytes-out", Long.toString(s.bytesOut.get()));
+			el.setAttribute("compress-ms",
+					Long.toString(s.compressTime.get() / 1000000));
+			el.setAttribute("decompress-ms",
+					Long.toString(s.decompressTime.get() / 1000000));
+			root.appendChild(el);
+		}
+		return root;
+	}
+
+	private static final class Stats {
+		final AtomicLong chunks = new AtomicLong();
+		final AtomicLong rejected = new AtomicLong();
+		final AtomicLong bytesIn = new AtomicLong();
+		final AtomicLong bytesOut = new AtomicLong();
+		final AtomicLong compressTime = new AtomicLong();
+		final AtomicLong decompressTime = new AtomicLong();
+	}
+
+}
@@ -2,6 +2,8 @@ package org.opendedup.sdfs.filestore;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.bouncycastle.util.Arrays;
 import org.opendedup.collections.DataArchivedException;
@@ -133,6 +135,43 @@ public class ChunkData {
 		}
 	}
 
+	/**
+	 * Writes the data of several chunks to the chunk store. Stores that
+	 * implement {@link BatchChunkStore} get all of them in a single call,
+	 * other stores one at a time.
+	 */
+	public static void persistData(List<ChunkData> cms) throws IOException {
+		AbstractChunkStore store = HCServiceProxy.getChunkStore();
+		ArrayList<ChunkData> batch = new ArrayList<ChunkData>(cms.size());
+		for (ChunkData cm : cms) {
+			if (cm.recoverd || cm.chunk == null)
+				continue;
+			if (cm.mDelete || cm.writeStore != null
+					|| !(store instanceof BatchChunkStore))
+				cm.persistData(true);
+			else
+				batch.add(cm);
+		}
+		if (batch.size() == 0)
+			return;
+		if (batch.size() == 1) {
+			batch.get(0).persistData(true);
+			return;
+		}
+		byte[][] hashes = new byte[batch.size()][];
+		byte[][] chunks = new byte[batch.size()][];
+		for (int i = 0; i < batch.size(); i++) {
+			hashes[i] = batch.get(i).hash;
+			chunks[i] = batch.get(i).chunk;
+		}
+		long[] pos = ((BatchChunkStore) store).writeChunks(hashes, chunks);
+		for (int i = 0; i < batch.size(); i++) {
+			ChunkData cm = batch.get(i);
+			cm.cPos = pos[i];
+			cm.chunk = null;
+		}
+	}
+
 	public boolean ismDelete() {
 		return mDelete;
 	}
@@ -0,0 +1,134 @@
+package org.opendedup.sdfs.filestore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.opendedup.hashing.HashFunctionPool;
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.opendedup.util.ChunkBuffer;
+import org.opendedup.util.ChunkBufferPool;
+import org.opendedup.util.ChunkCipher;
+
+/**
+ * The record format shared by the log structured chunk stores. A record is
+ * [hash|flags (1 byte)|chunk length (4 bytes)|stored length (4 bytes)|data]
+ * where the flags mark compressed and encrypted data and bits 3 and 4 of the
+ * flags hold the {@link ChunkCompressor} codec. Data encrypted with
+ * {@link ChunkCipher#GCM} is marked AUTHENTICATED and starts with its IV. An
+ * index entry is
+ * [hash|record offset (4 bytes)|record length (4 bytes)].
+ */
+final class ChunkRecord {
+	static final int HL = HashFunctionPool.hashLength;
+	static final int HDR = HL + 1 + 4 + 4;
+	static final int IDX = HL + 4 + 4;
+	static final byte COMPRESSED = 1;
+	static final byte ENCRYPTED = 2;
+	static final int CODEC_SHIFT = 3;
+	static final byte AUTHENTICATED = 32;
+
+	private ChunkRecord() {
+	}
+
+	static long loc(int id, long off) {
+		return ((long) id << 32) | off;
+	}
+
+	static byte[] encode(byte[] hash, byte[] chunk) throws IOException {
+		byte[] data = chunk;
+		int dlen = chunk.length;
+		byte flags = 0;
+		ChunkBuffer cbuf = null;
+		try {
+			int codec = ChunkCompressor.select(chunk);
+			if (codec >= 0) {
+				cbuf = ChunkBufferPool.borrowScratch(ChunkCompressor
+						.maxCompressedLength(chunk.length));
+				int clen = ChunkCompressor.compress(codec, chunk,
+						cbuf.array(), chunk.length);
+				if (clen >= 0) {
+					data = cbuf.array();
+					dlen = clen;
+					flags |= COMPRESSED | (codec << CODEC_SHIFT);
+				}
+			}
+			ByteBuffer rec;
+			if (Main.chunkStoreEncryptionEnabled) {
+				// encrypted straight into the record
+				ChunkCipher cipher = ChunkCipher.forWrites();
+				rec = ByteBuffer.allocate(HDR + cipher.outputSize(dlen));
+				dlen = cipher.encrypt(data, 0, dlen, rec.array(), HDR);
+				flags |= ENCRYPTED;
+				if (cipher == ChunkCipher.GCM)
+					flags |= AUTHENTICATED;
+			} else {
+				rec = ByteBuffer.allocate(HDR + dlen);
+				System.arraycopy(data, 0, rec.array(), HDR, dlen);
+			}
+			rec.put(hash);
+			rec.put(flags);
+			rec.putInt(chunk.length);
+			rec.putInt(dlen);
+			if (HDR + dlen < rec.capacity())
+				return Arrays.copyOf(rec.array(), HDR + dlen);
+			return rec.array();
+		} finally {
+			if (cbuf != null)
+				cbuf.release();
+		}
+	}
+
+	/**
+	 * The stored length of the record whose header starts at <tt>off</tt>.
+	 */
+	static int dataLength(ByteBuffer b, int off) {
+		return b.getInt(off + HL + 5);
+	}
+
+	/**
+	 * Turns the stored data of a record back into the chunk.
+	 */
+	static byte[] decode(byte flags, int ulen, byte[] data, long pos)
+			throws IOException {
+		ChunkBuffer cbuf = null;
+		try {
+			int len = data.length;
+			if ((flags & ENCRYPTED) != 0) {
+				ChunkCipher cipher = (flags & AUTHENTICATED) != 0 ? ChunkCipher.GCM
+						: ChunkCipher.ECB;
+				if ((flags & COMPRESSED) != 0) {
+					// only read by the decompressor, so decrypted into scratch
+					cbuf = ChunkBufferPool.borrowScratch(len);
+					len = cipher.decrypt(data, 0, len, cbuf.array(), 0);
+					data = cbuf.array();
+				} else {
+					data = cipher.decrypt(data, 0, len);
+				}
+			}
+			if ((flags & COMPRESSED) != 0)
+				data = ChunkCompressor.decompress((flags >> CODEC_SHIFT) & 3,
+						data, len, ulen);
+		} catch (Exception e) {
+			SDFSLogger.getLog().error(
+					"unable to decode chunk at position " + pos, e);
+			throw new IOException(e);
+		} finally {
+			if (cbuf != null)
+				cbuf.release();
+		}
+		return data;
+	}
+
+	static void indexEntry(ByteArrayOutputStream idx, byte[] hash, long off,
+			int rl) {
+		ByteBuffer b = ByteBuffer.allocate(IDX);
+		b.put(hash);
+		b.putInt((int) off);
+		b.putInt(rl);
+		idx.write(b.array(), 0, IDX);
+	}
+
+}
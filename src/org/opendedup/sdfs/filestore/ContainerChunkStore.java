@@ -0,0 +1,58 @@
+package org.opendedup.sdfs.filestore;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.opendedup.sdfs.Main;
+import org.w3c.dom.Element;
+
+/**
+ * A log structured chunk store that keeps its containers on local disk.
+ * Chunks are appended to the active container, a file of up to
+ * Main.containerSize bytes in the containers folder of the chunk store, and
+ * sealed containers stay where they were written. See {@link LogChunkStore}
+ * for the record format and compaction.
+ */
+public class ContainerChunkStore extends
+		LogChunkStore<LogChunkStore.Container> {
+	private static final int MAX_OPEN = 256;
+
+	public ContainerChunkStore() {
+		super("container", MAX_OPEN);
+	}
+
+	@Override
+	protected Container newContainer(int id) {
+		return new Container(id, new File(dir, id + ".ctr"), new File(dir, id
+				+ ".idx"));
+	}
+
+	@Override
+	protected long maxLength() {
+		return Main.containerSize;
+	}
+
+	@Override
+	protected void load(Element config) throws IOException {
+		File[] fs = dir.listFiles();
+		for (File f : fs) {
+			String fn = f.getName();
+			if (fn.endsWith(".ctr")) {
+				int id = Integer.parseInt(fn.substring(0, fn.length() - 4));
+				Container c = this.newContainer(id);
+				c.length = f.length();
+				containers.put(id, c);
+			}
+		}
+	}
+
+	@Override
+	protected boolean recover(Container c) throws IOException {
+		// a crash can leave a container without its index or with one that
+		// stops short of the records appended before it
+		if (this.indexedLength(c) != c.length)
+			this.rebuildIndex(c);
+		return true;
+	}
+
+}
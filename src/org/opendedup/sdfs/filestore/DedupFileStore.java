@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantLock;
 
+import org.opendedup.collections.MapSegmentStore;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
 import org.opendedup.sdfs.io.DedupFile;
@@ -219,6 +220,7 @@ public class DedupFileStore {
 							"Closed " + df.getMetaFile().getPath());
 			}
 		}
+		MapSegmentStore.close();
 	}
 
 	/**
@@ -0,0 +1,237 @@
+package org.opendedup.sdfs.filestore;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.opendedup.logging.SDFSLogger;
+
+/**
+ * Reads and writes the pages of a chunk store file with O_DIRECT so chunk
+ * data does not go through the page cache and cannot push the hash table out
+ * of memory.
+ *
+ * Direct I/O has to start and end on {@link #ALIGN} byte boundaries and use
+ * buffers aligned the same way. Pages are read and written through pooled
+ * aligned buffers covering the blocks they touch. When the page size is not
+ * a multiple of the block size, the blocks a page shares with its neighbours
+ * are read first and written back with the new page under a lock for each
+ * shared block, so writers of neighbouring pages cannot undo each other.
+ *
+ * The open option and the aligned buffers need a JVM that supports them,
+ * which is looked up when the class loads so the stores still run on older
+ * JVMs without direct I/O.
+ */
+class DirectIO {
+	static final int ALIGN = 4096;
+	private static final long MAX_POOLED = 64L * 1024 * 1024;
+	private static final OpenOption DIRECT;
+	private static final Method ALIGNED_SLICE;
+	static {
+		OpenOption direct = null;
+		Method slice = null;
+		try {
+			Class<?> c = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+			for (Object o : c.getEnumConstants()) {
+				if ("DIRECT".equals(o.toString()))
+					direct = (OpenOption) o;
+			}
+			slice = ByteBuffer.class.getMethod("alignedSlice", int.class);
+		} catch (Exception e) {
+			direct = null;
+		}
+		DIRECT = direct;
+		ALIGNED_SLICE = slice;
+	}
+
+	private static final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>> pools = new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>>();
+	private static final AtomicLong pooledBytes = new AtomicLong();
+
+	private final ReentrantLock[] stripes = new ReentrantLock[64];
+
+	DirectIO() {
+		for (int i = 0; i < stripes.length; i++)
+			stripes[i] = new ReentrantLock();
+	}
+
+	/**
+	 * @return true if the JVM can open files for direct I/O
+	 */
+	static boolean available() {
+		return DIRECT != null && ALIGNED_SLICE != null;
+	}
+
+	static FileChannel open(File f) throws IOException {
+		return FileChannel.open(f.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE, DIRECT);
+	}
+
+	/**
+	 * Reads <tt>len</tt> bytes at <tt>pos</tt> into <tt>b</tt>.
+	 */
+	void read(FileChannel ch, long pos, byte[] b, int len) throws IOException {
+		long wstart = pos & ~(long) (ALIGN - 1);
+		ByteBuffer w = borrow((int) (alignUp(pos + len) - wstart));
+		try {
+			while (w.hasRemaining()) {
+				if (ch.read(w, wstart + w.position()) < 0)
+					break;
+			}
+			int off = (int) (pos - wstart);
+			int n = Math.min(len, w.position() - off);
+			if (n > 0) {
+				w.flip();
+				w.position(off);
+				w.get(b, 0, n);
+			}
+		} finally {
+			release(w);
+		}
+	}
+
+	/**
+	 * Locks the blocks the <tt>span</tt> bytes at <tt>pos</tt> share with
+	 * other pages and returns an aligned buffer covering all the blocks, with
+	 * the shared ones read from the file. The caller puts exactly
+	 * <tt>span</tt> bytes at the buffer's position, calls
+	 * {@link #write(FileChannel, long, int, ByteBuffer)} and always calls
+	 * {@link #done(long, int, ByteBuffer)} afterwards.
+	 */
+	ByteBuffer window(FileChannel ch, long pos, int span) throws IOException {
+		long wstart = pos & ~(long) (ALIGN - 1);
+		long wend = alignUp(pos + span);
+		int wlen = (int) (wend - wstart);
+		this.lock(pos, span);
+		ByteBuffer w = null;
+		try {
+			w = borrow(wlen);
+			if (pos != wstart)
+				readBlock(ch, w, 0, wstart);
+			if (pos + span != wend && (wlen > ALIGN || pos == wstart))
+				readBlock(ch, w, wlen - ALIGN, wend - ALIGN);
+			w.limit(wlen);
+			w.position((int) (pos - wstart));
+			return w;
+		} catch (IOException e) {
+			this.done(pos, span, w);
+			throw e;
+		}
+	}
+
+	void write(FileChannel ch, long pos, int span, ByteBuffer w)
+			throws IOException {
+		long wstart = pos & ~(long) (ALIGN - 1);
+		w.position(0);
+		w.limit((int) (alignUp(pos + span) - wstart));
+		while (w.hasRemaining())
+			ch.write(w, wstart + w.position());
+	}
+
+	void done(long pos, int span, ByteBuffer w) {
+		if (w != null)
+			release(w);
+		this.unlock(pos, span);
+	}
+
+	/**
+	 * @return the stripes of the blocks shared with other pages, in the order
+	 *         they are locked
+	 */
+	private int[] shared(long pos, int span) {
+		int head = -1;
+		int tail = -1;
+		if ((pos & (ALIGN - 1)) != 0)
+			head = stripe(pos / ALIGN);
+		if (((pos + span) & (ALIGN - 1)) != 0)
+			tail = stripe((pos + span) / ALIGN);
+		if (head == tail || head < 0)
+			return tail < 0 ? new int[0] : new int[] { tail };
+		if (tail < 0)
+			return new int[] { head };
+		return new int[] { Math.min(head, tail), Math.max(head, tail) };
+	}
+
+	private void lock(long pos, int span) {
+		for (int i : this.shared(pos, span))
+			stripes[i].lock();
+	}
+
+	private void unlock(long pos, int span) {
+		for (int i : this.shared(pos, span))
+			stripes[i].unlock();
+	}
+
+	private int stripe(long block) {
+		return (int) (block % stripes.length);
+	}
+
+	private static long alignUp(long pos) {
+		return (pos + ALIGN - 1) & ~(long) (ALIGN - 1);
+	}
+
+	private static void readBlock(FileChannel ch, ByteBuffer w, int off,
+			long pos) throws IOException {
+		ByteBuffer b = w.duplicate();
+		b.limit(off + ALIGN);
+		b.position(off);
+		while (b.hasRemaining()) {
+			if (ch.read(b, pos + b.position() - off) < 0)
+				break;
+		}
+		// past the end of the file
+		while (b.hasRemaining())
+			b.put((byte) 0);
+	}
+
+	/**
+	 * Borrows an aligned buffer of <tt>len</tt> bytes, rounded up to a whole
+	 * number of blocks.
+	 */
+	static ByteBuffer borrow(int len) {
+		int sz = (int) alignUp(len);
+		ByteBuffer b = queue(sz).poll();
+		if (b != null) {
+			pooledBytes.addAndGet(-sz);
+			b.clear();
+			return b;
+		}
+		try {
+			b = (ByteBuffer) ALIGNED_SLICE.invoke(
+					ByteBuffer.allocateDirect(sz + ALIGN), ALIGN);
+		} catch (Exception e) {
+			SDFSLogger.getLog().error("unable to allocate aligned buffer", e);
+			throw new IllegalStateException(e);
+		}
+		b.limit(sz);
+		return b.slice();
+	}
+
+	static void release(ByteBuffer b) {
+		int sz = b.capacity();
+		if (pooledBytes.addAndGet(sz) > MAX_POOLED) {
+			pooledBytes.addAndGet(-sz);
+			return;
+		}
+		queue(sz).offer(b);
+	}
+
+	private static ConcurrentLinkedQueue<ByteBuffer> queue(int len) {
+		ConcurrentLinkedQueue<ByteBuffer> q = pools.get(len);
+		if (q == null) {
+			q = new ConcurrentLinkedQueue<ByteBuffer>();
+			ConcurrentLinkedQueue<ByteBuffer> _q = pools.putIfAbsent(len, q);
+			if (_q != null)
+				q = _q;
+		}
+		return q;
+	}
+
+}
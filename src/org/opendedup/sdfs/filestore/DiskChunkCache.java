@@ -0,0 +1,750 @@
+package org.opendedup.sdfs.filestore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.opendedup.util.StringUtils;
+import org.w3c.dom.Element;
+
+/**
+ * A persistent cache of chunks on local disk for the cloud chunk stores. It
+ * serves reads of chunks fetched before and stages new chunks so writes
+ * complete at local disk speed while a bounded pool uploads them.
+ *
+ * Chunks are appended as {@link ChunkRecord} records to segment files in the
+ * cache folder and an in memory index maps each hash to its record. Staged
+ * chunks carry a dirty flag in their record until the upload succeeds, so
+ * they survive a crash and are uploaded again on the next start. The index
+ * is saved on close and rebuilt from the segment headers otherwise.
+ *
+ * Space is reclaimed a segment at a time, oldest first. Dirty records are
+ * always copied forward. Clean records that were read while in the segment
+ * are copied forward with their hit count halved, up to half a segment per
+ * eviction, and the rest are dropped. This keeps the working set cached like
+ * an LRU while chunks read often survive scans like an LFU.
+ *
+ * A cache with a maximum size of 0 is disabled and never touches the disk.
+ */
+public class DiskChunkCache {
+	private static final int HL = ChunkRecord.HL;
+	private static final int HDR = ChunkRecord.HDR;
+	// the record flag bits not used by ChunkRecord
+	private static final byte DIRTY = 4;
+	private static final int MAX_OPEN = 256;
+	private static final long MIN_SEGMENT = 4 * 1024 * 1024;
+	private static final long MAX_SEGMENT = 64 * 1024 * 1024;
+	private static final long RETRY_INTERVAL = 30 * 1000;
+	private final File dir;
+	private final ChunkWriter writer;
+	private final int uploadThreads;
+	private volatile long maxSize = 0;
+	private volatile boolean opened = false;
+	private volatile boolean closed = false;
+	private final ConcurrentHashMap<ByteBuffer, Entry> map = new ConcurrentHashMap<ByteBuffer, Entry>();
+	// segment id to length, oldest first
+	private final ConcurrentSkipListMap<Integer, Long> segments = new ConcurrentSkipListMap<Integer, Long>();
+	// channels of the segments, least recently used first
+	private final LinkedHashMap<Integer, FileChannel> open = new LinkedHashMap<Integer, FileChannel>(
+			16, .75f, true);
+	private final ReentrantLock wlock = new ReentrantLock();
+	// guards dirty flag changes against evictions copying the record
+	private final Object dirtyLock = new Object();
+	private final AtomicLong size = new AtomicLong();
+	private final AtomicLong dirtyBytes = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final ConcurrentLinkedQueue<byte[]> failed = new ConcurrentLinkedQueue<byte[]>();
+	private int activeSeg = 0;
+	private FileChannel activeCh = null;
+	private long activeLen = 0;
+	private long segmentSize = MAX_SEGMENT;
+	private ThreadPoolExecutor uploader = null;
+	private Maintainer th = null;
+
+	/**
+	 * Uploads a staged chunk to the store behind the cache.
+	 */
+	public interface ChunkWriter {
+		public void upload(byte[] hash, byte[] chunk) throws IOException;
+	}
+
+	private static final class Entry {
+		final int seg;
+		final int off;
+		final int len;
+		volatile boolean dirty;
+		volatile int hits;
+
+		Entry(int seg, int off, int len, boolean dirty) {
+			this.seg = seg;
+			this.off = off;
+			this.len = len;
+			this.dirty = dirty;
+		}
+	}
+
+	public DiskChunkCache(File dir, ChunkWriter writer, int uploadThreads) {
+		this.dir = dir;
+		this.writer = writer;
+		this.uploadThreads = Math.max(1, uploadThreads);
+	}
+
+	/**
+	 * Creates the cache of a chunk store in the cache folder of the chunk
+	 * store, sized by the local-cache-size attribute of its config.
+	 */
+	public static DiskChunkCache open(Element config, ChunkWriter writer)
+			throws IOException {
+		DiskChunkCache cache = new DiskChunkCache(new File(Main.chunkStore
+				+ File.separator + "cache"), writer, Main.writeThreads);
+		if (config != null && config.hasAttribute("local-cache-size"))
+			cache.setMaxSize(StringUtils.parseSize(config
+					.getAttribute("local-cache-size")));
+		return cache;
+	}
+
+	private synchronized void start() throws IOException {
+		if (this.opened)
+			return;
+		if (!dir.exists() && !dir.mkdirs())
+			throw new IOException("unable to create " + dir.getPath());
+		segmentSize = Math.max(MIN_SEGMENT, Math.min(MAX_SEGMENT, maxSize / 16));
+		File[] fs = dir.listFiles();
+		for (File f : fs) {
+			String fn = f.getName();
+			if (fn.endsWith(".seg")) {
+				int id = Integer.parseInt(fn.substring(0, fn.length() - 4));
+				segments.put(id, f.length());
+				size.addAndGet(f.length());
+			}
+		}
+		File idx = new File(dir, "cache.map");
+		if (!idx.exists() || !this.readIndex(idx)) {
+			map.clear();
+			for (int id : segments.keySet())
+				this.scan(id);
+		}
+		idx.delete();
+		for (Entry e : map.values()) {
+			if (e.dirty)
+				dirtyBytes.addAndGet(e.len);
+		}
+		this.startSegment(segments.isEmpty() ? 1 : segments.lastKey() + 1);
+		uploader = new ThreadPoolExecutor(uploadThreads, uploadThreads, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		this.opened = true;
+		int n = 0;
+		for (Map.Entry<ByteBuffer, Entry> e : map.entrySet()) {
+			if (e.getValue().dirty) {
+				this.upload(e.getKey().array());
+				n++;
+			}
+		}
+		SDFSLogger.getLog().info(
+				"Opened chunk cache " + dir.getPath() + " with " + map.size()
+						+ " chunks in " + size.get() + " bytes, " + n
+						+ " waiting for upload");
+		th = new Maintainer(this);
+	}
+
+	/**
+	 * Loads the index saved by a clean close.
+	 *
+	 * @return false if it does not match the segments on disk
+	 */
+	private boolean readIndex(File idx) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(idx)));
+		try {
+			int n = in.readInt();
+			for (int i = 0; i < n; i++) {
+				byte[] hash = new byte[HL];
+				in.readFully(hash);
+				int seg = in.readInt();
+				int off = in.readInt();
+				int len = in.readInt();
+				boolean dirty = in.readBoolean();
+				int h = in.readUnsignedByte();
+				Long sl = segments.get(seg);
+				if (sl == null || off + len > sl)
+					return false;
+				Entry e = new Entry(seg, off, len, dirty);
+				e.hits = h;
+				map.put(ByteBuffer.wrap(hash), e);
+			}
+			return true;
+		} catch (IOException e) {
+			SDFSLogger.getLog().warn("unable to read chunk cache index", e);
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void writeIndex() throws IOException {
+		File tmp = new File(dir, "cache.map.tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp)));
+		try {
+			ArrayList<Map.Entry<ByteBuffer, Entry>> al = new ArrayList<Map.Entry<ByteBuffer, Entry>>(
+					map.entrySet());
+			out.writeInt(al.size());
+			for (Map.Entry<ByteBuffer, Entry> me : al) {
+				Entry e = me.getValue();
+				out.write(me.getKey().array());
+				out.writeInt(e.seg);
+				out.writeInt(e.off);
+				out.writeInt(e.len);
+				out.writeBoolean(e.dirty);
+				out.writeByte(Math.min(e.hits, 255));
+			}
+		} finally {
+			out.close();
+		}
+		tmp.renameTo(new File(dir, "cache.map"));
+	}
+
+	/**
+	 * Indexes the records of a segment from their headers. A record that was
+	 * only partially written is cut off.
+	 */
+	private void scan(int seg) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(this.file(seg), "rw");
+		try {
+			FileChannel ch = raf.getChannel();
+			long len = ch.size();
+			long pos = 0;
+			ByteBuffer hb = ByteBuffer.allocate(HDR);
+			while (pos + HDR <= len) {
+				hb.clear();
+				ch.read(hb, pos);
+				int dlen = ChunkRecord.dataLength(hb, 0);
+				if (dlen < 0 || pos + HDR + dlen > len)
+					break;
+				byte[] hash = new byte[HL];
+				hb.position(0);
+				hb.get(hash);
+				boolean dirty = (hb.get(HL) & DIRTY) != 0;
+				map.put(ByteBuffer.wrap(hash), new Entry(seg, (int) pos, HDR
+						+ dlen, dirty));
+				pos += HDR + dlen;
+			}
+			if (pos < len) {
+				ch.truncate(pos);
+				segments.put(seg, pos);
+				size.addAndGet(pos - len);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	private File file(int seg) {
+		return new File(dir, seg + ".seg");
+	}
+
+	private void startSegment(int id) throws IOException {
+		activeCh = new RandomAccessFile(this.file(id), "rw").getChannel();
+		activeSeg = id;
+		activeLen = 0;
+		segments.put(id, 0L);
+	}
+
+	private Entry append(byte[] rec, boolean dirty) throws IOException {
+		wlock.lock();
+		try {
+			if (activeLen > 0 && activeLen + rec.length > segmentSize) {
+				activeCh.force(false);
+				activeCh.close();
+				this.startSegment(activeSeg + 1);
+			}
+			ByteBuffer buf = ByteBuffer.wrap(rec);
+			try {
+				while (buf.hasRemaining())
+					activeCh.write(buf, activeLen + buf.position());
+			} catch (ClosedChannelException e) {
+				// closed by an interrupt, reopen it for the next writer
+				activeCh = new RandomAccessFile(this.file(activeSeg), "rw")
+						.getChannel();
+				throw e;
+			}
+			Entry e = new Entry(activeSeg, (int) activeLen, rec.length, dirty);
+			activeLen += rec.length;
+			segments.put(activeSeg, activeLen);
+			size.addAndGet(rec.length);
+			return e;
+		} finally {
+			wlock.unlock();
+		}
+	}
+
+	private FileChannel channel(int seg) throws IOException {
+		synchronized (open) {
+			FileChannel ch = open.get(seg);
+			if (ch == null || !ch.isOpen()) {
+				ch = new RandomAccessFile(this.file(seg), "rw").getChannel();
+				open.put(seg, ch);
+				if (open.size() > MAX_OPEN) {
+					Iterator<Map.Entry<Integer, FileChannel>> it = open
+							.entrySet().iterator();
+					FileChannel ech = it.next().getValue();
+					it.remove();
+					ech.close();
+				}
+			}
+			return ch;
+		}
+	}
+
+	private void closeChannel(int seg) {
+		synchronized (open) {
+			FileChannel ch = open.remove(seg);
+			if (ch != null) {
+				try {
+					ch.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the record of an entry. Channels are shared and may be closed
+	 * under a reader when they are evicted, in which case the read is retried
+	 * once.
+	 */
+	private byte[] read(Entry e) throws IOException {
+		for (int t = 0;; t++) {
+			try {
+				FileChannel ch = this.channel(e.seg);
+				ByteBuffer buf = ByteBuffer.allocate(e.len);
+				while (buf.hasRemaining()) {
+					if (ch.read(buf, e.off + buf.position()) < 0)
+						throw new IOException("short read in cache segment "
+								+ e.seg);
+				}
+				return buf.array();
+			} catch (ClosedChannelException x) {
+				if (t > 0 || Thread.currentThread().isInterrupted())
+					throw x;
+			}
+		}
+	}
+
+	private static byte[] decode(byte[] rec, long pos) throws IOException {
+		ByteBuffer b = ByteBuffer.wrap(rec);
+		b.position(HL);
+		byte flags = b.get();
+		int ulen = b.getInt();
+		int dlen = b.getInt();
+		byte[] data = new byte[dlen];
+		b.get(data);
+		return ChunkRecord.decode(flags, ulen, data, pos);
+	}
+
+	/**
+	 * The cached chunk for a hash, or null if it is not in the cache.
+	 */
+	public byte[] get(byte[] hash) {
+		if (!this.opened || this.closed)
+			return null;
+		ByteBuffer key = ByteBuffer.wrap(hash);
+		Entry e = map.get(key);
+		// an eviction may move the record while it is read
+		for (int t = 0; e != null && t < 2; t++) {
+			try {
+				byte[] rec = this.read(e);
+				if (!Arrays.equals(hash, Arrays.copyOf(rec, HL)))
+					break;
+				byte[] data = decode(rec, e.off);
+				if (e.hits < 255)
+					e.hits++;
+				hits.incrementAndGet();
+				return data;
+			} catch (IOException x) {
+				Entry _e = map.get(key);
+				if (_e == e)
+					break;
+				e = _e;
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Caches a chunk read from the store.
+	 */
+	public void put(byte[] hash, byte[] chunk) {
+		if (!this.opened || this.closed || maxSize == 0)
+			return;
+		ByteBuffer key = ByteBuffer.wrap(hash);
+		if (map.containsKey(key))
+			return;
+		try {
+			Entry e = this.append(ChunkRecord.encode(hash, chunk), false);
+			map.putIfAbsent(key, e);
+		} catch (IOException x) {
+			SDFSLogger.getLog().warn("unable to cache chunk", x);
+		}
+	}
+
+	/**
+	 * Writes a chunk to the cache and queues it for upload.
+	 *
+	 * @return false if the cache is disabled and the caller has to upload the
+	 *         chunk itself
+	 */
+	public boolean stage(byte[] hash, byte[] chunk) throws IOException {
+		if (!this.opened || this.closed || maxSize == 0 || writer == null)
+			return false;
+		this.waitForUploads();
+		byte[] rec = ChunkRecord.encode(hash, chunk);
+		rec[HL] |= DIRTY;
+		Entry e = this.append(rec, true);
+		synchronized (dirtyLock) {
+			Entry old = map.put(ByteBuffer.wrap(hash), e);
+			dirtyBytes.addAndGet(e.len);
+			if (old != null && old.dirty)
+				dirtyBytes.addAndGet(-old.len);
+		}
+		this.upload(hash);
+		return true;
+	}
+
+	/**
+	 * Drops a chunk that was deleted from the store.
+	 */
+	public void remove(byte[] hash) {
+		if (!this.opened)
+			return;
+		synchronized (dirtyLock) {
+			Entry e = map.remove(ByteBuffer.wrap(hash));
+			if (e != null && e.dirty)
+				this.cleaned(e);
+		}
+	}
+
+	/**
+	 * Holds writers back while half the cache is waiting for upload, so the
+	 * cache keeps room for reads when the store is slow or unreachable.
+	 */
+	private void waitForUploads() throws IOException {
+		synchronized (dirtyBytes) {
+			while (dirtyBytes.get() > maxSize / 2 && !this.closed) {
+				try {
+					dirtyBytes.wait(1000);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+		}
+	}
+
+	private void cleaned(Entry e) {
+		synchronized (dirtyBytes) {
+			dirtyBytes.addAndGet(-e.len);
+			dirtyBytes.notifyAll();
+		}
+	}
+
+	private void upload(final byte[] hash) {
+		try {
+			uploader.execute(new Runnable() {
+				@Override
+				public void run() {
+					ByteBuffer key = ByteBuffer.wrap(hash);
+					try {
+						Entry e = map.get(key);
+						if (e == null || !e.dirty)
+							return;
+						writer.upload(hash, decode(read(e), e.off));
+						markClean(key);
+					} catch (Exception x) {
+						failed.add(hash);
+						SDFSLogger.getLog().warn(
+								"unable to upload cached chunk "
+										+ StringUtils.getHexString(hash)
+										+ ", it will be retried", x);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// closing, the chunk is uploaded on the next start
+		}
+	}
+
+	private void markClean(ByteBuffer key) throws IOException {
+		synchronized (dirtyLock) {
+			Entry e = map.get(key);
+			if (e == null || !e.dirty)
+				return;
+			e.dirty = false;
+			this.cleaned(e);
+			FileChannel ch = this.channel(e.seg);
+			ByteBuffer fb = ByteBuffer.allocate(1);
+			ch.read(fb, e.off + HL);
+			fb.put(0, (byte) (fb.get(0) & ~DIRTY));
+			fb.position(0);
+			ch.write(fb, e.off + HL);
+		}
+	}
+
+	private void retryUploads() {
+		byte[] hash;
+		while ((hash = failed.poll()) != null)
+			this.upload(hash);
+	}
+
+	/**
+	 * Copies a record forward to the active segment if the index still
+	 * points to it.
+	 */
+	private boolean copy(ByteBuffer key, Entry e, int hits) throws IOException {
+		byte[] rec = this.read(e);
+		synchronized (dirtyLock) {
+			if (map.get(key) != e)
+				return false;
+			if (e.dirty)
+				rec[HL] |= DIRTY;
+			else
+				rec[HL] &= ~DIRTY;
+			Entry ne = this.append(rec, e.dirty);
+			ne.hits = hits;
+			map.put(key, ne);
+		}
+		return true;
+	}
+
+	/**
+	 * Removes the oldest segment, copying forward its dirty records and the
+	 * clean ones read while it was cached.
+	 */
+	private void evict(int seg) throws IOException {
+		long len = segments.get(seg);
+		long budget = segmentSize / 2;
+		long kept = 0;
+		long dropped = 0;
+		FileChannel ch = this.channel(seg);
+		ByteBuffer hb = ByteBuffer.allocate(HDR);
+		long pos = 0;
+		while (pos + HDR <= len && !this.closed) {
+			hb.clear();
+			ch.read(hb, pos);
+			byte[] hash = new byte[HL];
+			hb.position(0);
+			hb.get(hash);
+			int rl = HDR + ChunkRecord.dataLength(hb, 0);
+			ByteBuffer key = ByteBuffer.wrap(hash);
+			Entry e = map.get(key);
+			if (e != null && e.seg == seg && e.off == pos) {
+				if (e.dirty) {
+					if (this.copy(key, e, e.hits))
+						kept++;
+				} else if (e.hits > 0 && budget >= rl) {
+					if (this.copy(key, e, e.hits >> 1)) {
+						budget -= rl;
+						kept++;
+					}
+				} else if (map.remove(key, e)) {
+					dropped++;
+				}
+			}
+			pos += rl;
+		}
+		// the dirty records copied forward have to be on disk before the
+		// only other copy of them is deleted
+		wlock.lock();
+		try {
+			if (this.closed)
+				return;
+			activeCh.force(true);
+		} finally {
+			wlock.unlock();
+		}
+		segments.remove(seg);
+		size.addAndGet(-len);
+		this.closeChannel(seg);
+		this.file(seg).delete();
+		if (SDFSLogger.isDebug())
+			SDFSLogger.getLog().debug(
+					"evicted cache segment " + seg + " kept " + kept
+							+ " dropped " + dropped);
+	}
+
+	private void evict() throws IOException {
+		while (size.get() > maxSize && !this.closed) {
+			int seg = segments.firstKey();
+			if (seg == activeSeg)
+				break;
+			this.evict(seg);
+		}
+	}
+
+	/**
+	 * Forces the active segment to disk, which makes every chunk staged
+	 * before the call durable until it is uploaded.
+	 */
+	public void sync() throws IOException {
+		if (!this.opened)
+			return;
+		wlock.lock();
+		try {
+			if (!this.closed)
+				activeCh.force(false);
+		} finally {
+			wlock.unlock();
+		}
+	}
+
+	/**
+	 * Sets the maximum bytes the cache keeps on disk. Setting it above 0 on a
+	 * disabled cache opens it.
+	 */
+	public void setMaxSize(long sz) throws IOException {
+		this.maxSize = sz;
+		if (sz > 0 && !this.opened)
+			this.start();
+		synchronized (dirtyBytes) {
+			dirtyBytes.notifyAll();
+		}
+	}
+
+	public long getMaxSize() {
+		return this.maxSize;
+	}
+
+	/**
+	 * The bytes the cache uses on disk.
+	 */
+	public long getSize() {
+		return this.size.get();
+	}
+
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	/**
+	 * Waits up to a minute for staged chunks to be uploaded and saves the
+	 * index. Chunks that are still staged are uploaded on the next start.
+	 */
+	public void close() {
+		if (!this.opened || this.closed)
+			return;
+		if (th != null)
+			th.close();
+		uploader.shutdown();
+		try {
+			if (!uploader.awaitTermination(60, TimeUnit.SECONDS)) {
+				uploader.shutdownNow();
+				SDFSLogger.getLog().warn(
+						"chunk cache uploads did not finish, "
+								+ dirtyBytes.get()
+								+ " bytes will be uploaded on the next start");
+			}
+		} catch (InterruptedException e) {
+		}
+		wlock.lock();
+		try {
+			this.closed = true;
+			activeCh.force(true);
+			activeCh.close();
+			this.writeIndex();
+		} catch (IOException e) {
+			SDFSLogger.getLog().warn("unable to save chunk cache index", e);
+		} finally {
+			wlock.unlock();
+		}
+		synchronized (dirtyBytes) {
+			dirtyBytes.notifyAll();
+		}
+		synchronized (open) {
+			for (FileChannel ch : open.values()) {
+				try {
+					ch.close();
+				} catch (IOException e) {
+				}
+			}
+			open.clear();
+		}
+	}
+
+	/**
+	 * Syncs the active segment, evicts when the cache is over its size and
+	 * retries failed uploads.
+	 */
+	private static class Maintainer implements Runnable {
+		DiskChunkCache cache = null;
+		int interval = 2 * 1000;
+		Thread th = null;
+
+		Maintainer(DiskChunkCache cache) {
+			this.cache = cache;
+			th = new Thread(this);
+			th.setName("chunk-cache");
+			th.start();
+		}
+
+		@Override
+		public void run() {
+			long lastRetry = System.currentTimeMillis();
+			while (!cache.closed) {
+				try {
+					Thread.sleep(interval);
+					cache.sync();
+					cache.evict();
+					if (System.currentTimeMillis() - lastRetry >= RETRY_INTERVAL) {
+						cache.retryUploads();
+						lastRetry = System.currentTimeMillis();
+					}
+				} catch (InterruptedException e) {
+					break;
+				} catch (Exception e) {
+					if (!cache.closed)
+						SDFSLogger.getLog().warn(
+								"unable to maintain chunk cache", e);
+				}
+			}
+		}
+
+		public void close() {
+			try {
+				th.interrupt();
+				th.join(10 * 1000);
+			} catch (Exception e) {
+			}
+		}
+	}
+
+}
@@ -19,10 +19,20 @@ public class FCPool {
 	private LinkedBlockingQueue<FileChannel> passiveObjects = null;
 	private ArrayList<FileChannel> activeObjects = new ArrayList<FileChannel>();
 	private ReentrantLock alock = new ReentrantLock();
+	private boolean direct = false;
 
 	public FCPool(File f, int size) throws IOException {
+		this(f, size, false);
+	}
+
+	/**
+	 * @param direct
+	 *            open the channels for direct I/O, see {@link DirectIO}
+	 */
+	public FCPool(File f, int size, boolean direct) throws IOException {
 		this.f = f;
 		this.poolSize = size;
+		this.direct = direct;
 		passiveObjects = new LinkedBlockingQueue<FileChannel>(this.poolSize);
 		this.populatePool();
 	}
@@ -88,6 +98,8 @@ public class FCPool {
 	}
 
 	public FileChannel makeObject() throws IOException {
+		if (this.direct)
+			return DirectIO.open(this.f);
 		@SuppressWarnings("resource")
 		RandomAccessFile rf = new RandomAccessFile(this.f, "rw");
 		// NativePosixUtil.advise(rf.getFD(), 0, 0, NativePosixUtil.DONTNEED);
@@ -0,0 +1,89 @@
+package org.opendedup.sdfs.filestore;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps archives as files in a local folder. It stands in for an object
+ * store when testing the archive chunk store and can also be pointed at a
+ * mounted network share.
+ */
+public class FileArchiveBackend implements ArchiveBackend {
+	private final File dir;
+
+	public FileArchiveBackend(File dir) throws IOException {
+		this.dir = dir;
+		if (!dir.exists() && !dir.mkdirs())
+			throw new IOException("unable to create " + dir.getPath());
+	}
+
+	private File file(String key) {
+		return new File(dir, key.replace('/', File.separatorChar));
+	}
+
+	@Override
+	public void put(String key, byte[] data) throws IOException {
+		File f = this.file(key);
+		f.getParentFile().mkdirs();
+		File tmp = new File(f.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(data);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(f))
+			throw new IOException("unable to rename " + tmp.getPath());
+	}
+
+	@Override
+	public byte[] getRange(String key, long off, int len) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(this.file(key), "r");
+		try {
+			byte[] b = new byte[len];
+			raf.seek(off);
+			raf.readFully(b);
+			return b;
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Override
+	public void delete(String key) throws IOException {
+		File f = this.file(key);
+		if (f.exists() && !f.delete())
+			throw new IOException("unable to delete " + f.getPath());
+	}
+
+	@Override
+	public Map<String, Long> list(String prefix) throws IOException {
+		HashMap<String, Long> m = new HashMap<String, Long>();
+		File pd = this.file(prefix);
+		String base = prefix;
+		if (!prefix.endsWith("/")) {
+			pd = pd.getParentFile();
+			base = prefix.lastIndexOf('/') < 0 ? "" : prefix.substring(0,
+					prefix.lastIndexOf('/') + 1);
+		}
+		File[] fs = pd.listFiles();
+		if (fs == null)
+			return m;
+		for (File f : fs) {
+			String key = base + f.getName();
+			if (f.isFile() && key.startsWith(prefix) && !key.endsWith(".tmp"))
+				m.put(key, f.length());
+		}
+		return m;
+	}
+
+	@Override
+	public void close() {
+	}
+
+}
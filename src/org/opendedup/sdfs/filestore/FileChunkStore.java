@@ -6,17 +6,18 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 
 //import org.apache.lucene.store.NativePosixUtil;
-import org.apache.lucene.util.OpenBitSet;
 import org.bouncycastle.util.Arrays;
 import org.opendedup.hashing.AbstractHashEngine;
 import org.opendedup.hashing.HashFunctionPool;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
-import org.opendedup.util.OpenBitSetSerialize;
+import org.opendedup.util.ChunkBuffer;
+import org.opendedup.util.ChunkBufferPool;
 import org.w3c.dom.Element;
 
 /**
@@ -29,22 +30,24 @@ import org.w3c.dom.Element;
  *         bytes)|date last accessed (8 bytes)| chunk len (4 bytes)|chunk
  *         position (8 bytes)]
  **/
-public class FileChunkStore implements AbstractChunkStore {
+public class FileChunkStore implements AbstractChunkStore, BatchChunkStore {
 	private int pageSize = Main.chunkStorePageSize;
 	private boolean closed = false;
 	// private FileChannel fc = null;
 	private RandomAccessFile chunkDataWriter = null;
 	File f;
 	Path p;
-	private long currentLength = 0;
 	private String name;
-	private OpenBitSet freeSlots = null;
+	private PageAllocator alloc = null;
 	private byte[] FREE = new byte[pageSize];
 	private FileChannel iterFC = null;
 	private AbstractHashEngine hc = null;
 	private SyncThread th = null;
 	private File bsf;
 	private FCPool pool = null;
+	private DirectIO dio = null;
+	private final AtomicLong unsynced = new AtomicLong();
+	private static boolean directWarned = false;
 
 	/**
 	 * 
@@ -59,38 +62,17 @@ public class FileChunkStore implements AbstractChunkStore {
 			if (!chunk_location.exists()) {
 				chunk_location.mkdirs();
 			}
-			SDFSLogger.getLog().debug("Loading freebits bitset");
 			bsf = new File(chunk_location + File.separator + "freebit.map");
-			if (!bsf.exists()) {
-				if (SDFSLogger.isDebug())
-					SDFSLogger.getLog().debug("Looks like a new ChunkStore");
-				/*
-				 * this.freeSlots = new OpenBitSet(
-				 * (Main.chunkStoreAllocationSize / Main.chunkStorePageSize));
-				 */
-			} else {
-				SDFSLogger.getLog().debug(
-						"Loading freeslots from " + bsf.getPath());
-				try {
-					this.freeSlots = OpenBitSetSerialize.readIn(bsf.getPath());
-					bsf.delete();
-				} catch (Exception e) {
-					SDFSLogger.getLog().error(
-							"Unable to load bitset from " + bsf.getPath(), e);
-				}
-				SDFSLogger.getLog().debug(
-						"Loaded [" + this.freeSlots.cardinality()
-								+ "] free slots");
-			}
 			f = new File(chunk_location + File.separator + "chunks.chk");
 			if (!f.getParentFile().exists())
 				f.getParentFile().mkdirs();
 			this.name = "chunks";
 			p = f.toPath();
 			chunkDataWriter = new RandomAccessFile(f, "rw");
-			this.currentLength = chunkDataWriter.length();
+			this.alloc = this.openAllocator();
 			this.closed = false;
-			pool = new FCPool(f, 100);
+			this.dio = this.openDirect();
+			pool = new FCPool(f, 100, this.dio != null);
 			SDFSLogger.getLog().debug("ChunkStore " + f.getPath() + " created");
 			th = new SyncThread(this);
 		} catch (Exception e) {
@@ -105,35 +87,17 @@ public class FileChunkStore implements AbstractChunkStore {
 		File pf = new File(fpath).getParentFile();
 		Arrays.fill(FREE, (byte) 0);
 		try {
-			SDFSLogger.getLog().debug("Loading freebits bitset");
 			bsf = new File(pf.getPath() + File.separator + "freebit.map");
-			if (!bsf.exists()) {
-				if (SDFSLogger.isDebug())
-					SDFSLogger.getLog().debug("Looks like a new ChunkStore");
-				this.freeSlots = new OpenBitSet();
-			} else {
-				SDFSLogger.getLog().debug(
-						"Loading freeslots from " + bsf.getPath());
-				try {
-					this.freeSlots = OpenBitSetSerialize.readIn(bsf.getPath());
-					bsf.delete();
-				} catch (Exception e) {
-					SDFSLogger.getLog().error(
-							"Unable to load bitset from " + bsf.getPath(), e);
-				}
-				SDFSLogger.getLog().debug(
-						"Loaded [" + this.freeSlots.cardinality()
-								+ "] free slots");
-			}
 			f = new File(fpath);
 			if (!f.getParentFile().exists())
 				f.getParentFile().mkdirs();
 			this.name = "chunks";
 			p = f.toPath();
 			chunkDataWriter = new RandomAccessFile(f, "rw");
-			this.currentLength = chunkDataWriter.length();
+			this.alloc = this.openAllocator();
 			this.closed = false;
-			pool = new FCPool(f, 100);
+			this.dio = this.openDirect();
+			pool = new FCPool(f, 100, this.dio != null);
 			SDFSLogger.getLog().debug("ChunkStore " + f.getPath() + " created");
 			th = new SyncThread(this);
 		} catch (Exception e) {
@@ -151,25 +115,7 @@ public class FileChunkStore implements AbstractChunkStore {
 		FREE = new byte[pageSize];
 		Arrays.fill(FREE, (byte) 0);
 		try {
-			SDFSLogger.getLog().debug("Loading freebits bitset");
 			bsf = new File(fpath + "freebit.map");
-			if (!bsf.exists()) {
-				SDFSLogger.getLog().debug("Looks like a new ChunkStore");
-				this.freeSlots = new OpenBitSet();
-			} else {
-				SDFSLogger.getLog().debug(
-						"Loading freeslots from " + bsf.getPath());
-				try {
-					this.freeSlots = OpenBitSetSerialize.readIn(bsf.getPath());
-					bsf.delete();
-				} catch (Exception e) {
-					SDFSLogger.getLog().error(
-							"Unable to load bitset from " + bsf.getPath(), e);
-				}
-				SDFSLogger.getLog().debug(
-						"Loaded [" + this.freeSlots.cardinality()
-								+ "] free slots");
-			}
 			f = new File(fpath + ".chk");
 			if (!f.getParentFile().exists())
 				f.getParentFile().mkdirs();
@@ -178,9 +124,10 @@ public class FileChunkStore implements AbstractChunkStore {
 			chunkDataWriter = new RandomAccessFile(f, "rw");
 			// NativePosixUtil.advise(chunkDataWriter.getFD(), 0, 0,
 			// NativePosixUtil.SEQUENTIAL);
-			this.currentLength = chunkDataWriter.length();
+			this.alloc = this.openAllocator();
 			this.closed = false;
-			pool = new FCPool(f, 100);
+			this.dio = this.openDirect();
+			pool = new FCPool(f, 100, this.dio != null);
 			SDFSLogger.getLog().debug("ChunkStore " + f.getPath() + " created");
 			th = new SyncThread(this);
 		} catch (Exception e) {
@@ -190,6 +137,40 @@ public class FileChunkStore implements AbstractChunkStore {
 		}
 	}
 
+	/**
+	 * Opens the free extents of the store, kept next to the chunk file. Free
+	 * slots written by older versions to {@link #bsf} are converted the first
+	 * time.
+	 */
+	private PageAllocator openAllocator() throws IOException {
+		long pages = (chunkDataWriter.length() + pageSize - 1) / pageSize;
+		PageAllocator a = new PageAllocator(new File(f.getPath() + ".free"),
+				bsf, pages);
+		SDFSLogger.getLog().debug(
+				"Loaded [" + a.freePages() + "] free slots for " + f.getPath());
+		return a;
+	}
+
+	/**
+	 * @return the direct I/O helper if chunk data should bypass the page
+	 *         cache
+	 */
+	private DirectIO openDirect() {
+		if (!Main.chunkStoreDirectIO)
+			return null;
+		if (!DirectIO.available()) {
+			if (!directWarned) {
+				SDFSLogger.getLog().warn(
+						"direct I/O is not supported by this JVM, chunk "
+								+ "stores will use the page cache");
+				directWarned = true;
+			}
+			return null;
+		}
+		SDFSLogger.getLog().debug("using direct I/O for " + f.getPath());
+		return new DirectIO();
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -214,17 +195,22 @@ public class FileChunkStore implements AbstractChunkStore {
 
 		}
 		try {
-			if (this.freeSlots != null) {
-				OpenBitSetSerialize.writeOut(bsf.getPath(), this.freeSlots);
-				SDFSLogger.getLog().debug("Persisted Free Slots");
-				this.freeSlots.clear(0, this.freeSlots.capacity());
-			}
+			this.alloc.close();
+			SDFSLogger.getLog().debug("Persisted Free Slots");
 		} catch (Exception e) {
+			SDFSLogger.getLog().warn(
+					"unable to persist free slots of " + f.getPath(), e);
 		}
 	}
 
+	/**
+	 * Syncs the chunks written since the last sync, if there are any, so one
+	 * sync covers every write of the interval.
+	 */
 	public void sync() throws IOException {
-		this.chunkDataWriter.getFD().sync();
+		if (this.unsynced.getAndSet(0) > 0)
+			this.chunkDataWriter.getFD().sync();
+		this.alloc.sync();
 	}
 
 	/*
@@ -255,7 +241,7 @@ public class FileChunkStore implements AbstractChunkStore {
 	 */
 	@Override
 	public long size() {
-		return this.currentLength;
+		return this.alloc.end() * pageSize;
 	}
 
 	/*
@@ -280,55 +266,60 @@ public class FileChunkStore implements AbstractChunkStore {
 
 	@Override
 	public long getFreeBlocks() {
-		if (this.freeSlots != null) {
-			return this.freeSlots.cardinality();
-		} else
-			return 0;
+		return this.alloc.freePages();
 	}
 
-	private ReentrantLock rlock = new ReentrantLock();
-
-	long smallestFree = 0;
-
 	public long writeChunk(byte[] hash, byte[] chunk, int len)
 			throws IOException {
+		if (len > pageSize)
+			throw new IOException("length is greater than page size");
+		return this.writeChunk(hash, chunk, 0, chunk.length);
+	}
+
+	/**
+	 * Writes <tt>len</tt> bytes of <tt>chunk</tt> starting at <tt>off</tt>
+	 * into the next page of the calling thread's region. Full pages are
+	 * written straight from the caller's array. Shorter ones are padded with
+	 * zeros in a pooled page buffer.
+	 */
+	public long writeChunk(byte[] hash, byte[] chunk, int off, int len)
+			throws IOException {
 		if (this.closed)
 			throw new IOException("ChunkStore is closed");
 		if (len > pageSize)
 			throw new IOException("length is greater than page size");
+		IOThrottle.writes.acquire(len);
 		long pos = -1;
 		FileChannel rf = null;
+		ChunkBuffer page = null;
 		try {
-			rlock.lock();
-			if (this.freeSlots != null) {
+			pos = this.alloc.allocate() * pageSize;
+
+			// this.chunks.invalidate(Long.valueOf(pos));
+			rf = pool.borrowObject();
+			if (dio != null) {
+				ByteBuffer w = dio.window(rf, pos, pageSize);
 				try {
-					pos = this.freeSlots.nextSetBit(smallestFree);
-					if (pos >= 0) {
-						this.smallestFree = pos;
-						this.freeSlots.fastClear(pos);
-					} else {
-						this.smallestFree = 0;
-						this.freeSlots = null;
-					}
-				} catch (Throwable e) {
-					SDFSLogger.getLog().warn(e);
+					w.put(chunk, off, len);
+					w.put(FREE, 0, pageSize - len);
+					dio.write(rf, pos, pageSize, w);
+				} finally {
+					dio.done(pos, pageSize, w);
 				}
-				if (pos >= 0) {
-					pos = pos * this.pageSize;
+			} else {
+				ByteBuffer buf = null;
+				if (len == pageSize) {
+					buf = ByteBuffer.wrap(chunk, off, len);
+				} else {
+					page = ChunkBufferPool.borrowScratch(pageSize);
+					byte[] b = page.array();
+					System.arraycopy(chunk, off, b, 0, len);
+					java.util.Arrays.fill(b, len, pageSize, (byte) 0);
+					buf = ByteBuffer.wrap(b, 0, pageSize);
 				}
+				rf.write(buf, pos);
 			}
-			if (pos < 0) {
-				pos = this.currentLength;
-				this.currentLength = this.currentLength + pageSize;
-			}
-			rlock.unlock();
-
-			// this.chunks.invalidate(Long.valueOf(pos));
-			rf = pool.borrowObject();
-			ByteBuffer buf = ByteBuffer.wrap(new byte[pageSize]);
-			buf.put(chunk);
-			buf.position(0);
-			rf.write(buf, pos);
+			this.unsynced.incrementAndGet();
 
 			return pos;
 		} catch (Exception e) {
@@ -340,12 +331,91 @@ public class FileChunkStore implements AbstractChunkStore {
 				pool.returnObject(rf);
 			} catch (Exception e) {
 			}
+			if (page != null)
+				page.release();
 			hash = null;
 			chunk = null;
 			len = 0;
 		}
 	}
 
+	/**
+	 * Writes a batch of chunks to a run of consecutive pages with one
+	 * gathering write.
+	 */
+	@Override
+	public long[] writeChunks(byte[][] hashes, byte[][] chunks)
+			throws IOException {
+		if (this.closed)
+			throw new IOException("ChunkStore is closed");
+		long[] pos = new long[chunks.length];
+		for (int i = 0; i < chunks.length; i++) {
+			if (chunks[i].length > pageSize)
+				throw new IOException("length is greater than page size");
+		}
+		long start = this.alloc.allocateRun(chunks.length) * pageSize;
+		IOThrottle.writes.acquire(chunks.length * pageSize);
+		for (int i = 0; i < chunks.length; i++)
+			pos[i] = start + ((long) i * pageSize);
+		FileChannel rf = null;
+		ByteBuffer[] bufs = new ByteBuffer[chunks.length];
+		ChunkBuffer[] pages = new ChunkBuffer[chunks.length];
+		try {
+			if (dio != null) {
+				rf = pool.borrowObject();
+				int span = chunks.length * pageSize;
+				ByteBuffer w = dio.window(rf, start, span);
+				try {
+					for (byte[] chunk : chunks) {
+						w.put(chunk);
+						w.put(FREE, 0, pageSize - chunk.length);
+					}
+					dio.write(rf, start, span, w);
+				} finally {
+					dio.done(start, span, w);
+				}
+				this.unsynced.incrementAndGet();
+				return pos;
+			}
+			for (int i = 0; i < chunks.length; i++) {
+				int len = chunks[i].length;
+				if (len == pageSize) {
+					bufs[i] = ByteBuffer.wrap(chunks[i]);
+				} else {
+					pages[i] = ChunkBufferPool.borrowScratch(pageSize);
+					byte[] b = pages[i].array();
+					System.arraycopy(chunks[i], 0, b, 0, len);
+					java.util.Arrays.fill(b, len, pageSize, (byte) 0);
+					bufs[i] = ByteBuffer.wrap(b, 0, pageSize);
+				}
+			}
+			rf = pool.borrowObject();
+			// channels are lent to one writer at a time so moving the
+			// position is safe
+			rf.position(start);
+			ByteBuffer last = bufs[bufs.length - 1];
+			while (last.hasRemaining())
+				rf.write(bufs);
+			this.unsynced.incrementAndGet();
+			return pos;
+		} catch (Exception e) {
+			SDFSLogger.getLog().fatal(
+					"unable to write " + chunks.length
+							+ " chunks at position " + start, e);
+			throw new IOException("unable to write " + chunks.length
+					+ " chunks at position " + start);
+		} finally {
+			try {
+				pool.returnObject(rf);
+			} catch (Exception e) {
+			}
+			for (ChunkBuffer page : pages) {
+				if (page != null)
+					page.release();
+			}
+		}
+	}
+
 	@Override
 	public byte[] getChunk(byte[] hash, long start, int len) throws IOException {
 		if (this.closed)
@@ -357,7 +427,10 @@ public class FileChunkStore implements AbstractChunkStore {
 		byte[] b = new byte[len];
 		FileChannel rf = pool.borrowObject();
 		try {
-			rf.read(ByteBuffer.wrap(b), start);
+			if (dio != null)
+				dio.read(rf, start, b, len);
+			else
+				rf.read(ByteBuffer.wrap(b), start);
 		} catch (Exception e) {
 			SDFSLogger.getLog().error(
 					"unable to fetch chunk at position " + start, e);
@@ -368,6 +441,7 @@ public class FileChunkStore implements AbstractChunkStore {
 			} catch (Exception e) {
 			}
 		}
+		IOThrottle.reads.acquire(len);
 		return b;
 	}
 
@@ -377,19 +451,7 @@ public class FileChunkStore implements AbstractChunkStore {
 		if (this.closed)
 			throw new IOException("ChunkStore is closed");
 		long pos = start / this.pageSize;
-		this.rlock.lock();
-		try{
-		if (this.freeSlots == null) {
-			this.freeSlots = new OpenBitSet();
-			this.smallestFree = 0;
-		}
-		if (this.smallestFree > pos)
-			this.smallestFree = pos;
-		this.freeSlots.ensureCapacity(pos);
-		this.freeSlots.set(pos);
-		}finally {
-		this.rlock.unlock();
-		}
+		this.alloc.free(pos);
 		/*
 		 * RandomAccessFile raf = new RandomAccessFile(f, "rw");
 		 * raf.seek(start); raf.write(0); raf.close();
@@ -464,7 +526,7 @@ public class FileChunkStore implements AbstractChunkStore {
 
 	private class SyncThread implements Runnable {
 		FileChunkStore store = null;
-		int interval = 2 * 1000;
+		int interval = Main.chunkStoreSyncInterval;
 		Thread th = null;
 		
 		SyncThread(FileChunkStore store) {
@@ -506,7 +568,7 @@ public class FileChunkStore implements AbstractChunkStore {
 
 	@Override
 	public long compressedSize() {
-		return this.currentLength;
+		return this.size();
 	}
 
 	@Override
@@ -517,15 +579,13 @@ public class FileChunkStore implements AbstractChunkStore {
 	}
 
 	@Override
-	public void setReadSpeed(int bps) {
-		// TODO Auto-generated method stub
-		
+	public void setReadSpeed(int kbps) {
+		IOThrottle.reads.setLimit(kbps);
 	}
 
 	@Override
-	public void setWriteSpeed(int bps) {
-		// TODO Auto-generated method stub
-		
+	public void setWriteSpeed(int kbps) {
+		IOThrottle.writes.setLimit(kbps);
 	}
 
 	@Override
@@ -536,14 +596,12 @@ public class FileChunkStore implements AbstractChunkStore {
 
 	@Override
 	public int getReadSpeed() {
-		// TODO Auto-generated method stub
-		return 0;
+		return IOThrottle.reads.getSpeed();
 	}
 
 	@Override
 	public int getWriteSpeed() {
-		// TODO Auto-generated method stub
-		return 0;
+		return IOThrottle.writes.getSpeed();
 	}
 
 	@Override
@@ -0,0 +1,110 @@
+package org.opendedup.sdfs.filestore;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jets3t.service.StorageObjectsChunk;
+import org.jets3t.service.impl.rest.httpclient.GoogleStorageService;
+import org.jets3t.service.model.GSObject;
+import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.security.GSCredentials;
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+
+/**
+ * Keeps archives in a Google Cloud Storage bucket.
+ */
+public class GoogleArchiveBackend implements ArchiveBackend {
+	private final String bucket;
+	private final GoogleStorageService gsService;
+
+	public GoogleArchiveBackend(String bucket) throws IOException {
+		this.bucket = bucket.toLowerCase();
+		try {
+			gsService = new GoogleStorageService(new GSCredentials(
+					Main.cloudAccessKey, Main.cloudSecretKey));
+			if (gsService.getBucket(this.bucket) == null) {
+				gsService.createBucket(this.bucket);
+				SDFSLogger.getLog().info("created new store " + this.bucket);
+			}
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void put(String key, byte[] data) throws IOException {
+		try {
+			GSObject obj = new GSObject(key);
+			obj.setDataInputStream(new ByteArrayInputStream(data));
+			obj.setContentLength(data.length);
+			obj.setContentType("binary/octet-stream");
+			gsService.putObject(bucket, obj);
+		} catch (Exception e) {
+			throw new IOException("unable to upload " + key, e);
+		}
+	}
+
+	@Override
+	public byte[] getRange(String key, long off, int len) throws IOException {
+		try {
+			GSObject obj = gsService.getObject(bucket, key, null, null, null,
+					null, off, off + len - 1);
+			DataInputStream in = new DataInputStream(obj.getDataInputStream());
+			try {
+				byte[] b = new byte[len];
+				in.readFully(b);
+				return b;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("unable to read " + key, e);
+		}
+	}
+
+	@Override
+	public void delete(String key) throws IOException {
+		try {
+			gsService.deleteObject(bucket, key);
+		} catch (Exception e) {
+			throw new IOException("unable to delete " + key, e);
+		}
+	}
+
+	@Override
+	public Map<String, Long> list(String prefix) throws IOException {
+		HashMap<String, Long> m = new HashMap<String, Long>();
+		try {
+			String lastKey = null;
+			for (;;) {
+				StorageObjectsChunk ck = gsService.listObjectsChunked(bucket,
+						prefix, null, 1000, lastKey);
+				for (StorageObject obj : ck.getObjects())
+					m.put(obj.getKey(), obj.getContentLength());
+				if (ck.isListingComplete())
+					break;
+				lastKey = ck.getPriorLastKey();
+			}
+			return m;
+		} catch (Exception e) {
+			throw new IOException("unable to list " + prefix, e);
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			gsService.shutdown();
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn("unable to close google storage service",
+					e);
+		}
+	}
+
+}
@@ -86,6 +86,7 @@ public class GoogleChunkStore implements AbstractChunkStore {
 				data = EncryptUtils.decrypt(data);
 			if (Main.compress)
 				data = CompressionUtils.decompressZLIB(data);
+			IOThrottle.reads.acquire(data.length);
 			return data;
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
@@ -113,7 +114,7 @@ public class GoogleChunkStore implements AbstractChunkStore {
 	@Override
 	public long writeChunk(byte[] hash, byte[] chunk, int len)
 			throws IOException {
-
+		IOThrottle.writes.acquire(chunk.length);
 		String hashString = this.getHashName(hash);
 		GSObject gsObject = new GSObject(hashString);
 		if (Main.compress) {
@@ -291,15 +292,13 @@ public class GoogleChunkStore implements AbstractChunkStore {
 	}
 
 	@Override
-	public void setReadSpeed(int bps) {
-		// TODO Auto-generated method stub
-		
+	public void setReadSpeed(int kbps) {
+		IOThrottle.reads.setLimit(kbps);
 	}
 
 	@Override
-	public void setWriteSpeed(int bps) {
-		// TODO Auto-generated method stub
-		
+	public void setWriteSpeed(int kbps) {
+		IOThrottle.writes.setLimit(kbps);
 	}
 
 	@Override
@@ -310,14 +309,12 @@ public class GoogleChunkStore implements AbstractChunkStore {
 
 	@Override
 	public int getReadSpeed() {
-		// TODO Auto-generated method stub
-		return 0;
+		return IOThrottle.reads.getSpeed();
 	}
 
 	@Override
 	public int getWriteSpeed() {
-		// TODO Auto-generated method stub
-		return 0;
+		return IOThrottle.writes.getSpeed();
 	}
 
 	@Override
@@ -2,7 +2,9 @@ package org.opendedup.sdfs.filestore;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import org.opendedup.collections.AbstractHashesMap;
 import org.opendedup.collections.DataArchivedException;
@@ -134,6 +136,15 @@ public class HashStore {
 	public boolean hashExists(byte[] hash) throws IOException {
 		return this.bdb.containsKey(hash);
 	}
+
+	/**
+	 * Checks a batch of hashes.
+	 * 
+	 * @return whether each hash exists, in the order they were given
+	 */
+	public boolean[] hashesExist(List<byte[]> hashes) throws IOException {
+		return this.bdb.containsKeys(hashes);
+	}
 	
 	
 	public String restoreBlock(byte[] hash) throws IOException {
@@ -271,6 +282,31 @@ public class HashStore {
 		return written;
 	}
 
+	/**
+	 * Adds a batch of chunks to the hash store.
+	 * 
+	 * @return whether each chunk was written, false for chunks that were
+	 *         already stored
+	 */
+	public boolean[] addHashChunks(List<HashChunk> chunks) throws IOException,
+			HashtableFullException {
+		ArrayList<ChunkData> cms = new ArrayList<ChunkData>(chunks.size());
+		for (HashChunk chunk : chunks)
+			cms.add(new ChunkData(chunk.getName(), Main.chunkStorePageSize,
+					chunk.getData()));
+		try {
+			return bdb.put(cms);
+		} catch (IOException e) {
+			SDFSLogger.getLog().fatal(
+					"Unable to commit batch of " + chunks.size() + " chunks", e);
+			throw e;
+		} catch (HashtableFullException e) {
+			SDFSLogger.getLog().fatal(
+					"Unable to commit batch of " + chunks.size() + " chunks", e);
+			throw e;
+		}
+	}
+
 	/**
 	 * Closes the hash store. The hash store should always be closed.
 	 * 
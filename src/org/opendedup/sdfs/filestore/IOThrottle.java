@@ -0,0 +1,174 @@
+package org.opendedup.sdfs.filestore;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+
+/**
+ * Rate limits the chunk store I/O of one direction. All chunk stores share
+ * the {@link #reads} and {@link #writes} throttles so a limit applies to the
+ * whole DSE whichever store is configured.
+ *
+ * Callers are charged after they have moved the data. A caller that puts the
+ * bucket into debt sleeps until the debt is paid back, which keeps the lock
+ * short and lets large and small requests share the bucket fairly.
+ *
+ * I/O done by garbage collection, replication and fdisk is marked with
+ * {@link #setBackground(boolean)}. While foreground I/O has been seen within
+ * the last second, background I/O is held to
+ * {@link Main#backgroundIOShare} of the limit so it cannot starve the
+ * volumes.
+ */
+public class IOThrottle {
+	private static final long ACTIVE_WINDOW = 1000L * 1000L * 1000L;
+	private static final ThreadLocal<Boolean> background = new ThreadLocal<Boolean>();
+
+	public static final IOThrottle reads = new IOThrottle("read",
+			Main.chunkStoreReadSpeed);
+	public static final IOThrottle writes = new IOThrottle("write",
+			Main.chunkStoreWriteSpeed);
+
+	private final String name;
+	private final TokenBucket all = new TokenBucket();
+	private final TokenBucket bg = new TokenBucket();
+	private volatile int limit;
+	private volatile long lastForeground = System.nanoTime() - ACTIVE_WINDOW;
+	private final AtomicLong count = new AtomicLong();
+	private volatile long windowStart = System.currentTimeMillis();
+	private volatile int speed;
+
+	private IOThrottle(String name, int kbps) {
+		this.name = name;
+		this.setLimit(kbps);
+	}
+
+	/**
+	 * Marks the chunk store I/O of the calling thread as background work.
+	 *
+	 * @return the previous setting, to be restored when the work is done
+	 */
+	public static boolean setBackground(boolean bg) {
+		boolean prev = isBackground();
+		if (bg)
+			background.set(Boolean.TRUE);
+		else
+			background.remove();
+		return prev;
+	}
+
+	public static boolean isBackground() {
+		return background.get() != null;
+	}
+
+	/**
+	 * Sets the limit in KB/s. 0 removes the limit. Takes effect for the next
+	 * request.
+	 */
+	public void setLimit(int kbps) {
+		if (kbps < 0)
+			kbps = 0;
+		long rate = (long) kbps * 1024;
+		this.all.setRate(rate);
+		this.bg.setRate((long) (rate * Main.backgroundIOShare));
+		this.limit = kbps;
+		SDFSLogger.getLog().info(
+				"chunk store " + name + " speed limit set to " + kbps
+						+ " KB/s");
+	}
+
+	/**
+	 * @return the limit in KB/s, 0 if there is none
+	 */
+	public int getLimit() {
+		return this.limit;
+	}
+
+	/**
+	 * Charges <tt>len</tt> bytes to the throttle, blocking while the caller's
+	 * share of the limit is used up.
+	 */
+	public void acquire(int len) {
+		if (len <= 0)
+			return;
+		long wait = 0;
+		long now = System.nanoTime();
+		if (isBackground()) {
+			if (now - lastForeground < ACTIVE_WINDOW)
+				wait = bg.take(len, now);
+		} else {
+			lastForeground = now;
+		}
+		wait = Math.max(wait, all.take(len, now));
+		this.record(len);
+		if (wait > 0) {
+			try {
+				Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return the throughput measured over the last second in KB/s
+	 */
+	public int getSpeed() {
+		long now = System.currentTimeMillis();
+		long ws = this.windowStart;
+		if (now - ws >= 2000)
+			return 0;
+		if (now - ws >= 1000)
+			return (int) (count.get() * 1000 / (now - ws) / 1024);
+		return this.speed;
+	}
+
+	private void record(int len) {
+		count.addAndGet(len);
+		long now = System.currentTimeMillis();
+		if (now - windowStart >= 1000) {
+			synchronized (this) {
+				long ws = this.windowStart;
+				if (now - ws >= 1000) {
+					this.speed = (int) (count.getAndSet(0) * 1000 / (now - ws) / 1024);
+					this.windowStart = now;
+				}
+			}
+		}
+	}
+
+	private static final class TokenBucket {
+		private long rate;
+		private double tokens;
+		private long last = System.nanoTime();
+
+		synchronized void setRate(long rate) {
+			this.rate = rate;
+			if (tokens > rate)
+				tokens = rate;
+		}
+
+		/**
+		 * Takes <tt>len</tt> tokens, going into debt if there are not enough.
+		 * The bucket holds at most one second of tokens.
+		 *
+		 * @return the nanoseconds to wait until the debt is paid
+		 */
+		synchronized long take(long len, long now) {
+			if (rate <= 0) {
+				last = now;
+				return 0;
+			}
+			if (now > last) {
+				tokens = Math.min(rate, tokens + (now - last) * (double) rate
+						/ 1000000000D);
+				last = now;
+			}
+			tokens -= len;
+			if (tokens >= 0)
+				return 0;
+			return (long) (-tokens * 1000000000D / rate);
+		}
+	}
+
+}
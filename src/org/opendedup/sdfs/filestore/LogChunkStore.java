@@ -0,0 +1,1154 @@
+package org.opendedup.sdfs.filestore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.opendedup.collections.AbstractHashesMap;
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.servers.HCServiceProxy;
+import org.w3c.dom.Element;
+
+/**
+ * The base of the log structured chunk stores. Chunks are appended to the
+ * active container, a file of up to {@link #maxLength()} bytes in a folder of
+ * the chunk store. When it is full it is sealed, an index of its records is
+ * written next to it and a new container is started. Writes are always
+ * sequential and chunks written together are read back from the same region
+ * of the same container.
+ *
+ * The position of a chunk is the id of its container in the upper 32 bits
+ * and the offset of its record in the lower 32 bits. Records and index
+ * entries have the {@link ChunkRecord} format.
+ *
+ * Space is not reused in place. The live bytes of each container are tracked
+ * as chunks are deleted and a background compactor copies the records that
+ * are still referenced out of sealed containers that fall below
+ * Main.containerCompactionThreshold, points the hash table at the copies and
+ * removes the old container once the hash table has been synced.
+ *
+ * Subclasses decide where sealed containers are kept. Their data is read
+ * through {@link #read(Container, long, int)}, which reads the local file
+ * unless it is overridden.
+ */
+public abstract class LogChunkStore<C extends LogChunkStore.Container>
+		implements AbstractChunkStore, BatchChunkStore {
+	protected static final int HL = ChunkRecord.HL;
+	protected static final int HDR = ChunkRecord.HDR;
+	protected static final int IDX = ChunkRecord.IDX;
+	private static final int MAX_INDEXES = 1024;
+	// records copied by compaction between two updates of the hash table
+	private static final int MOVE_BATCH = 256;
+	protected final ConcurrentSkipListMap<Integer, C> containers = new ConcurrentSkipListMap<Integer, C>();
+	// read channels, least recently used first
+	private final LinkedHashMap<Integer, FileChannel> open = new LinkedHashMap<Integer, FileChannel>(
+			16, .75f, true);
+	// indexes of sealed containers, least recently used first
+	private final LinkedHashMap<Integer, ByteBuffer> indexes = new LinkedHashMap<Integer, ByteBuffer>(
+			16, .75f, true);
+	protected final ReentrantLock wlock = new ReentrantLock();
+	protected C active = null;
+	protected long activeOpened = 0;
+	private FileChannel activeCh = null;
+	private ByteArrayOutputStream activeIdx = null;
+	private int nextId = 1;
+	protected File dir = null;
+	protected File statsFile = null;
+	private final String kind;
+	private final int maxOpen;
+	private String name;
+	protected volatile boolean closed = true;
+	private final AtomicLong liveBytes = new AtomicLong();
+	protected final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private SyncThread th = null;
+	private Compactor compactor = null;
+	private Iterator<C> iter = null;
+	private C iterContainer = null;
+	private ByteBuffer iterData = null;
+	private long iterPos = 0;
+
+	protected static class Container {
+		final int id;
+		final File f;
+		final File idx;
+		volatile long length = 0;
+		final AtomicLong live = new AtomicLong();
+		volatile boolean sealed = false;
+		volatile boolean verified = true;
+		// when compaction moved the last live record out, 0 while in use
+		volatile long retired = 0;
+
+		protected Container(int id, File f, File idx) {
+			this.id = id;
+			this.f = f;
+			this.idx = idx;
+		}
+	}
+
+	/**
+	 * @param kind
+	 *            what a container is called in the folder, file and log names
+	 * @param maxOpen
+	 *            the number of read channels kept open
+	 */
+	protected LogChunkStore(String kind, int maxOpen) {
+		this.kind = kind;
+		this.maxOpen = maxOpen;
+		this.name = kind + "s";
+	}
+
+	/**
+	 * Creates the container with the given id in {@link #dir}. Nothing is
+	 * written until it is started or recovered.
+	 */
+	protected abstract C newContainer(int id);
+
+	/**
+	 * The size at which the active container is sealed.
+	 */
+	protected abstract long maxLength();
+
+	/**
+	 * Finds the containers left by the last run and puts them in
+	 * {@link #containers}. The stats are read afterwards.
+	 */
+	protected abstract void load(Element config) throws IOException;
+
+	/**
+	 * Brings a container found by {@link #load(Element)} back to a sealed
+	 * state with a complete index and its length set.
+	 *
+	 * @return false if the container holds nothing and was removed
+	 */
+	protected abstract boolean recover(C c) throws IOException;
+
+	/**
+	 * Called once the store is open, before the background threads start.
+	 */
+	protected void opened() throws IOException {
+	}
+
+	/**
+	 * Called with the write lock held once a container is sealed and its
+	 * index written.
+	 */
+	protected void sealed(C c, byte[] idx) throws IOException {
+	}
+
+	/**
+	 * Called before records are appended, without the write lock.
+	 */
+	protected void admit() throws IOException {
+	}
+
+	/**
+	 * Called by the sync thread after each sync.
+	 */
+	protected void maintain() throws IOException {
+	}
+
+	/**
+	 * Called on close once the active container is sealed, before the stats
+	 * are saved.
+	 */
+	protected void drain() {
+	}
+
+	/**
+	 * True if the local file of a container is gone and reads go elsewhere.
+	 * Such containers are read with one request per record or per
+	 * compaction.
+	 */
+	protected boolean remote(C c) {
+		return false;
+	}
+
+	/**
+	 * True if a container may be compacted.
+	 */
+	protected boolean compactable(C c) {
+		return c.sealed && c.retired == 0;
+	}
+
+	/**
+	 * Removes what is kept of a retired container outside of {@link #dir}.
+	 * The container is kept for the next pass if this throws.
+	 */
+	protected void discard(C c) throws IOException {
+	}
+
+	@Override
+	public void init(Element config) throws IOException {
+		dir = new File(Main.chunkStore + File.separator + kind + "s");
+		if (!dir.exists())
+			dir.mkdirs();
+		statsFile = new File(dir, kind + "s.map");
+		this.load(config);
+		boolean clean = this.readStats();
+		for (C c : new ArrayList<C>(containers.values())) {
+			if (!this.recover(c)) {
+				containers.remove(c.id);
+				continue;
+			}
+			c.sealed = true;
+			if (!clean) {
+				c.live.set(c.length);
+				c.verified = false;
+			}
+			liveBytes.addAndGet(c.live.get());
+		}
+		if (!clean && containers.size() > 0)
+			SDFSLogger.getLog().warn(
+					kind + " stats were not saved cleanly, the live bytes of "
+							+ containers.size() + " " + kind
+							+ "s will be recounted");
+		if (!containers.isEmpty())
+			nextId = Math.max(nextId, containers.lastKey() + 1);
+		this.startContainer(nextId);
+		this.closed = false;
+		this.writeStats(false);
+		this.opened();
+		SDFSLogger.getLog().info(
+				"Opened " + kind + " chunk store " + dir.getPath() + " with "
+						+ containers.size() + " " + kind + "s");
+		th = new SyncThread(this);
+		compactor = new Compactor(this);
+	}
+
+	/**
+	 * Reads the length and live bytes of each container saved by the last
+	 * run. Lengths are only taken for containers whose length is not known
+	 * yet.
+	 *
+	 * @return true if they were saved by a clean shutdown
+	 */
+	private boolean readStats() throws IOException {
+		if (!statsFile.exists())
+			return false;
+		DataInputStream in = new DataInputStream(new FileInputStream(
+				statsFile));
+		try {
+			boolean clean = in.readBoolean();
+			nextId = in.readInt();
+			int n = in.readInt();
+			int found = 0;
+			for (int i = 0; i < n; i++) {
+				int id = in.readInt();
+				long length = in.readLong();
+				long live = in.readLong();
+				C c = containers.get(id);
+				if (c != null) {
+					if (c.length == 0)
+						c.length = length;
+					c.live.set(live);
+					found++;
+				}
+			}
+			return clean && found == containers.size();
+		} catch (EOFException e) {
+			SDFSLogger.getLog().warn(
+					"ignoring the short stats file " + statsFile.getPath());
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Saves the length and live bytes of each container. Only the save made
+	 * when the store is closed is marked clean, so after a crash the live
+	 * bytes are recounted from the hash table.
+	 */
+	protected synchronized void writeStats(boolean clean) throws IOException {
+		if (!clean && this.closed)
+			return;
+		File tmp = new File(dir, kind + "s.map.tmp");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+		try {
+			ArrayList<C> al = new ArrayList<C>(containers.values());
+			out.writeBoolean(clean);
+			out.writeInt(nextId);
+			out.writeInt(al.size());
+			for (C c : al) {
+				out.writeInt(c.id);
+				out.writeLong(c.length);
+				out.writeLong(c.live.get());
+			}
+		} finally {
+			out.close();
+		}
+		statsFile.delete();
+		tmp.renameTo(statsFile);
+	}
+
+	/**
+	 * Recreates the index of a container that was not sealed, dropping a
+	 * record that was only partially written.
+	 */
+	protected void rebuildIndex(C c) throws IOException {
+		ByteArrayOutputStream idx = new ByteArrayOutputStream();
+		RandomAccessFile raf = new RandomAccessFile(c.f, "rw");
+		try {
+			FileChannel ch = raf.getChannel();
+			long len = ch.size();
+			long pos = 0;
+			ByteBuffer hb = ByteBuffer.allocate(HDR);
+			while (pos + HDR <= len) {
+				hb.clear();
+				ch.read(hb, pos);
+				int dlen = ChunkRecord.dataLength(hb, 0);
+				if (dlen < 0 || pos + HDR + dlen > len)
+					break;
+				byte[] hash = new byte[HL];
+				hb.position(0);
+				hb.get(hash);
+				ChunkRecord.indexEntry(idx, hash, pos, HDR + dlen);
+				pos += HDR + dlen;
+			}
+			if (pos < len) {
+				SDFSLogger.getLog().warn(
+						"truncating " + kind + " " + c.f.getPath() + " from "
+								+ len + " to " + pos);
+				ch.truncate(pos);
+			}
+			c.length = pos;
+		} finally {
+			raf.close();
+		}
+		this.writeIndex(c, idx.toByteArray());
+	}
+
+	/**
+	 * The end of the last record in the index of a container, or -1 if the
+	 * index is missing or torn.
+	 */
+	protected long indexedLength(C c) throws IOException {
+		if (!c.idx.exists())
+			return -1;
+		ByteBuffer ib = ByteBuffer.wrap(Files.readAllBytes(c.idx.toPath()));
+		if (ib.limit() % IDX != 0)
+			return -1;
+		int n = ib.limit() / IDX;
+		if (n == 0)
+			return 0;
+		int p = (n - 1) * IDX + HL;
+		return (ib.getInt(p) & 0xffffffffL) + ib.getInt(p + 4);
+	}
+
+	/**
+	 * Writes the index of a container to a temporary file and renames it
+	 * into place so a crash never leaves a partial index behind.
+	 */
+	protected void writeIndex(C c, byte[] idx) throws IOException {
+		File tmp = new File(dir, c.id + ".idx.tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(idx);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(c.idx))
+			throw new IOException("unable to rename " + tmp.getPath());
+	}
+
+	private void startContainer(int id) throws IOException {
+		C c = this.newContainer(id);
+		activeCh = new RandomAccessFile(c.f, "rw").getChannel();
+		activeIdx = new ByteArrayOutputStream();
+		activeOpened = System.currentTimeMillis();
+		active = c;
+		containers.put(id, c);
+		nextId = id + 1;
+	}
+
+	/**
+	 * Seals the active container. Called with the write lock held.
+	 */
+	private void seal() throws IOException {
+		C c = active;
+		activeCh.force(false);
+		activeCh.close();
+		byte[] idx = activeIdx.toByteArray();
+		this.writeIndex(c, idx);
+		c.sealed = true;
+		this.sealed(c, idx);
+	}
+
+	/**
+	 * Seals the active container and starts the next one. Called with the
+	 * write lock held.
+	 */
+	protected void rotate() throws IOException {
+		this.seal();
+		this.startContainer(nextId);
+	}
+
+	/**
+	 * Appends encoded records to the active container. Records that fit in
+	 * the same container are written with one gathering write.
+	 *
+	 * @return the position of each record
+	 */
+	private long[] append(List<byte[]> recs) throws IOException {
+		this.admit();
+		long max = this.maxLength();
+		long[] pos = new long[recs.size()];
+		int total = 0;
+		for (byte[] rec : recs)
+			total += rec.length;
+		// charged before taking the lock so a throttled writer does not
+		// hold up the others
+		IOThrottle.writes.acquire(total);
+		wlock.lock();
+		try {
+			if (this.closed)
+				throw new IOException("ChunkStore is closed");
+			int i = 0;
+			while (i < recs.size()) {
+				if (active.length > 0
+						&& active.length + recs.get(i).length > max)
+					this.rotate();
+				long start = active.length;
+				long len = start;
+				int j = i;
+				ArrayList<ByteBuffer> bufs = new ArrayList<ByteBuffer>();
+				while (j < recs.size()
+						&& (j == i || len + recs.get(j).length <= max)) {
+					byte[] rec = recs.get(j);
+					pos[j] = ChunkRecord.loc(active.id, len);
+					bufs.add(ByteBuffer.wrap(rec));
+					len += rec.length;
+					j++;
+				}
+				ByteBuffer[] ba = bufs.toArray(new ByteBuffer[bufs.size()]);
+				try {
+					activeCh.position(start);
+					ByteBuffer last = ba[ba.length - 1];
+					while (last.hasRemaining())
+						activeCh.write(ba);
+				} catch (ClosedChannelException e) {
+					// the channel was closed by an interrupt, reopen it for
+					// the next writer. The partial write is overwritten.
+					activeCh = new RandomAccessFile(active.f, "rw")
+							.getChannel();
+					throw e;
+				}
+				for (int z = i; z < j; z++) {
+					byte[] rec = recs.get(z);
+					byte[] hash = Arrays.copyOf(rec, HL);
+					ChunkRecord.indexEntry(activeIdx, hash,
+							pos[z] & 0xffffffffL, rec.length);
+				}
+				active.live.addAndGet(len - start);
+				liveBytes.addAndGet(len - start);
+				bytesWritten.addAndGet(len - start);
+				active.length = len;
+				i = j;
+			}
+			return pos;
+		} finally {
+			wlock.unlock();
+		}
+	}
+
+	@Override
+	public long writeChunk(byte[] hash, byte[] chunk, int len)
+			throws IOException {
+		if (this.closed)
+			throw new IOException("ChunkStore is closed");
+		if (chunk.length > Main.chunkStorePageSize)
+			throw new IOException("length is greater than page size");
+		return this.append(Collections.singletonList(ChunkRecord.encode(hash,
+				chunk)))[0];
+	}
+
+	@Override
+	public long[] writeChunks(byte[][] hashes, byte[][] chunks)
+			throws IOException {
+		if (this.closed)
+			throw new IOException("ChunkStore is closed");
+		ArrayList<byte[]> recs = new ArrayList<byte[]>(chunks.length);
+		for (int i = 0; i < chunks.length; i++) {
+			if (chunks[i].length > Main.chunkStorePageSize)
+				throw new IOException("length is greater than page size");
+			recs.add(ChunkRecord.encode(hashes[i], chunks[i]));
+		}
+		return this.append(recs);
+	}
+
+	private FileChannel channel(C c) throws IOException {
+		synchronized (open) {
+			FileChannel ch = open.get(c.id);
+			if (ch == null || !ch.isOpen()) {
+				ch = new RandomAccessFile(c.f, "r").getChannel();
+				open.put(c.id, ch);
+				if (open.size() > maxOpen) {
+					Iterator<Map.Entry<Integer, FileChannel>> it = open
+							.entrySet().iterator();
+					FileChannel ech = it.next().getValue();
+					it.remove();
+					ech.close();
+				}
+			}
+			return ch;
+		}
+	}
+
+	protected void closeChannel(C c) {
+		synchronized (open) {
+			FileChannel ch = open.remove(c.id);
+			if (ch != null) {
+				try {
+					ch.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads <tt>len</tt> bytes from <tt>off</tt> in the local file of a
+	 * container, or up to its end. Read channels are shared and may be closed
+	 * under a reader when they are evicted, in which case the read is retried
+	 * once.
+	 */
+	protected ByteBuffer read(C c, long off, int len) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(len);
+		for (int t = 0;; t++) {
+			try {
+				FileChannel ch = this.channel(c);
+				while (buf.hasRemaining()) {
+					int n = ch.read(buf, off + buf.position());
+					if (n < 0)
+						break;
+				}
+				bytesRead.addAndGet(buf.position());
+				IOThrottle.reads.acquire(buf.position());
+				buf.flip();
+				return buf;
+			} catch (ClosedChannelException e) {
+				if (t > 0 || Thread.currentThread().isInterrupted())
+					throw e;
+				buf.clear();
+			}
+		}
+	}
+
+	/**
+	 * Reads <tt>len</tt> bytes from <tt>off</tt> in a container, from
+	 * <tt>data</tt> if the whole container was already read.
+	 */
+	private ByteBuffer region(C c, ByteBuffer data, long off, int len)
+			throws IOException {
+		if (data == null)
+			return this.read(c, off, len);
+		ByteBuffer buf = data.duplicate();
+		buf.position((int) Math.min(off, buf.limit()));
+		buf.limit((int) Math.min(off + len, buf.limit()));
+		return buf.slice();
+	}
+
+	private ByteBuffer index(C c) throws IOException {
+		synchronized (indexes) {
+			ByteBuffer ib = indexes.get(c.id);
+			if (ib != null)
+				return ib;
+		}
+		ByteBuffer ib = ByteBuffer.wrap(Files.readAllBytes(c.idx.toPath()));
+		synchronized (indexes) {
+			indexes.put(c.id, ib);
+			if (indexes.size() > MAX_INDEXES) {
+				Iterator<Integer> it = indexes.keySet().iterator();
+				it.next();
+				it.remove();
+			}
+		}
+		return ib;
+	}
+
+	/**
+	 * The length of the record at <tt>off</tt> in a sealed container, found
+	 * in its index, or -1 if there is none.
+	 */
+	private int recordLength(C c, long off) throws IOException {
+		ByteBuffer ib = this.index(c);
+		int lo = 0;
+		int hi = ib.limit() / IDX - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			long moff = ib.getInt(mid * IDX + HL) & 0xffffffffL;
+			if (moff < off)
+				lo = mid + 1;
+			else if (moff > off)
+				hi = mid - 1;
+			else
+				return ib.getInt(mid * IDX + HL + 4);
+		}
+		return -1;
+	}
+
+	protected C container(long start) throws IOException {
+		int id = (int) (start >>> 32);
+		C c = containers.get(id);
+		if (c == null)
+			throw new IOException(kind + " " + id
+					+ " not found for chunk at position " + start);
+		return c;
+	}
+
+	@Override
+	public byte[] getChunk(byte[] hash, long start, int len)
+			throws IOException {
+		if (this.closed)
+			throw new IOException("ChunkStore is closed");
+		C c = this.container(start);
+		long off = start & 0xffffffffL;
+		// remote records are fetched exactly, local ones with the header and
+		// the whole record in one read for all but encrypted chunks that
+		// grew past the page size
+		int rl = this.remote(c) ? this.recordLength(c, off) : -1;
+		if (rl < 0)
+			rl = (int) Math.min(HDR + Main.chunkStorePageSize, c.length - off);
+		if (rl < HDR)
+			throw new IOException("no chunk at position " + start);
+		ByteBuffer buf = this.read(c, off, rl);
+		if (buf.limit() < HDR)
+			throw new IOException("no chunk at position " + start);
+		buf.position(HL);
+		byte flags = buf.get();
+		int ulen = buf.getInt();
+		int dlen = buf.getInt();
+		byte[] data = new byte[dlen];
+		if (buf.remaining() >= dlen) {
+			buf.get(data);
+		} else {
+			ByteBuffer db = this.read(c, off + HDR, dlen);
+			if (db.limit() < dlen)
+				throw new IOException("short chunk at position " + start);
+			db.get(data);
+		}
+		return ChunkRecord.decode(flags, ulen, data, start);
+	}
+
+	@Override
+	public void deleteChunk(byte[] hash, long start, int len)
+			throws IOException {
+		if (this.closed)
+			throw new IOException("ChunkStore is closed");
+		C c = containers.get((int) (start >>> 32));
+		if (c == null || c.retired > 0)
+			return;
+		long off = start & 0xffffffffL;
+		int rl;
+		if (this.remote(c)) {
+			rl = this.recordLength(c, off);
+		} else {
+			ByteBuffer hb = this.read(c, off, HDR);
+			if (hb.limit() < HDR)
+				return;
+			rl = HDR + ChunkRecord.dataLength(hb, 0);
+		}
+		if (rl <= 0)
+			return;
+		c.live.addAndGet(-rl);
+		liveBytes.addAndGet(-rl);
+	}
+
+	@Override
+	public void deleteDuplicate(byte[] hash, long start, int len)
+			throws IOException {
+		this.deleteChunk(hash, start, len);
+	}
+
+	/**
+	 * Counts the live bytes of a container whose stats were lost by checking
+	 * which of its records the hash table still points to.
+	 */
+	private void verify(AbstractHashesMap map, C c) throws IOException {
+		ByteBuffer ib = ByteBuffer.wrap(Files.readAllBytes(c.idx.toPath()));
+		long live = 0;
+		byte[] hash = new byte[HL];
+		while (ib.remaining() >= IDX) {
+			ib.get(hash);
+			long off = ib.getInt() & 0xffffffffL;
+			int rl = ib.getInt();
+			if (map.lookup(hash) == ChunkRecord.loc(c.id, off))
+				live += rl;
+		}
+		long old = c.live.getAndSet(live);
+		liveBytes.addAndGet(live - old);
+		c.verified = true;
+	}
+
+	/**
+	 * Copies the records of a container that the hash table still points to
+	 * into the active container and moves their keys. Remote containers are
+	 * fetched with one read.
+	 */
+	private void rewrite(AbstractHashesMap map, C c) throws IOException {
+		SDFSLogger.getLog().info(
+				"compacting " + kind + " " + c.id + " live=" + c.live.get()
+						+ " length=" + c.length);
+		long tm = System.currentTimeMillis();
+		ByteBuffer ib = ByteBuffer.wrap(Files.readAllBytes(c.idx.toPath()));
+		ByteBuffer data = null;
+		long fetched = 0;
+		if (this.remote(c)) {
+			data = this.read(c, 0, (int) c.length);
+			fetched = c.length;
+		}
+		ArrayList<byte[]> hashes = new ArrayList<byte[]>();
+		ArrayList<Long> opos = new ArrayList<Long>();
+		ArrayList<byte[]> recs = new ArrayList<byte[]>();
+		long copied = 0;
+		long moved = 0;
+		while (ib.remaining() >= IDX && !this.closed) {
+			byte[] hash = new byte[HL];
+			ib.get(hash);
+			long off = ib.getInt() & 0xffffffffL;
+			int rl = ib.getInt();
+			long pos = ChunkRecord.loc(c.id, off);
+			if (map.lookup(hash) != pos)
+				continue;
+			ByteBuffer rb = this.region(c, data, off, rl);
+			if (rb.remaining() < rl)
+				throw new IOException("short record at position " + pos);
+			byte[] rec = new byte[rl];
+			rb.get(rec);
+			hashes.add(hash);
+			opos.add(pos);
+			recs.add(rec);
+			copied += rl;
+			if (recs.size() >= MOVE_BATCH) {
+				moved += this.move(map, hashes, opos, recs);
+				this.throttle(fetched + copied, tm);
+			}
+		}
+		moved += this.move(map, hashes, opos, recs);
+		if (this.closed)
+			return;
+		long dead = c.live.getAndSet(0);
+		liveBytes.addAndGet(-dead);
+		c.retired = System.currentTimeMillis();
+		SDFSLogger.getLog().info(
+				"compacted " + kind + " " + c.id + " moved " + moved
+						+ " chunks in " + (System.currentTimeMillis() - tm)
+						+ " ms");
+		this.throttle(fetched + copied, tm);
+	}
+
+	/**
+	 * Appends copied records and points the hash table at them. Copies of
+	 * records whose key was changed in the meantime are counted as dead. The
+	 * lists are cleared.
+	 *
+	 * @return the number of keys moved
+	 */
+	private long move(AbstractHashesMap map, List<byte[]> hashes,
+			List<Long> opos, List<byte[]> recs) throws IOException {
+		long moved = 0;
+		if (recs.size() > 0) {
+			long[] npos = this.append(recs);
+			for (int i = 0; i < npos.length; i++) {
+				if (map.relocate(hashes.get(i), opos.get(i), npos[i])) {
+					moved++;
+				} else {
+					int rl = recs.get(i).length;
+					C nc = containers.get((int) (npos[i] >>> 32));
+					nc.live.addAndGet(-rl);
+					liveBytes.addAndGet(-rl);
+				}
+			}
+		}
+		hashes.clear();
+		opos.clear();
+		recs.clear();
+		return moved;
+	}
+
+	private void throttle(long copied, long start) throws IOException {
+		if (Main.containerCompactionRate <= 0)
+			return;
+		long want = (copied * 1000) / Main.containerCompactionRate;
+		long el = System.currentTimeMillis() - start;
+		if (want > el) {
+			try {
+				Thread.sleep(want - el);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Deletes containers retired at least <tt>age</tt> ms ago. The hash table
+	 * is synced first so the moved keys are on disk before the data they
+	 * pointed to goes away. Readers that looked up a key before it was moved
+	 * have had <tt>age</tt> ms to finish.
+	 */
+	private void purge(AbstractHashesMap map, long age) throws IOException {
+		ArrayList<C> al = new ArrayList<C>();
+		long now = System.currentTimeMillis();
+		for (C c : containers.values()) {
+			if (c.retired > 0 && now - c.retired >= age)
+				al.add(c);
+		}
+		if (al.size() == 0)
+			return;
+		map.sync();
+		int n = 0;
+		for (C c : al) {
+			try {
+				this.discard(c);
+			} catch (IOException e) {
+				SDFSLogger.getLog().warn(
+						"unable to delete " + kind + " " + c.id
+								+ ", it will be retried", e);
+				continue;
+			}
+			containers.remove(c.id);
+			this.closeChannel(c);
+			synchronized (indexes) {
+				indexes.remove(c.id);
+			}
+			c.f.delete();
+			c.idx.delete();
+			n++;
+		}
+		this.writeStats(false);
+		SDFSLogger.getLog().info("removed " + n + " compacted " + kind + "s");
+	}
+
+	private void compact(long age) throws IOException {
+		AbstractHashesMap map = HCServiceProxy.getHashesMap();
+		if (map == null)
+			return;
+		this.purge(map, age);
+		for (C c : containers.values()) {
+			if (this.closed)
+				return;
+			if (!this.compactable(c))
+				continue;
+			if (!c.verified)
+				this.verify(map, c);
+			if (c.length == 0
+					|| ((double) c.live.get() / (double) c.length) < Main.containerCompactionThreshold)
+				this.rewrite(map, c);
+		}
+	}
+
+	/**
+	 * Walks the records of every container. Remote containers are fetched
+	 * with one read each.
+	 */
+	@Override
+	public ChunkData getNextChunck() throws IOException {
+		for (;;) {
+			if (iterContainer == null) {
+				if (iter == null || !iter.hasNext())
+					return null;
+				C c = iter.next();
+				if (c.length == 0)
+					continue;
+				iterData = this.remote(c) ? this.read(c, 0, (int) c.length)
+						: null;
+				iterContainer = c;
+				iterPos = 0;
+			}
+			C c = iterContainer;
+			if (iterPos + HDR > c.length) {
+				iterContainer = null;
+				iterData = null;
+				continue;
+			}
+			ByteBuffer hb = this.region(c, iterData, iterPos, HDR);
+			if (hb.limit() < HDR) {
+				iterContainer = null;
+				iterData = null;
+				continue;
+			}
+			byte[] hash = new byte[HL];
+			hb.get(hash);
+			byte flags = hb.get();
+			int ulen = hb.getInt();
+			int dlen = hb.getInt();
+			long pos = ChunkRecord.loc(c.id, iterPos);
+			ByteBuffer db = this.region(c, iterData, iterPos + HDR, dlen);
+			if (db.remaining() < dlen)
+				throw new IOException("short chunk at position " + pos);
+			byte[] data = new byte[dlen];
+			db.get(data);
+			iterPos += HDR + dlen;
+			ChunkData chk = new ChunkData(hash, pos);
+			data = ChunkRecord.decode(flags, ulen, data, pos);
+			chk.setChunk(data);
+			chk.cLen = data.length;
+			return chk;
+		}
+	}
+
+	@Override
+	public void iterationInit() throws IOException {
+		ArrayList<C> al = new ArrayList<C>();
+		for (C c : containers.values()) {
+			if (c.retired == 0)
+				al.add(c);
+		}
+		this.iter = al.iterator();
+		this.iterContainer = null;
+		this.iterData = null;
+		this.iterPos = 0;
+	}
+
+	@Override
+	public void sync() throws IOException {
+		wlock.lock();
+		try {
+			if (!this.closed)
+				activeCh.force(false);
+		} finally {
+			wlock.unlock();
+		}
+	}
+
+	@Override
+	public void close() {
+		if (th != null)
+			th.close();
+		if (compactor != null)
+			compactor.close();
+		wlock.lock();
+		try {
+			if (this.closed)
+				return;
+			this.closed = true;
+			if (active.length > 0) {
+				this.seal();
+			} else {
+				activeCh.close();
+				containers.remove(active.id);
+				active.f.delete();
+			}
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn(
+					"while closing " + kind + " chunk store ", e);
+		} finally {
+			wlock.unlock();
+		}
+		this.drain();
+		try {
+			this.writeStats(true);
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn("unable to save " + kind + " stats", e);
+		}
+		synchronized (open) {
+			for (FileChannel ch : open.values()) {
+				try {
+					ch.close();
+				} catch (IOException e) {
+				}
+			}
+			open.clear();
+		}
+	}
+
+	@Override
+	public String getName() {
+		return this.name;
+	}
+
+	@Override
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * The bytes of all records still referenced.
+	 */
+	@Override
+	public long size() {
+		return this.liveBytes.get();
+	}
+
+	@Override
+	public long compressedSize() {
+		return this.liveBytes.get();
+	}
+
+	@Override
+	public long maxSize() {
+		return Main.chunkStoreAllocationSize;
+	}
+
+	@Override
+	public long bytesRead() {
+		return this.bytesRead.get();
+	}
+
+	@Override
+	public long bytesWritten() {
+		return this.bytesWritten.get();
+	}
+
+	/**
+	 * The dead space waiting for compaction, in pages.
+	 */
+	@Override
+	public long getFreeBlocks() {
+		long dead = 0;
+		for (C c : containers.values()) {
+			if (c.retired == 0)
+				dead += c.length - c.live.get();
+		}
+		return dead / Main.chunkStorePageSize;
+	}
+
+	@Override
+	public void setReadSpeed(int kbps) {
+		IOThrottle.reads.setLimit(kbps);
+	}
+
+	@Override
+	public void setWriteSpeed(int kbps) {
+		IOThrottle.writes.setLimit(kbps);
+	}
+
+	@Override
+	public void setCacheSize(long sz) throws IOException {
+	}
+
+	@Override
+	public int getReadSpeed() {
+		return IOThrottle.reads.getSpeed();
+	}
+
+	@Override
+	public int getWriteSpeed() {
+		return IOThrottle.writes.getSpeed();
+	}
+
+	@Override
+	public long getCacheSize() {
+		return 0;
+	}
+
+	@Override
+	public long getMaxCacheSize() {
+		return 0;
+	}
+
+	@Override
+	public String restoreBlock(long id, byte[] hash) {
+		return null;
+	}
+
+	@Override
+	public boolean blockRestored(String id) {
+		return true;
+	}
+
+	private static class SyncThread implements Runnable {
+		LogChunkStore<?> store = null;
+		int interval = 2 * 1000;
+		Thread th = null;
+
+		SyncThread(LogChunkStore<?> store) {
+			this.store = store;
+			th = new Thread(this);
+			th.start();
+		}
+
+		@Override
+		public void run() {
+			while (!store.closed) {
+				try {
+					Thread.sleep(interval);
+					store.sync();
+					store.maintain();
+					store.writeStats(false);
+				} catch (IOException e) {
+					if (SDFSLogger.isDebug())
+						SDFSLogger.getLog().debug(
+								"Unable to flush " + store.kind
+										+ " chunk store ", e);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+
+		public void close() {
+			try {
+				th.interrupt();
+			} catch (Exception e) {
+			}
+		}
+	}
+
+	/**
+	 * Looks for containers to compact once a minute. Retired containers are
+	 * deleted on the pass after the one that retired them.
+	 */
+	private static class Compactor implements Runnable {
+		LogChunkStore<?> store = null;
+		int interval = 60 * 1000;
+		Thread th = null;
+
+		Compactor(LogChunkStore<?> store) {
+			this.store = store;
+			th = new Thread(this);
+			th.setName(store.kind + "-compactor");
+			th.setPriority(Thread.MIN_PRIORITY);
+			th.start();
+		}
+
+		@Override
+		public void run() {
+			IOThrottle.setBackground(true);
+			while (!store.closed) {
+				try {
+					Thread.sleep(interval);
+					store.compact(interval);
+				} catch (InterruptedException e) {
+					break;
+				} catch (Exception e) {
+					if (!store.closed)
+						SDFSLogger.getLog().warn(
+								"unable to compact " + store.kind + "s", e);
+				}
+			}
+		}
+
+		public void close() {
+			try {
+				th.interrupt();
+				th.join(10 * 1000);
+			} catch (Exception e) {
+			}
+		}
+	}
+
+}
@@ -0,0 +1,258 @@
+package org.opendedup.sdfs.filestore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.opendedup.sdfs.Main;
+
+/**
+ * Checks the record and index formats of the log structured chunk stores
+ * and that they come back after a crash: a torn or missing container index
+ * is rebuilt from the records, and the archives folder is recovered from the
+ * indexes embedded in the uploaded archives. Run it with a scratch folder as
+ * the only argument.
+ */
+public class LogChunkStoreTest {
+	private static final int HL = ChunkRecord.HL;
+	private static final int HDR = ChunkRecord.HDR;
+	private static final int IDX = ChunkRecord.IDX;
+	private static final int CHUNKS = 64;
+	private static final Random rnd = new Random(6443);
+	private static File base;
+
+	public static void main(String[] args) throws IOException {
+		base = new File(args.length > 0 ? args[0] : System
+				.getProperty("java.io.tmpdir") + File.separator + "logtest");
+		Main.containerSize = 32 * 1024;
+		Main.archiveSize = 32 * 1024;
+		Main.archiveBackend = "file";
+		containers();
+		archives();
+		System.out.println("all log chunk store checks passed");
+	}
+
+	/**
+	 * Writes chunks to a container store, checks each container against its
+	 * index, tears one index, drops another, leaves a partial record behind
+	 * and reads everything back after a reopen.
+	 */
+	private static void containers() throws IOException {
+		open("containers");
+		Map<Long, byte[][]> chunks = new HashMap<Long, byte[][]>();
+		ContainerChunkStore store = new ContainerChunkStore();
+		store.init(null);
+		write(store, chunks);
+		store.close();
+		File dir = new File(Main.chunkStore, "containers");
+		File[] ctrs = list(dir, ".ctr");
+		if (ctrs.length < 3)
+			throw new IllegalStateException("expected several containers, got "
+					+ ctrs.length);
+		for (File f : ctrs)
+			checkIndex(Files.readAllBytes(f.toPath()), index(f));
+
+		File last = ctrs[ctrs.length - 1];
+		long len = last.length();
+		File lidx = index(last);
+		RandomAccessFile raf = new RandomAccessFile(lidx, "rw");
+		try {
+			raf.setLength(lidx.length() - 5);
+		} finally {
+			raf.close();
+		}
+		raf = new RandomAccessFile(last, "rw");
+		try {
+			raf.seek(len);
+			raf.write(new byte[7]);
+		} finally {
+			raf.close();
+		}
+		Files.delete(index(ctrs[0]).toPath());
+
+		store = new ContainerChunkStore();
+		store.init(null);
+		read(store, chunks);
+		store.close();
+		if (last.length() != len)
+			throw new IllegalStateException("the partial record in "
+					+ last.getPath() + " was not dropped");
+		for (File f : list(dir, ".ctr"))
+			checkIndex(Files.readAllBytes(f.toPath()), index(f));
+		System.out.println("containers passed");
+	}
+
+	/**
+	 * Writes chunks to an archive store backed by a folder, checks the
+	 * uploaded objects and reads everything back after the archives folder
+	 * is lost.
+	 */
+	private static void archives() throws IOException {
+		File dir = open("archives");
+		File objs = new File(dir, "objects");
+		Main.archivePath = objs.getPath();
+		Map<Long, byte[][]> chunks = new HashMap<Long, byte[][]>();
+		ArchiveChunkStore store = new ArchiveChunkStore();
+		store.init(null);
+		write(store, chunks);
+		store.close();
+		File local = new File(Main.chunkStore, "archives");
+		File[] arcs = new File(objs, "archives").listFiles();
+		if (arcs == null || arcs.length < 3)
+			throw new IllegalStateException("expected several archives");
+		for (File f : arcs) {
+			ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+			b.position(b.limit() - 12);
+			int n = b.getInt();
+			int dlen = b.getInt();
+			if (b.getInt() != 0x53444641
+					|| (long) dlen + (long) n * IDX + 12 != b.limit())
+				throw new IllegalStateException(f.getPath()
+						+ " has no valid footer");
+			byte[] idx = Arrays.copyOfRange(b.array(), dlen, dlen + n * IDX);
+			if (!Arrays.equals(idx, Files.readAllBytes(new File(local, f
+					.getName() + ".idx").toPath())))
+				throw new IllegalStateException("the index embedded in "
+						+ f.getPath() + " differs from the local one");
+			checkIndex(Arrays.copyOf(b.array(), dlen), new File(local, f
+					.getName() + ".idx"));
+		}
+		delete(local);
+		store = new ArchiveChunkStore();
+		store.init(null);
+		read(store, chunks);
+		store.close();
+		System.out.println("archives passed");
+	}
+
+	private static void write(LogChunkStore<?> store, Map<Long, byte[][]> chunks)
+			throws IOException {
+		byte[][] hashes = new byte[CHUNKS][];
+		byte[][] data = new byte[CHUNKS][];
+		for (int i = 0; i < CHUNKS; i++) {
+			hashes[i] = new byte[HL];
+			rnd.nextBytes(hashes[i]);
+			data[i] = new byte[Main.chunkStorePageSize];
+			// every other chunk compresses
+			if (i % 2 == 0)
+				rnd.nextBytes(data[i]);
+			else
+				Arrays.fill(data[i], (byte) i);
+		}
+		long[] pos = store.writeChunks(Arrays.copyOf(hashes, CHUNKS / 2),
+				Arrays.copyOf(data, CHUNKS / 2));
+		for (int i = 0; i < pos.length; i++)
+			chunks.put(pos[i], new byte[][] { hashes[i], data[i] });
+		for (int i = CHUNKS / 2; i < CHUNKS; i++)
+			chunks.put(store.writeChunk(hashes[i], data[i], data[i].length),
+					new byte[][] { hashes[i], data[i] });
+	}
+
+	private static void read(LogChunkStore<?> store, Map<Long, byte[][]> chunks)
+			throws IOException {
+		for (Map.Entry<Long, byte[][]> e : chunks.entrySet()) {
+			byte[] b = store.getChunk(e.getValue()[0], e.getKey(), -1);
+			if (!Arrays.equals(b, e.getValue()[1]))
+				throw new IllegalStateException("chunk at " + e.getKey()
+						+ " differs");
+		}
+		store.iterationInit();
+		int n = 0;
+		ChunkData cd;
+		while ((cd = store.getNextChunck()) != null) {
+			byte[][] c = chunks.get(cd.getcPos());
+			if (c == null || !Arrays.equals(c[0], cd.getHash()))
+				throw new IllegalStateException("unexpected chunk at "
+						+ cd.getcPos());
+			n++;
+		}
+		if (n != chunks.size())
+			throw new IllegalStateException("iterated over " + n + " of "
+					+ chunks.size() + " chunks");
+	}
+
+	/**
+	 * Walks the records in <tt>data</tt> and checks that the index lists each
+	 * of them in order and nothing else.
+	 */
+	private static void checkIndex(byte[] data, File idx) throws IOException {
+		ByteBuffer ib = ByteBuffer.wrap(Files.readAllBytes(idx.toPath()));
+		if (ib.limit() % IDX != 0)
+			throw new IllegalStateException(idx.getPath() + " is torn");
+		ByteBuffer db = ByteBuffer.wrap(data);
+		int pos = 0;
+		byte[] hash = new byte[HL];
+		byte[] ihash = new byte[HL];
+		while (pos < data.length) {
+			db.position(pos);
+			db.get(hash);
+			int rl = HDR + ChunkRecord.dataLength(db, pos);
+			if (!ib.hasRemaining())
+				throw new IllegalStateException(idx.getPath()
+						+ " is missing the record at " + pos);
+			ib.get(ihash);
+			int off = ib.getInt();
+			int len = ib.getInt();
+			if (!Arrays.equals(hash, ihash) || off != pos || len != rl)
+				throw new IllegalStateException(idx.getPath()
+						+ " does not match the record at " + pos);
+			pos += rl;
+		}
+		if (pos != data.length || ib.hasRemaining())
+			throw new IllegalStateException(idx.getPath()
+					+ " does not end with the records");
+	}
+
+	private static File index(File f) {
+		String n = f.getName();
+		return new File(f.getParentFile(), n.substring(0, n.length() - 4)
+				+ ".idx");
+	}
+
+	private static File[] list(File dir, String ext) {
+		File[] fs = dir.listFiles();
+		int n = 0;
+		for (File f : fs) {
+			if (f.getName().endsWith(ext))
+				fs[n++] = f;
+		}
+		fs = Arrays.copyOf(fs, n);
+		// by container id rather than by name
+		Arrays.sort(fs, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Integer.compare(id(a), id(b));
+			}
+		});
+		return fs;
+	}
+
+	private static int id(File f) {
+		String n = f.getName();
+		return Integer.parseInt(n.substring(0, n.length() - 4));
+	}
+
+	private static File open(String name) throws IOException {
+		File dir = new File(base, name);
+		delete(dir);
+		dir.mkdirs();
+		Main.chunkStore = new File(dir, "chunks").getPath();
+		return dir;
+	}
+
+	private static void delete(File f) throws IOException {
+		if (f.isDirectory()) {
+			for (File c : f.listFiles())
+				delete(c);
+		}
+		Files.deleteIfExists(f.toPath());
+	}
+
+}
@@ -0,0 +1,129 @@
+package org.opendedup.sdfs.filestore;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.blob.ListBlobItem;
+
+/**
+ * Keeps archives as block blobs in an Azure container through the Azure
+ * client pool.
+ */
+public class MAzureArchiveBackend implements ArchiveBackend {
+	private final MAzureServicePool pool;
+
+	public MAzureArchiveBackend(String bucket) throws IOException {
+		try {
+			String storageConnectionString = "DefaultEndpointsProtocol=http;"
+					+ "AccountName=" + Main.cloudAccessKey + ";"
+					+ "AccountKey=" + Main.cloudSecretKey;
+			CloudStorageAccount account = CloudStorageAccount
+					.parse(storageConnectionString);
+			pool = new MAzureServicePool(account, Main.dseIOThreads,
+					bucket.toLowerCase());
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	private CloudBlobContainer borrow() throws IOException {
+		try {
+			return pool.borrowObject();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void put(String key, byte[] data) throws IOException {
+		CloudBlobContainer container = this.borrow();
+		try {
+			CloudBlockBlob blob = container.getBlockBlobReference(key);
+			blob.upload(new ByteArrayInputStream(data), data.length);
+		} catch (Exception e) {
+			throw new IOException("unable to upload " + key, e);
+		} finally {
+			pool.returnObject(container);
+		}
+	}
+
+	@Override
+	public byte[] getRange(String key, long off, int len) throws IOException {
+		CloudBlobContainer container = this.borrow();
+		try {
+			CloudBlockBlob blob = container.getBlockBlobReference(key);
+			byte[] b = new byte[len];
+			int n = 0;
+			while (n < len) {
+				int r = blob.downloadRangeToByteArray(off + n, (long) (len - n),
+						b, n);
+				if (r <= 0)
+					throw new IOException("short read of " + key + " at "
+							+ (off + n));
+				n += r;
+			}
+			return b;
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("unable to read " + key, e);
+		} finally {
+			pool.returnObject(container);
+		}
+	}
+
+	@Override
+	public void delete(String key) throws IOException {
+		CloudBlobContainer container = this.borrow();
+		try {
+			container.getBlockBlobReference(key).deleteIfExists();
+		} catch (Exception e) {
+			throw new IOException("unable to delete " + key, e);
+		} finally {
+			pool.returnObject(container);
+		}
+	}
+
+	@Override
+	public Map<String, Long> list(String prefix) throws IOException {
+		HashMap<String, Long> m = new HashMap<String, Long>();
+		CloudBlobContainer container = this.borrow();
+		try {
+			for (ListBlobItem item : container.listBlobs(prefix, true,
+					EnumSet.noneOf(BlobListingDetails.class), null, null)) {
+				if (item instanceof CloudBlob) {
+					CloudBlob blob = (CloudBlob) item;
+					m.put(blob.getName(), blob.getProperties().getLength());
+				}
+			}
+			return m;
+		} catch (Exception e) {
+			throw new IOException("unable to list " + prefix, e);
+		} finally {
+			pool.returnObject(container);
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			pool.close();
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn("unable to close azure pool", e);
+		}
+	}
+
+}
@@ -40,6 +40,8 @@ public class MAzureChunkStore implements AbstractChunkStore {
 	CloudBlobClient serviceClient;
 	// CloudBlobContainer container;
 	private MAzureServicePool pool;
+	private DiskChunkCache cache = null;
+	private Element config = null;
 	private String name;
 	boolean compress = false;
 	boolean encrypt = false;
@@ -129,6 +131,7 @@ public class MAzureChunkStore implements AbstractChunkStore {
 
 	@Override
 	public void close() {
+		cache.close();
 		CloudBlobContainer container = null;
 		try {
 			container = pool.borrowObject();
@@ -160,6 +163,11 @@ public class MAzureChunkStore implements AbstractChunkStore {
 
 	@Override
 	public byte[] getChunk(byte[] hash, long start, int len) throws IOException {
+		byte[] cb = cache.get(hash);
+		if (cb != null) {
+			IOThrottle.reads.acquire(cb.length);
+			return cb;
+		}
 		try {
 
 			String hashString = this.getHashName(hash,
@@ -168,6 +176,8 @@ public class MAzureChunkStore implements AbstractChunkStore {
 				SDFSLogger.getLog().debug("getting hash " + hashString);
 			byte[] _bz = this.chunks.get(hashString);
 			byte[] bz = Arrays.clone(_bz);
+			cache.put(hash, bz);
+			IOThrottle.reads.acquire(bz.length);
 			return bz;
 		} catch (ExecutionException e) {
 			SDFSLogger.getLog().error("Unable to get block at " + start, e);
@@ -196,6 +206,14 @@ public class MAzureChunkStore implements AbstractChunkStore {
 	@Override
 	public long writeChunk(byte[] hash, byte[] chunk, int len)
 			throws IOException {
+		IOThrottle.writes.acquire(chunk.length);
+		if (cache.stage(hash, chunk))
+			return 0;
+		return this.uploadChunk(hash, chunk, len);
+	}
+
+	private long uploadChunk(byte[] hash, byte[] chunk, int len)
+			throws IOException {
 		String hashString = this.getHashName(hash,
 				Main.chunkStoreEncryptionEnabled);
 		CloudBlobContainer container = null;
@@ -206,7 +224,7 @@ public class MAzureChunkStore implements AbstractChunkStore {
 			CloudBlockBlob blob = container.getBlockBlobReference(hashString);
 			HashMap<String, String> metaData = new HashMap<String, String>();
 
-			if (Main.compress) {
+			if (Main.compress && ChunkCompressor.compressible(chunk)) {
 				chunk = CompressionUtils.compressLz4(chunk);
 				metaData.put("lz4Compress", "true");
 			} else {
@@ -236,6 +254,7 @@ public class MAzureChunkStore implements AbstractChunkStore {
 	@Override
 	public void deleteChunk(byte[] hash, long start, int len)
 			throws IOException {
+		cache.remove(hash);
 		String hashString = this.getHashName(hash,
 				Main.chunkStoreEncryptionEnabled);
 
@@ -278,6 +297,7 @@ public class MAzureChunkStore implements AbstractChunkStore {
 	@Override
 	public void init(Element config) throws IOException {
 		this.name = Main.cloudBucket.toLowerCase();
+		this.config = config;
 		init();
 
 	}
@@ -319,6 +339,12 @@ public class MAzureChunkStore implements AbstractChunkStore {
 			if (pool != null)
 				pool.returnObject(container);
 		}
+		cache = DiskChunkCache.open(config, new DiskChunkCache.ChunkWriter() {
+			@Override
+			public void upload(byte[] hash, byte[] chunk) throws IOException {
+				uploadChunk(hash, chunk, chunk.length);
+			}
+		});
 	}
 
 	Iterator<ListBlobItem> iter = null;
@@ -408,50 +434,43 @@ public class MAzureChunkStore implements AbstractChunkStore {
 
 	@Override
 	public void sync() throws IOException {
-		// TODO Auto-generated method stub
-		
+		// staged chunks are only durable in the cache until they are uploaded
+		cache.sync();
 	}
 
 	@Override
-	public void setReadSpeed(int bps) {
-		// TODO Auto-generated method stub
-		
+	public void setReadSpeed(int kbps) {
+		IOThrottle.reads.setLimit(kbps);
 	}
 
 	@Override
-	public void setWriteSpeed(int bps) {
-		// TODO Auto-generated method stub
-		
+	public void setWriteSpeed(int kbps) {
+		IOThrottle.writes.setLimit(kbps);
 	}
 
 	@Override
-	public void setCacheSize(long bps) {
-		// TODO Auto-generated method stub
-		
+	public void setCacheSize(long sz) throws IOException {
+		cache.setMaxSize(sz);
 	}
 
 	@Override
 	public int getReadSpeed() {
-		// TODO Auto-generated method stub
-		return 0;
+		return IOThrottle.reads.getSpeed();
 	}
 
 	@Override
 	public int getWriteSpeed() {
-		// TODO Auto-generated method stub
-		return 0;
+		return IOThrottle.writes.getSpeed();
 	}
 
 	@Override
 	public long getCacheSize() {
-		// TODO Auto-generated method stub
-		return 0;
+		return cache.getSize();
 	}
 
 	@Override
 	public long getMaxCacheSize() {
-		// TODO Auto-generated method stub
-		return 0;
+		return cache.getMaxSize();
 	}
 
 	@Override
@@ -0,0 +1,592 @@
+package org.opendedup.sdfs.filestore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+
+/**
+ * Keeps the metadata records of the files of a volume in a single append only
+ * log instead of one serialized stub file per file.
+ *
+ * Every put or remove is appended as a record with a checksum. The position
+ * of the latest record of every key is kept in memory ordered by key, so a
+ * lookup is a single read and the keys under a path can be scanned in order.
+ * Records that arrive while another thread is appending are written by that
+ * thread in the same write. On open the log is replayed up to the first
+ * incomplete or damaged record, which is where a crash stopped writing.
+ *
+ * A rename is logged as one record that moves a key and every key under it.
+ * It is forced before the file is renamed on disk and followed by a marker
+ * once the disk rename is done, so a rename without its marker is checked
+ * against the disk when the log is replayed and undone if the source is
+ * still there.
+ *
+ * The log is rewritten with only the live records once less than half of it
+ * is live. Appends go on while the live records are copied, only the records
+ * appended in the meantime are copied with appends held back.
+ */
+public class MetaDataStore implements Runnable {
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final byte RENAME = 3;
+	private static final byte RENAMED = 4;
+	private static final int REC_HDR = 4 + 4 + 1 + 2;
+	private static final long MIN_COMPACT = 64L * 1024 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static MetaDataStore store = null;
+
+	private final File logf;
+	private final TreeMap<String, Entry> index = new TreeMap<String, Entry>();
+	// renames logged but not yet marked done, from key to key
+	private final LinkedHashMap<String, String> renames = new LinkedHashMap<String, String>();
+	private final ReentrantReadWriteLock ilock = new ReentrantReadWriteLock();
+	private final ReentrantLock wlock = new ReentrantLock();
+	private final ConcurrentLinkedQueue<byte[]> pending = new ConcurrentLinkedQueue<byte[]>();
+	private final Thread th;
+	private FileChannel log;
+	private long end = 0;
+	private long live = 0;
+	private volatile boolean closed = false;
+
+	private MetaDataStore(File logf) throws IOException {
+		this.logf = logf;
+		logf.getParentFile().mkdirs();
+		log = new RandomAccessFile(logf, "rw").getChannel();
+		this.replay();
+		this.resolveRenames();
+		if (this.shouldCompact())
+			this.compact();
+		th = new Thread(this, "metadata-store");
+		th.setDaemon(true);
+		th.start();
+	}
+
+	/**
+	 * @return the metadata store of the volume, opened on first use
+	 */
+	public static synchronized MetaDataStore get() throws IOException {
+		if (store == null) {
+			store = new MetaDataStore(new File(Main.dedupDBStore
+					+ File.separator + "meta" + File.separator
+					+ "metadata.log"));
+		}
+		return store;
+	}
+
+	public static synchronized void close() {
+		if (store == null)
+			return;
+		store.closed = true;
+		store.th.interrupt();
+		try {
+			store.th.join();
+		} catch (InterruptedException e) {
+		}
+		try {
+			store.sync();
+			store.log.close();
+		} catch (IOException e) {
+			SDFSLogger.getLog().warn("unable to close metadata store", e);
+		}
+		store = null;
+	}
+
+	/**
+	 * @return the key of the file at <tt>path</tt>, relative to the volume
+	 *         so the volume can be moved
+	 */
+	public static String key(String path) {
+		if (Main.volume != null && Main.volume.getPath() != null
+				&& path.startsWith(Main.volume.getPath()))
+			return path.substring(Main.volume.getPath().length());
+		return path;
+	}
+
+	/**
+	 * @return the path of the file with the key <tt>key</tt>
+	 */
+	private static String path(String key) {
+		if (Main.volume != null && Main.volume.getPath() != null)
+			return Main.volume.getPath() + key;
+		return key;
+	}
+
+	public byte[] get(String key) throws IOException {
+		// compaction moves the records under the write lock
+		ilock.readLock().lock();
+		try {
+			Entry e = index.get(key);
+			if (e == null)
+				return null;
+			return this.read(e);
+		} finally {
+			ilock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Reads the records of <tt>keys</tt> in the order they are in the log.
+	 *
+	 * @return the records found by key
+	 */
+	public Map<String, byte[]> getAll(List<String> keys) throws IOException {
+		ArrayList<Map.Entry<String, Entry>> es = new ArrayList<Map.Entry<String, Entry>>(
+				keys.size());
+		HashMap<String, byte[]> m = new HashMap<String, byte[]>();
+		ilock.readLock().lock();
+		try {
+			for (String k : keys) {
+				Entry e = index.get(k);
+				if (e != null)
+					es.add(new AbstractMap.SimpleEntry<String, Entry>(k, e));
+			}
+			Collections.sort(es, new Comparator<Map.Entry<String, Entry>>() {
+				@Override
+				public int compare(Map.Entry<String, Entry> a,
+						Map.Entry<String, Entry> b) {
+					return Long.compare(a.getValue().pos, b.getValue().pos);
+				}
+			});
+			for (Map.Entry<String, Entry> e : es) {
+				byte[] v = this.read(e.getValue());
+				if (v != null)
+					m.put(e.getKey(), v);
+			}
+		} finally {
+			ilock.readLock().unlock();
+		}
+		return m;
+	}
+
+	/**
+	 * @return the keys that start with <tt>prefix</tt>, in order
+	 */
+	public List<String> scan(String prefix) {
+		ilock.readLock().lock();
+		try {
+			return new ArrayList<String>(index.subMap(prefix,
+					prefix + Character.MAX_VALUE).keySet());
+		} finally {
+			ilock.readLock().unlock();
+		}
+	}
+
+	public void put(String key, byte[] value) throws IOException {
+		this.append(record(PUT, key, value));
+	}
+
+	public void remove(String key) throws IOException {
+		this.append(record(REMOVE, key, null));
+	}
+
+	/**
+	 * Moves the key <tt>from</tt> and every key under it, as a path, to the
+	 * same place under <tt>to</tt>. The move is forced to disk before this
+	 * returns so the file can be renamed on disk afterwards. The outcome of
+	 * that rename is reported with {@link #renamed(String, String, boolean)}.
+	 */
+	public void rename(String from, String to) throws IOException {
+		this.append(record(RENAME, from, to.getBytes(UTF8)));
+		this.sync();
+	}
+
+	/**
+	 * Marks the rename from <tt>from</tt> to <tt>to</tt> done, or moves the
+	 * keys back if the file could not be renamed on disk.
+	 */
+	public void renamed(String from, String to, boolean done)
+			throws IOException {
+		if (done)
+			this.append(record(RENAMED, from, null));
+		else
+			this.append(record(RENAME, to, from.getBytes(UTF8)),
+					record(RENAMED, from, null), record(RENAMED, to, null));
+	}
+
+	/**
+	 * Settles the renames a crash left without their marker. A rename whose
+	 * source is still on disk did not happen and is undone.
+	 */
+	private void resolveRenames() throws IOException {
+		for (Map.Entry<String, String> e : new ArrayList<Map.Entry<String, String>>(
+				renames.entrySet())) {
+			boolean done = !new File(path(e.getKey())).exists();
+			if (!done)
+				SDFSLogger.getLog().warn(
+						"undoing the rename of " + e.getKey() + " to "
+								+ e.getValue() + " that did not reach the disk");
+			this.renamed(e.getKey(), e.getValue(), done);
+		}
+	}
+
+	/**
+	 * Forces the appended records to disk.
+	 */
+	public void sync() throws IOException {
+		wlock.lock();
+		try {
+			this.drain();
+			log.force(false);
+		} finally {
+			wlock.unlock();
+		}
+	}
+
+	private void append(byte[]... recs) throws IOException {
+		if (closed)
+			throw new IOException("metadata store is closed");
+		if (recs.length == 1) {
+			pending.add(recs[0]);
+		} else {
+			// records that belong together are queued as one so they are
+			// written by the same write
+			int len = 0;
+			for (byte[] r : recs)
+				len += r.length;
+			ByteBuffer b = ByteBuffer.allocate(len);
+			for (byte[] r : recs)
+				b.put(r);
+			pending.add(b.array());
+		}
+		wlock.lock();
+		try {
+			this.drain();
+		} finally {
+			wlock.unlock();
+		}
+	}
+
+	/**
+	 * Writes all queued records with one write and indexes them. Called with
+	 * the write lock held.
+	 */
+	private void drain() throws IOException {
+		ArrayList<byte[]> batch = new ArrayList<byte[]>();
+		int len = 0;
+		byte[] r;
+		while ((r = pending.poll()) != null) {
+			batch.add(r);
+			len += r.length;
+		}
+		if (batch.size() == 0)
+			return;
+		ByteBuffer b = ByteBuffer.allocate(len);
+		for (byte[] z : batch)
+			b.put(z);
+		b.flip();
+		long pos = end;
+		while (b.hasRemaining())
+			log.write(b, pos + b.position());
+		ilock.writeLock().lock();
+		try {
+			b.position(0);
+			while (b.hasRemaining())
+				live += apply(index, renames, b, pos);
+		} finally {
+			ilock.writeLock().unlock();
+		}
+		end = pos + len;
+	}
+
+	/**
+	 * Applies the record at the position of <tt>b</tt>, which starts at
+	 * <tt>base</tt> in the log, to <tt>idx</tt> and to the renames not yet
+	 * marked done.
+	 *
+	 * @return the change in live bytes
+	 */
+	private static long apply(TreeMap<String, Entry> idx,
+			Map<String, String> moves, ByteBuffer b, long base) {
+		long pos = base + b.position();
+		b.getInt();
+		int len = b.getInt();
+		byte op = b.get();
+		byte[] kb = new byte[b.getShort() & 0xffff];
+		b.get(kb);
+		int vlen = len - 1 - 2 - kb.length;
+		byte[] vb = null;
+		if (op == RENAME) {
+			vb = new byte[vlen];
+			b.get(vb);
+		} else
+			b.position(b.position() + vlen);
+		String key = new String(kb, UTF8);
+		long delta = 0;
+		Entry old = null;
+		if (op == PUT) {
+			old = idx.put(key, new Entry(pos, len + 8));
+			delta += len + 8;
+		} else if (op == REMOVE) {
+			old = idx.remove(key);
+		} else if (op == RENAME) {
+			String to = new String(vb, UTF8);
+			delta += move(idx, key, to);
+			moves.put(key, to);
+		} else if (op == RENAMED) {
+			moves.remove(key);
+		}
+		if (old != null)
+			delta -= old.len;
+		return delta;
+	}
+
+	/**
+	 * Moves the key <tt>from</tt> and the keys under it to <tt>to</tt>.
+	 *
+	 * @return the change in live bytes, of the keys that were replaced
+	 */
+	private static long move(TreeMap<String, Entry> idx, String from,
+			String to) {
+		ArrayList<String> keys = new ArrayList<String>();
+		if (idx.containsKey(from))
+			keys.add(from);
+		String prefix = from + File.separator;
+		keys.addAll(idx.subMap(prefix, prefix + Character.MAX_VALUE)
+				.keySet());
+		long delta = 0;
+		for (String k : keys) {
+			Entry e = idx.remove(k);
+			Entry old = idx.put(to + k.substring(from.length()), e);
+			if (old != null)
+				delta -= old.len;
+		}
+		return delta;
+	}
+
+	private static byte[] record(byte op, String key, byte[] value) {
+		byte[] kb = key.getBytes(UTF8);
+		int vlen = value == null ? 0 : value.length;
+		ByteBuffer b = ByteBuffer.allocate(REC_HDR + kb.length + vlen);
+		b.putInt(0);
+		b.putInt(1 + 2 + kb.length + vlen);
+		b.put(op);
+		b.putShort((short) kb.length);
+		b.put(kb);
+		if (value != null)
+			b.put(value);
+		CRC32 crc = new CRC32();
+		crc.update(b.array(), 8, b.capacity() - 8);
+		b.putInt(0, (int) crc.getValue());
+		return b.array();
+	}
+
+	private byte[] read(Entry e) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(e.len);
+		while (b.hasRemaining()) {
+			if (log.read(b, e.pos + b.position()) < 0)
+				break;
+		}
+		if (b.hasRemaining())
+			return null;
+		b.position(8 + 1);
+		byte[] kb = new byte[b.getShort() & 0xffff];
+		b.get(kb);
+		byte[] v = new byte[b.remaining()];
+		b.get(v);
+		return v;
+	}
+
+	private void replay() throws IOException {
+		long size = log.size();
+		ByteBuffer hdr = ByteBuffer.allocate(8);
+		long pos = 0;
+		long n = 0;
+		while (pos + 8 <= size) {
+			hdr.clear();
+			log.read(hdr, pos);
+			hdr.flip();
+			int crc = hdr.getInt();
+			int len = hdr.getInt();
+			if (len < 3 || pos + 8 + len > size)
+				break;
+			ByteBuffer b = ByteBuffer.allocate(8 + len);
+			while (b.hasRemaining()) {
+				if (log.read(b, pos + b.position()) < 0)
+					break;
+			}
+			CRC32 c = new CRC32();
+			c.update(b.array(), 8, len);
+			if ((int) c.getValue() != crc)
+				break;
+			b.position(0);
+			live += apply(index, renames, b, pos);
+			pos += 8 + len;
+			n++;
+		}
+		if (pos < size) {
+			SDFSLogger.getLog().warn(
+					"discarding " + (size - pos) + " bytes of "
+							+ logf.getPath() + " after an incomplete record");
+			log.truncate(pos);
+		}
+		end = pos;
+		SDFSLogger.getLog().info(
+				"loaded " + index.size() + " metadata records from " + n
+						+ " log records in " + logf.getPath());
+	}
+
+	private boolean shouldCompact() {
+		return end > MIN_COMPACT && live * 2 < end;
+	}
+
+	/**
+	 * Rewrites the log with the live records only. The records live when the
+	 * compaction starts are copied while appends go on, each under its
+	 * current key. Appends are only held back to copy the records appended
+	 * meanwhile and to swap the logs.
+	 */
+	private void compact() throws IOException {
+		long snap;
+		TreeMap<String, Entry> snapshot;
+		LinkedHashMap<String, String> moves;
+		wlock.lock();
+		try {
+			this.drain();
+			snap = end;
+			ilock.readLock().lock();
+			try {
+				snapshot = new TreeMap<String, Entry>(index);
+				moves = new LinkedHashMap<String, String>(renames);
+			} finally {
+				ilock.readLock().unlock();
+			}
+		} finally {
+			wlock.unlock();
+		}
+		File tmp = new File(logf.getPath() + ".tmp");
+		FileChannel ch = new RandomAccessFile(tmp, "rw").getChannel();
+		TreeMap<String, Entry> nindex = new TreeMap<String, Entry>();
+		HashMap<String, String> nmoves = new HashMap<String, String>();
+		long pos = 0;
+		long nlive = 0;
+		try {
+			ch.truncate(0);
+			// only this thread replaces the log, so it can be read unlocked
+			for (Map.Entry<String, Entry> e : snapshot.entrySet()) {
+				byte[] v = this.read(e.getValue());
+				if (v == null)
+					throw new IOException("the record of " + e.getKey()
+							+ " is cut short");
+				ByteBuffer b = ByteBuffer.wrap(record(PUT, e.getKey(), v));
+				nlive += apply(nindex, nmoves, b, pos);
+				b.rewind();
+				pos += write(ch, b, pos);
+			}
+			// renames still waiting for their marker are kept
+			for (Map.Entry<String, String> e : moves.entrySet()) {
+				ByteBuffer b = ByteBuffer.wrap(record(RENAME, e.getKey(), e
+						.getValue().getBytes(UTF8)));
+				nlive += apply(nindex, nmoves, b, pos);
+				b.rewind();
+				pos += write(ch, b, pos);
+			}
+			wlock.lock();
+			try {
+				this.drain();
+				ByteBuffer b = ByteBuffer.allocate((int) (end - snap));
+				while (b.hasRemaining()) {
+					if (log.read(b, snap + b.position()) < 0)
+						throw new IOException("unable to read the end of "
+								+ logf.getPath());
+				}
+				b.flip();
+				// records appended while the others were copied
+				while (b.hasRemaining())
+					nlive += apply(nindex, nmoves, b, pos);
+				b.rewind();
+				pos += write(ch, b, pos);
+				ch.force(true);
+				ch.close();
+				Files.move(tmp.toPath(), logf.toPath(),
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				ilock.writeLock().lock();
+				try {
+					log.close();
+					log = new RandomAccessFile(logf, "rw").getChannel();
+					SDFSLogger.getLog().info(
+							"compacted " + logf.getPath() + " from " + end
+									+ " to " + pos + " bytes");
+					index.clear();
+					index.putAll(nindex);
+					end = pos;
+					live = nlive;
+				} finally {
+					ilock.writeLock().unlock();
+				}
+			} finally {
+				wlock.unlock();
+			}
+		} finally {
+			ch.close();
+		}
+	}
+
+	/**
+	 * Writes all of <tt>b</tt> at <tt>pos</tt>.
+	 *
+	 * @return the bytes written
+	 */
+	private static int write(FileChannel ch, ByteBuffer b, long pos)
+			throws IOException {
+		int n = b.remaining();
+		int start = b.position();
+		while (b.hasRemaining())
+			ch.write(b, pos + b.position() - start);
+		return n;
+	}
+
+	/**
+	 * Forces the log every second and compacts it when it is mostly dead
+	 * records.
+	 */
+	@Override
+	public void run() {
+		while (!closed) {
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException e) {
+				continue;
+			}
+			try {
+				this.sync();
+				if (this.shouldCompact())
+					this.compact();
+			} catch (Exception e) {
+				SDFSLogger.getLog().warn("unable to sync metadata store", e);
+			}
+		}
+	}
+
+	private static final class Entry {
+		final long pos;
+		final int len;
+
+		Entry(long pos, int len) {
+			this.pos = pos;
+			this.len = len;
+		}
+	}
+
+}
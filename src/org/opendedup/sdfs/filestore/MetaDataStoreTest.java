@@ -0,0 +1,184 @@
+package org.opendedup.sdfs.filestore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.opendedup.sdfs.Main;
+
+/**
+ * Checks the metadata log: records survive a reopen, a partial record left
+ * by a crash is dropped, renames that did not reach the disk are undone on
+ * replay and compaction keeps the latest record of every key. Run it with a
+ * scratch folder as the only argument.
+ */
+public class MetaDataStoreTest {
+	private static File base;
+
+	public static void main(String[] args) throws IOException {
+		base = new File(args.length > 0 ? args[0] : System
+				.getProperty("java.io.tmpdir") + File.separator + "metatest");
+		tornTail();
+		renames();
+		compaction();
+		System.out.println("all metadata store checks passed");
+	}
+
+	/**
+	 * A partial record at the end of the log is dropped and the records
+	 * before it are kept.
+	 */
+	private static void tornTail() throws IOException {
+		File dir = open("torn");
+		MetaDataStore st = MetaDataStore.get();
+		for (int i = 0; i < 100; i++)
+			st.put(key(dir, "f" + i), value(i, 0));
+		st.remove(key(dir, "f7"));
+		MetaDataStore.close();
+		File logf = new File(Main.dedupDBStore, "meta" + File.separator
+				+ "metadata.log");
+		long len = logf.length();
+		RandomAccessFile raf = new RandomAccessFile(logf, "rw");
+		try {
+			raf.seek(len);
+			raf.writeInt(0);
+			raf.writeInt(4096);
+			raf.write(new byte[100]);
+		} finally {
+			raf.close();
+		}
+		st = MetaDataStore.get();
+		for (int i = 0; i < 100; i++) {
+			if (i == 7)
+				absent(st, key(dir, "f7"));
+			else
+				check(st, key(dir, "f" + i), value(i, 0));
+		}
+		MetaDataStore.close();
+		if (logf.length() != len)
+			throw new IllegalStateException("the partial record was not dropped");
+		System.out.println("torn tail passed");
+	}
+
+	/**
+	 * A rename whose source is still on disk after a crash is undone, one
+	 * whose source is gone is kept, and a failed rename moves the records
+	 * back.
+	 */
+	private static void renames() throws IOException {
+		File dir = open("renames");
+		File a = new File(dir, "a");
+		File b = new File(dir, "b");
+		File c = new File(dir, "c");
+		a.mkdirs();
+		MetaDataStore st = MetaDataStore.get();
+		st.put(key(a, "x"), value(1, 0));
+		st.put(key(a, "y"), value(2, 0));
+		// renamed in the log but never on disk
+		st.rename(MetaDataStore.key(a.getPath()),
+				MetaDataStore.key(b.getPath()));
+		MetaDataStore.close();
+		st = MetaDataStore.get();
+		check(st, key(a, "x"), value(1, 0));
+		absent(st, key(b, "x"));
+		// renamed in the log and on disk without the marker
+		st.rename(MetaDataStore.key(a.getPath()),
+				MetaDataStore.key(c.getPath()));
+		if (!a.renameTo(c))
+			throw new IOException("unable to rename " + a.getPath());
+		MetaDataStore.close();
+		st = MetaDataStore.get();
+		check(st, key(c, "x"), value(1, 0));
+		check(st, key(c, "y"), value(2, 0));
+		absent(st, key(a, "x"));
+		// a rename that failed on disk
+		String ck = MetaDataStore.key(c.getPath());
+		String ak = MetaDataStore.key(a.getPath());
+		st.rename(ck, ak);
+		st.renamed(ck, ak, false);
+		check(st, key(c, "x"), value(1, 0));
+		absent(st, key(a, "x"));
+		MetaDataStore.close();
+		st = MetaDataStore.get();
+		check(st, key(c, "y"), value(2, 0));
+		absent(st, key(a, "y"));
+		MetaDataStore.close();
+		System.out.println("renames passed");
+	}
+
+	/**
+	 * Overwrites the same keys until the log is mostly dead, which compacts
+	 * it on the next open, and checks that the latest records are kept.
+	 */
+	private static void compaction() throws IOException {
+		File dir = open("compaction");
+		MetaDataStore st = MetaDataStore.get();
+		int keys = 1024;
+		int gens = 80;
+		for (int g = 0; g < gens; g++) {
+			for (int i = 0; i < keys; i++)
+				st.put(key(dir, "f" + i), value(i, g));
+		}
+		st.remove(key(dir, "f0"));
+		MetaDataStore.close();
+		File logf = new File(Main.dedupDBStore, "meta" + File.separator
+				+ "metadata.log");
+		st = MetaDataStore.get();
+		// more than the 64 MB a log has to reach before it is compacted was
+		// written, in the background while writing or on this open
+		if (logf.length() >= 64L * 1024 * 1024)
+			throw new IllegalStateException("the log was not compacted, it has "
+					+ logf.length() + " bytes");
+		for (int r = 0; r < 2; r++) {
+			absent(st, key(dir, "f0"));
+			for (int i = 1; i < keys; i++)
+				check(st, key(dir, "f" + i), value(i, gens - 1));
+			MetaDataStore.close();
+			st = MetaDataStore.get();
+		}
+		MetaDataStore.close();
+		System.out.println("compaction passed");
+	}
+
+	private static File open(String name) throws IOException {
+		File dir = new File(base, name);
+		delete(dir);
+		dir.mkdirs();
+		Main.dedupDBStore = new File(dir, "db").getPath();
+		return dir;
+	}
+
+	private static String key(File dir, String name) {
+		return MetaDataStore.key(new File(dir, name).getPath());
+	}
+
+	private static byte[] value(int i, int gen) {
+		byte[] b = new byte[1024];
+		Arrays.fill(b, (byte) (i + gen));
+		b[0] = (byte) gen;
+		return b;
+	}
+
+	private static void check(MetaDataStore st, String key, byte[] value)
+			throws IOException {
+		if (!Arrays.equals(st.get(key), value))
+			throw new IllegalStateException(key + " does not hold its record");
+	}
+
+	private static void absent(MetaDataStore st, String key)
+			throws IOException {
+		if (st.get(key) != null)
+			throw new IllegalStateException(key + " should have no record");
+	}
+
+	private static void delete(File f) throws IOException {
+		if (f.isDirectory()) {
+			for (File c : f.listFiles())
+				delete(c);
+		}
+		Files.deleteIfExists(f.toPath());
+	}
+
+}
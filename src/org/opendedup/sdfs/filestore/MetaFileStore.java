@@ -91,6 +91,13 @@ private static EventBus eventBus = new EventBus();
 		}
 	}
 
+	/**
+	 * @return the file at <tt>path</tt> if it is cached, otherwise null
+	 */
+	public static MetaDataDedupFile getCachedMF(String path) {
+		return pathMap.get(path);
+	}
+
 	/**
 	 * Removes a cached file from the pathmap
 	 * 
@@ -388,6 +395,7 @@ private static EventBus eventBus = new EventBus();
 		} catch (Exception e) {
 
 		}
+		MetaDataStore.close();
 		SDFSLogger.getLog().info("metafilestore closed");
 	}
 
@@ -124,15 +124,13 @@ public class NullChunkStore implements AbstractChunkStore {
 	}
 
 	@Override
-	public void setReadSpeed(int bps) {
-		// TODO Auto-generated method stub
-		
+	public void setReadSpeed(int kbps) {
+		IOThrottle.reads.setLimit(kbps);
 	}
 
 	@Override
-	public void setWriteSpeed(int bps) {
-		// TODO Auto-generated method stub
-		
+	public void setWriteSpeed(int kbps) {
+		IOThrottle.writes.setLimit(kbps);
 	}
 
 	@Override
@@ -143,14 +141,12 @@ public class NullChunkStore implements AbstractChunkStore {
 
 	@Override
 	public int getReadSpeed() {
-		// TODO Auto-generated method stub
-		return 0;
+		return IOThrottle.reads.getSpeed();
 	}
 
 	@Override
 	public int getWriteSpeed() {
-		// TODO Auto-generated method stub
-		return 0;
+		return IOThrottle.writes.getSpeed();
 	}
 
 	@Override
@@ -0,0 +1,342 @@
+package org.opendedup.sdfs.filestore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.lucene.util.OpenBitSet;
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.util.OpenBitSetSerialize;
+
+/**
+ * Hands out the pages of a chunk store or map segment file. Free pages are kept as extents
+ * ordered by position and merged with their neighbours when pages are freed.
+ * Every writer thread fills a region of its own without locking and only
+ * comes back for a new region when it is used up, so the chunks a writer
+ * stores land next to each other.
+ *
+ * Changes to the free extents are appended to a log that is replayed on
+ * open and rewritten as a snapshot on close or when it grows too long. Frees
+ * are buffered and may be lost in a crash, which only leaks the pages.
+ * Reused pages are logged and forced before they are handed out so a crash
+ * can never hand out a page twice.
+ */
+public class PageAllocator {
+	private static final byte FREE = 1;
+	private static final byte ALLOC = 2;
+	private static final int REC = 1 + 8 + 8;
+	private static final int REGION = 64;
+	private static final int MAX_FIT_SCAN = 64;
+
+	private final TreeMap<Long, Long> extents = new TreeMap<Long, Long>();
+	private final ArrayList<Region> regions = new ArrayList<Region>();
+	private final ThreadLocal<Region> region = new ThreadLocal<Region>();
+	private final ByteBuffer pending = ByteBuffer.allocate(REC * 1024);
+	private final File logf;
+	private FileChannel log;
+	private long logRecords = 0;
+	private long free = 0;
+	private long end;
+
+	/**
+	 * @param logf
+	 *            the log of free extents
+	 * @param legacy
+	 *            a free bit map written by older versions, read and removed
+	 *            if there is no log yet
+	 * @param end
+	 *            the number of pages in the file
+	 */
+	public PageAllocator(File logf, File legacy, long end) throws IOException {
+		this.logf = logf;
+		this.end = end;
+		if (logf.exists()) {
+			this.replay();
+		} else if (legacy != null && legacy.exists()) {
+			SDFSLogger.getLog().info(
+					"converting free slots in " + legacy.getPath()
+							+ " to extents");
+			try {
+				OpenBitSet bs = OpenBitSetSerialize.readIn(legacy.getPath());
+				for (long i = bs.nextSetBit(0); i >= 0; i = bs
+						.nextSetBit(i + 1))
+					this.insert(i, 1);
+			} catch (Exception e) {
+				SDFSLogger.getLog().error(
+						"Unable to load bitset from " + legacy.getPath(), e);
+			}
+		}
+		this.snapshot();
+		if (legacy != null)
+			legacy.delete();
+	}
+
+	/**
+	 * @return a free page
+	 */
+	public long allocate() throws IOException {
+		Region r = region.get();
+		if (r == null) {
+			r = new Region();
+			region.set(r);
+			synchronized (this) {
+				regions.add(r);
+			}
+		}
+		if (r.left() == 0)
+			this.refill(r);
+		return r.next();
+	}
+
+	/**
+	 * @return the first of <tt>n</tt> contiguous free pages
+	 */
+	public synchronized long allocateRun(int n) throws IOException {
+		Map.Entry<Long, Long> e = extents.firstEntry();
+		for (int i = 0; e != null && i < MAX_FIT_SCAN; i++) {
+			if (e.getValue() >= n) {
+				long start = e.getKey();
+				this.remove(start, n);
+				this.logAlloc(start, n);
+				return start;
+			}
+			e = extents.higherEntry(e.getKey());
+		}
+		long start = end;
+		end += n;
+		return start;
+	}
+
+	public synchronized void free(long page) throws IOException {
+		if (this.insert(page, 1))
+			this.append(FREE, page, 1);
+	}
+
+	/**
+	 * @return the number of pages in the file including the ones handed out
+	 *         but not yet written
+	 */
+	public synchronized long end() {
+		return end;
+	}
+
+	public synchronized long freePages() {
+		return free;
+	}
+
+	/**
+	 * Writes the buffered frees to the log.
+	 */
+	public synchronized void sync() throws IOException {
+		this.flush();
+		log.force(false);
+	}
+
+	/**
+	 * Returns the unused pages of all regions and writes a snapshot of the
+	 * free extents.
+	 */
+	public synchronized void close() throws IOException {
+		for (Region r : regions) {
+			while (r.left() > 0) {
+				long start = r.start[r.i];
+				long len = r.len[r.i];
+				r.i++;
+				this.insert(start, len);
+			}
+		}
+		regions.clear();
+		this.snapshot();
+		log.close();
+	}
+
+	private synchronized void refill(Region r) throws IOException {
+		r.clear();
+		long want = REGION;
+		int logged = 0;
+		while (want > 0 && !extents.isEmpty() && r.n < Region.MAX) {
+			Map.Entry<Long, Long> e = extents.firstEntry();
+			long len = Math.min(want, e.getValue());
+			this.remove(e.getKey(), len);
+			r.add(e.getKey(), len);
+			want -= len;
+			logged++;
+		}
+		if (logged > 0) {
+			this.flush();
+			for (int i = 0; i < r.n; i++)
+				this.append(ALLOC, r.start[i], r.len[i]);
+			this.flush();
+			log.force(false);
+		}
+		if (want > 0 && r.n < Region.MAX) {
+			r.add(end, want);
+			end += want;
+		}
+	}
+
+	private void logAlloc(long start, long len) throws IOException {
+		this.flush();
+		this.append(ALLOC, start, len);
+		this.flush();
+		log.force(false);
+	}
+
+	private boolean insert(long start, long len) {
+		long stop = start + len;
+		Map.Entry<Long, Long> lo = extents.floorEntry(start);
+		Map.Entry<Long, Long> hi = extents.ceilingEntry(start);
+		if ((lo != null && lo.getKey() + lo.getValue() > start)
+				|| (hi != null && hi.getKey() < stop)) {
+			SDFSLogger.getLog().warn(
+					"page " + start + " of " + logf.getPath()
+							+ " is already free");
+			return false;
+		}
+		free += len;
+		if (lo != null && lo.getKey() + lo.getValue() == start) {
+			start = lo.getKey();
+			extents.remove(start);
+		}
+		if (hi != null && hi.getKey() == stop) {
+			stop += hi.getValue();
+			extents.remove(hi.getKey());
+		}
+		extents.put(start, stop - start);
+		return true;
+	}
+
+	private void remove(long start, long len) {
+		Map.Entry<Long, Long> e = extents.floorEntry(start);
+		if (e == null || e.getKey() + e.getValue() < start + len) {
+			SDFSLogger.getLog().warn(
+					"pages " + start + "-" + (start + len) + " of "
+							+ logf.getPath() + " are not free");
+			return;
+		}
+		long estart = e.getKey();
+		long estop = estart + e.getValue();
+		extents.remove(estart);
+		if (estart < start)
+			extents.put(estart, start - estart);
+		if (start + len < estop)
+			extents.put(start + len, estop - start - len);
+		free -= len;
+	}
+
+	private void append(byte op, long start, long len) throws IOException {
+		if (pending.remaining() < REC)
+			this.flush();
+		pending.put(op);
+		pending.putLong(start);
+		pending.putLong(len);
+		logRecords++;
+	}
+
+	private void flush() throws IOException {
+		pending.flip();
+		while (pending.hasRemaining())
+			log.write(pending);
+		pending.clear();
+		if (logRecords > 1024 * 1024 && logRecords > extents.size() * 4L)
+			this.snapshot();
+	}
+
+	private void replay() throws IOException {
+		ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(logf.toPath()));
+		while (b.remaining() >= REC) {
+			byte op = b.get();
+			long start = b.getLong();
+			long len = b.getLong();
+			if (op == FREE)
+				this.insert(start, len);
+			else if (op == ALLOC)
+				this.remove(start, len);
+		}
+		SDFSLogger.getLog().debug(
+				"loaded " + free + " free pages in " + extents.size()
+						+ " extents from " + logf.getPath());
+	}
+
+	/**
+	 * Rewrites the log as one record per free extent.
+	 */
+	private void snapshot() throws IOException {
+		File tmp = new File(logf.getPath() + ".tmp");
+		FileChannel ch = new RandomAccessFile(tmp, "rw").getChannel();
+		try {
+			ch.truncate(0);
+			ByteBuffer b = ByteBuffer.allocate(REC * 1024);
+			for (Map.Entry<Long, Long> e : extents.entrySet()) {
+				if (b.remaining() < REC) {
+					b.flip();
+					while (b.hasRemaining())
+						ch.write(b);
+					b.clear();
+				}
+				b.put(FREE);
+				b.putLong(e.getKey());
+				b.putLong(e.getValue());
+			}
+			b.flip();
+			while (b.hasRemaining())
+				ch.write(b);
+			ch.force(true);
+		} finally {
+			ch.close();
+		}
+		if (log != null)
+			log.close();
+		Files.move(tmp.toPath(), logf.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		log = new RandomAccessFile(logf, "rw").getChannel();
+		log.position(log.size());
+		logRecords = extents.size();
+	}
+
+	/**
+	 * The pages a writer thread hands out without locking, as up to MAX
+	 * extents.
+	 */
+	private static final class Region {
+		static final int MAX = 16;
+		final long[] start = new long[MAX];
+		final long[] len = new long[MAX];
+		int i = 0;
+		int n = 0;
+
+		void clear() {
+			i = 0;
+			n = 0;
+		}
+
+		void add(long s, long l) {
+			start[n] = s;
+			len[n] = l;
+			n++;
+		}
+
+		long left() {
+			long l = 0;
+			for (int z = i; z < n; z++)
+				l += len[z];
+			return l;
+		}
+
+		long next() {
+			while (len[i] == 0)
+				i++;
+			len[i]--;
+			return start[i]++;
+		}
+	}
+
+}
@@ -0,0 +1,131 @@
+package org.opendedup.sdfs.filestore;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jets3t.service.StorageObjectsChunk;
+import org.jets3t.service.impl.rest.httpclient.RestS3Service;
+import org.jets3t.service.model.S3Bucket;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.security.AWSCredentials;
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+
+/**
+ * Keeps archives in an S3 compatible bucket through the jets3t client pool.
+ */
+public class S3ArchiveBackend implements ArchiveBackend {
+	private final String bucket;
+	private final S3ServicePool pool;
+
+	public S3ArchiveBackend(String bucket) throws IOException {
+		this.bucket = bucket;
+		pool = new S3ServicePool(new AWSCredentials(Main.cloudAccessKey,
+				Main.cloudSecretKey), Main.dseIOThreads);
+		RestS3Service s3Service = this.borrow();
+		try {
+			S3Bucket s3Bucket = s3Service.getBucket(this.bucket);
+			if (s3Bucket == null) {
+				s3Service.createBucket(this.bucket);
+				SDFSLogger.getLog().info("created new store " + this.bucket);
+			}
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			pool.returnObject(s3Service);
+		}
+	}
+
+	private RestS3Service borrow() throws IOException {
+		try {
+			return pool.borrowObject();
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void put(String key, byte[] data) throws IOException {
+		RestS3Service s3Service = this.borrow();
+		try {
+			S3Object s3Object = new S3Object(key, data);
+			s3Object.setContentType("binary/octet-stream");
+			s3Service.putObject(bucket, s3Object);
+		} catch (Exception e) {
+			throw new IOException("unable to upload " + key, e);
+		} finally {
+			pool.returnObject(s3Service);
+		}
+	}
+
+	@Override
+	public byte[] getRange(String key, long off, int len) throws IOException {
+		RestS3Service s3Service = this.borrow();
+		try {
+			S3Object obj = s3Service.getObject(bucket, key, null, null, null,
+					null, off, off + len - 1);
+			DataInputStream in = new DataInputStream(obj.getDataInputStream());
+			try {
+				byte[] b = new byte[len];
+				in.readFully(b);
+				return b;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("unable to read " + key, e);
+		} finally {
+			pool.returnObject(s3Service);
+		}
+	}
+
+	@Override
+	public void delete(String key) throws IOException {
+		RestS3Service s3Service = this.borrow();
+		try {
+			s3Service.deleteObject(bucket, key);
+		} catch (Exception e) {
+			throw new IOException("unable to delete " + key, e);
+		} finally {
+			pool.returnObject(s3Service);
+		}
+	}
+
+	@Override
+	public Map<String, Long> list(String prefix) throws IOException {
+		HashMap<String, Long> m = new HashMap<String, Long>();
+		RestS3Service s3Service = this.borrow();
+		try {
+			String lastKey = null;
+			for (;;) {
+				StorageObjectsChunk ck = s3Service.listObjectsChunked(bucket,
+						prefix, null, 1000, lastKey);
+				for (StorageObject obj : ck.getObjects())
+					m.put(obj.getKey(), obj.getContentLength());
+				if (ck.isListingComplete())
+					break;
+				lastKey = ck.getPriorLastKey();
+			}
+			return m;
+		} catch (Exception e) {
+			throw new IOException("unable to list " + prefix, e);
+		} finally {
+			pool.returnObject(s3Service);
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			pool.close();
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn("unable to close s3 pool", e);
+		}
+	}
+
+}
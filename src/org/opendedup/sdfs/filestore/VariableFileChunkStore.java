@@ -15,6 +15,9 @@ import org.bouncycastle.util.Arrays;
 import org.opendedup.hashing.HashFunctionPool;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
+import org.opendedup.util.ChunkBuffer;
+import org.opendedup.util.ChunkBufferPool;
+import org.opendedup.util.ChunkCipher;
 import org.opendedup.util.CompressionUtils;
 import org.opendedup.util.EncryptUtils;
 import org.opendedup.util.FactorTest;
@@ -45,6 +48,29 @@ public class VariableFileChunkStore implements AbstractChunkStore {
 	private FCPool pool = null;
 	private AtomicLong size = new AtomicLong(0);
 	private AtomicLong compressedLength = new AtomicLong(0);
+	/*
+	 * Every size class store has an index file with one record per page at
+	 * the same slot as the page, so the index is only needed to rebuild the
+	 * hash table and to account deletes.
+	 */
+	private File[] idxf = new File[storeLengths.length];
+	private FileChannel[] idx = new FileChannel[storeLengths.length];
+	private int iterStore = -1;
+
+	/*
+	 * The location of a chunk written to a size class store carries all a
+	 * read needs : [0|1|compressed|encrypted|gcm|stored length (20 bits)|page
+	 * (39 bits)]. Locations without the INLINE bit point at a record of the
+	 * legacy index file chunks.chk. The encrypted byte of an index record is 1
+	 * for ECB and 2 for GCM.
+	 */
+	private static final long INLINE = 1L << 62;
+	private static final long COMPRESSED = 1L << 61;
+	private static final long ENC = 1L << 60;
+	private static final long GCM = 1L << 59;
+	private static final int LEN_SHIFT = 39;
+	private static final long LEN_MASK = (1L << 20) - 1;
+	private static final long PAGE_MASK = (1L << LEN_SHIFT) - 1;
 
 	/**
 	 * 
@@ -133,6 +159,8 @@ public class VariableFileChunkStore implements AbstractChunkStore {
 						storeLengths[i]);
 				store.setName(Integer.toString(storeLengths[i]));
 				st[i] = store;
+				idxf[i] = new File(f.getPath() + ".idx");
+				idx[i] = new RandomAccessFile(idxf[i], "rw").getChannel();
 			}
 		} catch (Exception e) {
 			SDFSLogger.getLog().error("unable to open variable filestore", e);
@@ -147,6 +175,13 @@ public class VariableFileChunkStore implements AbstractChunkStore {
 	 * @see com.annesam.sdfs.filestore.AbstractChunkStore#closeStore()
 	 */
 	public void closeStore() {
+		for (FileChannel ch : idx) {
+			try {
+				ch.force(true);
+				ch.close();
+			} catch (Exception e) {
+			}
+		}
 		for (FileChunkStore store : st) {
 			try {
 				store.sync();
@@ -191,6 +226,12 @@ public class VariableFileChunkStore implements AbstractChunkStore {
 			}
 
 		}
+		for (FileChannel ch : idx) {
+			try {
+				ch.force(false);
+			} catch (Exception e) {
+			}
+		}
 		try {
 			this.fc.force(true);
 		} catch (Exception e) {
@@ -251,104 +292,142 @@ public class VariableFileChunkStore implements AbstractChunkStore {
 	private static ReentrantLock reservePositionlock = new ReentrantLock();
 
 	private FileChunkStore getStore(int sz) {
-		return this.st[FactorTest.closest2Pos(sz, this.storeLengths)];
+		return this.st[this.storeIndex(sz)];
+	}
+
+	private int storeIndex(int sz) {
+		return FactorTest.closest2Pos(sz, this.storeLengths);
 	}
 
 	long smallestFree = 0;
 
+	/**
+	 * Writes the chunk to the size class store that fits its stored length
+	 * and its index record to the same slot of the class index file. The
+	 * returned location is enough to read the chunk back with one read. The
+	 * last four bytes of the stored data of a compressed chunk hold its
+	 * codec (top byte) and its uncompressed length.
+	 */
 	@Override
 	public long writeChunk(byte[] hash, byte[] chunk, int len)
 			throws IOException {
 		if (this.closed)
 			throw new IOException("ChunkStore is closed");
-		ByteBuffer buf = null;
-		FileChannel rf = null;
+		ChunkBuffer cbuf = null;
 		try {
-
-			buf = ByteBuffer.allocate(iPageSize);
-			byte[] b = new byte[chunk.length];
-			System.arraycopy(chunk, 0, b, 0, chunk.length);
-
-			byte[] data = null;
-			boolean compress = Main.compress;
-			boolean encrypt = false;
-			if (Main.compress) {
-				data = CompressionUtils.compressLz4(b);
-				if (data.length >= b.length) {
-					data = b;
-					compress = false;
-				} else {
-					compress = true;
+			byte[] data = chunk;
+			int dlen = chunk.length;
+			byte comp = 0;
+			byte enc = 0;
+			int codec = ChunkCompressor.select(chunk);
+			if (codec >= 0) {
+				cbuf = ChunkBufferPool.borrowScratch(ChunkCompressor
+						.maxCompressedLength(chunk.length) + 4);
+				byte[] cb = cbuf.array();
+				int clen = ChunkCompressor.compress(codec, chunk, cb,
+						chunk.length - 4);
+				if (clen >= 0) {
+					ByteBuffer.wrap(cb).putInt(clen,
+							(codec << 24) | chunk.length);
+					data = cb;
+					dlen = clen + 4;
+					comp = 1;
 				}
 			}
 			if (Main.chunkStoreEncryptionEnabled) {
-				data = EncryptUtils.encrypt(data);
-				encrypt = true;
+				// encrypted straight into the buffer that is written
+				ChunkCipher cipher = ChunkCipher.forWrites();
+				byte[] edata = new byte[cipher.outputSize(dlen)];
+				dlen = cipher.encrypt(data, 0, dlen, edata, 0);
+				data = edata;
+				enc = cipher == ChunkCipher.GCM ? (byte) 2 : (byte) 1;
 			}
-
-			FileChunkStore store = this.getStore(data.length);
-			long ipos = store.writeChunk(hash, data, data.length);
-			// SDFSLogger.getLog().info("#######3 writing data from ["
-			// +data.length+"] [" + ipos +"] comp=" + compress + " enc=" +
-			// encrypt + " store=" +store.getName() );
-			long pos = -1;
-			reservePositionlock.lock();
-			try{
-			if (this.freeSlots != null) {
-				pos = this.freeSlots.nextSetBit(smallestFree);
-				if (pos < 0) {
-					this.freeSlots = null;
-					this.smallestFree = 0;
-				} else {
-					this.smallestFree = pos;
-					this.freeSlots.clear(pos);
-					pos = pos * (long) this.iPageSize;
-				}
-			}
-			if (pos < 0) {
-				pos = this.currentLength.get();
-				this.currentLength.addAndGet(this.iPageSize);
-			}
-			}finally {
-			reservePositionlock.unlock();
-			}
-			byte comp = 1;
-			byte enc = 0;
-			if (!compress)
-				comp = 0;
-			if (encrypt)
-				enc = 1;
+			if (dlen > LEN_MASK)
+				throw new IOException("stored length " + dlen
+						+ " is too large for a chunk location");
+			int si = this.storeIndex(dlen);
+			long ipos = st[si].writeChunk(hash, data, 0, dlen);
+			long page = ipos / storeLengths[si];
+			ByteBuffer buf = ByteBuffer.allocate(iPageSize);
 			buf.putLong(ipos);
-			buf.putInt(b.length);
-			buf.putInt(data.length);
+			buf.putInt(chunk.length);
+			buf.putInt(dlen);
 			buf.put(comp);
 			buf.put(enc);
 			buf.put(hash);
 			buf.position(0);
-			rf = pool.borrowObject();
-			rf.write(buf, pos);
-			this.size.addAndGet(b.length);
-			this.compressedLength.addAndGet(data.length);
-			return pos;
+			while (buf.hasRemaining())
+				idx[si].write(buf, page * iPageSize + buf.position());
+			this.size.addAndGet(chunk.length);
+			this.compressedLength.addAndGet(dlen);
+			return location(page, dlen, comp, enc);
 		} catch (Throwable e) {
 			SDFSLogger.getLog().fatal("unable to write data ", e);
 			throw new IOException("unable to write data ");
 		} finally {
-			try {
-				pool.returnObject(rf);
-			} catch (Exception e) {
-			}
-			buf = null;
-			hash = null;
-			chunk = null;
-			len = 0;
+			if (cbuf != null)
+				cbuf.release();
 		}
 	}
 
+	private static long location(long page, int dlen, byte comp, byte enc) {
+		long loc = INLINE | ((long) dlen << LEN_SHIFT) | page;
+		if (comp == 1)
+			loc |= COMPRESSED;
+		if (enc == 1)
+			loc |= ENC;
+		else if (enc == 2)
+			loc |= ENC | GCM;
+		return loc;
+	}
+
 	@Override
 	public byte[] getChunk(byte[] hash, long start, int len) throws IOException {
 		if (this.closed)
 			throw new IOException("ChunkStore is closed");
+		if ((start & INLINE) == 0)
+			return this.getIndexedChunk(hash, start);
+		int dlen = (int) ((start >>> LEN_SHIFT) & LEN_MASK);
+		int si = this.storeIndex(dlen);
+		long ipos = (start & PAGE_MASK) * storeLengths[si];
+		ChunkBuffer cbuf = null;
+		try {
+			byte[] chunk = st[si].getChunk(hash, ipos, dlen);
+			int clen = chunk.length;
+			if ((start & ENC) != 0) {
+				ChunkCipher cipher = (start & GCM) != 0 ? ChunkCipher.GCM
+						: ChunkCipher.ECB;
+				if ((start & COMPRESSED) != 0) {
+					// only read by the decompressor, so decrypted into scratch
+					cbuf = ChunkBufferPool.borrowScratch(clen);
+					clen = cipher.decrypt(chunk, 0, clen, cbuf.array(), 0);
+					chunk = cbuf.array();
+				} else {
+					chunk = cipher.decrypt(chunk);
+				}
+			}
+			if ((start & COMPRESSED) != 0) {
+				int tail = ByteBuffer.wrap(chunk).getInt(clen - 4);
+				chunk = ChunkCompressor.decompress(tail >>> 24, chunk,
+						clen - 4, tail & 0xffffff);
+			}
+			return chunk;
+		} catch (Exception e) {
+			SDFSLogger.getLog().error(
+					"unable to fetch chunk at position " + ipos + " size="
+							+ storeLengths[si] + " compressed clen=" + dlen, e);
+			throw new IOException(e);
+		} finally {
+			if (cbuf != null)
+				cbuf.release();
+		}
+	}
+
+	/**
+	 * Reads a chunk written before locations were inline through its record
+	 * in chunks.chk.
+	 */
+	private byte[] getIndexedChunk(byte[] hash, long start) throws IOException {
 		// long time = System.currentTimeMillis();
 
 		FileChunkStore store = null;
@@ -397,6 +476,10 @@ public class VariableFileChunkStore implements AbstractChunkStore {
 	@Override
 	public void deleteChunk(byte[] hash, long start, int len)
 			throws IOException {
+		if ((start & INLINE) != 0) {
+			this.deleteInline(hash, start);
+			return;
+		}
 		FileChannel rf = pool.borrowObject();
 		try {
 			ByteBuffer buf = ByteBuffer.allocate(iPageSize);
@@ -437,6 +520,35 @@ public class VariableFileChunkStore implements AbstractChunkStore {
 		}
 	}
 
+	/**
+	 * Clears the index record of a chunk before its page is freed so a
+	 * writer that reuses the page cannot have its record wiped.
+	 */
+	private void deleteInline(byte[] hash, long start) throws IOException {
+		if (this.closed)
+			throw new IOException("ChunkStore is closed");
+		int dlen = (int) ((start >>> LEN_SHIFT) & LEN_MASK);
+		int si = this.storeIndex(dlen);
+		long page = start & PAGE_MASK;
+		ByteBuffer buf = ByteBuffer.allocate(iPageSize);
+		while (buf.hasRemaining()) {
+			if (idx[si].read(buf, page * iPageSize + buf.position()) < 0)
+				break;
+		}
+		buf.position(8);
+		int cLen = buf.getInt();
+		ByteBuffer fb = ByteBuffer.wrap(iFree);
+		while (fb.hasRemaining())
+			idx[si].write(fb, page * iPageSize + fb.position());
+		st[si].deleteChunk(hash, page * storeLengths[si], dlen);
+		this.size.addAndGet(-1 * cLen);
+		this.compressedLength.addAndGet(-1 * dlen);
+		if (this.size.get() < 0)
+			this.size.set(0);
+		if (this.compressedLength.get() < 0)
+			this.compressedLength.set(0);
+	}
+
 	@Override
 	public void close() {
 		try {
@@ -461,9 +573,13 @@ public class VariableFileChunkStore implements AbstractChunkStore {
 
 	@Override
 	public ChunkData getNextChunck() throws IOException {
-		if (iterFC.position() >= iterFC.size()) {
+		// the legacy index first, then the index of each size class
+		while (iterFC.position() >= iterFC.size()) {
 			iterFC.close();
-			return null;
+			iterStore++;
+			if (iterStore >= st.length)
+				return null;
+			iterFC = new RandomAccessFile(idxf[iterStore], "r").getChannel();
 		}
 		//FileChunkStore store = null;
 		ByteBuffer buf = ByteBuffer.wrap(new byte[this.iPageSize]);
@@ -487,6 +603,8 @@ public class VariableFileChunkStore implements AbstractChunkStore {
 				enc = buf.get();
 				byte[] _hash = new byte[HashFunctionPool.hashLength];
 				buf.get(_hash);
+				if (iterStore >= 0)
+					pos = location(pos / iPageSize, iLen, comp, enc);
 				//store = this.getStore(iLen);
 				/*
 				byte[] chunk = store.getChunk(_hash, iStart, iLen);
@@ -533,6 +651,7 @@ public class VariableFileChunkStore implements AbstractChunkStore {
 			//hc = HashFunctionPool.getHashEngine();
 			this.iterFC = new RandomAccessFile(f,"rw").getChannel();
 			this.iterFC.position(0);
+			this.iterStore = -1;
 			this.size.set(0);
 			this.compressedLength.set(0);
 		} catch (Exception e) {
@@ -544,10 +663,12 @@ public class VariableFileChunkStore implements AbstractChunkStore {
 
 	@Override
 	public long getFreeBlocks() {
-		if (this.freeSlots != null) {
-			return this.freeSlots.cardinality();
-		} else
-			return 0;
+		// slots of the legacy index are not reused, the pages of the size
+		// class stores are
+		long free = 0;
+		for (FileChunkStore store : st)
+			free += store.getFreeBlocks();
+		return free;
 	}
 
 	@Override
@@ -568,15 +689,13 @@ public class VariableFileChunkStore implements AbstractChunkStore {
 	}
 
 	@Override
-	public void setReadSpeed(int bps) {
-		// TODO Auto-generated method stub
-		
+	public void setReadSpeed(int kbps) {
+		IOThrottle.reads.setLimit(kbps);
 	}
 
 	@Override
-	public void setWriteSpeed(int bps) {
-		// TODO Auto-generated method stub
-		
+	public void setWriteSpeed(int kbps) {
+		IOThrottle.writes.setLimit(kbps);
 	}
 
 	@Override
@@ -587,14 +706,12 @@ public class VariableFileChunkStore implements AbstractChunkStore {
 
 	@Override
 	public int getReadSpeed() {
-		// TODO Auto-generated method stub
-		return 0;
+		return IOThrottle.reads.getSpeed();
 	}
 
 	@Override
 	public int getWriteSpeed() {
-		// TODO Auto-generated method stub
-		return 0;
+		return IOThrottle.writes.getSpeed();
 	}
 
 	@Override
@@ -6,6 +6,7 @@ import java.util.concurrent.locks.Lock;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.mtools.BloomFDisk;
 import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.filestore.IOThrottle;
 import org.opendedup.sdfs.notification.FDiskEvent;
 import org.opendedup.sdfs.notification.SDFSEvent;
 import org.opendedup.sdfs.servers.HCServiceProxy;
@@ -83,6 +84,7 @@ public class ManualGC {
 
 	private static long runGC() throws IOException {
 		long rm = 0;
+		boolean bg = IOThrottle.setBackground(true);
 		try {
 
 			if (Main.chunkStoreLocal && Main.volume.getName() != null) {
@@ -105,6 +107,8 @@ public class ManualGC {
 					SDFSEvent.ERROR);
 			evt.success = false;
 			throw new IOException(e);
+		} finally {
+			IOThrottle.setBackground(bg);
 		}
 		return rm;
 	}
@@ -0,0 +1,216 @@
+package org.opendedup.sdfs.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.opendedup.collections.DataArchivedException;
+import org.opendedup.collections.HashtableFullException;
+import org.opendedup.hashing.Finger;
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.io.WritableCacheBuffer.Shard;
+import org.opendedup.sdfs.servers.HCServiceProxy;
+
+/**
+ * Runs an operation over the sub chunks of a write buffer in parallel and
+ * waits for all of them. Sub chunks with the same route, the hash table shard
+ * or storage node they are headed for, are handled by the same task, and at
+ * most one task per pool thread is created. The last group runs on the
+ * calling thread so a buffer with a single sub chunk never waits on the pool.
+ *
+ * The caller blocks on the task futures, so it returns as soon as the last
+ * group completes, and the timeout is a deadline for the whole batch.
+ */
+public class ChunkFanOut {
+
+	public interface ChunkOp<T> {
+		/**
+		 * The route of an item. Items with the same route are processed by
+		 * the same task.
+		 */
+		public int route(T item);
+
+		public void apply(T item) throws Exception;
+	}
+
+	/**
+	 * Writes variable length sub chunks to the chunk store, grouped by the
+	 * hash table shard their hash maps to.
+	 */
+	public static class FingerWriter implements ChunkOp<Finger> {
+		private final boolean dedup;
+
+		public FingerWriter(boolean dedup) {
+			this.dedup = dedup;
+		}
+
+		@Override
+		public int route(Finger f) {
+			return f.hash[2] & 0xff;
+		}
+
+		@Override
+		public void apply(Finger f) throws Exception {
+			f.dedup = dedup;
+			f.hl = HCServiceProxy.writeChunk(f.hash, f.chunk, dedup);
+		}
+	}
+
+	/**
+	 * Fetches the sub chunks of a buffer. In a cluster they are grouped by
+	 * the first storage node that holds them, otherwise by hash table shard.
+	 */
+	public static class ShardReader implements ChunkOp<Shard> {
+
+		@Override
+		public int route(Shard sh) {
+			if (Main.chunkStoreLocal)
+				return sh.hash[2] & 0xff;
+			return sh.hashloc[1] & 0xff;
+		}
+
+		@Override
+		public void apply(Shard sh) throws Exception {
+			sh.ck = HCServiceProxy.fetchChunk(sh.hash, sh.hashloc);
+		}
+	}
+
+	private static class Group<T> implements Callable<Object> {
+		final List<T> items = new ArrayList<T>();
+		final ChunkOp<T> op;
+
+		Group(ChunkOp<T> op) {
+			this.op = op;
+		}
+
+		@Override
+		public Object call() throws Exception {
+			for (T item : items)
+				op.apply(item);
+			return null;
+		}
+	}
+
+	/**
+	 * Applies <tt>op</tt> to every item and waits up to
+	 * <tt>timeoutSeconds</tt> (0 for no limit) for all of them to finish.
+	 *
+	 * @throws ChunkTimeoutException
+	 *             if the deadline passes first. Outstanding tasks are
+	 *             cancelled.
+	 */
+	public static <T> void run(ThreadPoolExecutor executor, List<T> items,
+			ChunkOp<T> op, int timeoutSeconds) throws IOException,
+			DataArchivedException {
+		if (items.size() == 0)
+			return;
+		long deadline = Long.MAX_VALUE;
+		if (timeoutSeconds > 0)
+			deadline = System.nanoTime()
+					+ TimeUnit.SECONDS.toNanos(timeoutSeconds);
+		int ng = Math.min(items.size(),
+				Math.max(1, executor.getMaximumPoolSize()));
+		ArrayList<Group<T>> groups = new ArrayList<Group<T>>(ng);
+		for (int i = 0; i < ng; i++)
+			groups.add(new Group<T>(op));
+		for (T item : items) {
+			int r = op.route(item) % ng;
+			if (r < 0)
+				r += ng;
+			groups.get(r).items.add(item);
+		}
+		ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>(ng);
+		Group<T> local = null;
+		try {
+			for (Group<T> g : groups) {
+				if (g.items.size() == 0)
+					continue;
+				if (local != null)
+					futures.add(executor.submit(local));
+				local = g;
+			}
+			try {
+				local.call();
+			} catch (Exception e) {
+				throw unwrap(e);
+			}
+			for (Future<Object> f : futures) {
+				long wait = deadline - System.nanoTime();
+				if (deadline != Long.MAX_VALUE && wait <= 0)
+					throw new TimeoutException();
+				try {
+					if (deadline == Long.MAX_VALUE)
+						f.get();
+					else
+						f.get(wait, TimeUnit.NANOSECONDS);
+				} catch (ExecutionException e) {
+					throw unwrap(e.getCause());
+				}
+			}
+			futures.clear();
+		} catch (TimeoutException e) {
+			int dn = 0;
+			for (Future<Object> f : futures) {
+				if (f.isDone())
+					dn++;
+			}
+			throw new ChunkTimeoutException("timed out after ["
+					+ timeoutSeconds + "] seconds. Expected ["
+					+ (futures.size() + 1) + "] tasks but only [" + dn
+					+ "] and the local task were completed");
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (CancellationException e) {
+			throw new IOException(e);
+		} finally {
+			for (Future<Object> f : futures)
+				f.cancel(false);
+		}
+	}
+
+	/**
+	 * Writes the sub chunks of a buffer. A local hash store takes them as a
+	 * single batch on the calling thread. Otherwise they are fanned out with
+	 * {@link FingerWriter}.
+	 */
+	public static void writeFingers(ThreadPoolExecutor executor,
+			List<Finger> fs, boolean dedup, int timeoutSeconds)
+			throws IOException, DataArchivedException {
+		if (Main.chunkStoreLocal) {
+			try {
+				HCServiceProxy.writeChunks(fs, dedup);
+			} catch (HashtableFullException e) {
+				throw new IOException(e);
+			}
+		} else {
+			run(executor, fs, new FingerWriter(dedup), timeoutSeconds);
+		}
+	}
+
+	private static IOException unwrap(Throwable e)
+			throws DataArchivedException {
+		if (e instanceof DataArchivedException)
+			throw (DataArchivedException) e;
+		if (e instanceof IOException)
+			return (IOException) e;
+		SDFSLogger.getLog().error("error while processing chunks", e);
+		return new IOException(e);
+	}
+
+	public static class ChunkTimeoutException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public ChunkTimeoutException(String msg) {
+			super(msg);
+		}
+	}
+
+}
@@ -37,6 +37,7 @@ public class DedupFileChannel {
 	private int flags = -1;
 	EventBus eventBus = new EventBus();
 	private String id = RandomGUID.getGuid();
+	private ReadAhead readAhead = null;
 
 	/**
 	 * Instantiates the DedupFileChannel
@@ -52,6 +53,7 @@ public class DedupFileChannel {
 		this.flags = flags;
 		SparseDedupFile sdf = (SparseDedupFile) df;
 		eventBus.register(sdf.bdb);
+		this.readAhead = new ReadAhead(sdf);
 		if(Main.checkArchiveOnOpen) {
 			this.recoverArchives();
 		}
@@ -470,6 +472,7 @@ public class DedupFileChannel {
 				bytesLeft = (int) (df.getMetaFile().length() - currentLocation);
 			}
 			int read = 0;
+			this.readAhead.read(currentLocation, bytesLeft);
 			while (bytesLeft > 0) {
 				DedupChunkInterface readBuffer = null;
 				int startPos = 0;
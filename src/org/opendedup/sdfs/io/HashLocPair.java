@@ -15,6 +15,11 @@ import com.google.common.collect.Range;
 public class HashLocPair implements Comparable<HashLocPair>, Externalizable {
 	public static final int BAL = HashFunctionPool.hashLength + 8 + 4 + 4 + 4
 			+ 4;
+	/**
+	 * Set in hashloc[1] of a run of zeros that was never stored, where stored
+	 * pairs keep the id of the first node that holds them.
+	 */
+	public static final byte HOLE = -2;
 	public byte[] hash;
 	public byte[] hashloc;
 	public byte[] data;
@@ -48,6 +53,27 @@ public class HashLocPair implements Comparable<HashLocPair>, Externalizable {
 
 	}
 
+	/**
+	 * @return a pair for <tt>len</tt> zero bytes at <tt>pos</tt> that reads
+	 *         back as zeros without a chunk behind it
+	 */
+	public static HashLocPair hole(int pos, int len) {
+		HashLocPair p = new HashLocPair();
+		p.hash = new byte[HashFunctionPool.hashLength];
+		p.hashloc = new byte[8];
+		p.hashloc[0] = 1;
+		p.hashloc[1] = HOLE;
+		p.pos = pos;
+		p.len = len;
+		p.offset = 0;
+		p.nlen = len;
+		return p;
+	}
+
+	public boolean isHole() {
+		return this.hashloc != null && this.hashloc[1] == HOLE;
+	}
+
 	private int currentPos = 1;
 
 	public synchronized void addHashLoc(byte loc) {
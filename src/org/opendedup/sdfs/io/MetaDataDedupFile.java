@@ -1,5 +1,11 @@
 package org.opendedup.sdfs.io;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -14,17 +20,22 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.xml.parsers.ParserConfigurationException;
 
+import org.opendedup.collections.CowLongByteArrayMap;
 import org.opendedup.collections.HashtableFullException;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
 import org.opendedup.sdfs.filestore.DedupFileStore;
+import org.opendedup.sdfs.filestore.MetaDataStore;
 import org.opendedup.sdfs.filestore.MetaFileStore;
 import org.opendedup.sdfs.io.events.MFileDeleted;
 import org.opendedup.sdfs.io.events.MFileWritten;
@@ -47,6 +58,7 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 
 	private static final long serialVersionUID = -4598940197202968523L;
 	private static EventBus eventBus = new EventBus();
+	private static final byte RECORD_VERSION = 1;
 	transient public static final String pathSeparator = File.pathSeparator;
 	transient public static final String separator = File.separator;
 	transient public static final char pathSeparatorChar = File.pathSeparatorChar;
@@ -380,6 +392,11 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 			}
 		} else if (!f.exists() || f.isDirectory()) {
 			mf = new MetaDataDedupFile(path);
+		} else if ((mf = fromStore(path)) != null) {
+			return mf;
+		} else if (Main.metaDataStore && f.length() == 0) {
+			SDFSLogger.getLog().warn("no metadata record for " + path);
+			mf = new MetaDataDedupFile(path);
 		} else {
 			ObjectInputStream in = null;
 			try {
@@ -405,6 +422,85 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 		return mf;
 	}
 
+	/**
+	 * @return the file at <tt>path</tt> read from the metadata store, or null
+	 *         if it has no record there
+	 */
+	private static MetaDataDedupFile fromStore(String path) {
+		if (!Main.metaDataStore)
+			return null;
+		try {
+			byte[] rec = MetaDataStore.get().get(MetaDataStore.key(path));
+			if (rec == null)
+				return null;
+			return fromRecord(path, rec);
+		} catch (Exception e) {
+			SDFSLogger.getLog().fatal("unable to read record of " + path, e);
+			return null;
+		}
+	}
+
+	private static MetaDataDedupFile fromRecord(String path, byte[] rec)
+			throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(rec));
+		byte v = in.readByte();
+		if (v != RECORD_VERSION)
+			throw new IOException("unknown metadata record version " + v);
+		MetaDataDedupFile mf = new MetaDataDedupFile();
+		mf.path = path;
+		mf.readFields(in);
+		mf.version = in.readUTF();
+		mf.attributes = in.readLong();
+		mf.mode = in.readInt();
+		return mf;
+	}
+
+	/**
+	 * @return this file as a metadata store record
+	 */
+	private byte[] toRecord() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bos);
+		out.writeByte(RECORD_VERSION);
+		this.writeFields(out);
+		out.writeUTF(this.version);
+		out.writeLong(this.attributes);
+		out.writeInt(this.mode);
+		out.flush();
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Reads the records of the files in <tt>paths</tt> from the metadata
+	 * store with one pass over the store.
+	 * 
+	 * @return the files found by path
+	 */
+	public static Map<String, MetaDataDedupFile> getFiles(List<String> paths)
+			throws IOException {
+		HashMap<String, MetaDataDedupFile> m = new HashMap<String, MetaDataDedupFile>();
+		if (!Main.metaDataStore)
+			return m;
+		ArrayList<String> keys = new ArrayList<String>(paths.size());
+		HashMap<String, String> kp = new HashMap<String, String>();
+		for (String path : paths) {
+			String k = MetaDataStore.key(path);
+			keys.add(k);
+			kp.put(k, path);
+		}
+		for (Map.Entry<String, byte[]> e : MetaDataStore.get().getAll(keys)
+				.entrySet()) {
+			String path = kp.get(e.getKey());
+			try {
+				m.put(path, fromRecord(path, e.getValue()));
+			} catch (IOException ex) {
+				SDFSLogger.getLog().warn("unable to read record of " + path,
+						ex);
+			}
+		}
+		return m;
+	}
+
 	/**
 	 * 
 	 * @return returns the IOMonitor for this file. IOMonitors monitor
@@ -702,10 +798,38 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 		} catch (Exception e) {
 			throw new IOException(e);
 		}
+		if (Main.metaDataStore)
+			exportStubs(new File(this.path), new File(snaptoPath,
+					new File(this.path).getName()));
 		MetaDataDedupFile dmf = MetaDataDedupFile.getFile(snaptoPath);
 		dmf.copyDir(npath);
 	}
 
+	/**
+	 * Writes the records of the files under <tt>src</tt> into their copied
+	 * stubs under <tt>dst</tt>, so the copy can be read without the metadata
+	 * store of this volume.
+	 */
+	private static void exportStubs(File src, File dst) throws IOException {
+		if (Files.isSymbolicLink(dst.toPath()))
+			return;
+		if (dst.isDirectory()) {
+			String[] files = dst.list();
+			if (files == null)
+				return;
+			for (String fl : files)
+				exportStubs(new File(src, fl), new File(dst, fl));
+		} else if (dst.exists()) {
+			try {
+				MetaFileStore.getMF(src.getPath()).writeStub(dst);
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+		}
+	}
+
 	private void copyDir(String npath) throws IOException {
 		String[] files = this.list();
 
@@ -745,9 +869,18 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 										+ File.separator + file.dfGuid + ".map")
 										.toPath();
 
-								Files.copy(sdbf, ddbf,
-										StandardCopyOption.REPLACE_EXISTING,
-										StandardCopyOption.COPY_ATTRIBUTES);
+								if (CowLongByteArrayMap.isCow(sdbf.toFile())) {
+									CowLongByteArrayMap m = new CowLongByteArrayMap(
+											sdbf.toString());
+									try {
+										m.export(ddbf.toString());
+									} finally {
+										m.close();
+									}
+								} else
+									Files.copy(sdbf, ddbf,
+											StandardCopyOption.REPLACE_EXISTING,
+											StandardCopyOption.COPY_ATTRIBUTES);
 							}
 						}
 					}
@@ -795,13 +928,13 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 	/**
 	 * Writes the stub for this file to disk. Stubs are pointers written to a
 	 * file system that map to virtual filesystem directory and file structure.
-	 * The stub only contains the guid associated with the file in question.
+	 * With the metadata store enabled the stub is left empty and the record
+	 * of the file goes to the store.
 	 * 
 	 * @return true if written
 	 */
 	private boolean writeFile() {
 		writeLock.lock();
-		ObjectOutputStream out = null;
 		try {
 			File f = new File(this.path);
 			if (!f.isDirectory()) {
@@ -811,11 +944,19 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 					if (f.getParentFile() == null
 							|| !f.getParentFile().exists())
 						f.getParentFile().mkdirs();
-					out = new ObjectOutputStream(
-							new FileOutputStream(this.path));
-					out.writeObject(this);
-					out.flush();
-					out.close();
+					if (Main.metaDataStore && !this.symlink) {
+						MetaDataStore.get().put(MetaDataStore.key(this.path),
+								this.toRecord());
+						if (!f.exists())
+							f.createNewFile();
+						else if (f.length() > 0) {
+							// drop the stub written before the store was used
+							// once the record that replaces it is on disk
+							MetaDataStore.get().sync();
+							new FileOutputStream(f).close();
+						}
+					} else
+						this.writeStub(f);
 					eventBus.post(new MFileWritten(this));
 					this.dirty = false;
 				} catch (Exception e) {
@@ -831,6 +972,20 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 		return true;
 	}
 
+	/**
+	 * Writes this file serialized into the stub <tt>f</tt>.
+	 */
+	private void writeStub(File f) throws IOException {
+		ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(
+				f));
+		try {
+			out.writeObject(this);
+			out.flush();
+		} finally {
+			out.close();
+		}
+	}
+
 	/**
 	 * Serializes the file to the MetaFileStore
 	 * 
@@ -911,8 +1066,18 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 		try {
 			File f = new File(this.path);
 			boolean del = f.delete();
-			if (del)
+			if (del) {
+				if (Main.metaDataStore) {
+					try {
+						MetaDataStore.get().remove(
+								MetaDataStore.key(this.path));
+					} catch (IOException e) {
+						SDFSLogger.getLog().warn(
+								"unable to remove record of " + this.path, e);
+					}
+				}
 				eventBus.post(new MFileDeleted(this));
+			}
 			return del;
 		} finally {
 			this.writeLock.unlock();
@@ -965,11 +1130,31 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 		if (f.isDirectory()) {
 			String[] files = f.list();
 			MetaDataDedupFile[] df = new MetaDataDedupFile[files.length];
+			Map<String, MetaDataDedupFile> read = null;
+			if (Main.metaDataStore) {
+				// read the records of the children together instead of one
+				// lookup each, without pushing them all through the cache
+				ArrayList<String> paths = new ArrayList<String>(files.length);
+				for (String fl : files)
+					paths.add(this.getPath() + File.separator + fl);
+				try {
+					read = getFiles(paths);
+				} catch (IOException e) {
+					SDFSLogger.getLog().warn(
+							"unable to read records under " + this.getPath(),
+							e);
+				}
+			}
 			for (int i = 0; i < df.length; i++) {
 
 				try {
-					df[i] = MetaFileStore.getMF(this.getPath() + File.separator
-							+ files[i]);
+					String fp = this.getPath() + File.separator + files[i];
+					if (read != null && read.containsKey(fp)) {
+						df[i] = MetaFileStore.getCachedMF(fp);
+						if (df[i] == null)
+							df[i] = read.get(fp);
+					} else
+						df[i] = MetaFileStore.getMF(fp);
 				} catch (Exception e) {
 					SDFSLogger.getLog().error(
 							"unable to traverse " + this.getPath());
@@ -1004,17 +1189,30 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 				}
 			} else if (f.isDirectory()) {
 				eventBus.post(new MFileDeleted(this,true));
+				String from = MetaDataStore.key(this.path);
+				String to = MetaDataStore.key(dest);
+				// the records move first so a crash never leaves renamed
+				// stubs without them
+				if (Main.metaDataStore)
+					MetaDataStore.get().rename(from, to);
 				boolean rn = f.renameTo(new File(dest));
-				if (rn) {
+				if (Main.metaDataStore)
+					MetaDataStore.get().renamed(from, to, rn);
+				if (rn)
 					this.path = dest;
-				}
 				eventBus.post(new MFileWritten(this));
 				return rn;
 			} else {
 				MetaFileStore.removeMetaFile(dest, true);
 				if (this.dfGuid != null)
 					DedupFileStore.updateDedupFile(this);
+				String from = MetaDataStore.key(this.path);
+				String to = MetaDataStore.key(dest);
+				if (Main.metaDataStore)
+					MetaDataStore.get().rename(from, to);
 				boolean rename = f.renameTo(new File(dest));
+				if (Main.metaDataStore)
+					MetaDataStore.get().renamed(from, to, rename);
 
 				if (rename) {
 					this.dirty = true;
@@ -1274,47 +1472,7 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 		try {
 
 			in.readLong();
-			this.length = in.readLong();
-			this.lastModified = in.readLong();
-			this.lastAccessed = in.readLong();
-			this.execute = in.readBoolean();
-			this.read = in.readBoolean();
-			this.write = in.readBoolean();
-			this.hidden = in.readBoolean();
-			this.ownerWriteOnly = in.readBoolean();
-			this.ownerExecOnly = in.readBoolean();
-			this.ownerReadOnly = in.readBoolean();
-			int dfgl = in.readInt();
-			if (dfgl == -1) {
-				this.dfGuid = null;
-			} else {
-				byte[] dfb = new byte[dfgl];
-				in.readFully(dfb);
-				this.dfGuid = new String(dfb);
-			}
-			int gl = in.readInt();
-			byte[] gfb = new byte[gl];
-			in.readFully(gfb);
-			this.guid = new String(gfb);
-
-			int ml = in.readInt();
-			if (ml == -1) {
-				this.monitor = null;
-			} else {
-				byte[] mlb = new byte[ml];
-				in.readFully(mlb);
-				this.monitor = new IOMonitor(this);
-				monitor.fromByteArray(mlb);
-			}
-			this.vmdk = in.readBoolean();
-			// owner id is ignored
-			this.owner_id = in.readInt();
-			// group id is ignored
-			this.group_id = in.readInt();
-			byte[] hmb = new byte[in.readInt()];
-			in.readFully(hmb);
-			this.extendedAttrs = ByteUtils.deSerializeHashMap(hmb);
-			this.dedup = in.readBoolean();
+			this.readFields(in);
 			try {
 				if (in.available() > 0) {
 					int vlen = in.readInt();
@@ -1342,6 +1500,54 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 
 	}
 
+	/**
+	 * Reads the fields shared by the serialized stub and the metadata store
+	 * record.
+	 */
+	private void readFields(DataInput in) throws IOException {
+		this.length = in.readLong();
+		this.lastModified = in.readLong();
+		this.lastAccessed = in.readLong();
+		this.execute = in.readBoolean();
+		this.read = in.readBoolean();
+		this.write = in.readBoolean();
+		this.hidden = in.readBoolean();
+		this.ownerWriteOnly = in.readBoolean();
+		this.ownerExecOnly = in.readBoolean();
+		this.ownerReadOnly = in.readBoolean();
+		int dfgl = in.readInt();
+		if (dfgl == -1) {
+			this.dfGuid = null;
+		} else {
+			byte[] dfb = new byte[dfgl];
+			in.readFully(dfb);
+			this.dfGuid = new String(dfb);
+		}
+		int gl = in.readInt();
+		byte[] gfb = new byte[gl];
+		in.readFully(gfb);
+		this.guid = new String(gfb);
+
+		int ml = in.readInt();
+		if (ml == -1) {
+			this.monitor = null;
+		} else {
+			byte[] mlb = new byte[ml];
+			in.readFully(mlb);
+			this.monitor = new IOMonitor(this);
+			monitor.fromByteArray(mlb);
+		}
+		this.vmdk = in.readBoolean();
+		// owner id is ignored
+		this.owner_id = in.readInt();
+		// group id is ignored
+		this.group_id = in.readInt();
+		byte[] hmb = new byte[in.readInt()];
+		in.readFully(hmb);
+		this.extendedAttrs = ByteUtils.deSerializeHashMap(hmb);
+		this.dedup = in.readBoolean();
+	}
+
 	@Override
 	public void writeExternal(ObjectOutput out) throws IOException {
 		this.writeLock.lock();
@@ -1352,41 +1558,7 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 				SDFSLogger.getLog().debug(
 						"writing out file=" + this.path + " df=" + this.dfGuid);
 			out.writeLong(-1);
-			out.writeLong(length);
-			out.writeLong(lastModified);
-			out.writeLong(lastAccessed);
-			out.writeBoolean(execute);
-			out.writeBoolean(read);
-			out.writeBoolean(write);
-			out.writeBoolean(hidden);
-			out.writeBoolean(ownerWriteOnly);
-			out.writeBoolean(ownerExecOnly);
-			out.writeBoolean(ownerReadOnly);
-
-			if (this.dfGuid != null) {
-				byte[] dfb = this.dfGuid.getBytes();
-				out.writeInt(dfb.length);
-				out.write(dfb);
-			} else {
-				out.writeInt(-1);
-			}
-			byte[] dfb = this.guid.getBytes();
-			out.writeInt(dfb.length);
-			out.write(dfb);
-			if (this.monitor != null) {
-				byte[] mfb = this.monitor.toByteArray();
-				out.writeInt(mfb.length);
-				out.write(mfb);
-			} else {
-				out.writeInt(-1);
-			}
-			out.writeBoolean(vmdk);
-			out.writeInt(owner_id);
-			out.writeInt(group_id);
-			byte[] hmb = ByteUtils.serializeHashMap(extendedAttrs);
-			out.writeInt(hmb.length);
-			out.write(hmb);
-			out.writeBoolean(dedup);
+			this.writeFields(out);
 			byte[] vb = this.version.getBytes();
 			out.writeInt(vb.length);
 			out.write(vb);
@@ -1402,6 +1574,44 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 		}
 	}
 
+	private void writeFields(DataOutput out) throws IOException {
+		out.writeLong(length);
+		out.writeLong(lastModified);
+		out.writeLong(lastAccessed);
+		out.writeBoolean(execute);
+		out.writeBoolean(read);
+		out.writeBoolean(write);
+		out.writeBoolean(hidden);
+		out.writeBoolean(ownerWriteOnly);
+		out.writeBoolean(ownerExecOnly);
+		out.writeBoolean(ownerReadOnly);
+
+		if (this.dfGuid != null) {
+			byte[] dfb = this.dfGuid.getBytes();
+			out.writeInt(dfb.length);
+			out.write(dfb);
+		} else {
+			out.writeInt(-1);
+		}
+		byte[] dfb = this.guid.getBytes();
+		out.writeInt(dfb.length);
+		out.write(dfb);
+		if (this.monitor != null) {
+			byte[] mfb = this.monitor.toByteArray();
+			out.writeInt(mfb.length);
+			out.write(mfb);
+		} else {
+			out.writeInt(-1);
+		}
+		out.writeBoolean(vmdk);
+		out.writeInt(owner_id);
+		out.writeInt(group_id);
+		byte[] hmb = ByteUtils.serializeHashMap(extendedAttrs);
+		out.writeInt(hmb.length);
+		out.write(hmb);
+		out.writeBoolean(dedup);
+	}
+
 	public Element toXML(Document doc) throws ParserConfigurationException,
 			DOMException, IOException {
 		Element root = doc.createElement("file-info");
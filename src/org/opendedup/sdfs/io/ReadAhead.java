@@ -0,0 +1,190 @@
+package org.opendedup.sdfs.io;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.opendedup.collections.DataArchivedException;
+import org.opendedup.hashing.HashFunctionPool;
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.servers.HCServiceProxy;
+
+/**
+ *
+ * Sequential read detection and prefetch for a DedupFileChannel. When reads
+ * on a channel follow each other the mappings for the next chunk positions
+ * are looked up and their data fetched on a shared thread pool. The fetched
+ * data lands in the chunk read cache, so the reader finds it there when it
+ * reaches those positions instead of waiting on each fetch in turn.
+ *
+ * The number of chunks kept in flight is sized from the rate the channel is
+ * being read at and how long prefetches take to complete, between
+ * {@link #MIN_WINDOW} and Main.readAheadMaxChunks.
+ */
+public class ReadAhead {
+	public static final int MIN_WINDOW = 2;
+	private static final int TRIGGER = 2;
+	private static ThreadPoolExecutor executor = null;
+	private final SparseDedupFile df;
+	private final ConcurrentHashMap<Long, Long> inFlight = new ConcurrentHashMap<Long, Long>();
+	private long nextPos = -1;
+	private int seqReads = 0;
+	private long runStart = 0;
+	private long runBytes = 0;
+	private long prefetchedTo = 0;
+	// bytes per ms read by this channel during the current sequential run
+	private double rate = 0;
+	// average time in ms to prefetch one chunk
+	private volatile double latency = 0;
+	private int window = MIN_WINDOW;
+
+	static {
+		if (Main.readAheadMaxChunks > 0) {
+			executor = new ThreadPoolExecutor(Main.readAheadThreads,
+					Main.readAheadThreads, 10, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(
+							Main.readAheadThreads * 32));
+			executor.allowCoreThreadTimeOut(true);
+		}
+	}
+
+	public ReadAhead(SparseDedupFile df) {
+		this.df = df;
+	}
+
+	/**
+	 * Called before a read of <tt>len</tt> bytes at <tt>filePos</tt> is
+	 * serviced. Chunks covered by the read after the first are always
+	 * prefetched. Chunks past the end of the read are only prefetched once
+	 * the channel has been read sequentially.
+	 */
+	public synchronized void read(long filePos, int len) {
+		if (executor == null || len <= 0)
+			return;
+		if (Main.chunkStoreLocal && Main.chunkReadCacheSize == 0)
+			return;
+		long now = System.currentTimeMillis();
+		if (filePos == nextPos) {
+			seqReads++;
+			runBytes += len;
+			long el = now - runStart;
+			if (el > 0)
+				rate = (double) runBytes / (double) el;
+		} else {
+			seqReads = 0;
+			runStart = now;
+			runBytes = 0;
+			rate = 0;
+			window = MIN_WINDOW;
+			prefetchedTo = 0;
+		}
+		nextPos = filePos + len;
+		long first = df.getChuckPosition(filePos) + Main.CHUNK_LENGTH;
+		long last = df.getChuckPosition(nextPos - 1);
+		if (seqReads >= TRIGGER) {
+			this.resize();
+			last += (long) window * Main.CHUNK_LENGTH;
+		}
+		long flen = df.getMetaFile().length();
+		if (last >= flen)
+			last = df.getChuckPosition(flen - 1);
+		for (long pos = Math.max(first, prefetchedTo); pos <= last; pos += Main.CHUNK_LENGTH) {
+			if (!this.submit(pos))
+				return;
+			prefetchedTo = pos + Main.CHUNK_LENGTH;
+		}
+	}
+
+	/**
+	 * Keeps enough chunks in flight to cover the bytes read while one
+	 * prefetch completes, with a factor of two for headroom.
+	 */
+	private void resize() {
+		if (rate <= 0 || latency <= 0) {
+			if (window < Main.readAheadMaxChunks)
+				window++;
+			return;
+		}
+		int w = (int) Math.ceil((rate * latency * 2) / Main.CHUNK_LENGTH);
+		if (w < MIN_WINDOW)
+			w = MIN_WINDOW;
+		if (w > Main.readAheadMaxChunks)
+			w = Main.readAheadMaxChunks;
+		this.window = w;
+	}
+
+	public synchronized int getWindow() {
+		return this.window;
+	}
+
+	private boolean submit(long pos) {
+		if (df.isBuffered(pos))
+			return true;
+		if (inFlight.putIfAbsent(pos, pos) != null)
+			return true;
+		try {
+			executor.execute(new Prefetch(pos));
+			return true;
+		} catch (RejectedExecutionException e) {
+			// the pool is saturated; try again on the next read
+			inFlight.remove(pos);
+			return false;
+		}
+	}
+
+	private void completed(long pos, long ms) {
+		inFlight.remove(pos);
+		double l = latency;
+		if (l == 0)
+			latency = ms;
+		else
+			latency = (l * 7 + ms) / 8;
+	}
+
+	private class Prefetch implements Runnable {
+		private final long pos;
+
+		Prefetch(long pos) {
+			this.pos = pos;
+		}
+
+		@Override
+		public void run() {
+			long tm = System.currentTimeMillis();
+			try {
+				if (df.isClosed())
+					return;
+				DedupChunkInterface ck = df.getHash(pos, false);
+				if (ck == null)
+					return;
+				List<HashLocPair> ar = ck.getFingers();
+				if (HashFunctionPool.max_hash_cluster > 1) {
+					for (HashLocPair p : ar) {
+						if (p.hashloc[1] == 0)
+							break;
+						if (p.isHole())
+							continue;
+						HCServiceProxy.fetchChunk(p.hash, p.hashloc);
+					}
+				} else if (ar.size() > 0 && !ar.get(0).isHole()) {
+					HCServiceProxy.fetchChunk(ar.get(0).hash,
+							ar.get(0).hashloc);
+				}
+			} catch (DataArchivedException e) {
+				// the reader will trigger the restore
+			} catch (Exception e) {
+				if (SDFSLogger.isDebug())
+					SDFSLogger.getLog().debug(
+							"unable to prefetch " + df.getMetaFile().getPath()
+									+ " at " + pos, e);
+			} finally {
+				completed(pos, System.currentTimeMillis() - tm);
+			}
+		}
+	}
+
+}
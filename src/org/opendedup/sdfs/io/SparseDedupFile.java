@@ -18,10 +18,12 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.opendedup.collections.CowLongByteArrayMap;
 import org.opendedup.collections.DataArchivedException;
 import org.opendedup.collections.DataMapInterface;
 import org.opendedup.collections.HashtableFullException;
 import org.opendedup.collections.LongByteArrayMap;
+import org.opendedup.collections.threads.GroupCommit;
 import org.opendedup.hashing.AbstractHashEngine;
 import org.opendedup.hashing.Finger;
 import org.opendedup.hashing.HashFunctionPool;
@@ -36,6 +38,7 @@ import org.opendedup.sdfs.io.WritableCacheBuffer.BlockPolicy;
 import org.opendedup.sdfs.io.events.SFileDeleted;
 import org.opendedup.sdfs.io.events.SFileWritten;
 import org.opendedup.sdfs.servers.HCServiceProxy;
+import org.opendedup.util.ChunkBuffer;
 import org.opendedup.util.DeleteDir;
 
 import com.google.common.cache.CacheBuilder;
@@ -58,6 +61,16 @@ public class SparseDedupFile implements DedupFile {
 	public long lastSync = 0;
 	public static boolean storageConnected = true;
 	public DataMapInterface bdb = null;
+	// syncs the file map in a group commit round, the same instance every
+	// time so a failed sync is reported to this file only
+	private final GroupCommit.Syncable mapSync = new GroupCommit.Syncable() {
+		@Override
+		public void sync() throws IOException {
+			DataMapInterface map = bdb;
+			if (map != null)
+				map.sync();
+		}
+	};
 	MessageDigest digest = null;
 	public static final HashFunctionPool hashPool = new HashFunctionPool(
 			Main.writeThreads + 1);
@@ -237,7 +250,12 @@ public class SparseDedupFile implements DedupFile {
 			ch = this.getChannel(-1);
 			this.writeCache();
 			this.sync(true);
-			bdb.copy(dest.getPath() + File.separator + this.GUID + ".map");
+			String mapPath = dest.getPath() + File.separator + this.GUID
+					+ ".map";
+			if (bdb instanceof CowLongByteArrayMap)
+				((CowLongByteArrayMap) bdb).export(mapPath);
+			else
+				bdb.copy(mapPath);
 		} catch (Exception e) {
 			SDFSLogger.getLog().warn("unable to copy to" + mf.getPath(), e);
 			throw new IOException("unable to clone file " + mf.getPath(), e);
@@ -274,6 +292,10 @@ public class SparseDedupFile implements DedupFile {
 			String filePath = Main.dedupDBStore + File.separator
 					+ this.GUID.substring(0, 2) + File.separator + this.GUID;
 			DedupFileStore.removeOpenDedupFile(this.GUID);
+			File mapFile = new File(filePath + File.separator + this.GUID
+					+ ".map");
+			if (CowLongByteArrayMap.isCow(mapFile))
+				new CowLongByteArrayMap(mapFile.getPath()).vanish();
 			eventBus.post(new SFileDeleted(filePath + File.separator
 					+ this.GUID + ".map"));
 			return DeleteDir.deleteDirectory(new File(filePath));
@@ -350,7 +372,15 @@ public class SparseDedupFile implements DedupFile {
 			try {
 
 				int dups = 0;
-				if (writeBuffer.isBatchProcessed()) {
+				if (!writeBuffer.isBatchProcessed() && this.holesSupported()
+						&& writeBuffer.isZero()) {
+					// zeros are recorded as a hole and never hashed or stored
+					ArrayList<HashLocPair> ar = new ArrayList<HashLocPair>(1);
+					ar.add(HashLocPair.hole(0, writeBuffer.capacity()));
+					dups = writeBuffer.capacity();
+					writeBuffer.setDoop(dups);
+					writeBuffer.setAR(ar);
+				} else if (writeBuffer.isBatchProcessed()) {
 					for (HashLocPair p : writeBuffer.getFingers()) {
 						if (!writeBuffer.isBatchwritten())
 							p.hashloc = HCServiceProxy.writeChunk(p.hash,
@@ -363,20 +393,25 @@ public class SparseDedupFile implements DedupFile {
 							p = new HashLocPair();
 						else
 							p = writeBuffer.getFingers().get(0);
-						AbstractHashEngine hc = hashPool.borrowObject();
+						ChunkBuffer cb = writeBuffer.borrowFlushedBuffer();
 						try {
-							p.hash = hc.getHash(writeBuffer.getFlushedBuffer());
-						} catch (Exception e) {
-							throw new IOException(e);
+							byte[] b = cb.array();
+							AbstractHashEngine hc = hashPool.borrowObject();
+							try {
+								p.hash = hc.getHash(b);
+							} catch (Exception e) {
+								throw new IOException(e);
+							} finally {
+								hashPool.returnObject(hc);
+							}
+							p.hashloc = HCServiceProxy.writeChunk(p.hash, b,
+									mf.isDedup());
+							p.len = b.length;
 						} finally {
-							hashPool.returnObject(hc);
+							cb.release();
 						}
-						byte[] b = writeBuffer.getFlushedBuffer();
-						p.hashloc = HCServiceProxy.writeChunk(p.hash, b,
-								mf.isDedup());
 						if (p.hashloc[0] == 1)
 							dups = writeBuffer.capacity();
-						p.len = b.length;
 						p.pos = 0;
 						if (writeBuffer.getFingers().size() == 0)
 							writeBuffer.getFingers().add(p);
@@ -386,109 +421,17 @@ public class SparseDedupFile implements DedupFile {
 					} else {
 						VariableHashEngine hc = (VariableHashEngine) hashPool
 								.borrowObject();
-
+						ChunkBuffer cb = writeBuffer.borrowFlushedBuffer();
 						try {
-							List<Finger> fs = hc.getChunks(writeBuffer
-									.getFlushedBuffer());
+							List<Finger> fs = hc.getChunks(cb.array());
 							ArrayList<HashLocPair> ar = new ArrayList<HashLocPair>(
 									fs.size());
-							AsyncChunkWriteActionListener l = new AsyncChunkWriteActionListener() {
-
-								@Override
-								public void commandException(Finger result,
-										Throwable e) {
-									int _dn = this.incrementandGetDN();
-									this.incrementAndGetDNEX();
-									SDFSLogger.getLog().error(
-											"Error while getting hash", e);
-									if (_dn >= this.getMaxSz()) {
-										synchronized (this) {
-											this.notifyAll();
-										}
-									}
-								}
-
-								@Override
-								public void commandResponse(Finger result) {
-									int _dn = this.incrementandGetDN();
-									if (_dn >= this.getMaxSz()) {
-										synchronized (this) {
-											this.notifyAll();
-										}
-									}
-								}
-
-								@Override
-								public void commandArchiveException(
-										DataArchivedException e) {
-									this.incrementAndGetDNEX();
-									this.dar = e;
-									SDFSLogger.getLog().error(
-											"Data has been archived", e);
-									this.incrementandGetDN();
-
-									synchronized (this) {
-										this.notifyAll();
-									}
-
-								}
-
-							};
-							l.setMaxSize(fs.size());
-							for (Finger f : fs) {
-								f.l = l;
-								f.dedup = mf.isDedup();
-								executor.execute(f);
-							}
-							int wl = 0;
-							int tm = 1000;
-
-							int al = 0;
-							while (l.getDN() < fs.size() && l.getDNEX() == 0) {
-								if (al == 30) {
-									int nt = wl / 1000;
-									SDFSLogger
-											.getLog()
-											.debug("Slow io, waited ["
-													+ nt
-													+ "] seconds for all writes to complete.");
-									al = 0;
-								}
-								if (Main.writeTimeoutSeconds > 0
-										&& wl > (Main.writeTimeoutSeconds * tm)) {
-									int nt = wl / 1000;
-									this.toOccured = true;
-									throw new IOException(
-											"Write Timed Out after ["
-													+ nt
-													+ "] seconds. Expected ["
-													+ fs.size()
-													+ "] block writes but only ["
-													+ l.getDN()
-													+ "] were completed");
-								}
-								if (l.dar != null) {
-									throw l.dar;
-								}
-
-								synchronized (l) {
-									l.wait(tm);
-								}
-								al++;
-								wl += tm;
-							}
-							if (l.getDN() < fs.size()) {
+							try {
+								ChunkFanOut.writeFingers(executor, fs,
+										mf.isDedup(), Main.writeTimeoutSeconds);
+							} catch (ChunkFanOut.ChunkTimeoutException e) {
 								this.toOccured = true;
-								throw new IOException(
-										"Write Timed Out expected ["
-												+ fs.size() + "] but got ["
-												+ l.getDN() + "]");
-							}
-							if (l.dar != null)
-								throw l.dar;
-							if (l.getDNEX() > 0) {
-								this.errOccured = true;
-								throw new IOException("Write Failed");
+								throw e;
 							}
 							// SDFSLogger.getLog().info("broke data up into " +
 							// fs.size() + " chunks");
@@ -523,6 +466,7 @@ public class SparseDedupFile implements DedupFile {
 							this.errOccured = true;
 							throw e;
 						} finally {
+							cb.release();
 							hashPool.returnObject(hc);
 						}
 					}
@@ -567,6 +511,15 @@ public class SparseDedupFile implements DedupFile {
 
 	}
 
+	/**
+	 * Holes need a map record that keeps the position of every pair, or a
+	 * single pair for the whole chunk.
+	 */
+	private boolean holesSupported() {
+		return this.bdb.getVersion() >= 2
+				|| HashFunctionPool.max_hash_cluster == 1;
+	}
+
 	@Override
 	public void updateMap(DedupChunkInterface writeBuffer, int doop)
 			throws FileClosedException, IOException {
@@ -683,6 +636,15 @@ public class SparseDedupFile implements DedupFile {
 		return buf.len;
 	}
 
+	/**
+	 * Returns true if the chunk at <tt>pos</tt> is held in a write buffer and
+	 * does not need to be fetched from the chunk store to be read.
+	 */
+	public boolean isBuffered(long pos) {
+		return this.writeBuffers.getIfPresent(pos) != null
+				|| this.flushingBuffers.containsKey(pos);
+	}
+
 	@Override
 	public DedupChunkInterface getWriteBuffer(long position)
 			throws IOException, FileClosedException {
@@ -794,7 +756,13 @@ public class SparseDedupFile implements DedupFile {
 				this.writeCache();
 				if (SDFSLogger.isDebug())
 					wt = System.currentTimeMillis() - tm;
-				this.bdb.sync();
+				if (GroupCommit.isRunning()) {
+					// synced by a commit round after the chunks it refers to
+					GroupCommit.commit(this.mapSync).get();
+				} else {
+					this.bdb.sync();
+					HCServiceProxy.sync();
+				}
 				if (SDFSLogger.isDebug())
 					st = System.currentTimeMillis() - tm - wt;
 				if (SDFSLogger.isDebug())
@@ -802,7 +770,6 @@ public class SparseDedupFile implements DedupFile {
 							"Sync wb=[" + wsz + "] fb=[" + fsz
 									+ "] write fush [" + wt + "] bd sync ["
 									+ st + "]");
-				HCServiceProxy.sync();
 			} else {
 				this.writeCache();
 			}
@@ -1000,6 +967,7 @@ public class SparseDedupFile implements DedupFile {
 					SDFSLogger.getLog().error(
 							"unable to flush " + this.databasePath, e);
 				}
+				GroupCommit.unregister(this.mapSync);
 				try {
 					this.bdb.sync();
 				} catch (Exception e) {
@@ -1135,7 +1103,7 @@ public class SparseDedupFile implements DedupFile {
 					this.bdb = new BlockDevSocket(mf.getDev(),
 							this.databasePath);
 				} else
-					this.bdb = new LongByteArrayMap(this.databasePath);
+					this.bdb = LongByteArrayMap.open(this.databasePath);
 
 				this.closed = false;
 			}
@@ -22,6 +22,8 @@ import org.opendedup.hashing.VariableHashEngine;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
 import org.opendedup.sdfs.servers.HCServiceProxy;
+import org.opendedup.util.ChunkBuffer;
+import org.opendedup.util.ChunkBufferPool;
 
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
@@ -36,6 +38,8 @@ import com.google.common.hash.Hashing;
 public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 
 	private ByteBuffer buf = null;
+	// set when buf is backed by an array borrowed from ChunkBufferPool
+	private ChunkBuffer pooled = null;
 	private boolean dirty = false;
 
 	private long endPosition = 0;
@@ -89,7 +93,7 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 		this.ar = ar;
 		this.df = df;
 		this.reconstructed = reconstructed;
-		buf = ByteBuffer.wrap(new byte[Main.CHUNK_LENGTH]);
+		this.setPooledBuffer(ChunkBufferPool.borrow(Main.CHUNK_LENGTH));
 
 		// this.currentLen = 0;
 		this.setLength(Main.CHUNK_LENGTH);
@@ -183,13 +187,15 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 		if (this.buf == null) {
 			this.hlAdded = false;
 			if (HashFunctionPool.max_hash_cluster > 1) {
-				this.buf = ByteBuffer.wrap(new byte[Main.CHUNK_LENGTH]);
-				final ArrayList<Shard> cks = new ArrayList<Shard>();
+				this.setPooledBuffer(ChunkBufferPool.borrow(Main.CHUNK_LENGTH));
+				ArrayList<Shard> cks = new ArrayList<Shard>();
 				int i = 0;
 				// long fp = this.position;
 
 				for (HashLocPair p : ar) {
-
+					// the pooled buffer is already zeroed
+					if (p.isHole())
+						continue;
 					if (p.hashloc[1] != 0) {
 						Shard sh = new Shard();
 						sh.hash = p.hash;
@@ -205,86 +211,16 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 					i++;
 				}
 				sz = cks.size();
-				AsyncChunkReadActionListener l = new AsyncChunkReadActionListener() {
-
-					@Override
-					public void commandException(Exception e) {
-						this.incrementAndGetDNEX();
-						synchronized (this) {
-							this.notifyAll();
-						}
-
-					}
-
-					@Override
-					public void commandResponse(Shard result) {
-						cks.get(result.apos).ck = result.ck;
-						if (this.incrementandGetDN() >= sz) {
-
-							synchronized (this) {
-								this.notifyAll();
-							}
-						}
-					}
-
-					@Override
-					public void commandArchiveException(DataArchivedException e) {
-						this.incrementAndGetDNEX();
-						this.setDAR(e);
-						
-						synchronized (this) {
-							this.notifyAll();
-						}
-						
-					}
-
-				};
-				for (Shard sh : cks) {
-					sh.l = l;
-					executor.execute(sh);
-				}
-				int wl = 0;
-				int tm = 1000;
-				int al = 0;
-				while (l.getDN() < sz && l.getDNEX() == 0) {
-					if (al == 30) {
-						int nt = wl / 1000;
-						SDFSLogger
-								.getLog()
-								.debug("Slow io, waited ["
-										+ nt
-										+ "] seconds for all reads to complete.");
-						al = 0;
-					}
-					if (Main.readTimeoutSeconds > 0
-							&& wl > (Main.writeTimeoutSeconds * tm)) {
-						int nt = (tm * wl) / 1000;
-						throw new IOException("read Timed Out after [" + nt
-								+ "] seconds. Expected [" + sz
-								+ "] block read but only [" + l.getDN()
-								+ "] were completed");
-					}
-					if(l.getDAR() != null) {
-						throw l.getDAR();
-					}
-					if(l.getDNEX() > 0)
-						throw new IOException("error while reading data");
-					synchronized (l) {
-						l.wait(1000);
-					}
-					wl += 1000;
-					al++;
-				}
-				if(l.getDAR() != null) {
-					throw l.getDAR();
-				}
-				if (l.getDNEX() > 0) {
-					throw new IOException("error while getting blocks "
-							+ l.getDNEX() + " errors found");
-				}
-				if (l.getDN() < sz) {
-					throw new IOException(
-							"thread timed out before read was complete ");
+				try {
+					ChunkFanOut.run(executor, cks,
+							new ChunkFanOut.ShardReader(),
+							Main.readTimeoutSeconds);
+				} catch (IOException e) {
+					this.releaseBuffer();
+					throw e;
+				} catch (DataArchivedException e) {
+					this.releaseBuffer();
+					throw e;
 				}
 				buf.position(0);
 				for (Shard sh : cks) {
@@ -317,6 +253,8 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 					}
 				}
 				
+			} else if (this.ar.get(0).isHole()) {
+				this.setPooledBuffer(ChunkBufferPool.borrow(Main.CHUNK_LENGTH));
 			} else {
 				this.buf = ByteBuffer.wrap(HCServiceProxy.fetchChunk(
 						this.ar.get(0).hash, this.ar.get(0).hashloc));
@@ -416,6 +354,7 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 			 * SDFSLogger.getLog().info("!capacity " + b.length);
 			 */
 			if (pos == 0 && b.length == Main.CHUNK_LENGTH) {
+				this.releaseBuffer();
 				this.buf = ByteBuffer.wrap(b);
 				this.setDirty(true);
 			} else {
@@ -503,7 +442,7 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 		this.lock.lock();
 		try {
 			if (!this.isDirty() && this.buf != null) {
-				this.buf = null;
+				this.releaseBuffer();
 			}
 			if (this.buf != null
 					|| this.ar.size() >= LongByteArrayMap.MAX_ELEMENTS_PER_AR) {
@@ -513,11 +452,13 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 									+ LongByteArrayMap.MAX_ELEMENTS_PER_AR
 									+ " at " + (this.getFilePosition() + p.pos)
 									+ " for file " + this.df.mf.getPath());
-				byte[] b = HCServiceProxy.fetchChunk(p.hash, p.hashloc);
-				ByteBuffer bf = ByteBuffer.wrap(b);
 				byte[] z = new byte[p.nlen];
-				bf.position(p.offset);
-				bf.get(z);
+				if (!p.isHole()) {
+					byte[] b = HCServiceProxy.fetchChunk(p.hash, p.hashloc);
+					ByteBuffer bf = ByteBuffer.wrap(b);
+					bf.position(p.offset);
+					bf.get(z);
+				}
 				this.writeBlock(z, p.pos);
 			} else {
 				try {
@@ -540,91 +481,13 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 
 		try {
 			List<Finger> fs = hc.getChunks(b);
-			AsyncChunkWriteActionListener l = new AsyncChunkWriteActionListener() {
-
-				@Override
-				public void commandException(Finger result, Throwable e) {
-					this.incrementAndGetDNEX();
-					SDFSLogger.getLog().error("Error while getting hash", e);
-					this.incrementandGetDN();
-					
-					synchronized (this) {
-						this.notifyAll();
-					}
-				}
-
-				@Override
-				public void commandResponse(Finger result) {
-					int _dn = this.incrementandGetDN();
-					if (_dn >= this.getMaxSz()) {
-						synchronized (this) {
-							this.notifyAll();
-						}
-					}
-				}
-				@Override
-				public void commandArchiveException(DataArchivedException e) {
-					this.incrementAndGetDNEX();
-					this.dar = e;
-					SDFSLogger.getLog()
-							.error("Data has been archived", e);
-					this.incrementandGetDN();
-					
-					synchronized (this) {
-						this.notifyAll();
-					}
-					
-				}
-				
-
-			};
-			l.setMaxSize(fs.size());
-			for (Finger f : fs) {
-				f.l = l;
-				f.dedup = df.mf.isDedup();
-				SparseDedupFile.executor.execute(f);
-			}
-			int wl = 0;
-			int tm = 1000;
-
-			int al = 0;
-			while (l.getDN() < fs.size() && l.getDNEX() == 0) {
-				if (al == 60) {
-					int nt = wl / 1000;
-					SDFSLogger.getLog().warn(
-							"Slow io, waited [" + nt
-									+ "] seconds for all writes to complete.");
-					al = 0;
-				}
-				if (Main.writeTimeoutSeconds > 0
-						&& wl > (Main.writeTimeoutSeconds * tm)) {
-					int nt = (tm * wl) / 1000;
-					df.toOccured = true;
-					throw new IOException("Write Timed Out after [" + nt
-							+ "] seconds. Expected [" + fs.size()
-							+ "] block writes but only [" + l.getDN()
-							+ "] were completed");
-				}
-				if(l.dar != null)
-					throw l.dar;
-				if(l.getDNEX() > 0) {
-					throw new IOException("Unable to read shard");
-				}
-				synchronized (l) {
-					l.wait(tm);
-				}
-				al++;
-				wl += tm;
-			}
-			if(l.dar != null)
-				throw l.dar;
-			if (l.getDN() < fs.size()) {
+			try {
+				ChunkFanOut.writeFingers(SparseDedupFile.executor, fs,
+						df.mf.isDedup(), Main.writeTimeoutSeconds);
+			} catch (ChunkFanOut.ChunkTimeoutException e) {
 				df.toOccured = true;
-				throw new IOException("Write Timed Out expected [" + fs.size()
-						+ "] but got [" + l.getDN() + "]");
+				throw e;
 			}
-			if (l.getDNEX() > 0)
-				throw new IOException("Write Failed because unable to read shard");
 			for (Finger f : fs) {
 				HashLocPair p = new HashLocPair();
 				try {
@@ -807,11 +670,11 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 				this.flushing = false;
 				this.dirty = false;
 				this.hlAdded = false;
-				this.buf = null;
+				this.releaseBuffer();
 			} else {
 				this.closed = true;
 				this.flushing = false;
-				this.buf = null;
+				this.releaseBuffer();
 			}
 		} catch (Exception e) {
 			throw new IOException(e);
@@ -860,6 +723,82 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 		}
 	}
 
+	private void setPooledBuffer(ChunkBuffer cb) {
+		this.releaseBuffer();
+		this.pooled = cb;
+		this.buf = ByteBuffer.wrap(cb.array());
+	}
+
+	/**
+	 * Drops the chunk data held by this buffer, returning the array to the
+	 * pool once nothing else holds it.
+	 */
+	private void releaseBuffer() {
+		this.buf = null;
+		if (this.pooled != null) {
+			this.pooled.release();
+			this.pooled = null;
+		}
+	}
+
+	/**
+	 * Returns the chunk data of a flushing buffer without copying it. Writes
+	 * are refused while the buffer is flushing so the data cannot change
+	 * under the caller, who must release the returned handle when done.
+	 */
+	public ChunkBuffer borrowFlushedBuffer() throws BufferClosedException {
+		this.lock.lock();
+		try {
+			if (this.closed)
+				throw new BufferClosedException("Buffer Closed");
+			if (!this.flushing)
+				throw new BufferClosedException("Buffer not flushed");
+			if (this.pooled != null)
+				return this.pooled.retain();
+			return ChunkBuffer.wrap(this.buf.array());
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if the flushing buffer holds nothing but zeros
+	 */
+	public boolean isZero() throws BufferClosedException {
+		ChunkBuffer cb = this.borrowFlushedBuffer();
+		try {
+			return isZero(cb.array(), this.capacity());
+		} finally {
+			cb.release();
+		}
+	}
+
+	/**
+	 * Checks <tt>len</tt> bytes a long at a time. Blocks of words are or'ed
+	 * together before the test so the loop stays free of branches the JIT
+	 * cannot vectorize.
+	 */
+	static boolean isZero(byte[] b, int len) {
+		ByteBuffer bf = ByteBuffer.wrap(b);
+		int i = 0;
+		while (i + 256 <= len) {
+			long acc = 0;
+			for (int end = i + 256; i < end; i += 8)
+				acc |= bf.getLong(i);
+			if (acc != 0)
+				return false;
+		}
+		for (; i + 8 <= len; i += 8) {
+			if (bf.getLong(i) != 0)
+				return false;
+		}
+		for (; i < len; i++) {
+			if (b[i] != 0)
+				return false;
+		}
+		return true;
+	}
+
 	public byte[] getFlushedBuffer() throws BufferClosedException {
 		this.lock.lock();
 		try {
@@ -1082,7 +1021,7 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 		}
 	}
 
-	public static class Shard implements Runnable {
+	public static class Shard {
 		public byte[] hash;
 		public byte[] hashloc;
 		public int len;
@@ -1091,21 +1030,6 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 		public int offset;
 		public int nlen;
 		byte[] ck;
-		AsyncChunkReadActionListener l;
-
-		@Override
-		public void run() {
-				try {
-					ck = HCServiceProxy.fetchChunk(hash, hashloc);
-					l.commandResponse(this);
-				} catch(DataArchivedException e) {
-					l.commandArchiveException(e);
-				}catch (Exception e) {
-					l.commandException(e);
-				}
-			
-			
-		}
 	}
 
 	@Override
@@ -3,6 +3,7 @@ package org.opendedup.sdfs.mgmt;
 import java.io.File;
 import java.io.IOException;
 
+import org.opendedup.collections.threads.GroupCommit;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
 import org.opendedup.sdfs.filestore.DedupFileStore;
@@ -22,7 +23,7 @@ public class FlushBuffersCmd implements XtendedCmd {
 		else if (cmd.equalsIgnoreCase("file")) {
 			try {
 
-				MetaFileStore.getMF(f.getPath()).getDedupFile().writeCache();
+				MetaFileStore.getMF(f.getPath()).getDedupFile().sync(true);
 				return "SUCCESS Flush File : Write Cache Flushed for " + file;
 			} catch (Exception e) {
 				String errorMsg = "ERROR Flush File Failed :for " + file;
@@ -33,6 +34,8 @@ public class FlushBuffersCmd implements XtendedCmd {
 			SDFSEvent evt = SDFSEvent.flushAllBuffers();
 			try {
 				DedupFileStore.flushAllFiles();
+				// wait until the flushed chunks are on disk
+				GroupCommit.commit().get();
 				evt.endEvent("SUCCESS Flush All Files : Write Cache Flushed");
 				return "SUCCESS Flush All Files : Write Cache Flushed";
 			} catch (Exception e) {
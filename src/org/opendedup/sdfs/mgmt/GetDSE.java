@@ -5,6 +5,7 @@ import java.io.IOException;
 
 import org.opendedup.hashing.HashFunctionPool;
 import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.filestore.ChunkCompressor;
 import org.opendedup.sdfs.servers.HCServiceProxy;
 import org.opendedup.util.XMLUtils;
 import org.w3c.dom.Document;
@@ -37,12 +38,19 @@ public class GetDSE {
 			root.setAttribute("storage-type", Main.chunkStoreClass);
 			root.setAttribute("listen-port", Integer.toString(Main.serverPort));
 			root.setAttribute("listen-hostname", Main.serverHostName);
-			root.setAttribute("read-speed", Integer.toString(HCServiceProxy.getReadSpeed()));
-			root.setAttribute("write-speed", Integer.toString(HCServiceProxy.getWriteSpeed()));
+			root.setAttribute("read-speed", Integer.toString(Main.chunkStoreReadSpeed));
+			root.setAttribute("write-speed", Integer.toString(Main.chunkStoreWriteSpeed));
+			root.setAttribute("current-read-speed", Integer.toString(HCServiceProxy.getReadSpeed()));
+			root.setAttribute("current-write-speed", Integer.toString(HCServiceProxy.getWriteSpeed()));
 			root.setAttribute("cache-size", Long.toString(HCServiceProxy.getCacheSize()));
 			root.setAttribute("max-cache-size", Long.toString(HCServiceProxy.getMaxCacheSize()));
+			root.setAttribute("read-cache-size", Long.toString(HCServiceProxy.getReadCacheSize()));
+			root.setAttribute("max-read-cache-size", Long.toString(HCServiceProxy.getMaxReadCacheSize()));
+			root.setAttribute("read-cache-hits", Long.toString(HCServiceProxy.getCacheHits()));
+			root.setAttribute("read-cache-misses", Long.toString(HCServiceProxy.getCacheMisses()));
 			root.setAttribute("listen-encrypted",
 					Boolean.toString(Main.serverUseSSL));
+			root.appendChild(ChunkCompressor.toXML(doc));
 			return (Element) root.cloneNode(true);
 		} catch (Exception e) {
 			throw new IOException("request to fetch attributes failed because "
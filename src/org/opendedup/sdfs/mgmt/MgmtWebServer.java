@@ -138,6 +138,20 @@ public class MgmtWebServer implements Container {
 							SDFSLogger.getLog().warn(e);
 						}
 					}
+					else if (cmd.equalsIgnoreCase("setreadcachesz")) {
+						try {
+							Element msg =new SetReadCacheSize().getResult(
+									request.getQuery().get("sz"));
+							result.setAttribute("status", "success");
+							result.setAttribute("msg",
+									"command completed successfully");
+							result.appendChild(doc.adoptNode(msg));
+						} catch (IOException e) {
+							result.setAttribute("status", "failed");
+							result.setAttribute("msg", e.toString());
+							SDFSLogger.getLog().warn(e);
+						}
+					}
 					else if (cmd.equalsIgnoreCase("setreadspeed")) {
 						try {
 							Element msg =new SetReadSpeed().getResult(
@@ -8,6 +8,7 @@ import java.util.Locale;
 import org.opendedup.util.StorageUnit;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
 
 public class ProcessDSEInfo {
 	public static void runCmd() {
@@ -64,12 +65,39 @@ public class ProcessDSEInfo {
 				System.out.printf("DSE Max Cache Size : %s\n",
 						StorageUnit.of(maxCacheSz)
 						.format(maxCacheSz));
+				if (dse.hasAttribute("read-cache-size")) {
+					long rCacheSz = Long.parseLong(dse
+							.getAttribute("read-cache-size"));
+					long maxRCacheSz = Long.parseLong(dse
+							.getAttribute("max-read-cache-size"));
+					System.out.printf("DSE Current Read Cache Size : %s\n",
+							StorageUnit.of(rCacheSz).format(rCacheSz));
+					System.out.printf("DSE Max Read Cache Size : %s\n",
+							StorageUnit.of(maxRCacheSz).format(maxRCacheSz));
+					System.out.printf("DSE Read Cache Hits : %s\n",
+							dse.getAttribute("read-cache-hits"));
+					System.out.printf("DSE Read Cache Misses : %s\n",
+							dse.getAttribute("read-cache-misses"));
+				}
 				System.out.printf("Trottled Read Speed : %s/s\n",
 						StorageUnit.of(rsp)
 						.format(rsp));
 				System.out.printf("Trottled Write Speed : %s/s\n",
 						StorageUnit.of(wsp)
 						.format(wsp));
+				if (dse.hasAttribute("current-read-speed")) {
+					long crsp = Long.parseLong(dse
+							.getAttribute("current-read-speed")) * 1024;
+					long cwsp = Long.parseLong(dse
+							.getAttribute("current-write-speed")) * 1024;
+					System.out.printf("Current Read Speed : %s/s\n",
+							StorageUnit.of(crsp).format(crsp));
+					System.out.printf("Current Write Speed : %s/s\n",
+							StorageUnit.of(cwsp).format(cwsp));
+				}
+				if (dse.getElementsByTagName("compression").getLength() > 0)
+					printCompression((Element) dse.getElementsByTagName(
+							"compression").item(0));
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -77,6 +105,33 @@ public class ProcessDSEInfo {
 
 	}
 
+	private static void printCompression(Element cmp) {
+		System.out.printf("Compression Codec : %s\n",
+				cmp.getAttribute("codec"));
+		System.out.printf("Cold Compression Codec : %s\n",
+				cmp.getAttribute("cold-codec"));
+		long skb = Long.parseLong(cmp.getAttribute("skipped-bytes"));
+		System.out.printf("Incompressible Chunks Skipped : %s (%s)\n",
+				cmp.getAttribute("skipped-chunks"), StorageUnit.of(skb)
+						.format(skb));
+		NodeList codecs = cmp.getElementsByTagName("codec");
+		for (int i = 0; i < codecs.getLength(); i++) {
+			Element c = (Element) codecs.item(i);
+			long in = Long.parseLong(c.getAttribute("bytes-in"));
+			long out = Long.parseLong(c.getAttribute("bytes-out"));
+			if (in == 0)
+				continue;
+			long ms = Long.parseLong(c.getAttribute("compress-ms"));
+			double ratio = (double) in / (double) Math.max(out, 1);
+			double msPerGB = (double) ms / ((double) in / (1024 * 1024 * 1024));
+			System.out.printf(
+					"Codec %s : chunks=%s rejected=%s ratio=%.2f cpu=%.0f ms/GB decompress=%s ms\n",
+					c.getAttribute("name"), c.getAttribute("chunks"),
+					c.getAttribute("rejected-chunks"), ratio, msPerGB,
+					c.getAttribute("decompress-ms"));
+		}
+	}
+
 	public static void main(String[] args) {
 		runCmd();
 	}
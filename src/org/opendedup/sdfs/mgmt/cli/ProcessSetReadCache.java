@@ -0,0 +1,36 @@
+package org.opendedup.sdfs.mgmt.cli;
+
+import java.util.Formatter;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.rabin.utils.StringUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+public class ProcessSetReadCache {
+	public static void runCmd(String ssz) {
+		try {
+			StringBuilder sb = new StringBuilder();
+			Formatter formatter = new Formatter(sb);
+			long sz = StringUtils.parseSize(ssz);
+			formatter.format("file=%s&cmd=setreadcachesz&sz=%d", "null", sz);
+			Document doc = MgmtServerConnection.getResponse(sb.toString());
+			Element root = doc.getDocumentElement();
+			formatter.close();
+			String status = root.getAttribute("status");
+			String msg = root.getAttribute("msg");
+			if (status.equals("failed")) {
+				System.out.println(msg);
+				System.exit(-1);
+			}
+			System.out.printf("Set Read Cache [%s] returned [%s]\n", status,
+					msg);
+		} catch (Exception e) {
+			SDFSLogger.getLog().error("unable to set the read cache size", e);
+			System.out.println("Set Read Cache [failed] returned ["
+					+ e.getMessage() + "]");
+			System.exit(-1);
+		}
+	}
+
+}
@@ -82,6 +82,11 @@ public class SDFSCmdline {
 					.getOptionValue("set-cache-size"));
 			System.exit(0);
 		}
+		if (cmd.hasOption("set-read-cache-size")) {
+			ProcessSetReadCache.runCmd(cmd
+					.getOptionValue("set-read-cache-size"));
+			System.exit(0);
+		}
 		if (cmd.hasOption("set-read-speed")) {
 			ProcessSetReadSpeed.runCmd(cmd
 					.getOptionValue("set-read-speed"));
@@ -445,6 +450,11 @@ public class SDFSCmdline {
 				.withDescription(
 						"Sets the Storage Cache Size if supported by the DSE")
 				.hasArg(true).create());
+		options.addOption(OptionBuilder
+				.withLongOpt("set-read-cache-size")
+				.withDescription(
+						"Sets the size of the in memory read cache of the DSE")
+				.hasArg(true).create());
 		options.addOption(OptionBuilder
 				.withLongOpt("set-read-speed")
 				.withDescription(
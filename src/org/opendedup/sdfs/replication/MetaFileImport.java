@@ -8,10 +8,12 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.opendedup.collections.DataMapInterface;
 import org.opendedup.collections.LongByteArrayMap;
 import org.opendedup.hashing.HashFunctionPool;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.filestore.IOThrottle;
 import org.opendedup.sdfs.filestore.MetaFileStore;
 import org.opendedup.sdfs.io.HashLocPair;
 import org.opendedup.sdfs.io.MetaDataDedupFile;
@@ -72,17 +74,22 @@ public class MetaFileImport implements Serializable {
 
 	public void runImport() throws IOException, ReplicationCanceledException {
 		SDFSLogger.getLog().info("Running Import of " + path);
-		this.traverse(new File(this.path));
-		if (hashes.size() != 0) {
-			try {
-				long sz = ProcessBatchGetBlocks.runCmd(hashes, server, port,
-						password, useSSL);
-				this.bytesTransmitted.addAndGet(sz);
-				levt.bytesImported = this.bytesTransmitted.get();
-			} catch (Throwable e) {
-				SDFSLogger.getLog().error("Corruption Suspected on import", e);
-				corruption = true;
+		boolean bg = IOThrottle.setBackground(true);
+		try {
+			this.traverse(new File(this.path));
+			if (hashes.size() != 0) {
+				try {
+					long sz = ProcessBatchGetBlocks.runCmd(hashes, server, port,
+							password, useSSL);
+					this.bytesTransmitted.addAndGet(sz);
+					levt.bytesImported = this.bytesTransmitted.get();
+				} catch (Throwable e) {
+					SDFSLogger.getLog().error("Corruption Suspected on import", e);
+					corruption = true;
+				}
 			}
+		} finally {
+			IOThrottle.setBackground(bg);
 		}
 		endTime = System.currentTimeMillis();
 		levt.endEvent("took [" + (System.currentTimeMillis() - startTime)
@@ -182,7 +189,7 @@ public class MetaFileImport implements Serializable {
 			if (!mapFile.exists()) {
 				return;
 			}
-			LongByteArrayMap mp = new LongByteArrayMap(mapFile.getPath());
+			DataMapInterface mp = LongByteArrayMap.open(mapFile.getPath());
 			try {
 				byte[] val = new byte[0];
 				long prevpos = 0;
@@ -206,6 +213,8 @@ public class MetaFileImport implements Serializable {
 								mf.getIOMonitor().addDulicateData(
 										Main.CHUNK_LENGTH, true);
 							for (HashLocPair p : al) {
+								if (p.isHole())
+									continue;
 								byte[] eb = HCServiceProxy.hashExists(p.hash,
 										false);
 								boolean exists = false;
@@ -266,7 +275,10 @@ public class MetaFileImport implements Serializable {
 								}
 							}
 						} else {
-							bh.addAll(ck.getFingers());
+							for (HashLocPair p : ck.getFingers()) {
+								if (!p.isHole())
+									bh.add(p);
+							}
 							if (bh.size() >= MAX_BATCHHASH_SIZE) {
 								boolean cp = batchCheck(bh, mf);
 								if (cp)
@@ -12,6 +12,7 @@ import java.util.concurrent.ExecutionException;
 import org.opendedup.collections.AbstractHashesMap;
 import org.opendedup.collections.DataArchivedException;
 import org.opendedup.collections.HashtableFullException;
+import org.opendedup.hashing.Finger;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.mtools.BloomFDisk;
 import org.opendedup.mtools.FDiskException;
@@ -117,6 +118,34 @@ public class HCServiceProxy {
 		else return 0;
 	}
 	
+	public static synchronized long getReadCacheSize() {
+		if (Main.chunkStoreLocal) {
+			return hcService.getReadCacheSize();
+		}
+		else return 0;
+	}
+	
+	public static synchronized long getMaxReadCacheSize() {
+		if (Main.chunkStoreLocal) {
+			return hcService.getMaxReadCacheSize();
+		}
+		else return 0;
+	}
+	
+	public static long getCacheHits() {
+		if (Main.chunkStoreLocal) {
+			return hcService.getCacheHits();
+		}
+		else return 0;
+	}
+	
+	public static long getCacheMisses() {
+		if (Main.chunkStoreLocal) {
+			return hcService.getCacheMisses();
+		}
+		else return 0;
+	}
+	
 	public static synchronized int getReadSpeed() {
 		if (Main.chunkStoreLocal) {
 			return hcService.getReadSpeed();
@@ -148,6 +177,12 @@ public class HCServiceProxy {
 			hcService.setCacheSize(sz);
 		}
 	}
+	
+	public static synchronized void setReadCacheSize(long sz) throws IOException {
+		if (Main.chunkStoreLocal) {
+			hcService.setReadCacheSize(sz);
+		}
+	}
 
 	public static long getChunksFetched() {
 		return -1;
@@ -458,6 +493,31 @@ public class HCServiceProxy {
 		return b;
 	}
 
+	/**
+	 * Writes the sub chunks of a buffer to the local hash store as one batch
+	 * and sets the hash location of each, as
+	 * {@link #writeChunk(byte[], byte[], boolean)} does for a single chunk.
+	 */
+	public static void writeChunks(List<Finger> fs, boolean sendChunk)
+			throws IOException, HashtableFullException {
+		boolean[] dups = null;
+		if (sendChunk) {
+			ArrayList<HashChunk> chunks = new ArrayList<HashChunk>(fs.size());
+			for (Finger f : fs)
+				chunks.add(new HashChunk(f.hash, f.chunk, false));
+			dups = HCServiceProxy.hcService.writeChunks(chunks);
+		}
+		for (int i = 0; i < fs.size(); i++) {
+			Finger f = fs.get(i);
+			byte[] b = new byte[8];
+			b[1] = -2;
+			if (dups != null && dups[i])
+				b[0] = 1;
+			f.dedup = sendChunk;
+			f.hl = b;
+		}
+	}
+
 	public static byte[] writeChunk(byte[] hash, byte[] aContents,
 			 boolean sendChunk, byte[] ignoredHosts)
 			throws IOException, HashtableFullException {
@@ -540,8 +600,17 @@ public class HCServiceProxy {
 	public static List<HashLocPair> batchHashExists(
 			List<HashLocPair> hashes) throws IOException {
 		if (Main.chunkStoreLocal) {
-			throw new IOException("not implemented for localstore");
-
+			ArrayList<byte[]> al = new ArrayList<byte[]>(hashes.size());
+			for (HashLocPair p : hashes)
+				al.add(p.hash);
+			boolean[] exists = HCServiceProxy.hcService.hashesExist(al);
+			for (int i = 0; i < exists.length; i++) {
+				byte[] b = new byte[8];
+				if (!exists[i])
+					b[0] = -1;
+				hashes.get(i).hashloc = b;
+			}
+			return hashes;
 		} else {
 			BatchHashExistsCmd cmd = new BatchHashExistsCmd(hashes);
 			cmd.executeCmd(socket);
@@ -552,8 +621,24 @@ public class HCServiceProxy {
 	public static List<HashLocPair> batchWriteHash(
 			List<HashLocPair> hashes) throws IOException {
 		if (Main.chunkStoreLocal) {
-			throw new IOException("not implemented for localstore");
-
+			ArrayList<HashChunk> chunks = new ArrayList<HashChunk>(
+					hashes.size());
+			for (HashLocPair p : hashes)
+				chunks.add(new HashChunk(p.hash, p.data, false));
+			boolean[] dups;
+			try {
+				dups = HCServiceProxy.hcService.writeChunks(chunks);
+			} catch (HashtableFullException e) {
+				throw new IOException(e);
+			}
+			for (int i = 0; i < dups.length; i++) {
+				byte[] b = new byte[8];
+				b[1] = -2;
+				if (dups[i])
+					b[0] = 1;
+				hashes.get(i).hashloc = b;
+			}
+			return hashes;
 		} else {
 			BatchWriteHashCmd cmd = new BatchWriteHashCmd(hashes);
 			cmd.executeCmd(socket);
@@ -2,13 +2,17 @@ package org.opendedup.sdfs.servers;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import org.opendedup.collections.AbstractHashesMap;
 import org.opendedup.collections.DataArchivedException;
 import org.opendedup.collections.HashtableFullException;
+import org.opendedup.collections.threads.GroupCommit;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
 import org.opendedup.sdfs.filestore.AbstractChunkStore;
+import org.opendedup.sdfs.filestore.ChunkCache;
 import org.opendedup.sdfs.filestore.ConsistancyCheck;
 import org.opendedup.sdfs.filestore.DSECompaction;
 import org.opendedup.sdfs.filestore.FileChunkStore;
@@ -32,6 +36,14 @@ public class HashChunkService implements HashChunkServiceInterface {
 	private int MAX_UNCOMITTEDCHUNKS = 100;
 	private HashStore hs = null;
 	private AbstractChunkStore fileStore = null;
+	private final GroupCommit.Syncable storeSync = new GroupCommit.Syncable() {
+		@Override
+		public void sync() throws IOException {
+			fileStore.sync();
+		}
+	};
+	private ChunkCache readCache = new ChunkCache(Main.chunkReadCacheSize,
+			ChunkCache.DEFAULT_PAGE_SIZE);
 
 	// private HashClientPool hcPool = null;
 
@@ -48,6 +60,7 @@ public class HashChunkService implements HashChunkServiceInterface {
 			fileStore = (AbstractChunkStore) Class
 					.forName(Main.chunkStoreClass).newInstance();
 			fileStore.init(Main.chunkStoreConfig);
+			GroupCommit.register(GroupCommit.CHUNKS, storeSync);
 		} catch (Throwable e) {
 			SDFSLogger.getLog().fatal("Unable to initiate ChunkStore", e);
 			System.err.println("Unable to initiate ChunkStore");
@@ -97,11 +110,44 @@ public class HashChunkService implements HashChunkServiceInterface {
 		}
 	}
 	
+	public boolean[] writeChunks(List<HashChunk> chunks) throws IOException,
+			HashtableFullException {
+		long kb = 0;
+		for (HashChunk ck : chunks) {
+			if (ck.getData().length > Main.chunkStorePageSize)
+				throw new IOException("content size out of bounds ["
+						+ ck.getData().length + "] > ["
+						+ Main.chunkStorePageSize + "]");
+		}
+		chunksRead += chunks.size();
+		boolean[] written = hs.addHashChunks(chunks);
+		boolean[] dups = new boolean[written.length];
+		int nw = 0;
+		for (int i = 0; i < written.length; i++) {
+			if (written[i]) {
+				nw++;
+				kb = kb + chunks.get(i).getData().length;
+			} else {
+				dups[i] = true;
+			}
+		}
+		unComittedChunks += nw;
+		chunksWritten += nw;
+		dupsFound += written.length - nw;
+		kBytesWrite = kBytesWrite + (kb / KBYTE);
+		if (unComittedChunks > MAX_UNCOMITTEDCHUNKS) {
+			commitChunks();
+		}
+		return dups;
+	}
+
 	public void setReadSpeed(int speed) {
+		Main.chunkStoreReadSpeed = speed;
 		fileStore.setReadSpeed((int)speed);
 	}
 	
 	public void setWriteSpeed(int speed) {
+		Main.chunkStoreWriteSpeed = speed;
 		fileStore.setWriteSpeed((int)speed);
 	}
 	
@@ -109,6 +155,11 @@ public class HashChunkService implements HashChunkServiceInterface {
 		fileStore.setCacheSize(sz);
 	}
 	
+	public void setReadCacheSize(long sz) throws IOException {
+		readCache.setMaxSize(sz);
+		Main.chunkReadCacheSize = sz;
+	}
+	
 	public void remoteFetchChunks(ArrayList<String> al, String server,
 			String password, int port, boolean useSSL) throws IOException,
 			HashtableFullException {
@@ -132,9 +183,21 @@ public class HashChunkService implements HashChunkServiceInterface {
 		return exists;
 	}
 
+	public boolean[] hashesExist(List<byte[]> hashes) throws IOException {
+		return hs.hashesExist(hashes);
+	}
+
 	public HashChunk fetchChunk(byte[] hash) throws IOException, DataArchivedException {
-		HashChunk hashChunk = hs.getHashChunk(hash);
-		byte[] data = hashChunk.getData();
+		HashChunk hashChunk = null;
+		byte[] data = readCache.get(hash);
+		if (data != null) {
+			hashChunk = new HashChunk(hash, data, false);
+		} else {
+			hashChunk = hs.getHashChunk(hash);
+			data = hashChunk.getData();
+			if (data != null)
+				readCache.put(hash, data);
+		}
 		kBytesFetched = kBytesFetched + (data.length / KBYTE);
 		chunksFetched++;
 		this.kBytesRead = kBytesFetched;
@@ -198,6 +261,8 @@ public class HashChunkService implements HashChunkServiceInterface {
 	}
 
 	public void close() {
+		GroupCommit.close();
+		GroupCommit.unregister(storeSync);
 		fileStore.close();
 		hs.close();
 
@@ -220,10 +285,23 @@ public class HashChunkService implements HashChunkServiceInterface {
 
 	}
 
+	/**
+	 * Waits for a group commit round, which syncs the chunk store together
+	 * with everyone else syncing at the same time.
+	 */
 	@Override
 	public void sync() throws IOException {
-		fileStore.sync();
-		
+		if (!GroupCommit.isRunning()) {
+			fileStore.sync();
+			return;
+		}
+		try {
+			GroupCommit.commit().get();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
 	}
 
 	@Override
@@ -236,6 +314,26 @@ public class HashChunkService implements HashChunkServiceInterface {
 		return fileStore.getMaxCacheSize();
 	}
 
+	@Override
+	public long getReadCacheSize() {
+		return readCache.getSize();
+	}
+
+	@Override
+	public long getMaxReadCacheSize() {
+		return readCache.getMaxSize();
+	}
+
+	@Override
+	public long getCacheHits() {
+		return readCache.getHits();
+	}
+
+	@Override
+	public long getCacheMisses() {
+		return readCache.getMisses();
+	}
+
 	@Override
 	public int getReadSpeed() {
 		return fileStore.getReadSpeed();
@@ -2,6 +2,7 @@ package org.opendedup.sdfs.servers;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 
 import org.opendedup.collections.AbstractHashesMap;
 import org.opendedup.collections.DataArchivedException;
@@ -28,6 +29,14 @@ public interface HashChunkServiceInterface {
 	public abstract boolean writeChunk(byte[] hash, byte[] aContents, boolean compressed) throws IOException,
 			HashtableFullException;
 
+	/**
+	 * Writes a batch of chunks to the local hash store.
+	 * 
+	 * @return whether each chunk was a duplicate, in the order they were given
+	 */
+	public abstract boolean[] writeChunks(List<HashChunk> chunks)
+			throws IOException, HashtableFullException;
+
 	public abstract void remoteFetchChunks(ArrayList<String> al, String server,
 			String password, int port, boolean useSSL) throws IOException,
 			HashtableFullException;
@@ -35,6 +44,9 @@ public interface HashChunkServiceInterface {
 	public abstract boolean hashExists(byte[] hash) throws IOException,
 			HashtableFullException;
 
+	public abstract boolean[] hashesExist(List<byte[]> hashes)
+			throws IOException;
+
 	public abstract HashChunk fetchChunk(byte[] hash) throws IOException,DataArchivedException;
 
 	public abstract byte getHashRoute(byte[] hash);
@@ -79,6 +91,10 @@ public interface HashChunkServiceInterface {
 	public abstract long getCacheSize();
 	
 	public abstract long getMaxCacheSize();
+
+	public abstract long getReadCacheSize();
+
+	public abstract long getMaxReadCacheSize();
 	
 	public abstract int getReadSpeed();
 	
@@ -86,4 +102,10 @@ public interface HashChunkServiceInterface {
 	
 	public abstract void setCacheSize(long sz) throws IOException;
 
+	public abstract void setReadCacheSize(long sz) throws IOException;
+
+	public abstract long getCacheHits();
+
+	public abstract long getCacheMisses();
+
 }
\ No newline at end of file
@@ -0,0 +1,108 @@
+package org.opendedup.util;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size bit set that can be set and cleared from multiple threads
+ * without external locking. Each word is updated with a compare and set so
+ * concurrent writers to bits that share a word do not lose updates.
+ *
+ */
+public class AtomicBitSet {
+	private final AtomicLongArray words;
+	private final int nbits;
+
+	public AtomicBitSet(int nbits) {
+		this.nbits = nbits;
+		this.words = new AtomicLongArray((nbits >>> 6) + 1);
+	}
+
+	public int length() {
+		return this.nbits;
+	}
+
+	public boolean get(int bitIndex) {
+		return (words.get(bitIndex >>> 6) & (1L << bitIndex)) != 0;
+	}
+
+	public void set(int bitIndex) {
+		int wi = bitIndex >>> 6;
+		long mask = 1L << bitIndex;
+		for (;;) {
+			long w = words.get(wi);
+			if ((w & mask) != 0 || words.compareAndSet(wi, w, w | mask))
+				return;
+		}
+	}
+
+	public void clear(int bitIndex) {
+		int wi = bitIndex >>> 6;
+		long mask = 1L << bitIndex;
+		for (;;) {
+			long w = words.get(wi);
+			if ((w & mask) == 0 || words.compareAndSet(wi, w, w & ~mask))
+				return;
+		}
+	}
+
+	/**
+	 * Clears the bit and returns its previous state.
+	 */
+	public boolean getAndClear(int bitIndex) {
+		int wi = bitIndex >>> 6;
+		long mask = 1L << bitIndex;
+		for (;;) {
+			long w = words.get(wi);
+			if ((w & mask) == 0)
+				return false;
+			if (words.compareAndSet(wi, w, w & ~mask))
+				return true;
+		}
+	}
+
+	public void clear() {
+		for (int i = 0; i < words.length(); i++)
+			words.set(i, 0);
+	}
+
+	public int cardinality() {
+		int ct = 0;
+		for (int i = 0; i < words.length(); i++)
+			ct += Long.bitCount(words.get(i));
+		return ct;
+	}
+
+	public int getNumWords() {
+		return words.length();
+	}
+
+	public long getWord(int wordIndex) {
+		return words.get(wordIndex);
+	}
+
+	public void setWord(int wordIndex, long word) {
+		words.set(wordIndex, word);
+	}
+
+	public long[] toLongArray() {
+		long[] l = new long[words.length()];
+		for (int i = 0; i < l.length; i++)
+			l[i] = words.get(i);
+		return l;
+	}
+
+	public BitSet toBitSet() {
+		return BitSet.valueOf(this.toLongArray());
+	}
+
+	public static AtomicBitSet valueOf(BitSet set, int nbits) {
+		AtomicBitSet abs = new AtomicBitSet(nbits);
+		long[] l = set.toLongArray();
+		int len = Math.min(l.length, abs.getNumWords());
+		for (int i = 0; i < len; i++)
+			abs.setWord(i, l[i]);
+		return abs;
+	}
+
+}
@@ -0,0 +1,59 @@
+package org.opendedup.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted handle to a byte array borrowed from
+ * {@link ChunkBufferPool}. The array goes back to the pool when the last
+ * holder calls {@link #release()}. Anyone that keeps the array past the call
+ * that handed it to them must {@link #retain()} it first.
+ *
+ * Handles created with {@link #wrap(byte[])} are not pooled and releasing
+ * them only drops the reference count.
+ */
+public class ChunkBuffer {
+	private final byte[] array;
+	private final boolean pooled;
+	private final AtomicInteger refs = new AtomicInteger(1);
+
+	ChunkBuffer(byte[] array, boolean pooled) {
+		this.array = array;
+		this.pooled = pooled;
+	}
+
+	/**
+	 * Wraps an array that does not belong to the pool.
+	 */
+	public static ChunkBuffer wrap(byte[] array) {
+		return new ChunkBuffer(array, false);
+	}
+
+	public byte[] array() {
+		return this.array;
+	}
+
+	public ChunkBuffer retain() {
+		for (;;) {
+			int r = refs.get();
+			if (r <= 0)
+				throw new IllegalStateException("buffer already released");
+			if (refs.compareAndSet(r, r + 1))
+				return this;
+		}
+	}
+
+	public void release() {
+		int r = refs.decrementAndGet();
+		if (r == 0) {
+			if (pooled)
+				ChunkBufferPool.recycle(array);
+		} else if (r < 0) {
+			throw new IllegalStateException("buffer released too many times");
+		}
+	}
+
+	public int refCnt() {
+		return refs.get();
+	}
+
+}
@@ -0,0 +1,84 @@
+package org.opendedup.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendedup.sdfs.Main;
+
+/**
+ * A process wide pool of heap byte arrays used on the write path for chunk
+ * data, compression output and page sized store writes. Arrays are kept in a
+ * queue per length and the total size held idle is capped at
+ * Main.chunkBufferPoolSize bytes. Arrays released when the pool is full are
+ * left to the garbage collector.
+ */
+public class ChunkBufferPool {
+	private static final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<byte[]>> pools = new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<byte[]>>();
+	private static final AtomicLong pooledBytes = new AtomicLong();
+	private static final AtomicLong allocated = new AtomicLong();
+	private static final AtomicLong reused = new AtomicLong();
+
+	private static ConcurrentLinkedQueue<byte[]> queue(int len) {
+		ConcurrentLinkedQueue<byte[]> q = pools.get(len);
+		if (q == null) {
+			q = new ConcurrentLinkedQueue<byte[]>();
+			ConcurrentLinkedQueue<byte[]> _q = pools.putIfAbsent(len, q);
+			if (_q != null)
+				q = _q;
+		}
+		return q;
+	}
+
+	private static byte[] take(int len) {
+		byte[] b = queue(len).poll();
+		if (b == null) {
+			allocated.incrementAndGet();
+			return new byte[len];
+		}
+		pooledBytes.addAndGet(-len);
+		reused.incrementAndGet();
+		return b;
+	}
+
+	/**
+	 * Borrows a zeroed array of exactly <tt>len</tt> bytes.
+	 */
+	public static ChunkBuffer borrow(int len) {
+		byte[] b = take(len);
+		Arrays.fill(b, (byte) 0);
+		return new ChunkBuffer(b, true);
+	}
+
+	/**
+	 * Borrows an array of at least <tt>len</tt> bytes for scratch use. The
+	 * length is rounded up to a power of two to limit the number of distinct
+	 * sizes pooled and the contents are not cleared.
+	 */
+	public static ChunkBuffer borrowScratch(int len) {
+		int sz = len <= 1024 ? 1024 : Integer.highestOneBit(len - 1) << 1;
+		return new ChunkBuffer(take(sz), true);
+	}
+
+	static void recycle(byte[] b) {
+		if (pooledBytes.addAndGet(b.length) > Main.chunkBufferPoolSize) {
+			pooledBytes.addAndGet(-b.length);
+			return;
+		}
+		queue(b.length).offer(b);
+	}
+
+	public static long getPooledBytes() {
+		return pooledBytes.get();
+	}
+
+	public static long getAllocated() {
+		return allocated.get();
+	}
+
+	public static long getReused() {
+		return reused.get();
+	}
+
+}
@@ -0,0 +1,210 @@
+package org.opendedup.util;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+
+import org.opendedup.sdfs.Main;
+
+/**
+ * Encrypts chunks with the chunk store key through the JCE so the AES
+ * intrinsics of the JVM are used. Every thread keeps its own initialized
+ * ciphers and output can go straight into a buffer owned by the caller.
+ *
+ * {@link #ECB} is the deterministic format chunks and hash names were
+ * encrypted with before. {@link #GCM} encrypts every chunk with its own IV
+ * and authenticates it. Its output is [IV (12 bytes)|cipher text|tag (16
+ * bytes)].
+ */
+public abstract class ChunkCipher {
+
+	public static final ChunkCipher ECB = new ECBCipher();
+	public static final ChunkCipher GCM = new GCMCipher();
+
+	/**
+	 * @return the cipher new chunks are encrypted with
+	 */
+	public static ChunkCipher forWrites() {
+		return "ecb".equalsIgnoreCase(Main.chunkStoreEncryptionMode) ? ECB
+				: GCM;
+	}
+
+	/**
+	 * @return the number of bytes encrypting <tt>len</tt> bytes produces
+	 */
+	public abstract int outputSize(int len);
+
+	/**
+	 * Encrypts <tt>len</tt> bytes of <tt>in</tt> into <tt>out</tt>, which
+	 * must have {@link #outputSize(int)} bytes left after <tt>outOff</tt>.
+	 *
+	 * @return the number of bytes written
+	 */
+	public abstract int encrypt(byte[] in, int off, int len, byte[] out,
+			int outOff) throws IOException;
+
+	/**
+	 * Decrypts <tt>len</tt> bytes of <tt>in</tt> into <tt>out</tt>, which
+	 * must have <tt>len</tt> bytes left after <tt>outOff</tt>.
+	 *
+	 * @return the number of bytes written
+	 */
+	public abstract int decrypt(byte[] in, int off, int len, byte[] out,
+			int outOff) throws IOException;
+
+	public byte[] encrypt(byte[] in) throws IOException {
+		byte[] out = new byte[this.outputSize(in.length)];
+		this.encrypt(in, 0, in.length, out, 0);
+		return out;
+	}
+
+	public abstract byte[] decrypt(byte[] in, int off, int len)
+			throws IOException;
+
+	public byte[] decrypt(byte[] in) throws IOException {
+		return this.decrypt(in, 0, in.length);
+	}
+
+	private static final class ECBCipher extends ChunkCipher {
+		private final ThreadLocal<Cipher> enc = new ThreadLocal<Cipher>();
+		private final ThreadLocal<Cipher> dec = new ThreadLocal<Cipher>();
+
+		private Cipher cipher(ThreadLocal<Cipher> tl, int mode)
+				throws GeneralSecurityException {
+			Cipher c = tl.get();
+			if (c == null) {
+				// PKCS5 padding is PKCS7 for AES and matches the padded
+				// block cipher chunks used to be encrypted with
+				c = Cipher.getInstance("AES/ECB/PKCS5Padding");
+				c.init(mode, EncryptUtils.chunkKey());
+				tl.set(c);
+			}
+			return c;
+		}
+
+		@Override
+		public int outputSize(int len) {
+			return (len / 16 + 1) * 16;
+		}
+
+		@Override
+		public int encrypt(byte[] in, int off, int len, byte[] out, int outOff)
+				throws IOException {
+			try {
+				return this.cipher(enc, Cipher.ENCRYPT_MODE).doFinal(in, off,
+						len, out, outOff);
+			} catch (GeneralSecurityException e) {
+				enc.remove();
+				throw new IOException(e);
+			}
+		}
+
+		@Override
+		public int decrypt(byte[] in, int off, int len, byte[] out, int outOff)
+				throws IOException {
+			try {
+				return this.cipher(dec, Cipher.DECRYPT_MODE).doFinal(in, off,
+						len, out, outOff);
+			} catch (GeneralSecurityException e) {
+				dec.remove();
+				throw new IOException(e);
+			}
+		}
+
+		@Override
+		public byte[] decrypt(byte[] in, int off, int len) throws IOException {
+			try {
+				return this.cipher(dec, Cipher.DECRYPT_MODE).doFinal(in, off,
+						len);
+			} catch (GeneralSecurityException e) {
+				dec.remove();
+				throw new IOException(e);
+			}
+		}
+	}
+
+	private static final class GCMCipher extends ChunkCipher {
+		private static final int IV_LEN = 12;
+		private static final int TAG_LEN = 16;
+		private final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>();
+		/*
+		 * IVs are a random prefix for this process and a counter that starts
+		 * from the clock, so they do not repeat across restarts or between
+		 * processes that share the key.
+		 */
+		private final int prefix = new SecureRandom().nextInt();
+		private final AtomicLong counter = new AtomicLong(
+				System.currentTimeMillis() << 20);
+
+		private Cipher cipher() throws GeneralSecurityException {
+			Cipher c = ciphers.get();
+			if (c == null) {
+				c = Cipher.getInstance("AES/GCM/NoPadding");
+				ciphers.set(c);
+			}
+			return c;
+		}
+
+		@Override
+		public int outputSize(int len) {
+			return IV_LEN + len + TAG_LEN;
+		}
+
+		@Override
+		public int encrypt(byte[] in, int off, int len, byte[] out, int outOff)
+				throws IOException {
+			long n = counter.incrementAndGet();
+			for (int i = 0; i < 4; i++)
+				out[outOff + i] = (byte) (prefix >>> (24 - i * 8));
+			for (int i = 0; i < 8; i++)
+				out[outOff + 4 + i] = (byte) (n >>> (56 - i * 8));
+			try {
+				Cipher c = this.cipher();
+				c.init(Cipher.ENCRYPT_MODE, EncryptUtils.chunkKey(),
+						new GCMParameterSpec(TAG_LEN * 8, out, outOff, IV_LEN));
+				return IV_LEN
+						+ c.doFinal(in, off, len, out, outOff + IV_LEN);
+			} catch (GeneralSecurityException e) {
+				ciphers.remove();
+				throw new IOException(e);
+			}
+		}
+
+		@Override
+		public int decrypt(byte[] in, int off, int len, byte[] out, int outOff)
+				throws IOException {
+			try {
+				return this.init(in, off, len).doFinal(in, off + IV_LEN,
+						len - IV_LEN, out, outOff);
+			} catch (AEADBadTagException e) {
+				throw new IOException("chunk failed authentication", e);
+			} catch (GeneralSecurityException e) {
+				ciphers.remove();
+				throw new IOException(e);
+			}
+		}
+
+		@Override
+		public byte[] decrypt(byte[] in, int off, int len) throws IOException {
+			byte[] out = new byte[len - IV_LEN - TAG_LEN];
+			this.decrypt(in, off, len, out, 0);
+			return out;
+		}
+
+		private Cipher init(byte[] in, int off, int len)
+				throws GeneralSecurityException, IOException {
+			if (len < IV_LEN + TAG_LEN)
+				throw new IOException("encrypted chunk is too short");
+			Cipher c = this.cipher();
+			c.init(Cipher.DECRYPT_MODE, EncryptUtils.chunkKey(),
+					new GCMParameterSpec(TAG_LEN * 8, in, off, IV_LEN));
+			return c;
+		}
+	}
+
+}
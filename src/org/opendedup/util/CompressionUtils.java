@@ -29,6 +29,20 @@ public class CompressionUtils {
 			.fastCompressor();
 	static final LZ4FastDecompressor lz4Decompressor = LZ4Factory
 			.nativeInstance().fastDecompressor();
+	static final LZ4Compressor lz4HighCompressor = LZ4Factory
+			.nativeInstance().highCompressor();
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater();
+		}
+	};
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
 
 	public static byte[] compressZLIB(byte[] input) throws IOException {
 		// Create the compressor with highest level of compression
@@ -89,10 +103,79 @@ public class CompressionUtils {
 		return lz4Compressor.compress(input);
 	}
 
+	public static int maxCompressedLengthLz4(int len) {
+		return lz4Compressor.maxCompressedLength(len);
+	}
+
+	/**
+	 * Compresses <tt>input</tt> into <tt>output</tt>, which must hold at
+	 * least {@link #maxCompressedLengthLz4(int)} bytes, and returns the
+	 * compressed length.
+	 */
+	public static int compressLz4(byte[] input, byte[] output)
+			throws IOException {
+		return lz4Compressor.compress(input, 0, input.length, output, 0,
+				output.length);
+	}
+
 	public static byte[] decompressLz4(byte[] input, int len)
 			throws IOException {
 		return lz4Decompressor.decompress(input, len);
 	}
+
+	/**
+	 * Compresses <tt>input</tt> with the LZ4 high compressor. The output is
+	 * read back with {@link #decompressLz4(byte[], int)}.
+	 */
+	public static int compressLz4High(byte[] input, byte[] output)
+			throws IOException {
+		return lz4HighCompressor.compress(input, 0, input.length, output, 0,
+				output.length);
+	}
+
+	/**
+	 * Deflates <tt>input</tt> into the first <tt>limit</tt> bytes of
+	 * <tt>output</tt> with a deflater kept by the calling thread.
+	 * 
+	 * @return the compressed length or -1 if it does not fit
+	 */
+	public static int compressZLIB(byte[] input, byte[] output, int limit) {
+		Deflater compressor = deflaters.get();
+		compressor.reset();
+		compressor.setInput(input);
+		compressor.finish();
+		int len = 0;
+		while (!compressor.finished() && len < limit)
+			len += compressor.deflate(output, len, limit - len);
+		return compressor.finished() ? len : -1;
+	}
+
+	/**
+	 * Inflates the first <tt>len</tt> bytes of <tt>input</tt> back into
+	 * <tt>ulen</tt> bytes.
+	 */
+	public static byte[] decompressZLIB(byte[] input, int len, int ulen)
+			throws IOException {
+		Inflater decompressor = inflaters.get();
+		decompressor.reset();
+		decompressor.setInput(input, 0, len);
+		byte[] out = new byte[ulen];
+		int pos = 0;
+		try {
+			while (pos < ulen && !decompressor.finished()) {
+				int n = decompressor.inflate(out, pos, ulen - pos);
+				if (n == 0 && decompressor.needsInput())
+					break;
+				pos += n;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e.toString());
+		}
+		if (pos != ulen)
+			throw new IOException("inflated " + pos + " bytes, expected "
+					+ ulen);
+		return out;
+	}
 	
 	public static void compressFile(File src,File dst) throws IOException {
 		if(!dst.getParentFile().exists())
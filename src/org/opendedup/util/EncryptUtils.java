@@ -17,11 +17,6 @@ import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.commons.io.IOUtils;
-import org.bouncycastle.crypto.BlockCipher;
-import org.bouncycastle.crypto.CryptoException;
-import org.bouncycastle.crypto.engines.AESEngine;
-import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
-import org.bouncycastle.crypto.params.KeyParameter;
 import org.opendedup.hashing.HashFunctions;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
@@ -81,51 +76,20 @@ public class EncryptUtils {
 		return chunk;
 	}
 
-	public static byte[] encrypt(byte[] chunk) throws IOException {
-		BlockCipher engine = new AESEngine();
-		PaddedBufferedBlockCipher cipher = new PaddedBufferedBlockCipher(engine);
-
-		cipher.init(true, new KeyParameter(keyBytes));
-		int size = cipher.getOutputSize(chunk.length);
-		byte[] cipherText = new byte[size];
+	static SecretKeySpec chunkKey() {
+		return key;
+	}
 
-		int olen = cipher.processBytes(chunk, 0, chunk.length, cipherText, 0);
-		try {
-			olen += cipher.doFinal(cipherText, olen);
-			if (olen < size) {
-				byte[] tmp = new byte[olen];
-				System.arraycopy(cipherText, 0, tmp, 0, olen);
-				cipherText = tmp;
-			}
-		} catch (CryptoException ce) {
-			SDFSLogger.getLog().error("uable to decrypt", ce);
-			throw new IOException(ce);
-		}
-		return cipherText;
+	/**
+	 * Encrypts a chunk or hash name with the deterministic format, see
+	 * {@link ChunkCipher#ECB}.
+	 */
+	public static byte[] encrypt(byte[] chunk) throws IOException {
+		return ChunkCipher.ECB.encrypt(chunk);
 	}
 
 	public static byte[] decrypt(byte[] encChunk) throws IOException {
-		BlockCipher engine = new AESEngine();
-		PaddedBufferedBlockCipher cipher = new PaddedBufferedBlockCipher(engine);
-
-		cipher.init(false, new KeyParameter(keyBytes));
-		int size = cipher.getOutputSize(encChunk.length);
-		byte[] clearText = new byte[size];
-
-		int olen = cipher.processBytes(encChunk, 0, encChunk.length, clearText,
-				0);
-		try {
-			olen += cipher.doFinal(clearText, olen);
-			if (olen < size) {
-				byte[] tmp = new byte[olen];
-				System.arraycopy(clearText, 0, tmp, 0, olen);
-				clearText = tmp;
-			}
-		} catch (CryptoException ce) {
-			SDFSLogger.getLog().error("uable to decrypt", ce);
-			throw new IOException(ce);
-		}
-		return clearText;
+		return ChunkCipher.ECB.decrypt(encChunk);
 	}
 
 	public static byte[] encryptCBC(byte[] chunk) throws IOException {
@@ -67,4 +67,31 @@ public class NextPrime {
 		}
 	}
 
+	/**
+	 * @return the largest prime that is not greater than <tt>input</tt>
+	 */
+	public static int getPrevPrimeI(long input) throws Exception {
+		if (input > Integer.MAX_VALUE)
+			input = Integer.MAX_VALUE;
+		if (input < 2)
+			throw new Exception("There is no prime smaller than " + input);
+		if (input <= 3)
+			return (int) input;
+		if (input == ((input >> 1) << 1)) {
+			input -= 1;
+		}
+		for (long i = input; i > 3; i -= 2) {
+			boolean isPrime = true;
+			for (long j = 3; j * j <= i; j += 2) {
+				if (i % j == 0) {
+					isPrime = false;
+					break;
+				}
+			}
+			if (isPrime)
+				return (int) i;
+		}
+		return 3;
+	}
+
 }
\ No newline at end of file